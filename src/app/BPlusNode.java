@@ -0,0 +1,35 @@
+package app;
+
+
+//
+// Node of a BPlusTree
+// A leaf holds the keys and their values and is chained to its neighbours in key order; an internal node
+// holds separator keys and children only. Leaves and internal nodes are sized from their own degrees,
+// so the internal nodes can take a larger one and give the tree its fanout
+//
+public class BPlusNode<K extends Comparable, V>
+{
+    protected boolean mIsLeaf; // true if the node is a leaf
+    protected int mCurrentKeyNum; // number of keys stored in the node
+    protected K mKeys[]; // leaf: the keys, internal node: the separator keys
+    protected V mValues[]; // leaf only, mValues[i] belongs to mKeys[i]
+    protected BPlusNode mChildren[]; // internal node only, mChildren[i] holds the keys lower than mKeys[i]
+    protected BPlusNode<K, V> mNext; // leaf only, the next leaf in key order
+    protected BPlusNode<K, V> mPrev; // leaf only, the previous leaf in key order
+
+
+    //
+    // Create an empty node holding up to (2 * minDegree - 1) keys, minDegree being the degree of its kind
+    //
+    public BPlusNode(int minDegree, boolean isLeaf) {
+        mIsLeaf = isLeaf;
+        mCurrentKeyNum = 0;
+        mKeys = (K[]) new Comparable[BTNode.getUpperBoundKeyNum(minDegree)];
+        if (isLeaf) {
+            mValues = (V[]) new Object[BTNode.getUpperBoundKeyNum(minDegree)];
+        }
+        else {
+            mChildren = new BPlusNode[BTNode.getUpperBoundKeyNum(minDegree) + 1];
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package app;
+
+import java.util.Arrays;
+
+//
+// B+ tree: the values are stored in the leaves only, the internal nodes hold separator keys
+// and the leaves are chained in key order, so an ordered listing is a walk along the chain
+// The internal nodes have their own degree, by default INTERNAL_DEGREE_FACTOR times the degree of the
+// leaves: without values they are only searched on the way down, so a larger fanout makes the tree
+// shallower for the price of a few more comparisons in each of them
+//
+public class BPlusTree<K extends Comparable, V> implements BTreeIF<K, V>
+{
+    public final static int INTERNAL_DEGREE_FACTOR  =   2; // internal degree of a tree created with the leaf degree only
+
+    private final int mMinDegree; // degree of the leaves
+    private final int mLowerBoundKeyNum;
+    private final int mUpperBoundKeyNum;
+    private final int mInternalMinDegree;
+    private final int mInternalLowerBoundKeyNum;
+    private final int mInternalUpperBoundKeyNum;
+    private final BTSearchIF mSearch; // within the leaves
+    private final BTSearchIF mInternalSearch;
+    private BPlusNode<K, V> mRoot = null;
+    private long mSize = 0L;
+
+    //
+    // Create a tree with the default node degree
+    //
+    public BPlusTree() {
+        this(BTNode.DEFAULT_MIN_DEGREE);
+    }
+
+    //
+    // Create a tree whose leaves hold between (minDegree - 1) and (2 * minDegree - 1) keys,
+    // and whose internal nodes take the default larger degree
+    //
+    public BPlusTree(int minDegree) {
+        this(minDegree, getDefaultInternalMinDegree(minDegree));
+    }
+
+    //
+    // Create a tree with the given degrees for its leaves and for its internal nodes
+    //
+    public BPlusTree(int minDegree, int internalMinDegree) {
+        this(minDegree, internalMinDegree, BTNode.selectSearch(minDegree), BTNode.selectSearch(internalMinDegree));
+    }
+
+    //
+    // Create a tree with the given leaf degree that searches within all its nodes with the given strategy
+    //
+    public BPlusTree(int minDegree, BTSearchIF search) {
+        this(minDegree, getDefaultInternalMinDegree(minDegree), search, search);
+    }
+
+    //
+    // Create a tree with the given degrees that searches within its leaves and its internal nodes
+    // with the given strategies
+    //
+    public BPlusTree(int minDegree, int internalMinDegree, BTSearchIF search, BTSearchIF internalSearch) {
+        mMinDegree = BTNode.checkMinDegree(minDegree);
+        mLowerBoundKeyNum = BTNode.getLowerBoundKeyNum(minDegree);
+        mUpperBoundKeyNum = BTNode.getUpperBoundKeyNum(minDegree);
+        mInternalMinDegree = BTNode.checkMinDegree(internalMinDegree);
+        mInternalLowerBoundKeyNum = BTNode.getLowerBoundKeyNum(internalMinDegree);
+        mInternalUpperBoundKeyNum = BTNode.getUpperBoundKeyNum(internalMinDegree);
+        mSearch = search;
+        mInternalSearch = internalSearch;
+    }
+
+    //
+    // Get the minimum degree of the leaves of the tree
+    //
+    public int getMinDegree() {
+        return mMinDegree;
+    }
+
+    //
+    // Get the minimum degree of the internal nodes of the tree
+    //
+    public int getInternalMinDegree() {
+        return mInternalMinDegree;
+    }
+
+    private static int getDefaultInternalMinDegree(int minDegree) {
+        return Math.min(INTERNAL_DEGREE_FACTOR * minDegree, BTNode.MIN_DEGREE_UPPER_LIMIT);
+    }
+
+    //
+    // Get the root node
+    //
+    public BPlusNode<K, V> getRootNode() {
+        return mRoot;
+    }
+
+    //
+    // The total number of keys in the tree
+    //
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    //
+    // Clear all the entries in the tree
+    //
+    @Override
+    public void clear() {
+        mSize = 0L;
+        mRoot = null;
+    }
+
+    //
+    // Find the index of the child of an internal node that may hold the key
+    // A key equal to a separator belongs to the subtree on its right
+    //
+    private int findChildIndex(BPlusNode<K, V> btNode, K key) {
+        int i = mInternalSearch.search(btNode.mKeys, btNode.mCurrentKeyNum, key);
+        return (i >= 0) ? i + 1 : -(i + 1);
+    }
+
+    //
+    // Go down from the root to the leaf that may hold the key
+    //
+    private BPlusNode<K, V> findLeaf(K key) {
+        BPlusNode<K, V> currentNode = mRoot;
+        while (!currentNode.mIsLeaf) {
+            currentNode = currentNode.mChildren[findChildIndex(currentNode, key)];
+        }
+        return currentNode;
+    }
+
+    //
+    // Get the leftmost leaf of the tree
+    //
+    private BPlusNode<K, V> getFirstLeaf() {
+        BPlusNode<K, V> currentNode = mRoot;
+        while (!currentNode.mIsLeaf) {
+            currentNode = currentNode.mChildren[0];
+        }
+        return currentNode;
+    }
+
+    //
+    // Search value for a specified key of the tree
+    //
+    @Override
+    public V search(K key) {
+        if (mRoot == null) {
+            return null;
+        }
+
+        BPlusNode<K, V> leafNode = findLeaf(key);
+        int i = mSearch.search(leafNode.mKeys, leafNode.mCurrentKeyNum, key);
+        return (i >= 0) ? leafNode.mValues[i] : null;
+    }
+
+    //
+    // Insert the key and its value into the tree
+    // The value of an existing key is replaced
+    //
+    @Override
+    public BPlusTree<K, V> insert(K key, V value) {
+        if (mRoot == null) {
+            mRoot = new BPlusNode<K, V>(mMinDegree, true);
+        }
+
+        if (isFull(mRoot)) {
+            // The root is full, split it so that the tree grows by one level
+            BPlusNode<K, V> btNode = new BPlusNode<K, V>(mInternalMinDegree, false);
+            btNode.mChildren[0] = mRoot;
+            mRoot = btNode;
+            splitNode(mRoot, 0, btNode.mChildren[0]);
+        }
+
+        // Go down to the leaf, splitting the full nodes on the way so that
+        // each of them can take the separator of a split child
+        BPlusNode<K, V> currentNode = mRoot;
+        while (!currentNode.mIsLeaf) {
+            int i = findChildIndex(currentNode, key);
+            BPlusNode<K, V> childNode = currentNode.mChildren[i];
+            if (isFull(childNode)) {
+                splitNode(currentNode, i, childNode);
+                if (key.compareTo(currentNode.mKeys[i]) >= 0) {
+                    childNode = currentNode.mChildren[i + 1];
+                }
+            }
+            currentNode = childNode;
+        }
+
+        int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+        if (i >= 0) {
+            // The key already existed so replace its value
+            currentNode.mValues[i] = value;
+            return this;
+        }
+
+        i = -(i + 1);
+        int keyNum = currentNode.mCurrentKeyNum;
+        System.arraycopy(currentNode.mKeys, i, currentNode.mKeys, i + 1, keyNum - i);
+        System.arraycopy(currentNode.mValues, i, currentNode.mValues, i + 1, keyNum - i);
+        currentNode.mKeys[i] = key;
+        currentNode.mValues[i] = value;
+        ++(currentNode.mCurrentKeyNum);
+        ++mSize;
+        return this;
+    }
+
+    //
+    // Whether the node holds the maximum number of keys of its kind
+    //
+    private boolean isFull(BPlusNode<K, V> btNode) {
+        return btNode.mCurrentKeyNum == (btNode.mIsLeaf ? mUpperBoundKeyNum : mInternalUpperBoundKeyNum);
+    }
+
+    //
+    // Split the full child node at nodeIdx of the parent node
+    // A leaf keeps its lower keys and copies the first key of the new leaf up as separator,
+    // an internal node moves its middle key up
+    //
+    private void splitNode(BPlusNode<K, V> parentNode, int nodeIdx, BPlusNode<K, V> btNode) {
+        BPlusNode<K, V> newNode = new BPlusNode<K, V>(btNode.mIsLeaf ? mMinDegree : mInternalMinDegree, btNode.mIsLeaf);
+        K separatorKey;
+
+        if (btNode.mIsLeaf) {
+            System.arraycopy(btNode.mKeys, mLowerBoundKeyNum, newNode.mKeys, 0, mMinDegree);
+            System.arraycopy(btNode.mValues, mLowerBoundKeyNum, newNode.mValues, 0, mMinDegree);
+            Arrays.fill(btNode.mKeys, mLowerBoundKeyNum, mUpperBoundKeyNum, null);
+            Arrays.fill(btNode.mValues, mLowerBoundKeyNum, mUpperBoundKeyNum, null);
+            newNode.mCurrentKeyNum = mMinDegree;
+            btNode.mCurrentKeyNum = mLowerBoundKeyNum;
+            separatorKey = newNode.mKeys[0];
+
+            // Chain the new leaf right after the split one
+            newNode.mNext = btNode.mNext;
+            newNode.mPrev = btNode;
+            if (btNode.mNext != null) {
+                btNode.mNext.mPrev = newNode;
+            }
+            btNode.mNext = newNode;
+        }
+        else {
+            System.arraycopy(btNode.mKeys, mInternalMinDegree, newNode.mKeys, 0, mInternalLowerBoundKeyNum);
+            System.arraycopy(btNode.mChildren, mInternalMinDegree, newNode.mChildren, 0, mInternalMinDegree);
+            separatorKey = btNode.mKeys[mInternalLowerBoundKeyNum];
+            Arrays.fill(btNode.mKeys, mInternalLowerBoundKeyNum, mInternalUpperBoundKeyNum, null);
+            Arrays.fill(btNode.mChildren, mInternalMinDegree, mInternalUpperBoundKeyNum + 1, null);
+            newNode.mCurrentKeyNum = mInternalLowerBoundKeyNum;
+            btNode.mCurrentKeyNum = mInternalLowerBoundKeyNum;
+        }
+
+        // Make room in the parent node for the separator and the new child
+        int keyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, nodeIdx, parentNode.mKeys, nodeIdx + 1, keyNum - nodeIdx);
+        System.arraycopy(parentNode.mChildren, nodeIdx + 1, parentNode.mChildren, nodeIdx + 2, keyNum - nodeIdx);
+        parentNode.mKeys[nodeIdx] = separatorKey;
+        parentNode.mChildren[nodeIdx + 1] = newNode;
+        ++(parentNode.mCurrentKeyNum);
+    }
+
+    //
+    // Delete a key from the tree
+    // Return the value if the key existed
+    // Return null otherwise
+    //
+    @Override
+    public V delete(K key) {
+        if (mRoot == null) {
+            return null;
+        }
+
+        // Go down to the leaf, making sure that each node entered can lose a key
+        BPlusNode<K, V> currentNode = mRoot;
+        while (!currentNode.mIsLeaf) {
+            currentNode = ensureChildCanSpareKey(currentNode, findChildIndex(currentNode, key));
+        }
+
+        V retVal = null;
+        int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+        if (i >= 0) {
+            retVal = currentNode.mValues[i];
+            int keyNum = currentNode.mCurrentKeyNum;
+            System.arraycopy(currentNode.mKeys, i + 1, currentNode.mKeys, i, keyNum - i - 1);
+            System.arraycopy(currentNode.mValues, i + 1, currentNode.mValues, i, keyNum - i - 1);
+            currentNode.mKeys[keyNum - 1] = null;
+            currentNode.mValues[keyNum - 1] = null;
+            --(currentNode.mCurrentKeyNum);
+            --mSize;
+        }
+
+        if (mRoot.mCurrentKeyNum == 0) {
+            mRoot = mRoot.mIsLeaf ? null : mRoot.mChildren[0];
+        }
+        return retVal;
+    }
+
+    //
+    // Make sure the child at nodeIdx holds more than the minimum number of keys
+    // before going down into it, by borrowing from a sibling or merging with it
+    // Return the node to go down into
+    //
+    private BPlusNode<K, V> ensureChildCanSpareKey(BPlusNode<K, V> parentNode, int nodeIdx) {
+        BPlusNode<K, V> btNode = parentNode.mChildren[nodeIdx];
+        // The siblings are of the same kind as the node
+        int lowerBoundKeyNum = btNode.mIsLeaf ? mLowerBoundKeyNum : mInternalLowerBoundKeyNum;
+        if (btNode.mCurrentKeyNum > lowerBoundKeyNum) {
+            return btNode;
+        }
+
+        BPlusNode<K, V> leftSiblingNode = (nodeIdx > 0) ? parentNode.mChildren[nodeIdx - 1] : null;
+        if ((leftSiblingNode != null) && (leftSiblingNode.mCurrentKeyNum > lowerBoundKeyNum)) {
+            borrowFromLeftSibling(parentNode, nodeIdx, btNode, leftSiblingNode);
+            return btNode;
+        }
+
+        BPlusNode<K, V> rightSiblingNode = (nodeIdx < parentNode.mCurrentKeyNum) ? parentNode.mChildren[nodeIdx + 1] : null;
+        if ((rightSiblingNode != null) && (rightSiblingNode.mCurrentKeyNum > lowerBoundKeyNum)) {
+            borrowFromRightSibling(parentNode, nodeIdx, btNode, rightSiblingNode);
+            return btNode;
+        }
+
+        if (rightSiblingNode != null) {
+            mergeChildren(parentNode, nodeIdx);
+            return btNode;
+        }
+        mergeChildren(parentNode, nodeIdx - 1);
+        return leftSiblingNode;
+    }
+
+    //
+    // Move the last key of the left sibling to the front of the node
+    //
+    private void borrowFromLeftSibling(BPlusNode<K, V> parentNode, int nodeIdx, BPlusNode<K, V> btNode, BPlusNode<K, V> leftSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = leftSiblingNode.mCurrentKeyNum;
+        System.arraycopy(btNode.mKeys, 0, btNode.mKeys, 1, keyNum);
+
+        if (btNode.mIsLeaf) {
+            // The borrowed entry becomes the lowest key of the node and so its new separator
+            System.arraycopy(btNode.mValues, 0, btNode.mValues, 1, keyNum);
+            btNode.mKeys[0] = leftSiblingNode.mKeys[siblingKeyNum - 1];
+            btNode.mValues[0] = leftSiblingNode.mValues[siblingKeyNum - 1];
+            leftSiblingNode.mValues[siblingKeyNum - 1] = null;
+            parentNode.mKeys[nodeIdx - 1] = btNode.mKeys[0];
+        }
+        else {
+            // Rotate through the parent: its separator comes down, the sibling's last key goes up
+            System.arraycopy(btNode.mChildren, 0, btNode.mChildren, 1, keyNum + 1);
+            btNode.mKeys[0] = parentNode.mKeys[nodeIdx - 1];
+            btNode.mChildren[0] = leftSiblingNode.mChildren[siblingKeyNum];
+            leftSiblingNode.mChildren[siblingKeyNum] = null;
+            parentNode.mKeys[nodeIdx - 1] = leftSiblingNode.mKeys[siblingKeyNum - 1];
+        }
+
+        leftSiblingNode.mKeys[siblingKeyNum - 1] = null;
+        --(leftSiblingNode.mCurrentKeyNum);
+        ++(btNode.mCurrentKeyNum);
+    }
+
+    //
+    // Move the first key of the right sibling to the end of the node
+    //
+    private void borrowFromRightSibling(BPlusNode<K, V> parentNode, int nodeIdx, BPlusNode<K, V> btNode, BPlusNode<K, V> rightSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+
+        if (btNode.mIsLeaf) {
+            btNode.mKeys[keyNum] = rightSiblingNode.mKeys[0];
+            btNode.mValues[keyNum] = rightSiblingNode.mValues[0];
+            System.arraycopy(rightSiblingNode.mValues, 1, rightSiblingNode.mValues, 0, siblingKeyNum - 1);
+            rightSiblingNode.mValues[siblingKeyNum - 1] = null;
+            System.arraycopy(rightSiblingNode.mKeys, 1, rightSiblingNode.mKeys, 0, siblingKeyNum - 1);
+            // The separator is now the lowest key left in the sibling
+            parentNode.mKeys[nodeIdx] = rightSiblingNode.mKeys[0];
+        }
+        else {
+            btNode.mKeys[keyNum] = parentNode.mKeys[nodeIdx];
+            btNode.mChildren[keyNum + 1] = rightSiblingNode.mChildren[0];
+            parentNode.mKeys[nodeIdx] = rightSiblingNode.mKeys[0];
+            System.arraycopy(rightSiblingNode.mKeys, 1, rightSiblingNode.mKeys, 0, siblingKeyNum - 1);
+            System.arraycopy(rightSiblingNode.mChildren, 1, rightSiblingNode.mChildren, 0, siblingKeyNum);
+            rightSiblingNode.mChildren[siblingKeyNum] = null;
+        }
+
+        rightSiblingNode.mKeys[siblingKeyNum - 1] = null;
+        --(rightSiblingNode.mCurrentKeyNum);
+        ++(btNode.mCurrentKeyNum);
+    }
+
+    //
+    // Merge the child at keyIdx + 1 into the child at keyIdx
+    // The separator between them is dropped for leaves and moved down for internal nodes
+    //
+    private void mergeChildren(BPlusNode<K, V> parentNode, int keyIdx) {
+        BPlusNode<K, V> btNode = parentNode.mChildren[keyIdx];
+        BPlusNode<K, V> rightSiblingNode = parentNode.mChildren[keyIdx + 1];
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+
+        if (btNode.mIsLeaf) {
+            System.arraycopy(rightSiblingNode.mKeys, 0, btNode.mKeys, keyNum, siblingKeyNum);
+            System.arraycopy(rightSiblingNode.mValues, 0, btNode.mValues, keyNum, siblingKeyNum);
+            btNode.mCurrentKeyNum = keyNum + siblingKeyNum;
+
+            // Unlink the abandoned leaf from the chain
+            btNode.mNext = rightSiblingNode.mNext;
+            if (rightSiblingNode.mNext != null) {
+                rightSiblingNode.mNext.mPrev = btNode;
+            }
+        }
+        else {
+            btNode.mKeys[keyNum] = parentNode.mKeys[keyIdx];
+            System.arraycopy(rightSiblingNode.mKeys, 0, btNode.mKeys, keyNum + 1, siblingKeyNum);
+            System.arraycopy(rightSiblingNode.mChildren, 0, btNode.mChildren, keyNum + 1, siblingKeyNum + 1);
+            btNode.mCurrentKeyNum = keyNum + 1 + siblingKeyNum;
+        }
+
+        // Remove the separator and the pointer to the abandoned sibling from the parent
+        int parentKeyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, keyIdx + 1, parentNode.mKeys, keyIdx, parentKeyNum - keyIdx - 1);
+        System.arraycopy(parentNode.mChildren, keyIdx + 2, parentNode.mChildren, keyIdx + 1, parentKeyNum - keyIdx - 1);
+        parentNode.mKeys[parentKeyNum - 1] = null;
+        parentNode.mChildren[parentKeyNum] = null;
+        --(parentNode.mCurrentKeyNum);
+    }
+
+    //
+    // List all the items in the tree by walking the chain of leaves
+    //
+    @Override
+    public void list(BTIteratorIF<K, V> iterImpl) {
+        if ((mSize < 1) || (iterImpl == null)) {
+            return;
+        }
+
+        for (BPlusNode<K, V> leafNode = getFirstLeaf(); leafNode != null; leafNode = leafNode.mNext) {
+            for (int i = 0; i < leafNode.mCurrentKeyNum; ++i) {
+                if (!iterImpl.item(leafNode.mKeys[i], leafNode.mValues[i])) {
+                    return;
+                }
+            }
+        }
+    }
+
+
+    //
+    // List the items whose keys lie between fromKey and toKey, in ascending order
+    // A null bound leaves that side of the range open
+    // The walk goes down to the leaf of the lower bound and then along the chain of leaves
+    //
+    @Override
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        if ((mSize < 1) || (iterImpl == null)) {
+            return;
+        }
+
+        BPlusNode<K, V> leafNode;
+        int i = 0;
+        if (fromKey == null) {
+            leafNode = getFirstLeaf();
+        }
+        else {
+            leafNode = findLeaf(fromKey);
+            i = mSearch.search(leafNode.mKeys, leafNode.mCurrentKeyNum, fromKey);
+            if (i < 0) {
+                i = -(i + 1);
+            }
+            else if (!fromInclusive) {
+                ++i;
+            }
+        }
+
+        for (; leafNode != null; leafNode = leafNode.mNext, i = 0) {
+            for (; i < leafNode.mCurrentKeyNum; ++i) {
+                if (toKey != null) {
+                    int cmp = leafNode.mKeys[i].compareTo(toKey);
+                    if ((cmp > 0) || ((cmp == 0) && !toInclusive)) {
+                        return;
+                    }
+                }
+
+                if (!iterImpl.item(leafNode.mKeys[i], leafNode.mValues[i])) {
+                    return;
+                }
+            }
+        }
+    }
+}
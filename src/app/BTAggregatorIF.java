@@ -0,0 +1,11 @@
+package app;
+
+//
+// Summary of the entries of a key range, such as a sum, a minimum or a maximum of the values
+// A tree given an aggregator keeps the summary of every subtree in its root node
+// combine() must be associative, the summaries are always combined in ascending key order
+//
+public interface BTAggregatorIF <K extends Comparable, V, A> {
+    public A summarize(K key, V value);
+    public A combine(A lowerSummary, A upperSummary);
+}
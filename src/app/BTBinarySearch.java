@@ -0,0 +1,73 @@
+package app;
+
+//
+// Binary search whose loop has a fixed trip count for a given number of keys
+// The only data dependent choice moves the base of the range, which the JIT
+// can turn into a conditional move instead of a hard to predict branch
+//
+public class BTBinarySearch implements BTSearchIF
+{
+    @Override
+    public int search(Comparable keys[], int keyNum, Comparable key) {
+        if (keyNum == 0) {
+            return -1;
+        }
+
+        int base = 0;
+        int len = keyNum;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = (key.compareTo(keys[base + half]) > 0) ? base + half : base;
+            len -= half;
+        }
+
+        int cmp = key.compareTo(keys[base]);
+        if (cmp <= 0) {
+            return (cmp == 0) ? base : -(base + 1);
+        }
+        // The key is greater than every key up to base, it can only be the next one
+        ++base;
+        if ((base < keyNum) && (key.compareTo(keys[base]) == 0)) {
+            return base;
+        }
+        return -(base + 1);
+    }
+
+    @Override
+    public int search(long keys[], int keyNum, long key) {
+        if (keyNum == 0) {
+            return -1;
+        }
+
+        int base = 0;
+        int len = keyNum;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = (keys[base + half] < key) ? base + half : base;
+            len -= half;
+        }
+
+        // Step past the base when its key is lower, the key can then only be at base
+        base += (keys[base] < key) ? 1 : 0;
+        return ((base < keyNum) && (keys[base] == key)) ? base : -(base + 1);
+    }
+
+    @Override
+    public int search(int keys[], int keyNum, int key) {
+        if (keyNum == 0) {
+            return -1;
+        }
+
+        int base = 0;
+        int len = keyNum;
+        while (len > 1) {
+            int half = len >>> 1;
+            base = (keys[base + half] < key) ? base + half : base;
+            len -= half;
+        }
+
+        // Step past the base when its key is lower, the key can then only be at base
+        base += (keys[base] < key) ? 1 : 0;
+        return ((base < keyNum) && (keys[base] == key)) ? base : -(base + 1);
+    }
+}
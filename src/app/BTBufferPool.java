@@ -0,0 +1,294 @@
+package app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+//
+// Cache of the nodes of a DiskBTree between the tree and its page file
+// The pool has a fixed number of frames, its memory budget divided by the page size, each holding the node
+// of one page, decoded. A node is used between pin() and unpin(): a pinned frame is never evicted, and the
+// node of an unpinned frame must not be used any more since its frame may then hold another page
+// Changed nodes are marked dirty and written back when they are evicted or flushed
+// The eviction policy chooses among the frames that are neither pinned nor hot. Internal nodes are kept hot,
+// up to half of the frames, so that the root and the upper levels stay in memory and a lookup costs at
+// most the read of its leaf
+//
+public class BTBufferPool<K extends Comparable, V>
+{
+    public final static int MIN_FRAME_NUM       =   16; // enough for the nodes pinned by an operation on a tall tree
+
+    private final BTPageFile mPageFile;
+    private final BTPageCodecIF<K> mKeyCodec;
+    private final BTPageCodecIF<V> mValueCodec;
+    private final int mMinDegree;
+    private final BTEvictionPolicyIF mPolicy;
+    private final DiskBTNode<K, V> mFrames[]; // node of each frame, null until the frame is first used
+    private final int mPinCounts[];
+    private final boolean mIsDirty[];
+    private final boolean mIsHot[];
+    private final int mMaxHotFrameNum;
+    private int mHotFrameNum = 0;
+    private final HashMap<Long, Integer> mFrameIdxByPage = new HashMap<Long, Integer>();
+    private final ArrayDeque<Integer> mFreeFrames = new ArrayDeque<Integer>();
+    private final ByteBuffer mPageBuf;
+    private long mHitNum = 0L;
+    private long mMissNum = 0L;
+    private long mEvictionNum = 0L;
+    private long mWriteBackNum = 0L;
+
+
+    //
+    // Create a pool of memoryBudget / page size frames, at least MIN_FRAME_NUM, for the nodes of the page file
+    //
+    public BTBufferPool(BTPageFile pageFile, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec, int minDegree,
+                        long memoryBudget, BTEvictionPolicyIF policy) {
+        int frameNum = (int) Math.max(MIN_FRAME_NUM, Math.min(Integer.MAX_VALUE - 8, memoryBudget / pageFile.getPageSize()));
+        mPageFile = pageFile;
+        mKeyCodec = keyCodec;
+        mValueCodec = valueCodec;
+        mMinDegree = minDegree;
+        mPolicy = policy;
+        mFrames = new DiskBTNode[frameNum];
+        mPinCounts = new int[frameNum];
+        mIsDirty = new boolean[frameNum];
+        mIsHot = new boolean[frameNum];
+        mMaxHotFrameNum = frameNum / 2;
+        mPageBuf = ByteBuffer.allocateDirect(pageFile.getPageSize());
+        for (int i = 0; i < frameNum; ++i) {
+            mFreeFrames.add(i);
+        }
+        policy.reset(frameNum);
+    }
+
+    public int getFrameNum() {
+        return mFrames.length;
+    }
+
+    public int getHotFrameNum() {
+        return mHotFrameNum;
+    }
+
+    public BTEvictionPolicyIF getPolicy() {
+        return mPolicy;
+    }
+
+    //
+    // Number of pins that found their page in the pool, and of those that had to read it
+    //
+    public long getHitNum() {
+        return mHitNum;
+    }
+
+    public long getMissNum() {
+        return mMissNum;
+    }
+
+    //
+    // Number of pages evicted to make room, and of dirty pages written back, by eviction or flush
+    //
+    public long getEvictionNum() {
+        return mEvictionNum;
+    }
+
+    public long getWriteBackNum() {
+        return mWriteBackNum;
+    }
+
+    //
+    // Reset the counters
+    //
+    public void resetCounters() {
+        mHitNum = 0L;
+        mMissNum = 0L;
+        mEvictionNum = 0L;
+        mWriteBackNum = 0L;
+    }
+
+    //
+    // A frame can be evicted if it holds a page that is neither pinned nor hot
+    //
+    public boolean isEvictable(int frameIdx) {
+        return (mFrames[frameIdx] != null) && (mFrames[frameIdx].mFrameIdx == frameIdx) &&
+               (mPinCounts[frameIdx] == 0) && !mIsHot[frameIdx];
+    }
+
+    //
+    // Pin the node of a page, reading it if it is not in the pool
+    //
+    public DiskBTNode<K, V> pin(long pageId) throws IOException {
+        Integer frameIdx = mFrameIdxByPage.get(pageId);
+        DiskBTNode<K, V> btNode;
+        if (frameIdx != null) {
+            ++mHitNum;
+            btNode = mFrames[frameIdx];
+        }
+        else {
+            ++mMissNum;
+            btNode = getFreeFrame(pageId);
+            try {
+                mPageBuf.clear();
+                mPageFile.readPage(pageId, mPageBuf);
+                mPageBuf.position(0);
+                btNode.readFrom(mPageBuf, mKeyCodec, mValueCodec);
+            }
+            catch (IOException | RuntimeException e) {
+                releaseFrame(btNode);
+                throw e;
+            }
+            frameIdx = btNode.mFrameIdx;
+            mFrameIdxByPage.put(pageId, frameIdx);
+        }
+        ++mPinCounts[frameIdx];
+        mPolicy.recordAccess(frameIdx);
+        setHot(frameIdx, !btNode.mIsLeaf);
+        return btNode;
+    }
+
+    //
+    // Pin the empty node of a new page, dirty since the page holds nothing yet
+    //
+    public DiskBTNode<K, V> pinNew(boolean isLeaf) throws IOException {
+        long pageId = mPageFile.allocatePage();
+        DiskBTNode<K, V> btNode;
+        try {
+            btNode = getFreeFrame(pageId);
+        }
+        catch (RuntimeException e) {
+            mPageFile.freePage(pageId);
+            throw e;
+        }
+        int frameIdx = btNode.mFrameIdx;
+        btNode.mIsLeaf = isLeaf;
+        btNode.mCurrentKeyNum = 0;
+        mFrameIdxByPage.put(pageId, frameIdx);
+        mPinCounts[frameIdx] = 1;
+        mIsDirty[frameIdx] = true;
+        mPolicy.recordAccess(frameIdx);
+        setHot(frameIdx, !isLeaf);
+        return btNode;
+    }
+
+    //
+    // Unpin a node pinned by pin() or pinNew()
+    //
+    public void unpin(DiskBTNode<K, V> btNode) {
+        if (mPinCounts[btNode.mFrameIdx] == 0) {
+            throw new IllegalStateException("Page " + btNode.mPageId + " is not pinned");
+        }
+        --mPinCounts[btNode.mFrameIdx];
+    }
+
+    //
+    // Mark a pinned node as changed, so that it is written back before its frame is reused
+    //
+    public void markDirty(DiskBTNode<K, V> btNode) {
+        mIsDirty[btNode.mFrameIdx] = true;
+    }
+
+    //
+    // Drop a pinned node whose page is freed, without writing it back
+    //
+    public void discard(DiskBTNode<K, V> btNode) {
+        mFrameIdxByPage.remove(btNode.mPageId);
+        releaseFrame(btNode);
+    }
+
+    //
+    // Write all the dirty nodes back to their pages
+    //
+    public void flush() throws IOException {
+        for (int i = 0; i < mFrames.length; ++i) {
+            if (mIsDirty[i]) {
+                writeBack(i);
+            }
+        }
+    }
+
+    //
+    // Drop all the nodes without writing them back, when the pages of the file are dropped
+    //
+    public void clear() {
+        for (int i = 0; i < mFrames.length; ++i) {
+            if (mPinCounts[i] != 0) {
+                throw new IllegalStateException("Page " + mFrames[i].mPageId + " is still pinned");
+            }
+        }
+        mFrameIdxByPage.clear();
+        mFreeFrames.clear();
+        for (int i = 0; i < mFrames.length; ++i) {
+            mIsDirty[i] = false;
+            mIsHot[i] = false;
+            if (mFrames[i] != null) {
+                mFrames[i].mFrameIdx = -1;
+            }
+            mFreeFrames.add(i);
+        }
+        mHotFrameNum = 0;
+        mPolicy.reset(mFrames.length);
+    }
+
+    //
+    // Get a frame for a page, evicting the victim of the policy if none is free
+    // The node of the frame is set to the page but not read
+    //
+    private DiskBTNode<K, V> getFreeFrame(long pageId) throws IOException {
+        Integer frameIdx = mFreeFrames.poll();
+        if (frameIdx == null) {
+            frameIdx = mPolicy.selectVictim(this);
+            if (frameIdx < 0) {
+                throw new IllegalStateException("All the " + mFrames.length + " frames of the buffer pool are pinned or hot");
+            }
+            if (mIsDirty[frameIdx]) {
+                writeBack(frameIdx);
+            }
+            mFrameIdxByPage.remove(mFrames[frameIdx].mPageId);
+            mPolicy.recordRemoval(frameIdx);
+            ++mEvictionNum;
+        }
+
+        DiskBTNode<K, V> btNode = mFrames[frameIdx];
+        if (btNode == null) {
+            btNode = new DiskBTNode<K, V>(pageId, mMinDegree);
+            mFrames[frameIdx] = btNode;
+        }
+        btNode.mPageId = pageId;
+        btNode.mFrameIdx = frameIdx;
+        return btNode;
+    }
+
+    //
+    // Give the frame of a node back to the free frames
+    //
+    private void releaseFrame(DiskBTNode<K, V> btNode) {
+        int frameIdx = btNode.mFrameIdx;
+        setHot(frameIdx, false);
+        mPinCounts[frameIdx] = 0;
+        mIsDirty[frameIdx] = false;
+        mPolicy.recordRemoval(frameIdx);
+        btNode.mFrameIdx = -1;
+        mFreeFrames.push(frameIdx);
+    }
+
+    private void writeBack(int frameIdx) throws IOException {
+        DiskBTNode<K, V> btNode = mFrames[frameIdx];
+        mPageBuf.clear();
+        btNode.writeTo(mPageBuf, mKeyCodec, mValueCodec);
+        mPageBuf.clear();
+        mPageFile.writePage(btNode.mPageId, mPageBuf);
+        mIsDirty[frameIdx] = false;
+        ++mWriteBackNum;
+    }
+
+    private void setHot(int frameIdx, boolean isHot) {
+        if (isHot == mIsHot[frameIdx]) {
+            return;
+        }
+        if (isHot && (mHotFrameNum >= mMaxHotFrameNum)) {
+            return;
+        }
+        mIsHot[frameIdx] = isHot;
+        mHotFrameNum += isHot ? 1 : -1;
+    }
+}
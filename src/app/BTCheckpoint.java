@@ -0,0 +1,254 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+//
+// Checkpoint file of a tree: its entries at a log sequence number (LSN) of its write-ahead log
+// The file holds a header with the LSN and the number of entries, the entries packed in ascending key order
+// as encoded by the page codecs, and a CRC32 of the entries
+// Loading streams the entries into the bottom-up bulk load of an empty BTree, so a checkpoint loads in
+// linear time with sequential reads and no splits. The file is written into a temporary file renamed when
+// complete, so a checkpoint is either whole or absent, and write() returns once the rename is durable
+//
+public class BTCheckpoint
+{
+    public final static int BUFFER_SIZE         =   1 << 20;
+
+    private final static int MAGIC              =   0x42544350; // "BTCP"
+    private final static int FORMAT_VERSION     =   1;
+    private final static int HEADER_SIZE        =   4 + 4 + 4 + 4 + 8 + 8; // magic, version, key size, value size, LSN, entry number
+
+
+    //
+    // Write the entries of a tree, listed in ascending key order, to a checkpoint of the given LSN
+    // The tree must not change while it is written, write a snapshot to go on updating the tree
+    //
+    public static <K extends Comparable, V> void write(File file, BTreeIF<K, V> btree, final BTPageCodecIF<K> keyCodec,
+                                                       final BTPageCodecIF<V> valueCodec, long lsn) throws IOException {
+        final long entryNum = btree.size();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (final FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                          StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, HEADER_SIZE + keyCodec.getSize() + valueCodec.getSize()));
+            final CRC32 crc = new CRC32();
+            final long[] writtenNum = { 0L };
+            buf.putInt(MAGIC);
+            buf.putInt(FORMAT_VERSION);
+            buf.putInt(keyCodec.getSize());
+            buf.putInt(valueCodec.getSize());
+            buf.putLong(lsn);
+            buf.putLong(entryNum);
+            try {
+                btree.list(new BTIteratorIF<K, V>() {
+                    private K mLastKey = null;
+
+                    @Override
+                    public boolean item(K key, V value) {
+                        if (writtenNum[0] == entryNum) {
+                            throw new IllegalStateException("The tree changed while it was written");
+                        }
+                        if ((mLastKey != null) && (mLastKey.compareTo(key) >= 0)) {
+                            throw new IllegalArgumentException("The keys are not listed in ascending order: " + mLastKey + ", " + key);
+                        }
+                        mLastKey = key;
+                        if (buf.remaining() < keyCodec.getSize() + valueCodec.getSize()) {
+                            writeBuffer(channel, buf, crc);
+                        }
+                        keyCodec.write(buf, key);
+                        valueCodec.write(buf, value);
+                        ++writtenNum[0];
+                        return true;
+                    }
+                });
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (writtenNum[0] != entryNum) {
+                throw new IllegalStateException("The tree changed while it was written");
+            }
+            writeBuffer(channel, buf, crc);
+            buf.putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        catch (IOException | RuntimeException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The rename must be durable before the log records the checkpoint holds are deleted
+        BTPageFile.forceDirectory(file);
+    }
+
+    //
+    // Load the entries of a checkpoint into an empty tree through its bulk load
+    // Return the LSN of the checkpoint. If the file is corrupt, the tree is cleared and an IOException thrown
+    //
+    public static <K extends Comparable, V> long load(File file, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec,
+                                                      BTree<K, V> btree) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            EntryReader<K, V> reader = new EntryReader<K, V>(file, channel, keyCodec, valueCodec);
+            btree.bulkLoad(reader);
+            if (!reader.checkCrc()) {
+                btree.clear();
+                throw new IOException(file + " is corrupt, its checksum does not match its entries");
+            }
+            return reader.mLsn;
+        }
+        catch (UncheckedIOException e) {
+            btree.clear();
+            throw e.getCause();
+        }
+        catch (IllegalArgumentException e) {
+            // Keys out of order
+            btree.clear();
+            throw new IOException(file + " is corrupt", e);
+        }
+    }
+
+    //
+    // Write the bytes of the buffer to the channel, adding them to the CRC32 past the header
+    //
+    private static void writeBuffer(FileChannel channel, ByteBuffer buf, CRC32 crc) {
+        try {
+            buf.flip();
+            ByteBuffer entries = buf.duplicate();
+            if (channel.position() == 0L) {
+                entries.position(HEADER_SIZE);
+            }
+            crc.update(entries);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            buf.clear();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    //
+    // Iterator over the entries of a checkpoint, read from its channel a buffer at a time
+    // The CRC32 of the entries is computed as they are read, to be checked once they all were
+    //
+    private static class EntryReader<K extends Comparable, V> implements Iterator<Map.Entry<K, V>> {
+        private final FileChannel mChannel;
+        private final BTPageCodecIF<K> mKeyCodec;
+        private final BTPageCodecIF<V> mValueCodec;
+        private final int mEntrySize;
+        private final ByteBuffer mBuffer;
+        private final CRC32 mCrc = new CRC32();
+        private final long mLsn;
+        private final long mEntryNum;
+        private long mReadNum = 0L;
+        private int mCrcStart = 0; // position of the buffer from which the bytes are not yet in the CRC32
+
+        private EntryReader(File file, FileChannel channel, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec) throws IOException {
+            mChannel = channel;
+            mKeyCodec = keyCodec;
+            mValueCodec = valueCodec;
+            mEntrySize = keyCodec.getSize() + valueCodec.getSize();
+            mBuffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, HEADER_SIZE + mEntrySize + 4));
+            mBuffer.limit(0);
+
+            fill(HEADER_SIZE);
+            if ((mBuffer.remaining() < HEADER_SIZE) || (mBuffer.getInt() != MAGIC) || (mBuffer.getInt() != FORMAT_VERSION)) {
+                throw new IOException(file + " is not a checkpoint file of this format");
+            }
+            int keySize = mBuffer.getInt();
+            int valueSize = mBuffer.getInt();
+            if ((keySize != keyCodec.getSize()) || (valueSize != valueCodec.getSize())) {
+                throw new IOException(file + " holds keys of " + keySize + " bytes and values of " + valueSize + " bytes, not " +
+                                      keyCodec.getSize() + " and " + valueCodec.getSize());
+            }
+            mLsn = mBuffer.getLong();
+            mEntryNum = mBuffer.getLong();
+            mCrcStart = mBuffer.position(); // the header is not in the CRC32
+            if ((mLsn < 0L) || (mEntryNum < 0L) || (HEADER_SIZE + mEntryNum * mEntrySize + 4 != channel.size())) {
+                throw new IOException(file + " is corrupt, its size does not match its header");
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mReadNum < mEntryNum;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (mReadNum == mEntryNum) {
+                throw new NoSuchElementException();
+            }
+            if (mBuffer.remaining() < mEntrySize) {
+                fill(mEntrySize);
+            }
+            int start = mBuffer.position();
+            K key = mKeyCodec.read(mBuffer);
+            V value = mValueCodec.read(mBuffer);
+            mBuffer.position(start + mEntrySize);
+            ++mReadNum;
+            return new BTKeyValue<K, V>(key, value);
+        }
+
+        //
+        // Check the CRC32 that follows the entries, once they all were read
+        //
+        private boolean checkCrc() {
+            if (mBuffer.remaining() < 4) {
+                fill(4);
+            }
+            updateCrc(mBuffer.position());
+            return mBuffer.getInt() == (int) mCrc.getValue();
+        }
+
+        //
+        // Move the unread bytes to the start of the buffer and read after them, until at least byteNum are unread
+        // The bytes consumed before are added to the CRC32, past the header
+        //
+        private void fill(int byteNum) {
+            try {
+                updateCrc(mBuffer.position());
+                mBuffer.compact();
+                while (mBuffer.hasRemaining()) {
+                    if (mChannel.read(mBuffer) < 0) {
+                        break;
+                    }
+                }
+                if (mBuffer.position() < byteNum) {
+                    throw new IOException("Unexpected end of the checkpoint file");
+                }
+                mBuffer.flip();
+                mCrcStart = 0;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void updateCrc(int end) {
+            if (end > mCrcStart) {
+                ByteBuffer entries = mBuffer.duplicate();
+                entries.position(mCrcStart);
+                entries.limit(end);
+                mCrc.update(entries);
+            }
+            mCrcStart = end;
+        }
+    }
+}
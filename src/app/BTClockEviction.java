@@ -0,0 +1,49 @@
+package app;
+
+//
+// CLOCK eviction, the usual approximation of LRU
+// Every access sets the reference bit of the frame. The hand sweeps the frames, clearing the bits it passes,
+// and stops at the first evictable frame whose bit is clear, so a page survives a sweep for each access since
+//
+public class BTClockEviction implements BTEvictionPolicyIF
+{
+    private boolean mIsReferenced[] = new boolean[0];
+    private int mHand = 0;
+
+    @Override
+    public void reset(int frameNum) {
+        mIsReferenced = new boolean[frameNum];
+        mHand = 0;
+    }
+
+    @Override
+    public void recordAccess(int frameIdx) {
+        mIsReferenced[frameIdx] = true;
+    }
+
+    @Override
+    public void recordRemoval(int frameIdx) {
+        mIsReferenced[frameIdx] = false;
+    }
+
+    //
+    // Return the frame under the hand once its bit is clear, -1 if no frame is evictable
+    // Two sweeps are enough: the first one clears the bits of all the evictable frames
+    //
+    @Override
+    public int selectVictim(BTBufferPool pool) {
+        int frameNum = mIsReferenced.length;
+        for (int i = 0; i < 2 * frameNum; ++i) {
+            int frameIdx = mHand;
+            mHand = (mHand + 1 == frameNum) ? 0 : mHand + 1;
+            if (!pool.isEvictable(frameIdx)) {
+                continue;
+            }
+            if (!mIsReferenced[frameIdx]) {
+                return frameIdx;
+            }
+            mIsReferenced[frameIdx] = false;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,39 @@
+package app;
+
+//
+// Count the keys lower than the searched key over the whole node, without
+// any early exit and without branches in the loop body
+// For primitive keys this is the data parallel form of the search (compare all
+// lanes, then add up the masks) that the JIT can unroll and vectorize
+// Comparable keys cannot be compared without a call, so they are scanned linearly
+//
+public class BTCountingSearch implements BTSearchIF
+{
+    private final BTLinearSearch mComparableSearch = new BTLinearSearch();
+
+    @Override
+    public int search(Comparable keys[], int keyNum, Comparable key) {
+        return mComparableSearch.search(keys, keyNum, key);
+    }
+
+    @Override
+    public int search(long keys[], int keyNum, long key) {
+        int count = 0;
+        for (int i = 0; i < keyNum; ++i) {
+            // Sign bit of the signed difference, corrected for overflow: 1 when keys[i] < key
+            long diff = keys[i] - key;
+            count += (int) ((diff ^ ((keys[i] ^ key) & (diff ^ keys[i]))) >>> 63);
+        }
+        return ((count < keyNum) && (keys[count] == key)) ? count : -(count + 1);
+    }
+
+    @Override
+    public int search(int keys[], int keyNum, int key) {
+        int count = 0;
+        for (int i = 0; i < keyNum; ++i) {
+            // The difference of two ints cannot overflow a long
+            count += (int) (((long) keys[i] - key) >>> 63);
+        }
+        return ((count < keyNum) && (keys[count] == key)) ? count : -(count + 1);
+    }
+}
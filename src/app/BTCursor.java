@@ -0,0 +1,192 @@
+package app;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+//
+// Pull-style cursor over the keys of a BTree in ascending order
+// The path from the root to the current key is kept in fixed-size arrays, so stepping
+// allocates nothing. The value of the last key returned by next() is given by getValue()
+// If the tree is modified, the cursor moves back to the key after the last one returned
+// on its next step, so a listing can be resumed page by page
+//
+public class BTCursor<K extends Comparable, V> implements Iterator<K>
+{
+    private final BTree<K, V> mTree;
+    private BTNode<K, V> mNodes[]; // mNodes[d] is the node at depth d of the current path
+    private int mIndexes[]; // next key of mNodes[d], or the child being listed for an internal node
+    private int mDepth = 0; // number of nodes in the path, 0 once the end is reached
+    private int mModCount;
+    private K mResumeKey = null; // the position is found again from this key after a change of the tree
+    private boolean mResumeInclusive = true;
+    private K mLastKey = null;
+    private V mLastValue = null;
+
+
+    public BTCursor(BTree<K, V> btree) {
+        mTree = btree;
+        mNodes = new BTNode[0];
+        mIndexes = new int[0];
+        seek(null);
+    }
+
+    //
+    // Move the cursor before the lowest key greater than or equal to the key
+    // A null key moves it before the lowest key of the tree
+    //
+    public BTCursor<K, V> seek(K key) {
+        return seek(key, true);
+    }
+
+    //
+    // Move the cursor before the lowest key greater than the key, or equal to it if inclusive
+    //
+    public BTCursor<K, V> seek(K key, boolean inclusive) {
+        mResumeKey = key;
+        mResumeInclusive = inclusive;
+        mLastKey = null;
+        mLastValue = null;
+        findPosition();
+        return this;
+    }
+
+    //
+    // Build the path down to the resume key
+    //
+    private void findPosition() {
+        mModCount = mTree.getModCount();
+        while (mDepth > 0) {
+            mNodes[--mDepth] = null;
+        }
+
+        BTNode<K, V> currentNode = mTree.getRootNode();
+        if ((currentNode == null) || (currentNode.mCurrentKeyNum == 0)) {
+            return;
+        }
+        ensurePathCapacity(currentNode);
+
+        BTSearchIF search = mTree.getSearch();
+        while (true) {
+            int i = 0;
+            if (mResumeKey != null) {
+                i = search.search(currentNode.mKeys, currentNode.mCurrentKeyNum, mResumeKey);
+                if (i >= 0) {
+                    push(currentNode, i);
+                    if (!mResumeInclusive) {
+                        skipKey();
+                    }
+                    break;
+                }
+                i = -(i + 1);
+            }
+
+            push(currentNode, i);
+            if (currentNode.mIsLeaf) {
+                break;
+            }
+            currentNode = currentNode.mChildren[i];
+        }
+
+        popFinishedNodes();
+    }
+
+    //
+    // Return true if there is a key after the current position
+    //
+    @Override
+    public boolean hasNext() {
+        checkForModification();
+        return mDepth > 0;
+    }
+
+    //
+    // Return the next key and move past it
+    //
+    @Override
+    public K next() {
+        checkForModification();
+        if (mDepth == 0) {
+            throw new NoSuchElementException();
+        }
+
+        BTNode<K, V> btNode = mNodes[mDepth - 1];
+        int i = mIndexes[mDepth - 1];
+        mLastKey = btNode.mKeys[i];
+        mLastValue = btNode.mValues[i];
+        mResumeKey = mLastKey;
+        mResumeInclusive = false;
+        skipKey();
+        popFinishedNodes();
+        return mLastKey;
+    }
+
+    //
+    // Return the next key without moving past it, or null at the end
+    //
+    public K peek() {
+        checkForModification();
+        if (mDepth == 0) {
+            return null;
+        }
+        return mNodes[mDepth - 1].mKeys[mIndexes[mDepth - 1]];
+    }
+
+    //
+    // Return the value of the last key returned by next()
+    //
+    public V getValue() {
+        return mLastValue;
+    }
+
+    //
+    // Move past the key at the top of the path, down to the lowest key of the subtree on its right
+    //
+    private void skipKey() {
+        BTNode<K, V> currentNode = mNodes[mDepth - 1];
+        int i = ++mIndexes[mDepth - 1];
+        while (!currentNode.mIsLeaf) {
+            currentNode = currentNode.mChildren[i];
+            i = 0;
+            push(currentNode, 0);
+        }
+    }
+
+    //
+    // Go up while the node at the top of the path has no key left
+    //
+    private void popFinishedNodes() {
+        while ((mDepth > 0) && (mIndexes[mDepth - 1] == mNodes[mDepth - 1].mCurrentKeyNum)) {
+            mNodes[--mDepth] = null;
+        }
+    }
+
+    private void push(BTNode<K, V> btNode, int idx) {
+        mNodes[mDepth] = btNode;
+        mIndexes[mDepth] = idx;
+        ++mDepth;
+    }
+
+    //
+    // Size the path for the current height of the tree, the arrays only grow when the tree does
+    //
+    private void ensurePathCapacity(BTNode<K, V> rootNode) {
+        int height = 1;
+        for (BTNode<K, V> btNode = rootNode; !btNode.mIsLeaf; btNode = btNode.mChildren[0]) {
+            ++height;
+        }
+
+        if (mNodes.length < height) {
+            mNodes = new BTNode[height];
+            mIndexes = new int[height];
+        }
+    }
+
+    //
+    // Find the position again after a change of the tree
+    //
+    private void checkForModification() {
+        if (mModCount != mTree.getModCount()) {
+            findPosition();
+        }
+    }
+}
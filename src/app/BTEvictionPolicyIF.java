@@ -0,0 +1,13 @@
+package app;
+
+//
+// Choice of the frame of a BTBufferPool whose page makes room for another one
+// A policy keeps its own state about the frames of a single pool, which tells it about every access to
+// a frame and every frame emptied, and asks for a victim among the frames it reports as evictable
+//
+public interface BTEvictionPolicyIF {
+    public void reset(int frameNum);
+    public void recordAccess(int frameIdx);
+    public void recordRemoval(int frameIdx);
+    public int selectVictim(BTBufferPool pool);
+}
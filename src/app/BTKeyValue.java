@@ -1,6 +1,8 @@
 package app;
 
-public class BTKeyValue<K extends Comparable, V>
+import java.util.Map;
+
+public class BTKeyValue<K extends Comparable, V> implements Map.Entry<K, V>
 {
     protected K mKey;
     protected V mValue;
@@ -9,4 +11,43 @@ public class BTKeyValue<K extends Comparable, V>
         mKey = key;
         mValue = value;
     }
+
+    @Override
+    public K getKey() {
+        return mKey;
+    }
+
+    @Override
+    public V getValue() {
+        return mValue;
+    }
+
+    //
+    // The entries are snapshots of the tree, so they cannot change it, except those of the entry set
+    // iterators of BTreeMap which write through
+    //
+    @Override
+    public V setValue(V value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Map.Entry)) {
+            return false;
+        }
+        Map.Entry entry = (Map.Entry) obj;
+        return ((mKey == null) ? (entry.getKey() == null) : mKey.equals(entry.getKey())) &&
+               ((mValue == null) ? (entry.getValue() == null) : mValue.equals(entry.getValue()));
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mKey == null) ? 0 : mKey.hashCode()) ^ ((mValue == null) ? 0 : mValue.hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return mKey + "=" + mValue;
+    }
 }
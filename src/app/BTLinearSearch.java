@@ -0,0 +1,37 @@
+package app;
+
+//
+// Scan the keys from the left until a key not lower than the searched key
+// Best suited to small nodes where the scan stays within a few cache lines
+//
+public class BTLinearSearch implements BTSearchIF
+{
+    @Override
+    public int search(Comparable keys[], int keyNum, Comparable key) {
+        for (int i = 0; i < keyNum; ++i) {
+            int cmp = key.compareTo(keys[i]);
+            if (cmp <= 0) {
+                return (cmp == 0) ? i : -(i + 1);
+            }
+        }
+        return -(keyNum + 1);
+    }
+
+    @Override
+    public int search(long keys[], int keyNum, long key) {
+        int i = 0;
+        while ((i < keyNum) && (keys[i] < key)) {
+            ++i;
+        }
+        return ((i < keyNum) && (keys[i] == key)) ? i : -(i + 1);
+    }
+
+    @Override
+    public int search(int keys[], int keyNum, int key) {
+        int i = 0;
+        while ((i < keyNum) && (keys[i] < key)) {
+            ++i;
+        }
+        return ((i < keyNum) && (keys[i] == key)) ? i : -(i + 1);
+    }
+}
@@ -0,0 +1,72 @@
+package app;
+
+//
+// LRU-K eviction: the victim is the frame whose K-th most recent access is the oldest
+// Frames accessed fewer than K times go first, oldest last access first, so a scan that reads
+// many pages once does not push out the pages used again and again
+// The victim is found by a scan of the frames, fine for pools of a few thousand frames
+//
+public class BTLruKEviction implements BTEvictionPolicyIF
+{
+    public final static int DEFAULT_K       =   2;
+
+    private final int mK;
+    private long mAccessTimes[] = new long[0]; // K most recent accesses of each frame, most recent first, 0 if none
+    private long mTime = 0L;
+
+
+    public BTLruKEviction() {
+        this(DEFAULT_K);
+    }
+
+    public BTLruKEviction(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("Invalid K " + k + ", expected a positive value");
+        }
+        mK = k;
+    }
+
+    @Override
+    public void reset(int frameNum) {
+        mAccessTimes = new long[frameNum * mK];
+        mTime = 0L;
+    }
+
+    @Override
+    public void recordAccess(int frameIdx) {
+        int base = frameIdx * mK;
+        System.arraycopy(mAccessTimes, base, mAccessTimes, base + 1, mK - 1);
+        mAccessTimes[base] = ++mTime;
+    }
+
+    @Override
+    public void recordRemoval(int frameIdx) {
+        int base = frameIdx * mK;
+        for (int i = 0; i < mK; ++i) {
+            mAccessTimes[base + i] = 0L;
+        }
+    }
+
+    //
+    // Return the evictable frame with the oldest K-th access, -1 if there is none
+    //
+    @Override
+    public int selectVictim(BTBufferPool pool) {
+        int victimIdx = -1;
+        long victimKthTime = Long.MAX_VALUE, victimLastTime = Long.MAX_VALUE;
+        int frameNum = mAccessTimes.length / mK;
+        for (int frameIdx = 0; frameIdx < frameNum; ++frameIdx) {
+            if (!pool.isEvictable(frameIdx)) {
+                continue;
+            }
+            long kthTime = mAccessTimes[frameIdx * mK + mK - 1];
+            long lastTime = mAccessTimes[frameIdx * mK];
+            if ((kthTime < victimKthTime) || ((kthTime == victimKthTime) && (lastTime < victimLastTime))) {
+                victimIdx = frameIdx;
+                victimKthTime = kthTime;
+                victimLastTime = lastTime;
+            }
+        }
+        return victimIdx;
+    }
+}
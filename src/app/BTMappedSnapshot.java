@@ -0,0 +1,430 @@
+package app;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+//
+// Read-only tree stored in an immutable file and read through memory mappings
+// The file is a static B+-tree of fixed-size blocks, one block per page of the file:
+//   - the leaf level holds all the entries in key order, packed in blocks of getLeafFanout() entries
+//   - each index level holds the first key of every block of the level below, packed in blocks of
+//     getIndexFanout() keys, up to a top level of a single block
+// Entry and key positions follow from their index, so the file has no pointers and nothing to decode when
+// it is opened: opening maps the file and reads its header, whatever its size
+// Lookups and range scans decode only the keys they compare and the entries they return, straight from the
+// mapping, touching one block per level. Processes that map the same file share its pages in the OS cache
+// Any number of threads can read the snapshot at the same time. The file is written once by write(), into a
+// temporary file renamed when complete, so a reader never maps a partial file
+//
+public class BTMappedSnapshot<K extends Comparable, V> implements BTreeIF<K, V>, Closeable
+{
+    public final static int BLOCK_SIZE          =   BTPageFile.DEFAULT_PAGE_SIZE;
+    public final static int MAX_LEVEL_NUM       =   32;
+
+    private final static int MAGIC              =   0x42544d53; // "BTMS"
+    private final static int FORMAT_VERSION     =   1;
+    private final static int REGION_SHIFT       =   30; // the file is mapped in regions of 1 GB, a multiple of the block size
+
+    private final File mFile;
+    private final BTPageCodecIF<K> mKeyCodec;
+    private final BTPageCodecIF<V> mValueCodec;
+    private final int mEntrySize;
+    private final int mLeafFanout;
+    private final int mIndexFanout;
+    private final long mSize;
+    private final int mLevelNum; // index levels and the leaf level, the top level first
+    private final long mLevelOffsets[];
+    private final long mLevelKeyNums[];
+    private final MappedByteBuffer mRegions[];
+    private final ThreadLocal<ByteBuffer[]> mViews; // positionable views of the regions, one set per reading thread
+
+
+    //
+    // Map a snapshot file written by write() with the same codecs
+    //
+    public BTMappedSnapshot(File file, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec) throws IOException {
+        mFile = file;
+        mKeyCodec = keyCodec;
+        mValueCodec = valueCodec;
+        mEntrySize = keyCodec.getSize() + valueCodec.getSize();
+        mLeafFanout = getLeafFanout(keyCodec, valueCodec);
+        mIndexFanout = getIndexFanout(keyCodec);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < BLOCK_SIZE) {
+                throw new IOException(file + " is not a snapshot file");
+            }
+            int regionNum = (int) ((fileSize + (1L << REGION_SHIFT) - 1) >>> REGION_SHIFT);
+            mRegions = new MappedByteBuffer[regionNum];
+            for (int i = 0; i < regionNum; ++i) {
+                long regionStart = (long) i << REGION_SHIFT;
+                mRegions[i] = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, Math.min(1L << REGION_SHIFT, fileSize - regionStart));
+            }
+        }
+
+        ByteBuffer header = mRegions[0].duplicate();
+        if ((header.getInt() != MAGIC) || (header.getInt() != FORMAT_VERSION)) {
+            throw new IOException(file + " is not a snapshot file of this format");
+        }
+        int blockSize = header.getInt();
+        int keySize = header.getInt();
+        int valueSize = header.getInt();
+        if ((blockSize != BLOCK_SIZE) || (keySize != keyCodec.getSize()) || (valueSize != valueCodec.getSize())) {
+            throw new IOException(file + " holds keys of " + keySize + " bytes and values of " + valueSize + " bytes in blocks of " +
+                                  blockSize + " bytes, not " + keyCodec.getSize() + ", " + valueCodec.getSize() + " and " + BLOCK_SIZE);
+        }
+        mSize = header.getLong();
+        mLevelNum = header.getInt();
+        if ((mLevelNum < 1) || (mLevelNum > MAX_LEVEL_NUM)) {
+            throw new IOException(file + " has a corrupt header");
+        }
+        mLevelOffsets = new long[mLevelNum];
+        mLevelKeyNums = new long[mLevelNum];
+        for (int i = 0; i < mLevelNum; ++i) {
+            mLevelOffsets[i] = header.getLong();
+            mLevelKeyNums[i] = header.getLong();
+        }
+
+        final MappedByteBuffer regions[] = mRegions;
+        mViews = new ThreadLocal<ByteBuffer[]>() {
+            @Override
+            protected ByteBuffer[] initialValue() {
+                ByteBuffer views[] = new ByteBuffer[regions.length];
+                for (int i = 0; i < regions.length; ++i) {
+                    views[i] = regions[i].duplicate();
+                }
+                return views;
+            }
+        };
+    }
+
+
+    //
+    // Write the entries of a tree, listed in ascending key order, to a snapshot file
+    // The tree must not change while it is written
+    //
+    public static <K extends Comparable, V> void write(File file, BTreeIF<K, V> btree,
+                                                       BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec) throws IOException {
+        long entryNum = btree.size();
+        int leafFanout = getLeafFanout(keyCodec, valueCodec);
+        int indexFanout = getIndexFanout(keyCodec);
+
+        // Lay the levels out from the number of entries: the index levels first, the top one first, then the leaves
+        long levelKeyNums[] = new long[MAX_LEVEL_NUM];
+        int levelNum = 1;
+        levelKeyNums[0] = entryNum;
+        long keyNum = (entryNum + leafFanout - 1) / leafFanout;
+        if (entryNum > leafFanout) {
+            while (true) {
+                if (levelNum == MAX_LEVEL_NUM) {
+                    throw new IllegalArgumentException("Too many entries for a snapshot: " + entryNum);
+                }
+                levelKeyNums[levelNum++] = keyNum;
+                if (keyNum <= indexFanout) {
+                    break;
+                }
+                keyNum = (keyNum + indexFanout - 1) / indexFanout;
+            }
+        }
+        long levelOffsets[] = new long[levelNum];
+        long levelSizes[] = new long[levelNum];
+        long offset = BLOCK_SIZE;
+        for (int level = 0; level < levelNum; ++level) {
+            // levelKeyNums is ordered from the leaves up, the file from the top level down
+            long levelKeyNum = levelKeyNums[levelNum - 1 - level];
+            int fanout = (level == levelNum - 1) ? leafFanout : indexFanout;
+            levelOffsets[level] = offset;
+            levelSizes[level] = levelKeyNum;
+            offset += ((levelKeyNum + fanout - 1) / fanout) * BLOCK_SIZE;
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            writeLevels(tmpFile, btree, keyCodec, valueCodec, levelNum, levelOffsets, levelSizes);
+        }
+        catch (IOException | RuntimeException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //
+    // Write the blocks of the levels and the header
+    //
+    private static <K extends Comparable, V> void writeLevels(File file, BTreeIF<K, V> btree, final BTPageCodecIF<K> keyCodec,
+                                                              final BTPageCodecIF<V> valueCodec, int levelNum,
+                                                              long levelOffsets[], long levelSizes[]) throws IOException {
+        final long entryNum = btree.size();
+        final int entrySize = keyCodec.getSize() + valueCodec.getSize();
+        final int leafFanout = getLeafFanout(keyCodec, valueCodec);
+        int indexFanout = getIndexFanout(keyCodec);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                          StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Stream the entries into the leaf blocks, and keep the first key of each block for the index
+            final K firstKeys[] = (K[]) new Comparable[(int) Math.min(Integer.MAX_VALUE - 8, (entryNum + leafFanout - 1) / leafFanout)];
+            final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            final long leafOffset = levelOffsets[levelNum - 1];
+            final long[] writtenNum = { 0L };
+            try {
+                btree.list(new BTIteratorIF<K, V>() {
+                    private K mLastKey = null;
+
+                    @Override
+                    public boolean item(K key, V value) {
+                        long entryIdx = writtenNum[0];
+                        if (entryIdx == entryNum) {
+                            throw new IllegalStateException("The tree changed while it was written");
+                        }
+                        if ((mLastKey != null) && (mLastKey.compareTo(key) >= 0)) {
+                            throw new IllegalArgumentException("The keys are not listed in ascending order: " + mLastKey + ", " + key);
+                        }
+                        mLastKey = key;
+                        if (entryIdx % leafFanout == 0) {
+                            firstKeys[(int) (entryIdx / leafFanout)] = key;
+                        }
+                        block.position((int) (entryIdx % leafFanout) * entrySize);
+                        keyCodec.write(block, key);
+                        valueCodec.write(block, value);
+                        ++writtenNum[0];
+                        if ((writtenNum[0] % leafFanout == 0) || (writtenNum[0] == entryNum)) {
+                            writeBlock(channel, block, leafOffset + (entryIdx / leafFanout) * BLOCK_SIZE);
+                        }
+                        return true;
+                    }
+                });
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (writtenNum[0] != entryNum) {
+                throw new IllegalStateException("The tree changed while it was written");
+            }
+
+            // Each index level holds the first keys of the blocks of the level below, which are the keys
+            // of that level at multiples of the fanout
+            long step = 1L;
+            for (int level = levelNum - 2; level >= 0; --level) {
+                for (long keyIdx = 0; keyIdx < levelSizes[level]; ++keyIdx) {
+                    if (keyIdx % indexFanout == 0) {
+                        block.clear();
+                    }
+                    keyCodec.write(block, firstKeys[(int) (keyIdx * step)]);
+                    if (((keyIdx + 1) % indexFanout == 0) || (keyIdx + 1 == levelSizes[level])) {
+                        writeBlock(channel, block, levelOffsets[level] + (keyIdx / indexFanout) * BLOCK_SIZE);
+                    }
+                }
+                step *= indexFanout;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_SIZE);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(BLOCK_SIZE);
+            header.putInt(keyCodec.getSize());
+            header.putInt(valueCodec.getSize());
+            header.putLong(entryNum);
+            header.putInt(levelNum);
+            for (int level = 0; level < levelNum; ++level) {
+                header.putLong(levelOffsets[level]);
+                header.putLong(levelSizes[level]);
+            }
+            header.clear();
+            writeBlock(channel, header, 0L);
+            channel.force(true);
+        }
+    }
+
+    //
+    // Number of entries in a leaf block, and of keys in an index block
+    // A leaf block must hold at least one entry and an index block two keys, bigger codecs are rejected
+    //
+    public static int getLeafFanout(BTPageCodecIF keyCodec, BTPageCodecIF valueCodec) {
+        int entrySize = keyCodec.getSize() + valueCodec.getSize();
+        if (entrySize > BLOCK_SIZE) {
+            throw new IllegalArgumentException("Blocks of " + BLOCK_SIZE + " bytes cannot hold entries with keys of " +
+                                               keyCodec.getSize() + " bytes and values of " + valueCodec.getSize() + " bytes");
+        }
+        return BLOCK_SIZE / entrySize;
+    }
+
+    public static int getIndexFanout(BTPageCodecIF keyCodec) {
+        if (2 * keyCodec.getSize() > BLOCK_SIZE) {
+            throw new IllegalArgumentException("Blocks of " + BLOCK_SIZE + " bytes cannot hold two keys of " +
+                                               keyCodec.getSize() + " bytes");
+        }
+        return BLOCK_SIZE / keyCodec.getSize();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    //
+    // Number of levels, the leaf level included
+    //
+    public int getLevelNum() {
+        return mLevelNum;
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    //
+    // Search value for a specified key of the snapshot
+    //
+    @Override
+    public V search(K key) {
+        ByteBuffer views[] = mViews.get();
+        long entryIdx = seek(views, key, true);
+        if ((entryIdx == mSize) || (readKey(views, mLevelNum - 1, entryIdx).compareTo(key) != 0)) {
+            return null;
+        }
+        return readValue(views, entryIdx);
+    }
+
+    //
+    // List all the items in the snapshot
+    //
+    @Override
+    public void list(BTIteratorIF<K, V> iterImpl) {
+        range(null, true, null, true, iterImpl);
+    }
+
+    //
+    // List the items whose keys lie between fromKey and toKey, in ascending order
+    // A null bound leaves that side of the range open
+    // The entries of the range are read one after the other from the leaf blocks
+    //
+    @Override
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        if ((mSize < 1) || (iterImpl == null)) {
+            return;
+        }
+
+        ByteBuffer views[] = mViews.get();
+        long entryIdx = (fromKey == null) ? 0L : seek(views, fromKey, fromInclusive);
+        for (; entryIdx < mSize; ++entryIdx) {
+            K key = readKey(views, mLevelNum - 1, entryIdx);
+            if (toKey != null) {
+                int cmp = key.compareTo(toKey);
+                if ((cmp > 0) || ((cmp == 0) && !toInclusive)) {
+                    return;
+                }
+            }
+            if (!iterImpl.item(key, readValue(views, entryIdx))) {
+                return;
+            }
+        }
+    }
+
+    //
+    // A snapshot cannot be changed
+    //
+    @Override
+    public BTreeIF<K, V> insert(K key, V value) {
+        throw new UnsupportedOperationException("A mapped snapshot cannot be changed");
+    }
+
+    @Override
+    public V delete(K key) {
+        throw new UnsupportedOperationException("A mapped snapshot cannot be changed");
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException("A mapped snapshot cannot be changed");
+    }
+
+    //
+    // The mappings stay valid until they are garbage collected, Java 8 has no way to release them earlier
+    //
+    @Override
+    public void close() {
+        mViews.remove();
+    }
+
+    //
+    // Index of the first entry whose key is above the key, or equal to it if inclusive
+    // Return the number of entries if there is none
+    // Each index level gives the block of the level below that can hold the key: the one after
+    // the last first key lower than the key (or not above it if inclusive)
+    //
+    private long seek(ByteBuffer views[], K key, boolean inclusive) {
+        long blockIdx = 0L;
+        for (int level = 0; level < mLevelNum; ++level) {
+            boolean isLeafLevel = (level == mLevelNum - 1);
+            int fanout = isLeafLevel ? mLeafFanout : mIndexFanout;
+            long fromIdx = blockIdx * fanout;
+            long toIdx = Math.min(fromIdx + fanout, mLevelKeyNums[level]);
+
+            // Bisect for the first key of the block above the key, or not below it if the search is inclusive
+            // and on the leaf level, where an equal key is the answer instead of a block to go down into
+            boolean stopAtEqual = isLeafLevel && inclusive;
+            long lowIdx = fromIdx, highIdx = toIdx;
+            while (lowIdx < highIdx) {
+                long middleIdx = (lowIdx + highIdx) >>> 1;
+                int cmp = readKey(views, level, middleIdx).compareTo(key);
+                if ((cmp < 0) || ((cmp == 0) && !stopAtEqual)) {
+                    lowIdx = middleIdx + 1;
+                }
+                else {
+                    highIdx = middleIdx;
+                }
+            }
+            if (isLeafLevel) {
+                return lowIdx;
+            }
+            // The block before the first key above the key holds it, the first block if the key is below them all
+            blockIdx = Math.max(lowIdx - 1, fromIdx);
+        }
+        return mSize;
+    }
+
+    private K readKey(ByteBuffer views[], int level, long keyIdx) {
+        ByteBuffer view = position(views, level, keyIdx);
+        return mKeyCodec.read(view);
+    }
+
+    private V readValue(ByteBuffer views[], long entryIdx) {
+        ByteBuffer view = position(views, mLevelNum - 1, entryIdx);
+        view.position(view.position() + mKeyCodec.getSize());
+        return mValueCodec.read(view);
+    }
+
+    //
+    // Position the view of the region holding a key of a level, or an entry of the leaf level
+    //
+    private ByteBuffer position(ByteBuffer views[], int level, long keyIdx) {
+        boolean isLeafLevel = (level == mLevelNum - 1);
+        int fanout = isLeafLevel ? mLeafFanout : mIndexFanout;
+        int itemSize = isLeafLevel ? mEntrySize : mKeyCodec.getSize();
+        long offset = mLevelOffsets[level] + (keyIdx / fanout) * BLOCK_SIZE + (keyIdx % fanout) * itemSize;
+        ByteBuffer view = views[(int) (offset >>> REGION_SHIFT)];
+        view.position((int) (offset & ((1L << REGION_SHIFT) - 1)));
+        return view;
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer block, long offset) {
+        block.clear();
+        try {
+            while (block.hasRemaining()) {
+                offset += channel.write(block, offset);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
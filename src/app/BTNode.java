@@ -3,21 +3,107 @@ package app;
 
 public class BTNode<K extends Comparable, V>
 {
-    public final static int MIN_DEGREE          =   5; // le nombre des copules
-    public final static int LOWER_BOUND_KEYNUM  =   MIN_DEGREE - 1; //nombre min des couples
-    public final static int UPPER_BOUND_KEYNUM  =   (MIN_DEGREE * 2) - 1; ////nombre max des couples
+    public final static int DEFAULT_MIN_DEGREE        =   16; // degr par dfaut (voir BTreeBenchmark)
+    public final static int MIN_DEGREE_LOWER_LIMIT    =   2; // plus petit degr valide d'un arbre B
+    public final static int MIN_DEGREE_UPPER_LIMIT    =   1 << 14; // plus grand degr accept
+    public final static int BINARY_SEARCH_MIN_KEYNUM  =   128; // taille de noeud  partir de laquelle la recherche est dichotomique
 
     protected boolean mIsLeaf; // pour tester si c'est feuille
     protected int mCurrentKeyNum; // cl courant
-    protected BTKeyValue<K, V> mKeys[]; // tableau des cls/valeurs
+    protected K mKeys[]; // tableau des cls
+    protected V mValues[]; // tableau des valeurs, mValues[i] appartient  mKeys[i]
     protected BTNode mChildren[]; // tableau pour stocker les cls/valeurs du fils du noeud courant
+    protected long mSubtreeKeyNum; // nombre de cls du sous-arbre, le noeud compris
+    protected Object mAggregate; // rsum des entres du sous-arbre fait par l'agrgateur de l'arbre, null sans agrgateur
+    protected long mEpoch; // version de l'arbre qui a cr le noeud, les versions plus anciennes sont partages avec des snapshots
 
 
-    public BTNode() {
+    public BTNode(int minDegree) {
         mIsLeaf = true;
         mCurrentKeyNum = 0;
-        mKeys = new BTKeyValue[UPPER_BOUND_KEYNUM];
-        mChildren = new BTNode[UPPER_BOUND_KEYNUM + 1];
+        mSubtreeKeyNum = 0L;
+        mKeys = (K[]) new Comparable[getUpperBoundKeyNum(minDegree)];
+        mValues = (V[]) new Object[getUpperBoundKeyNum(minDegree)];
+        mChildren = new BTNode[getUpperBoundKeyNum(minDegree) + 1];
+    }
+
+
+    //
+    // Copy a node for the given version of the tree
+    // The copy has its own arrays but shares the children of the node
+    //
+    public BTNode(BTNode<K, V> btNode, long epoch) {
+        mIsLeaf = btNode.mIsLeaf;
+        mCurrentKeyNum = btNode.mCurrentKeyNum;
+        mSubtreeKeyNum = btNode.mSubtreeKeyNum;
+        mAggregate = btNode.mAggregate;
+        mKeys = btNode.mKeys.clone();
+        mValues = btNode.mValues.clone();
+        mChildren = btNode.mChildren.clone();
+        mEpoch = epoch;
+    }
+
+
+    //
+    // Minimum number of keys of a non-root node for the given degree
+    //
+    public static int getLowerBoundKeyNum(int minDegree) {
+        return minDegree - 1;
+    }
+
+
+    //
+    // Maximum number of keys of a node for the given degree
+    //
+    public static int getUpperBoundKeyNum(int minDegree) {
+        return (minDegree * 2) - 1;
+    }
+
+
+    //
+    // Choose the in-node search strategy that suits nodes of the given degree
+    // Small nodes are scanned in full, larger ones are searched by bisection
+    //
+    public static BTSearchIF selectSearch(int minDegree) {
+        if (getUpperBoundKeyNum(minDegree) < BINARY_SEARCH_MIN_KEYNUM) {
+            return new BTLinearSearch();
+        }
+        return new BTBinarySearch();
+    }
+
+
+    //
+    // Check that the given degree can be used to build a tree
+    //
+    public static int checkMinDegree(int minDegree) {
+        if ((minDegree < MIN_DEGREE_LOWER_LIMIT) || (minDegree > MIN_DEGREE_UPPER_LIMIT)) {
+            throw new IllegalArgumentException("Invalid minimum degree " + minDegree +
+                                               ", expected a value between " + MIN_DEGREE_LOWER_LIMIT +
+                                               " and " + MIN_DEGREE_UPPER_LIMIT);
+        }
+        return minDegree;
+    }
+
+
+    //
+    // Number of keys in the subtree of a node, 0 for a missing node
+    //
+    protected static long getSubtreeKeyNum(BTNode btNode) {
+        return (btNode == null) ? 0L : btNode.mSubtreeKeyNum;
+    }
+
+
+    //
+    // Recompute the number of keys in the subtree of a node from its own keys and the counts of its children
+    //
+    protected static void updateSubtreeKeyNum(BTNode btNode) {
+        long keyNum = btNode.mCurrentKeyNum;
+        if (!btNode.mIsLeaf) {
+            for (int i = 0; i <= btNode.mCurrentKeyNum; ++i) {
+                keyNum += btNode.mChildren[i].mSubtreeKeyNum;
+            }
+        }
+        btNode.mSubtreeKeyNum = keyNum;
     }
 
 
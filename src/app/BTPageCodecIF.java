@@ -0,0 +1,13 @@
+package app;
+
+import java.nio.ByteBuffer;
+
+//
+// Fixed-size encoding of the keys or the values of a tree stored in pages
+// Every item takes exactly getSize() bytes, null included, so that a page holds a known number of them
+//
+public interface BTPageCodecIF <T> {
+    public int getSize();
+    public void write(ByteBuffer buf, T item);
+    public T read(ByteBuffer buf);
+}
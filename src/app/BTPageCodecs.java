@@ -0,0 +1,129 @@
+package app;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+//
+// Page codecs of the common key and value types
+// Each item starts with a byte telling whether it is null, the rest of its bytes are then left unread
+//
+public class BTPageCodecs
+{
+    public final static BTPageCodecIF<Integer> INTEGER = new IntegerCodec();
+    public final static BTPageCodecIF<Long> LONG = new LongCodec();
+
+    private final static byte NULL_ITEM         =   0;
+    private final static byte PRESENT_ITEM      =   1;
+
+
+    //
+    // Codec of strings whose UTF-8 encoding takes at most maxByteNum bytes
+    //
+    public static BTPageCodecIF<String> forString(int maxByteNum) {
+        if ((maxByteNum < 0) || (maxByteNum > Short.MAX_VALUE)) {
+            throw new IllegalArgumentException("Invalid string size " + maxByteNum + ", expected a value between 0 and " + Short.MAX_VALUE);
+        }
+        return new StringCodec(maxByteNum);
+    }
+
+
+    private static boolean writeNullFlag(ByteBuffer buf, Object item, int size) {
+        if (item != null) {
+            buf.put(PRESENT_ITEM);
+            return false;
+        }
+        buf.put(NULL_ITEM);
+        buf.position(buf.position() + size - 1);
+        return true;
+    }
+
+    private static boolean readNullFlag(ByteBuffer buf, int size) {
+        if (buf.get() != NULL_ITEM) {
+            return false;
+        }
+        buf.position(buf.position() + size - 1);
+        return true;
+    }
+
+
+    private static class IntegerCodec implements BTPageCodecIF<Integer> {
+        @Override
+        public int getSize() {
+            return 1 + Integer.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, Integer item) {
+            if (!writeNullFlag(buf, item, getSize())) {
+                buf.putInt(item);
+            }
+        }
+
+        @Override
+        public Integer read(ByteBuffer buf) {
+            return readNullFlag(buf, getSize()) ? null : buf.getInt();
+        }
+    }
+
+
+    private static class LongCodec implements BTPageCodecIF<Long> {
+        @Override
+        public int getSize() {
+            return 1 + Long.BYTES;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, Long item) {
+            if (!writeNullFlag(buf, item, getSize())) {
+                buf.putLong(item);
+            }
+        }
+
+        @Override
+        public Long read(ByteBuffer buf) {
+            return readNullFlag(buf, getSize()) ? null : buf.getLong();
+        }
+    }
+
+
+    //
+    // The string bytes follow their length and are padded up to the fixed size
+    //
+    private static class StringCodec implements BTPageCodecIF<String> {
+        private final int mMaxByteNum;
+
+        private StringCodec(int maxByteNum) {
+            mMaxByteNum = maxByteNum;
+        }
+
+        @Override
+        public int getSize() {
+            return 1 + Short.BYTES + mMaxByteNum;
+        }
+
+        @Override
+        public void write(ByteBuffer buf, String item) {
+            if (writeNullFlag(buf, item, getSize())) {
+                return;
+            }
+            byte bytes[] = item.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > mMaxByteNum) {
+                throw new IllegalArgumentException("String of " + bytes.length + " bytes is longer than the " + mMaxByteNum + " bytes of the codec");
+            }
+            buf.putShort((short) bytes.length);
+            buf.put(bytes);
+            buf.position(buf.position() + mMaxByteNum - bytes.length);
+        }
+
+        @Override
+        public String read(ByteBuffer buf) {
+            if (readNullFlag(buf, getSize())) {
+                return null;
+            }
+            byte bytes[] = new byte[buf.getShort()];
+            buf.get(bytes);
+            buf.position(buf.position() + mMaxByteNum - bytes.length);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package app;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+//
+// File of fixed-size pages accessed through a FileChannel
+// Page 0 is the header of the file: its format, its state, the page size, the number of pages, the list of
+// freed pages and a few metadata slots left to the owner of the file. Page ids are page numbers,
+// so 0 never names a data page and serves as the null page id
+// Freed pages are chained through their first bytes and reused before the file grows
+// The header is only written at flush(), while pages are written and freed at any time, so the header
+// records whether the pages match it: the first change after a flush marks the file as changed on the
+// storage device before any page is touched, and flush() marks it clean again once the pages are forced.
+// A file left changed, by a crash or a close without a flush, is refused when it is opened
+//
+public class BTPageFile implements Closeable
+{
+    public final static int DEFAULT_PAGE_SIZE       =   4096;
+    public final static int MIN_PAGE_SIZE           =   256;
+    public final static int MAX_PAGE_SIZE           =   1 << 24;
+    public final static long NO_PAGE                =   0L; // null page id, the header page is never handed out
+    public final static int METADATA_SLOT_NUM       =   16; // longs of metadata kept in the header for the owner
+
+    private final static int MAGIC                  =   0x42545046; // "BTPF"
+    private final static int FORMAT_VERSION         =   2;
+    private final static int HEADER_SIZE            =   4 + 4 + 4 + 4 + 8 + 8 + (METADATA_SLOT_NUM * 8);
+    private final static int CLEAN_STATE            =   0x434c4e21; // "CLN!", the pages match the header
+    private final static int CHANGED_STATE          =   0x43484721; // "CHG!", pages were changed since the header was written
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final int mPageSize;
+    private long mPageNum; // pages of the file, the header included
+    private long mFreePageId; // first page of the list of freed pages
+    private final long mMetadata[] = new long[METADATA_SLOT_NUM];
+    private boolean mIsClean = true; // the header on the storage device matches the pages
+    private final ByteBuffer mLinkBuf = ByteBuffer.allocate(8);
+    private long mReadNum = 0L;
+    private long mWriteNum = 0L;
+
+
+    //
+    // Open the page file, creating it with the given page size if it does not exist
+    // An existing file must have been created with the same page size, and flushed or closed after its last change
+    //
+    public BTPageFile(File file, int pageSize) throws IOException {
+        if ((pageSize < MIN_PAGE_SIZE) || (pageSize > MAX_PAGE_SIZE)) {
+            throw new IllegalArgumentException("Invalid page size " + pageSize + ", expected a value between " +
+                                               MIN_PAGE_SIZE + " and " + MAX_PAGE_SIZE);
+        }
+        mFile = file;
+        mPageSize = pageSize;
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (mChannel.size() == 0L) {
+                mPageNum = 1L;
+                mFreePageId = NO_PAGE;
+                writeHeader();
+            }
+            else {
+                readHeader();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    //
+    // Number of pages of the file, the header and the freed pages included
+    //
+    public long getPageNum() {
+        return mPageNum;
+    }
+
+    //
+    // Number of pages read and written since the file was opened, the header excluded
+    //
+    public long getReadNum() {
+        return mReadNum;
+    }
+
+    public long getWriteNum() {
+        return mWriteNum;
+    }
+
+    public long getMetadata(int slot) {
+        return mMetadata[slot];
+    }
+
+    //
+    // Change a metadata slot, kept in the header at the next flush()
+    //
+    public void setMetadata(int slot, long value) {
+        mMetadata[slot] = value;
+    }
+
+    //
+    // Read a page into buf, from its position to its limit
+    //
+    public void readPage(long pageId, ByteBuffer buf) throws IOException {
+        checkPageId(pageId);
+        readFully(buf, pageId * mPageSize);
+        ++mReadNum;
+    }
+
+    //
+    // Write buf, from its position to its limit, to a page
+    //
+    public void writePage(long pageId, ByteBuffer buf) throws IOException {
+        checkPageId(pageId);
+        markChanged();
+        writeFully(buf, pageId * mPageSize);
+        ++mWriteNum;
+    }
+
+    //
+    // Get a page for new data, a freed one if there is any
+    //
+    public long allocatePage() throws IOException {
+        if (mFreePageId == NO_PAGE) {
+            return mPageNum++;
+        }
+        long pageId = mFreePageId;
+        mLinkBuf.clear();
+        readFully(mLinkBuf, pageId * mPageSize);
+        mFreePageId = mLinkBuf.getLong(0);
+        return pageId;
+    }
+
+    //
+    // Give a page back, to be reused by a later allocatePage()
+    //
+    public void freePage(long pageId) throws IOException {
+        checkPageId(pageId);
+        markChanged();
+        mLinkBuf.clear();
+        mLinkBuf.putLong(0, mFreePageId);
+        writeFully(mLinkBuf, pageId * mPageSize);
+        mFreePageId = pageId;
+    }
+
+    //
+    // Drop all the pages, leaving only the header
+    //
+    public void clear() throws IOException {
+        markChanged();
+        mPageNum = 1L;
+        mFreePageId = NO_PAGE;
+        writeHeader();
+        mChannel.truncate(mPageSize);
+    }
+
+    //
+    // Force the pages to the storage device, then the header, marking the file clean
+    //
+    public void flush() throws IOException {
+        mChannel.force(false);
+        mIsClean = true;
+        writeHeader();
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!mChannel.isOpen()) {
+            return;
+        }
+        try {
+            flush();
+        }
+        finally {
+            mChannel.close();
+        }
+    }
+
+    //
+    // Close the file without flushing it, after a failure that left pages unwritten
+    // A file changed since its last flush stays marked as changed, and cannot be opened again
+    //
+    public void closeWithoutFlush() throws IOException {
+        mChannel.close();
+    }
+
+    //
+    // Whether the pages on the storage device match the header written by the last flush
+    //
+    public boolean isClean() {
+        return mIsClean;
+    }
+
+    //
+    // Force the directory entry of a file to the storage device, so that its creation, or the rename
+    // that gave it its name, survives a crash of the OS
+    // Where directories cannot be opened, as on Windows, the file system makes such entries durable itself
+    //
+    public static void forceDirectory(File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        }
+        catch (AccessDeniedException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    //
+    // Mark the file as changed on the storage device before the first change that follows a flush,
+    // so that a crash never leaves a clean header over changed pages
+    //
+    private void markChanged() throws IOException {
+        if (!mIsClean) {
+            return;
+        }
+        mIsClean = false;
+        writeHeader();
+        mChannel.force(false);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        buf.putInt(MAGIC);
+        buf.putInt(FORMAT_VERSION);
+        buf.putInt(mIsClean ? CLEAN_STATE : CHANGED_STATE);
+        buf.putInt(mPageSize);
+        buf.putLong(mPageNum);
+        buf.putLong(mFreePageId);
+        for (long metadata : mMetadata) {
+            buf.putLong(metadata);
+        }
+        buf.flip();
+        writeFully(buf, 0L);
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(buf, 0L);
+        buf.flip();
+        if ((buf.getInt() != MAGIC) || (buf.getInt() != FORMAT_VERSION)) {
+            throw new IOException(mFile + " is not a page file of this format");
+        }
+        int state = buf.getInt();
+        if (state != CLEAN_STATE) {
+            throw new IOException(mFile + " was changed after its last flush and not closed, its pages may not match its header");
+        }
+        int pageSize = buf.getInt();
+        if (pageSize != mPageSize) {
+            throw new IOException(mFile + " was created with pages of " + pageSize + " bytes, not " + mPageSize);
+        }
+        mPageNum = buf.getLong();
+        mFreePageId = buf.getLong();
+        for (int i = 0; i < METADATA_SLOT_NUM; ++i) {
+            mMetadata[i] = buf.getLong();
+        }
+    }
+
+    private void checkPageId(long pageId) {
+        if ((pageId <= NO_PAGE) || (pageId >= mPageNum)) {
+            throw new IllegalArgumentException("Invalid page id " + pageId + ", the file has " + mPageNum + " pages");
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int byteNum = mChannel.read(buf, position);
+            if (byteNum < 0) {
+                // Pages allocated but never written read as zeros
+                if (position >= mPageNum * mPageSize) {
+                    throw new EOFException("Page at " + position + " is beyond the end of " + mFile);
+                }
+                while (buf.hasRemaining()) {
+                    buf.put((byte) 0);
+                }
+                return;
+            }
+            position += byteNum;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += mChannel.write(buf, position);
+        }
+    }
+}
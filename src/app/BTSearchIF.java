@@ -0,0 +1,12 @@
+package app;
+
+//
+// Strategy used to locate a key within the sorted keys of a node
+// Every method returns the index of the key if it is found
+// and (-(insertion point) - 1) otherwise, like java.util.Arrays.binarySearch
+//
+public interface BTSearchIF {
+    public int search(Comparable keys[], int keyNum, Comparable key);
+    public int search(long keys[], int keyNum, long key);
+    public int search(int keys[], int keyNum, int key);
+}
@@ -0,0 +1,219 @@
+package app;
+
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+//
+// Spliterator over the entries of a BTree in ascending key order, for stream() and parallelStream()
+// It covers a run of children of a node together with the keys that follow them, and splits
+// at child boundaries: the first half of the run goes to the new spliterator, and a run of a single
+// child hands the whole child over, keeping only the key after it. The subtree counts give the
+// exact size of every part, so the splits are SIZED and SUBSIZED
+// The entries are read in place from the nodes. The tree must not be changed during the traversal,
+// which throws ConcurrentModificationException if it was; a snapshot never changes
+//
+public class BTSpliterator<K extends Comparable, V> implements Spliterator<Map.Entry<K, V>>
+{
+    private final BTree<K, V> mTree;
+    private final int mModCount;
+    private BTNode<K, V> mNode;
+    private int mFromIdx; // first child of the run, followed by the key at the same index
+    private int mToIdx; // end of the run, the last child is alone if it is the last child of the node
+    private boolean mIsFromChildDone; // true if the first child of the run was handed over, leaving only its key
+    private long mKeyNum; // number of entries left
+    private BTCursor<K, V> mCursor = null; // created by the first tryAdvance(), no more splits after that
+
+
+    //
+    // Create a spliterator over all the entries of the tree
+    //
+    public BTSpliterator(BTree<K, V> btree) {
+        mTree = btree;
+        mModCount = btree.getModCount();
+        mNode = btree.getRootNode();
+        mFromIdx = 0;
+        mToIdx = (mNode == null) ? 0 : mNode.mCurrentKeyNum + 1;
+        mIsFromChildDone = false;
+        mKeyNum = btree.size();
+    }
+
+
+    private BTSpliterator(BTree<K, V> btree, int modCount, BTNode<K, V> btNode, int fromIdx, int toIdx, boolean isFromChildDone) {
+        mTree = btree;
+        mModCount = modCount;
+        mNode = btNode;
+        mFromIdx = fromIdx;
+        mToIdx = toIdx;
+        mIsFromChildDone = isFromChildDone;
+        mKeyNum = countKeys();
+    }
+
+    //
+    // Split off the lower part of the entries left
+    // Return null if they cannot be split
+    //
+    @Override
+    public Spliterator<Map.Entry<K, V>> trySplit() {
+        if ((mCursor != null) || (mNode == null) || (mKeyNum < 2)) {
+            return null;
+        }
+
+        if (mToIdx - mFromIdx > 1) {
+            int middleIdx = (mFromIdx + mToIdx) >>> 1;
+            BTSpliterator<K, V> lowerPart = new BTSpliterator<K, V>(mTree, mModCount, mNode, mFromIdx, middleIdx, mIsFromChildDone);
+            mFromIdx = middleIdx;
+            mIsFromChildDone = false;
+            mKeyNum -= lowerPart.mKeyNum;
+            return lowerPart;
+        }
+
+        if (mNode.mIsLeaf || mIsFromChildDone) {
+            return null;
+        }
+
+        // A single child is left, hand it over whole and keep the key after it
+        BTNode<K, V> childNode = mNode.mChildren[mFromIdx];
+        BTSpliterator<K, V> lowerPart = new BTSpliterator<K, V>(mTree, mModCount, childNode, 0, childNode.mCurrentKeyNum + 1, false);
+        mIsFromChildDone = true;
+        mKeyNum -= lowerPart.mKeyNum;
+        return lowerPart;
+    }
+
+    //
+    // Give the next entry to the action
+    // Return false if there is none left
+    //
+    @Override
+    public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+        if (action == null) {
+            throw new NullPointerException();
+        }
+        if (mKeyNum == 0) {
+            return false;
+        }
+        checkForModification();
+
+        if (mCursor == null) {
+            mCursor = mTree.cursor().seek(getFirstKey());
+        }
+        K key = mCursor.next();
+        --mKeyNum;
+        action.accept(new BTKeyValue<K, V>(key, mCursor.getValue()));
+        return true;
+    }
+
+    //
+    // Give all the entries left to the action, walking the nodes directly
+    //
+    @Override
+    public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+        if (action == null) {
+            throw new NullPointerException();
+        }
+        if (mCursor != null) {
+            while (tryAdvance(action)) {
+            }
+            return;
+        }
+        if (mKeyNum == 0) {
+            return;
+        }
+        checkForModification();
+
+        for (int i = mFromIdx; i < mToIdx; ++i) {
+            if (!mNode.mIsLeaf && !((i == mFromIdx) && mIsFromChildDone)) {
+                listSubtree(mNode.mChildren[i], action);
+            }
+            if (i < mNode.mCurrentKeyNum) {
+                action.accept(new BTKeyValue<K, V>(mNode.mKeys[i], mNode.mValues[i]));
+            }
+        }
+        mKeyNum = 0;
+        checkForModification();
+    }
+
+    @Override
+    public long estimateSize() {
+        return mKeyNum;
+    }
+
+    @Override
+    public long getExactSizeIfKnown() {
+        return mKeyNum;
+    }
+
+    //
+    // The snapshots of a tree never change, so their spliterators are also IMMUTABLE
+    //
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | NONNULL | (mTree.isSnapshot() ? IMMUTABLE : 0);
+    }
+
+    //
+    // The entries are sorted by the natural order of their keys
+    //
+    @Override
+    public Comparator<? super Map.Entry<K, V>> getComparator() {
+        return new Comparator<Map.Entry<K, V>>() {
+            @Override
+            public int compare(Map.Entry<K, V> entry1, Map.Entry<K, V> entry2) {
+                return entry1.getKey().compareTo(entry2.getKey());
+            }
+        };
+    }
+
+    //
+    // Give all the entries of a subtree to the action, in order
+    //
+    private void listSubtree(BTNode<K, V> btNode, Consumer<? super Map.Entry<K, V>> action) {
+        for (int i = 0; i < btNode.mCurrentKeyNum; ++i) {
+            if (!btNode.mIsLeaf) {
+                listSubtree(btNode.mChildren[i], action);
+            }
+            action.accept(new BTKeyValue<K, V>(btNode.mKeys[i], btNode.mValues[i]));
+        }
+        if (!btNode.mIsLeaf) {
+            listSubtree(btNode.mChildren[btNode.mCurrentKeyNum], action);
+        }
+    }
+
+    //
+    // Count the entries of the run from the counts of its children
+    //
+    private long countKeys() {
+        long keyNum = 0L;
+        for (int i = mFromIdx; i < mToIdx; ++i) {
+            if (!mNode.mIsLeaf && !((i == mFromIdx) && mIsFromChildDone)) {
+                keyNum += mNode.mChildren[i].mSubtreeKeyNum;
+            }
+            if (i < mNode.mCurrentKeyNum) {
+                ++keyNum;
+            }
+        }
+        return keyNum;
+    }
+
+    //
+    // Lowest key of the run, the lowest key of its first child unless that child was handed over
+    //
+    private K getFirstKey() {
+        if (mNode.mIsLeaf || mIsFromChildDone) {
+            return mNode.mKeys[mFromIdx];
+        }
+        BTNode<K, V> btNode = mNode.mChildren[mFromIdx];
+        while (!btNode.mIsLeaf) {
+            btNode = btNode.mChildren[0];
+        }
+        return btNode.mKeys[0];
+    }
+
+    private void checkForModification() {
+        if (mModCount != mTree.getModCount()) {
+            throw new ConcurrentModificationException("The tree was changed during the traversal");
+        }
+    }
+}
@@ -0,0 +1,661 @@
+package app;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+//
+// Append-only log of the inserts, deletes and clears of a tree, to replay them after a crash
+// Each record holds its length, a CRC32 of its content, the operation, its log sequence number (LSN) and
+// the key and value encoded by the page codecs. Opening the log scans it and cuts off a torn or corrupt tail,
+// so the records that follow are appended to the last complete one
+// Records are appended to a buffer, written to the file when it is full or at a sync, and forced to the
+// storage device according to the sync policy:
+//   - PER_OPERATION: sync(lsn) after each operation; the writers waiting at the same time share one fsync,
+//     the first of them forcing the file for all the records appended so far while the others wait
+//   - GROUP_COMMIT: a background thread forces the file every sync interval, the operations do not wait
+//     for it and at most one interval of them is lost in a crash
+//   - ASYNC: a background thread hands the buffer to the OS every sync interval, the file is only forced
+//     by sync() and close(), so a crash of the process loses at most one interval but a crash of the OS more
+// The log is a sequence of segment files named after its base file and the LSN of their first record.
+// roll() forces the current segment and starts a new one, whose directory entry it forces too, so that
+// truncate() can delete the segments a checkpoint made useless. Only the last segment may end with a torn record
+// The log can be used by several threads
+//
+public class BTWriteAheadLog<K extends Comparable, V> implements Closeable
+{
+    public enum SyncPolicy { PER_OPERATION, GROUP_COMMIT, ASYNC }
+
+    public final static long DEFAULT_SYNC_INTERVAL_MILLIS   =   10L;
+    public final static int BUFFER_SIZE                     =   1 << 20;
+
+    private final static byte INSERT_RECORD             =   1;
+    private final static byte DELETE_RECORD             =   2;
+    private final static byte CLEAR_RECORD              =   3;
+    private final static int RECORD_HEADER_SIZE         =   4 + 4; // length and CRC32 of the content
+    private final static int RECORD_CONTENT_HEADER_SIZE =   1 + 8; // operation and LSN
+
+    private final File mFile; // base file, the segments are named after it
+    private final BTPageCodecIF<K> mKeyCodec;
+    private final BTPageCodecIF<V> mValueCodec;
+    private final SyncPolicy mSyncPolicy;
+    private final long mSyncIntervalMillis;
+    private final int mMaxRecordSize;
+
+    private final ReentrantLock mAppendLock = new ReentrantLock(); // guards the buffer, the segments and the LSNs
+    private final ByteBuffer mBuffer;
+    private final CRC32 mCrc = new CRC32();
+    private final TreeMap<Long, File> mSegments; // segment files by the LSN of their first record
+    private FileChannel mChannel; // last segment, the records are appended to
+    private long mSegmentFirstLsn; // LSN of the first record of the last segment
+    private long mFileSize; // end of the records written to the last segment
+    private long mLastLsn; // LSN of the last record appended
+    private long mWrittenLsn; // LSN of the last record written to the file
+
+    private final ReentrantLock mSyncLock = new ReentrantLock(); // guards the sync in progress
+    private final Condition mSyncDone = mSyncLock.newCondition();
+    private boolean mIsSyncing = false;
+    private volatile long mDurableLsn; // LSN of the last record forced to the storage device
+    private volatile IOException mSyncError = null; // failure of the background thread, thrown by the next operation
+    private long mSyncNum = 0L;
+
+    private final Thread mSyncThread;
+    private final Object mSyncThreadMonitor = new Object(); // wakes the background thread up when the log is closed
+    private volatile boolean mIsClosed = false;
+
+
+    //
+    // Open the log with the given sync policy, creating its first segment if it has none
+    // The sync interval is used by GROUP_COMMIT and ASYNC
+    //
+    public BTWriteAheadLog(File file, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec,
+                           SyncPolicy syncPolicy, long syncIntervalMillis) throws IOException {
+        if (syncIntervalMillis <= 0L) {
+            throw new IllegalArgumentException("Invalid sync interval " + syncIntervalMillis + ", expected a positive value");
+        }
+        mFile = file;
+        mKeyCodec = keyCodec;
+        mValueCodec = valueCodec;
+        mSyncPolicy = syncPolicy;
+        mSyncIntervalMillis = syncIntervalMillis;
+        mMaxRecordSize = RECORD_HEADER_SIZE + RECORD_CONTENT_HEADER_SIZE + keyCodec.getSize() + valueCodec.getSize();
+        mBuffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, 2 * mMaxRecordSize));
+        mSegments = listSegments(file);
+        boolean isNew = mSegments.isEmpty();
+        if (isNew) {
+            mSegments.put(1L, getSegmentFile(file, 1L));
+        }
+        mSegmentFirstLsn = mSegments.lastKey();
+        mChannel = FileChannel.open(mSegments.lastEntry().getValue().toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+        try {
+            if (isNew) {
+                BTPageFile.forceDirectory(mSegments.lastEntry().getValue());
+            }
+            // Find the end of the complete records of the last segment and drop what follows
+            long[] lastLsn = { mSegmentFirstLsn - 1 };
+            mFileSize = scan(mChannel, null, Long.MAX_VALUE, lastLsn);
+            mChannel.truncate(mFileSize);
+            mLastLsn = lastLsn[0];
+        }
+        catch (IOException | RuntimeException e) {
+            mChannel.close();
+            throw e;
+        }
+        mWrittenLsn = mLastLsn;
+        mDurableLsn = mLastLsn;
+
+        if (syncPolicy == SyncPolicy.PER_OPERATION) {
+            mSyncThread = null;
+        }
+        else {
+            mSyncThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runSyncThread();
+                }
+            }, "BTWriteAheadLog-sync");
+            mSyncThread.setDaemon(true);
+            mSyncThread.start();
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    //
+    // Number of segment files
+    //
+    public int getSegmentNum() {
+        mAppendLock.lock();
+        try {
+            return mSegments.size();
+        }
+        finally {
+            mAppendLock.unlock();
+        }
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    //
+    // LSN of the last record appended, 0 if the log is empty
+    //
+    public long getLastLsn() {
+        mAppendLock.lock();
+        try {
+            return mLastLsn;
+        }
+        finally {
+            mAppendLock.unlock();
+        }
+    }
+
+    //
+    // LSN of the last record forced to the storage device
+    //
+    public long getDurableLsn() {
+        return mDurableLsn;
+    }
+
+    //
+    // Number of times the file was forced to the storage device
+    //
+    public long getSyncNum() {
+        mSyncLock.lock();
+        try {
+            return mSyncNum;
+        }
+        finally {
+            mSyncLock.unlock();
+        }
+    }
+
+    //
+    // Apply to the target tree the records whose LSN is above afterLsn, in the order they were appended,
+    // reading only the segments that hold some of them
+    // Return the LSN of the last record of the log
+    //
+    public long replay(BTreeIF<K, V> target, long afterLsn) throws IOException {
+        mAppendLock.lock();
+        try {
+            flushBuffer();
+            Long firstLsn = mSegments.floorKey(afterLsn + 1);
+            if (firstLsn == null) {
+                throw new IOException("The log starts at LSN " + mSegments.firstKey() + ", the records after LSN " + afterLsn + " are missing");
+            }
+            for (Map.Entry<Long, File> segment : mSegments.tailMap(firstLsn, true).entrySet()) {
+                long[] lastLsn = { segment.getKey() - 1 };
+                if (segment.getKey() == mSegmentFirstLsn) {
+                    scan(mChannel, target, afterLsn, lastLsn);
+                    continue;
+                }
+                // The segments before the last one were forced when they were rolled, so they must be whole
+                try (FileChannel channel = FileChannel.open(segment.getValue().toPath(), StandardOpenOption.READ)) {
+                    long end = scan(channel, target, afterLsn, lastLsn);
+                    if ((end != channel.size()) || (lastLsn[0] != mSegments.higherKey(segment.getKey()) - 1)) {
+                        throw new IOException(segment.getValue() + " is corrupt at byte " + end);
+                    }
+                }
+            }
+            if (mLastLsn < afterLsn) {
+                throw new IOException("The log ends at LSN " + mLastLsn + ", before LSN " + afterLsn);
+            }
+            return mLastLsn;
+        }
+        finally {
+            mAppendLock.unlock();
+        }
+    }
+
+    //
+    // Append the insert of the key and its value
+    // Return its LSN, to pass to sync() to wait until it is durable
+    //
+    public long appendInsert(K key, V value) {
+        return append(INSERT_RECORD, key, value);
+    }
+
+    //
+    // Append the delete of the key
+    // Return its LSN, to pass to sync() to wait until it is durable
+    //
+    public long appendDelete(K key) {
+        return append(DELETE_RECORD, key, null);
+    }
+
+    //
+    // Append the removal of all the keys
+    // Return its LSN, to pass to sync() to wait until it is durable
+    //
+    public long appendClear() {
+        return append(CLEAR_RECORD, null, null);
+    }
+
+    //
+    // Wait until the record of the given LSN, and all the ones before it, are forced to the storage device
+    // If no other thread is forcing the file, this one does it for all the records appended so far,
+    // otherwise it waits for that thread and checks again
+    //
+    public void sync(long lsn) throws IOException {
+        checkSyncError();
+        if (!beginSync(lsn)) {
+            return;
+        }
+
+        long syncedLsn = mDurableLsn;
+        try {
+            long writtenLsn;
+            FileChannel channel;
+            mAppendLock.lock();
+            try {
+                flushBuffer();
+                writtenLsn = mWrittenLsn;
+                channel = mChannel;
+            }
+            finally {
+                mAppendLock.unlock();
+            }
+            // Appends go on during the fsync, they are forced by the next one
+            channel.force(false);
+            syncedLsn = writtenLsn;
+        }
+        finally {
+            endSync(syncedLsn);
+        }
+    }
+
+    //
+    // Force all the records appended so far to the storage device
+    //
+    public void sync() throws IOException {
+        sync(getLastLsn());
+    }
+
+    //
+    // Force the last segment and start a new one for the records that follow, unless it is empty
+    // The appends wait for this fsync, under the append lock, so that a segment followed by another
+    // is always whole on the storage device
+    //
+    public void roll() throws IOException {
+        checkSyncError();
+        beginSync(Long.MAX_VALUE);
+        long syncedLsn = mDurableLsn;
+        try {
+            mAppendLock.lock();
+            try {
+                if (mLastLsn < mSegmentFirstLsn) {
+                    return;
+                }
+                flushBuffer();
+                mChannel.force(false);
+                syncedLsn = mWrittenLsn;
+
+                long firstLsn = mLastLsn + 1;
+                File segmentFile = getSegmentFile(mFile, firstLsn);
+                FileChannel channel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                try {
+                    // The new segment must survive a crash, or the records forced into it would be lost with it
+                    BTPageFile.forceDirectory(segmentFile);
+                }
+                catch (IOException | RuntimeException e) {
+                    channel.close();
+                    segmentFile.delete();
+                    throw e;
+                }
+                mChannel.close();
+                mChannel = channel;
+                mFileSize = 0L;
+                mSegmentFirstLsn = firstLsn;
+                mSegments.put(firstLsn, segmentFile);
+            }
+            finally {
+                mAppendLock.unlock();
+            }
+        }
+        finally {
+            endSync(syncedLsn);
+        }
+    }
+
+    //
+    // Delete the segments whose records all have an LSN up to the given one, once a checkpoint holds them
+    // The last segment is never deleted
+    //
+    public void truncate(long lsn) throws IOException {
+        mAppendLock.lock();
+        try {
+            while (mSegments.size() > 1) {
+                Map.Entry<Long, File> segment = mSegments.firstEntry();
+                if (mSegments.higherKey(segment.getKey()) - 1 > lsn) {
+                    break;
+                }
+                if (!segment.getValue().delete() && segment.getValue().exists()) {
+                    throw new IOException("Cannot delete " + segment.getValue());
+                }
+                mSegments.pollFirstEntry();
+            }
+        }
+        finally {
+            mAppendLock.unlock();
+        }
+    }
+
+    //
+    // Delete all the segments of a log that is not open
+    //
+    public static void delete(File file) throws IOException {
+        for (File segmentFile : listSegments(file).values()) {
+            if (!segmentFile.delete() && segmentFile.exists()) {
+                throw new IOException("Cannot delete " + segmentFile);
+            }
+        }
+    }
+
+    //
+    // Stop the background thread, force the records to the storage device and close the file
+    //
+    @Override
+    public void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        if (mSyncThread != null) {
+            // Not interrupted: an interrupt during a write or an fsync would close the channel
+            synchronized (mSyncThreadMonitor) {
+                mSyncThreadMonitor.notifyAll();
+            }
+            try {
+                mSyncThread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            sync();
+        }
+        finally {
+            mChannel.close();
+        }
+    }
+
+    //
+    // Wait until no other thread forces the log, then take its turn
+    // Return false, without taking it, if the record of the given LSN became durable meanwhile
+    //
+    private boolean beginSync(long lsn) {
+        if (mDurableLsn >= lsn) {
+            return false;
+        }
+        mSyncLock.lock();
+        try {
+            while (mIsSyncing) {
+                mSyncDone.awaitUninterruptibly();
+                if (mDurableLsn >= lsn) {
+                    return false;
+                }
+            }
+            if (mDurableLsn >= lsn) {
+                return false;
+            }
+            mIsSyncing = true;
+            return true;
+        }
+        finally {
+            mSyncLock.unlock();
+        }
+    }
+
+    //
+    // Give up the turn taken by beginSync(), the records up to syncedLsn being durable
+    //
+    private void endSync(long syncedLsn) {
+        mSyncLock.lock();
+        try {
+            if (syncedLsn > mDurableLsn) {
+                mDurableLsn = syncedLsn;
+                ++mSyncNum;
+            }
+            mIsSyncing = false;
+            mSyncDone.signalAll();
+        }
+        finally {
+            mSyncLock.unlock();
+        }
+    }
+
+    private long append(byte operation, K key, V value) {
+        checkSyncError();
+        mAppendLock.lock();
+        try {
+            if (mBuffer.remaining() < mMaxRecordSize) {
+                flushBuffer();
+            }
+            long lsn = mLastLsn + 1;
+            int start = mBuffer.position();
+            mBuffer.position(start + RECORD_HEADER_SIZE);
+            try {
+                mBuffer.put(operation);
+                mBuffer.putLong(lsn);
+                if (operation != CLEAR_RECORD) {
+                    mKeyCodec.write(mBuffer, key);
+                }
+                if (operation == INSERT_RECORD) {
+                    mValueCodec.write(mBuffer, value);
+                }
+            }
+            catch (RuntimeException e) {
+                // The key or the value cannot be encoded, leave the buffer as it was
+                mBuffer.position(start);
+                throw e;
+            }
+            int end = mBuffer.position();
+            int contentSize = end - start - RECORD_HEADER_SIZE;
+
+            ByteBuffer content = mBuffer.duplicate();
+            content.position(start + RECORD_HEADER_SIZE);
+            content.limit(end);
+            mCrc.reset();
+            mCrc.update(content);
+            mBuffer.putInt(start, contentSize);
+            mBuffer.putInt(start + 4, (int) mCrc.getValue());
+            mLastLsn = lsn;
+            return lsn;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            mAppendLock.unlock();
+        }
+    }
+
+    //
+    // Write the buffered records to the last segment, with the append lock held
+    //
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mFileSize += mChannel.write(mBuffer, mFileSize);
+        }
+        mBuffer.clear();
+        mWrittenLsn = mLastLsn;
+    }
+
+    //
+    // Read the complete records of a segment, applying to the target those whose LSN is above afterLsn
+    // lastLsn[0] holds the LSN before the first record of the segment, and is set to the LSN of its last one
+    // Return the end of the last complete record
+    //
+    private long scan(FileChannel channel, BTreeIF<K, V> target, long afterLsn, long[] lastLsn) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(mBuffer.capacity());
+        long position = 0L;
+        long fileSize = channel.size();
+        buf.limit(0);
+        while (true) {
+            if (buf.remaining() < RECORD_HEADER_SIZE + RECORD_CONTENT_HEADER_SIZE) {
+                if (!fill(channel, buf, position, fileSize)) {
+                    break;
+                }
+                if (buf.remaining() < RECORD_HEADER_SIZE + RECORD_CONTENT_HEADER_SIZE) {
+                    break;
+                }
+            }
+            int start = buf.position();
+            int contentSize = buf.getInt(start);
+            if ((contentSize < RECORD_CONTENT_HEADER_SIZE) || (contentSize > mMaxRecordSize - RECORD_HEADER_SIZE)) {
+                break;
+            }
+            if (buf.remaining() < RECORD_HEADER_SIZE + contentSize) {
+                if (!fill(channel, buf, position, fileSize) || (buf.remaining() < RECORD_HEADER_SIZE + contentSize)) {
+                    break;
+                }
+                start = buf.position();
+            }
+
+            ByteBuffer content = buf.duplicate();
+            content.position(start + RECORD_HEADER_SIZE);
+            content.limit(start + RECORD_HEADER_SIZE + contentSize);
+            mCrc.reset();
+            mCrc.update(content);
+            if ((int) mCrc.getValue() != buf.getInt(start + 4)) {
+                break;
+            }
+
+            buf.position(start + RECORD_HEADER_SIZE);
+            byte operation = buf.get();
+            long lsn = buf.getLong();
+            if ((operation < INSERT_RECORD) || (operation > CLEAR_RECORD) || (lsn != lastLsn[0] + 1)) {
+                break;
+            }
+            K key = (operation != CLEAR_RECORD) ? mKeyCodec.read(buf) : null;
+            V value = (operation == INSERT_RECORD) ? mValueCodec.read(buf) : null;
+            if ((target != null) && (lsn > afterLsn)) {
+                if (operation == INSERT_RECORD) {
+                    target.insert(key, value);
+                }
+                else if (operation == DELETE_RECORD) {
+                    target.delete(key);
+                }
+                else {
+                    target.clear();
+                }
+            }
+            lastLsn[0] = lsn;
+            buf.position(start + RECORD_HEADER_SIZE + contentSize);
+            position += RECORD_HEADER_SIZE + contentSize;
+        }
+        return position;
+    }
+
+    //
+    // Move the unread bytes of buf to its start and read the segment after them
+    // Return false if the segment has nothing more
+    //
+    private boolean fill(FileChannel channel, ByteBuffer buf, long position, long fileSize) throws IOException {
+        int unreadNum = buf.remaining();
+        buf.compact();
+        long readPosition = position + unreadNum;
+        if (readPosition >= fileSize) {
+            buf.flip();
+            return false;
+        }
+        while (buf.hasRemaining() && (readPosition < fileSize)) {
+            int byteNum = channel.read(buf, readPosition);
+            if (byteNum < 0) {
+                break;
+            }
+            readPosition += byteNum;
+        }
+        buf.flip();
+        return true;
+    }
+
+    //
+    // Force or write out the records every sync interval until the log is closed
+    //
+    private void runSyncThread() {
+        while (true) {
+            synchronized (mSyncThreadMonitor) {
+                if (mIsClosed) {
+                    return;
+                }
+                try {
+                    mSyncThreadMonitor.wait(mSyncIntervalMillis);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if (mIsClosed) {
+                    return;
+                }
+            }
+            try {
+                if (mSyncPolicy == SyncPolicy.GROUP_COMMIT) {
+                    sync();
+                }
+                else {
+                    mAppendLock.lock();
+                    try {
+                        flushBuffer();
+                    }
+                    finally {
+                        mAppendLock.unlock();
+                    }
+                }
+            }
+            catch (IOException e) {
+                mSyncError = e;
+                return;
+            }
+        }
+    }
+
+    //
+    // Segment file of the log holding the records from the given LSN on
+    //
+    private static File getSegmentFile(File file, long firstLsn) {
+        return new File(file.getPath() + "." + String.format("%020d", firstLsn));
+    }
+
+    //
+    // Segment files of the log by the LSN of their first record
+    //
+    private static TreeMap<Long, File> listSegments(File file) {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        String prefix = file.getName() + ".";
+        File segmentFiles[] = file.getAbsoluteFile().getParentFile().listFiles();
+        if (segmentFiles == null) {
+            return segments;
+        }
+        for (File segmentFile : segmentFiles) {
+            String name = segmentFile.getName();
+            if (name.startsWith(prefix) && (name.length() == prefix.length() + 20) && name.substring(prefix.length()).matches("[0-9]+")) {
+                segments.put(Long.parseLong(name.substring(prefix.length())), segmentFile);
+            }
+        }
+        return segments;
+    }
+
+    private void checkSyncError() {
+        IOException syncError = mSyncError;
+        if (syncError != null) {
+            throw new UncheckedIOException("The log could not be written in the background", syncError);
+        }
+    }
+}
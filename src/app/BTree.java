@@ -1,17 +1,67 @@
 package app;
 
-import java.util.Stack;
-
-public class BTree<K extends Comparable, V>
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class BTree<K extends Comparable, V> implements BTreeIF<K, V>
 {
-    public final static int     REBALANCE_FOR_LEAF_NODE         =   1;
-    public final static int     REBALANCE_FOR_INTERNAL_NODE     =   2;
-
+    public final static float   DEFAULT_FILL_FACTOR             =   1.0f;
+    public final static int     PARALLEL_BUILD_MIN_KEYNUM       =   1 << 14; // smaller subtrees are built by a single task
+    private final static Object NO_VALUE                        =   new Object(); // returned by a ValueUpdate to leave the key without a value
+
+    private final int mMinDegree;
+    private final int mLowerBoundKeyNum;
+    private final int mUpperBoundKeyNum;
+    private final BTSearchIF mSearch;
     private BTNode<K, V> mRoot = null;
-    private long  mSize = 0L;
-    private BTNode<K, V> mIntermediateInternalNode = null;
-    private int mNodeIdx = 0;
-    private final Stack<StackInfo> mStackTracer = new Stack<StackInfo>();
+    private int mModCount = 0; // changed by each update, so that the cursors can find their position again
+    private BTAggregatorIF<K, V, Object> mAggregator = null; // summary kept in every node, none if null
+    private long mEpoch = 0L; // version of the nodes the tree may change in place, older nodes are shared with snapshots
+    private boolean mIsSnapshot = false; // true if the tree is a snapshot, which cannot be changed
+
+    //
+    // Create a tree with the default node degree
+    //
+    public BTree() {
+        this(BTNode.DEFAULT_MIN_DEGREE);
+    }
+
+    //
+    // Create a tree whose nodes hold between (minDegree - 1) and (2 * minDegree - 1) keys
+    //
+    public BTree(int minDegree) {
+        this(minDegree, BTNode.selectSearch(minDegree));
+    }
+
+    //
+    // Create a tree with the given degree that searches within its nodes with the given strategy
+    //
+    public BTree(int minDegree, BTSearchIF search) {
+        mMinDegree = BTNode.checkMinDegree(minDegree);
+        mLowerBoundKeyNum = BTNode.getLowerBoundKeyNum(minDegree);
+        mUpperBoundKeyNum = BTNode.getUpperBoundKeyNum(minDegree);
+        mSearch = search;
+    }
+
+    //
+    // Get the minimum degree of the nodes of the tree
+    //
+    public int getMinDegree() {
+        return mMinDegree;
+    }
 
     //
     // Get the root node
@@ -21,18 +71,109 @@ public class BTree<K extends Comparable, V>
     }
 
     //
-    // The total number of nodes in the tree
+    // Get the in-node search strategy of the tree
+    //
+    public BTSearchIF getSearch() {
+        return mSearch;
+    }
+
+    //
+    // Get the number of updates made to the tree
+    //
+    int getModCount() {
+        return mModCount;
+    }
+
+    //
+    // Keep in every node the summary of its subtree made by the aggregator, so that
+    // aggregate() can summarize any key range from O(log n) nodes
+    // The summaries of the entries already there are made at once, a null aggregator drops them
+    //
+    public void setAggregator(BTAggregatorIF<K, V, ?> aggregator) {
+        checkNotSnapshot();
+        mAggregator = (BTAggregatorIF<K, V, Object>) aggregator;
+        if (mRoot != null) {
+            mRoot = updateAllNodes(mRoot);
+        }
+    }
+
+    //
+    // Get the aggregator of the tree, null if there is none
+    //
+    public BTAggregatorIF<K, V, ?> getAggregator() {
+        return mAggregator;
+    }
+
+    //
+    // Create a cursor before the lowest key of the tree
+    //
+    public BTCursor<K, V> cursor() {
+        return new BTCursor<K, V>(this);
+    }
+
+    //
+    // Create a spliterator over the entries of the tree in ascending key order, split at child boundaries
+    //
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return new BTSpliterator<K, V>(this);
+    }
+
+    //
+    // Stream the entries of the tree in ascending key order
+    //
+    public Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    //
+    // Stream the entries of the tree in parallel on the common fork-join pool
+    // The tree must not be changed meanwhile, stream a snapshot to go on updating it
+    //
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    //
+    // Take a snapshot of the tree in constant time
+    // The snapshot is a tree that cannot be changed and shares all its nodes with this one.
+    // From then on this tree copies a shared node before it changes it, so each update
+    // copies only the nodes on the paths it goes down, once per snapshot
+    // Since its nodes are never written again, any number of threads can read the snapshot
+    // without a lock while this tree goes on being updated, once it was handed over to
+    // them through a volatile field, a lock or a concurrent queue
+    //
+    public BTree<K, V> snapshot() {
+        BTree<K, V> snapshot = new BTree<K, V>(mMinDegree, mSearch);
+        snapshot.mRoot = mRoot;
+        snapshot.mAggregator = mAggregator;
+        snapshot.mIsSnapshot = true;
+        if (!mIsSnapshot) {
+            ++mEpoch;
+        }
+        return snapshot;
+    }
+
+    //
+    // Check whether the tree is a snapshot
+    //
+    public boolean isSnapshot() {
+        return mIsSnapshot;
+    }
+
+    //
+    // The total number of keys in the tree, as counted by the root node
     //
     public long size() {
-        return mSize;
+        return BTNode.getSubtreeKeyNum(mRoot);
     }
 
     //
     // Clear all the entries in the tree
     //
     public void clear() {
-        mSize = 0L;
+        checkNotSnapshot();
         mRoot = null;
+        ++mModCount;
     }
 
     //
@@ -40,160 +181,493 @@ public class BTree<K extends Comparable, V>
     //
     private BTNode<K, V> createNode() {
         BTNode<K, V> btNode;
-        btNode = new BTNode();
+        btNode = new BTNode(mMinDegree);
         btNode.mIsLeaf = true;
         btNode.mCurrentKeyNum = 0;
+        btNode.mEpoch = mEpoch;
         return btNode;
     }
 
+    //
+    // Get a version of the node that can be changed in place: the node itself if the current
+    // version of the tree made it, otherwise a copy since the node is shared with a snapshot
+    //
+    private BTNode<K, V> getWritableNode(BTNode<K, V> btNode) {
+        if (btNode.mEpoch == mEpoch) {
+            return btNode;
+        }
+        return new BTNode<K, V>(btNode, mEpoch);
+    }
+
+    //
+    // Get a version of the child at nodeIdx that can be changed in place,
+    // linking the copy into the parent, which must be writable already
+    //
+    private BTNode<K, V> getWritableChild(BTNode<K, V> parentNode, int nodeIdx) {
+        BTNode<K, V> btNode = parentNode.mChildren[nodeIdx];
+        if (btNode.mEpoch != mEpoch) {
+            btNode = new BTNode<K, V>(btNode, mEpoch);
+            parentNode.mChildren[nodeIdx] = btNode;
+        }
+        return btNode;
+    }
+
+    //
+    // Make sure the tree is not a snapshot before changing it
+    //
+    private void checkNotSnapshot() {
+        if (mIsSnapshot) {
+            throw new UnsupportedOperationException("A snapshot of a tree cannot be changed");
+        }
+    }
+
     //
     // Search value for a specified key of the tree
     //
     public V search(K key) {
         BTNode<K, V> currentNode = mRoot;
-        BTKeyValue<K, V> currentKey;
-        int i, numberOfKeys;
+        int i;
 
         while (currentNode != null) {
-            numberOfKeys = currentNode.mCurrentKeyNum;
-            i = 0;
-            currentKey = currentNode.mKeys[i];
-            while ((i < numberOfKeys) && (key.compareTo(currentKey.mKey) > 0)) {
-                ++i;
-                if (i < numberOfKeys) {
-                    currentKey = currentNode.mKeys[i];
-                }
-                else {
-                    --i;
-                    break;
+            i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (i >= 0) {
+                return currentNode.mValues[i];
+            }
+
+            // The key is not in this node, go down to the child between its neighbours
+            currentNode = BTNode.getLeftChildAtIndex(currentNode, -(i + 1));
+        }
+
+        return null;
+    }
+
+
+    //
+    // Get the entry of the lowest key greater than the key, or equal to it if inclusive
+    // Return null if there is no such key
+    //
+    public BTKeyValue<K, V> ceilingEntry(K key, boolean inclusive) {
+        BTNode<K, V> currentNode = mRoot;
+        BTNode<K, V> candidateNode = null;
+        int candidateIdx = 0;
+
+        while ((currentNode != null) && (currentNode.mCurrentKeyNum > 0)) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (i >= 0) {
+                if (inclusive) {
+                    return new BTKeyValue<K, V>(currentNode.mKeys[i], currentNode.mValues[i]);
                 }
+                // The higher keys are in the subtree right of the key, then in the next key
+                ++i;
             }
-            
-            if ((i < numberOfKeys) && (key.compareTo(currentKey.mKey) == 0)) {
-                return currentKey.mValue;
+            else {
+                i = -(i + 1);
             }
 
-            if (key.compareTo(currentKey.mKey) > 0) {
-                currentNode = BTNode.getRightChildAtIndex(currentNode, i);
+            if (i < currentNode.mCurrentKeyNum) {
+                candidateNode = currentNode;
+                candidateIdx = i;
+            }
+            currentNode = currentNode.mIsLeaf ? null : currentNode.mChildren[i];
+        }
+
+        return (candidateNode == null) ? null : new BTKeyValue<K, V>(candidateNode.mKeys[candidateIdx], candidateNode.mValues[candidateIdx]);
+    }
+
+    //
+    // Get the entry of the highest key lower than the key, or equal to it if inclusive
+    // Return null if there is no such key
+    //
+    public BTKeyValue<K, V> floorEntry(K key, boolean inclusive) {
+        BTNode<K, V> currentNode = mRoot;
+        BTNode<K, V> candidateNode = null;
+        int candidateIdx = 0;
+
+        while ((currentNode != null) && (currentNode.mCurrentKeyNum > 0)) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (i >= 0) {
+                if (inclusive) {
+                    return new BTKeyValue<K, V>(currentNode.mKeys[i], currentNode.mValues[i]);
+                }
+                // The lower keys are in the subtree left of the key, then in the previous key
             }
             else {
-                currentNode = BTNode.getLeftChildAtIndex(currentNode, i);
+                i = -(i + 1);
             }
+
+            if (i > 0) {
+                candidateNode = currentNode;
+                candidateIdx = i - 1;
+            }
+            currentNode = currentNode.mIsLeaf ? null : currentNode.mChildren[i];
         }
 
-        return null;
+        return (candidateNode == null) ? null : new BTKeyValue<K, V>(candidateNode.mKeys[candidateIdx], candidateNode.mValues[candidateIdx]);
     }
-    
+
     //
-    // Insrer la cl et sa valeur dans l'arbre
+    // Get the entry of the lowest key of the tree, null if the tree is empty
     //
-    public BTree insert(K key, V value) {
-        if (mRoot == null) {
-            mRoot = createNode();
+    public BTKeyValue<K, V> firstEntry() {
+        if ((mRoot == null) || (mRoot.mCurrentKeyNum == 0)) {
+            return null;
         }
 
-        ++mSize;
-        if (mRoot.mCurrentKeyNum == BTNode.UPPER_BOUND_KEYNUM) {
-            // La racine est complt, on va l'clater
-            BTNode<K, V> btNode = createNode();
-            btNode.mIsLeaf = false;
-            btNode.mChildren[0] = mRoot;
-            mRoot = btNode;
-            splitNode(mRoot, 0, btNode.mChildren[0]);
+        BTNode<K, V> currentNode = mRoot;
+        while (!currentNode.mIsLeaf) {
+            currentNode = currentNode.mChildren[0];
         }
+        return new BTKeyValue<K, V>(currentNode.mKeys[0], currentNode.mValues[0]);
+    }
 
-        insertKeyAtNode(mRoot, key, value);
-        return this;
+    //
+    // Get the entry of the highest key of the tree, null if the tree is empty
+    //
+    public BTKeyValue<K, V> lastEntry() {
+        if ((mRoot == null) || (mRoot.mCurrentKeyNum == 0)) {
+            return null;
+        }
+
+        BTNode<K, V> currentNode = mRoot;
+        while (!currentNode.mIsLeaf) {
+            currentNode = currentNode.mChildren[currentNode.mCurrentKeyNum];
+        }
+        int i = currentNode.mCurrentKeyNum - 1;
+        return new BTKeyValue<K, V>(currentNode.mKeys[i], currentNode.mValues[i]);
     }
     
     //
-    // Insrer la cl et sa valeur dans la racine spcifir
+    // Insrer la cl et sa valeur dans l'arbre
     //
-    private void insertKeyAtNode(BTNode rootNode, K key, V value) {
-        int i;
-        int currentKeyNum = rootNode.mCurrentKeyNum;
+    public BTree<K, V> insert(K key, V value) {
+        checkNotSnapshot();
+        ++mModCount;
+        insertKeyAtNode(getInsertRoot(), key, value);
+        return this;
+    }
 
-        if (rootNode.mIsLeaf) {
-            if (rootNode.mCurrentKeyNum == 0) {
-                // La racine est vide
-                rootNode.mKeys[0] = new BTKeyValue<K, V>(key, value);
-                ++(rootNode.mCurrentKeyNum);
-                return;
+    //
+    // Insert the key and its value into the tree, in a single descent
+    // Return the previous value of the key, null if it was absent
+    //
+    public V put(K key, final V value) {
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                return value;
             }
+        };
+        updateKey(key, valueUpdate);
+        return valueUpdate.mOldValue;
+    }
 
-            // Vrifier si la cl spcifie n'existe pas dans le noeud
-            for (i = 0; i < rootNode.mCurrentKeyNum; ++i) {
-                if (key.compareTo(rootNode.mKeys[i].mKey) == 0) {
-                    // La cl existe, crasser sa valeur
-                    rootNode.mKeys[i].mValue = value;
-                    --mSize;
-                    return;
-                }
+    //
+    // Compute the new value of the key from its current value, null if it is absent, in a single descent
+    // The key is removed if the new value is null
+    // Return the new value
+    // As for the other functions of the tree, the function must not change the tree
+    //
+    public V compute(K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                V newValue = remappingFunction.apply(key, oldValue);
+                return (newValue == null) ? NO_VALUE : newValue;
             }
+        };
+        updateKey(key, valueUpdate);
+        return valueUpdate.mNewValue;
+    }
 
-            i = currentKeyNum - 1;
-            BTKeyValue<K, V> existingKeyVal = rootNode.mKeys[i];
-            while ((i > -1) && (key.compareTo(existingKeyVal.mKey) < 0)) {
-                rootNode.mKeys[i + 1] = existingKeyVal;
-                --i;
-                if (i > -1) {
-                    existingKeyVal = rootNode.mKeys[i];
+    //
+    // Compute the value of the key if it is absent or null, in a single descent
+    // Nothing is stored if the function returns null
+    // Return the current value of the key
+    //
+    public V computeIfAbsent(K key, final Function<? super K, ? extends V> mappingFunction) {
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                if (oldValue != null) {
+                    return oldValue;
                 }
+                V newValue = mappingFunction.apply(key);
+                return (newValue != null) ? newValue : (isPresent ? oldValue : NO_VALUE);
             }
+        };
+        updateKey(key, valueUpdate);
+        return valueUpdate.mNewValue;
+    }
 
-            i = i + 1;
-            rootNode.mKeys[i] = new BTKeyValue<K, V>(key, value);
+    //
+    // Compute the new value of the key if its value is not null, in a single descent
+    // The key is removed if the new value is null
+    // Return the new value
+    //
+    public V computeIfPresent(K key, final BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                if (oldValue == null) {
+                    return isPresent ? oldValue : NO_VALUE;
+                }
+                V newValue = remappingFunction.apply(key, oldValue);
+                return (newValue == null) ? NO_VALUE : newValue;
+            }
+        };
+        updateKey(key, valueUpdate);
+        return valueUpdate.mNewValue;
+    }
 
-            ++(rootNode.mCurrentKeyNum);
-            return;
+    //
+    // Store the value if the key is absent or null, otherwise merge the current value with it, in a single descent
+    // The key is removed if the merged value is null
+    // Return the new value
+    //
+    public V merge(K key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null) {
+            throw new NullPointerException("The value to merge cannot be null");
         }
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                if (oldValue == null) {
+                    return value;
+                }
+                V newValue = remappingFunction.apply(oldValue, value);
+                return (newValue == null) ? NO_VALUE : newValue;
+            }
+        };
+        updateKey(key, valueUpdate);
+        return valueUpdate.mNewValue;
+    }
 
-        // This is an internal node (i.e: not a leaf node)
-        // So let find the child node where the key is supposed to belong
-        i = 0;
-        int numberOfKeys = rootNode.mCurrentKeyNum;
-        BTKeyValue<K, V> currentKey = rootNode.mKeys[i];
-        while ((i < numberOfKeys) && (key.compareTo(currentKey.mKey) > 0)) {
-            ++i;
-            if (i < numberOfKeys) {
-                currentKey = rootNode.mKeys[i];
+    //
+    // Store the value if the key is absent or null, in a single descent
+    // Return the previous value of the key
+    //
+    public V putIfAbsent(K key, final V value) {
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                return (oldValue == null) ? value : oldValue;
             }
-            else {
-                --i;
+        };
+        updateKey(key, valueUpdate);
+        return valueUpdate.mOldValue;
+    }
+
+    //
+    // Replace the value of the key only if it is present, in a single descent
+    // Return the previous value of the key
+    //
+    public V replace(K key, final V value) {
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                return isPresent ? value : NO_VALUE;
+            }
+        };
+        updateKey(key, valueUpdate);
+        return valueUpdate.mOldValue;
+    }
+
+    //
+    // Replace the value of the key only if it is present with the expected value, in a single descent
+    // Return true if the value was replaced
+    //
+    public boolean replace(K key, final V expectedValue, final V value) {
+        final boolean isReplaced[] = { false };
+        ValueUpdate<K, V> valueUpdate = new ValueUpdate<K, V>() {
+            @Override
+            protected Object apply(K key, V oldValue, boolean isPresent) {
+                if (!isPresent) {
+                    return NO_VALUE;
+                }
+                isReplaced[0] = Objects.equals(oldValue, expectedValue);
+                return isReplaced[0] ? value : oldValue;
+            }
+        };
+        updateKey(key, valueUpdate);
+        return isReplaced[0];
+    }
+
+    //
+    // Apply the update to the key
+    // A descent that changes nothing finds the key, or the leaf where it would be added, and lets the
+    // update decide. An update that leaves the tree as it was ends there, without counting as a change or
+    // copying nodes shared with a snapshot. Otherwise the change starts from the deepest node of the path
+    // that can take it: the node of the key for a new value, the deepest node that is not full for an
+    // added key and the deepest one that can spare a key for a removed one, so that only the nodes below
+    // it are split or filled up again as by insert() and delete(), the nodes above only being recounted
+    //
+    private void updateKey(K key, ValueUpdate<K, V> valueUpdate) {
+        checkNotSnapshot();
+        int height = getHeight();
+        BTNode<K, V> pathNodes[] = new BTNode[height];
+        int childIdxs[] = new int[height]; // child taken from each node of the path
+        int pathNodeNum = 0;
+        int keyIdx = -1;
+        BTNode<K, V> currentNode = mRoot;
+        while (currentNode != null) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            pathNodes[pathNodeNum++] = currentNode;
+            if (i >= 0) {
+                keyIdx = i;
                 break;
             }
+            if (currentNode.mIsLeaf) {
+                break;
+            }
+            childIdxs[pathNodeNum - 1] = -(i + 1);
+            currentNode = currentNode.mChildren[-(i + 1)];
         }
 
-        if ((i < numberOfKeys) && (key.compareTo(currentKey.mKey) == 0)) {
-            // The key already existed so replace its value and done with it
-            currentKey.mValue = value;
-            --mSize;
+        boolean isPresent = (keyIdx >= 0);
+        V oldValue = isPresent ? pathNodes[pathNodeNum - 1].mValues[keyIdx] : null;
+        boolean hasNewValue = valueUpdate.update(key, oldValue, isPresent);
+        if (isPresent ? (hasNewValue && (valueUpdate.mNewValue == oldValue)) : !hasNewValue) {
             return;
         }
 
-        BTNode<K, V> btNode;
-        if (key.compareTo(currentKey.mKey) > 0) {
-            btNode = BTNode.getRightChildAtIndex(rootNode, i);
-            i = i + 1;
+        ++mModCount;
+        if (isPresent && hasNewValue) {
+            int depth = pathNodeNum - 1;
+            makePathWritable(pathNodes, childIdxs, depth).mValues[keyIdx] = valueUpdate.mNewValue;
+            if (mAggregator != null) {
+                for (; depth >= 0; --depth) {
+                    updateAggregate(pathNodes[depth]);
+                }
+            }
+        }
+        else if (hasNewValue) {
+            int depth = pathNodeNum - 1;
+            while ((depth >= 0) && (pathNodes[depth].mCurrentKeyNum == mUpperBoundKeyNum)) {
+                --depth;
+            }
+            if (depth < 0) {
+                // Every node of the path is full, or the tree is empty, the insert starts from the root
+                insertKeyAtNode(getInsertRoot(), key, valueUpdate.mNewValue);
+                return;
+            }
+            insertKeyAtNode(makePathWritable(pathNodes, childIdxs, depth), key, valueUpdate.mNewValue);
+            for (--depth; depth >= 0; --depth) {
+                ++(pathNodes[depth].mSubtreeKeyNum);
+                if (mAggregator != null) {
+                    updateAggregate(pathNodes[depth]);
+                }
+            }
         }
         else {
-            if ((i - 1 >= 0) && (key.compareTo(rootNode.mKeys[i - 1].mKey) > 0)) {
-                btNode = BTNode.getRightChildAtIndex(rootNode, i - 1);
+            int depth = pathNodeNum - 1;
+            while ((depth > 0) && (pathNodes[depth].mCurrentKeyNum <= mLowerBoundKeyNum)) {
+                --depth;
             }
-            else {
-                btNode = BTNode.getLeftChildAtIndex(rootNode, i);
+            deleteAtNode(makePathWritable(pathNodes, childIdxs, depth), key, pathNodes, depth);
+        }
+    }
+
+    //
+    // Replace the nodes of the path down to the given depth by versions that can be changed in place
+    // Return the node at that depth
+    //
+    private BTNode<K, V> makePathWritable(BTNode<K, V> pathNodes[], int childIdxs[], int depth) {
+        mRoot = getWritableNode(mRoot);
+        pathNodes[0] = mRoot;
+        for (int i = 1; i <= depth; ++i) {
+            pathNodes[i] = getWritableChild(pathNodes[i - 1], childIdxs[i - 1]);
+        }
+        return pathNodes[depth];
+    }
+
+    //
+    // Get the root ready for an insert from it: created if the tree is empty, writable, and split if it is full
+    //
+    private BTNode<K, V> getInsertRoot() {
+        if (mRoot == null) {
+            mRoot = createNode();
+        }
+
+        mRoot = getWritableNode(mRoot);
+        if (mRoot.mCurrentKeyNum == mUpperBoundKeyNum) {
+            // La racine est complt, on va l'clater
+            BTNode<K, V> btNode = createNode();
+            btNode.mIsLeaf = false;
+            btNode.mChildren[0] = mRoot;
+            btNode.mSubtreeKeyNum = mRoot.mSubtreeKeyNum;
+            btNode.mAggregate = mRoot.mAggregate;
+            mRoot = btNode;
+            splitNode(mRoot, 0, btNode.mChildren[0]);
+        }
+        return mRoot;
+    }
+    
+    //
+    // Insrer la cl et sa valeur dans la racine spcifir
+    // Le noeud doit pouvoir tre modifi et ne pas tre complet
+    // Retourner true si la cl est ajoute, false si sa valeur est remplace
+    //
+    private boolean insertKeyAtNode(BTNode rootNode, K key, V value) {
+        int i = mSearch.search(rootNode.mKeys, rootNode.mCurrentKeyNum, key);
+        if (i >= 0) {
+            // La cl existe, crasser sa valeur
+            replaceValueAt(rootNode, i, value);
+            return false;
+        }
+        i = -(i + 1);
+
+        if (rootNode.mIsLeaf) {
+            // Dcaler  droite les cls plus grandes pour librer la position i
+            int currentKeyNum = rootNode.mCurrentKeyNum;
+            System.arraycopy(rootNode.mKeys, i, rootNode.mKeys, i + 1, currentKeyNum - i);
+            System.arraycopy(rootNode.mValues, i, rootNode.mValues, i + 1, currentKeyNum - i);
+            rootNode.mKeys[i] = key;
+            rootNode.mValues[i] = value;
+
+            ++(rootNode.mCurrentKeyNum);
+            ++(rootNode.mSubtreeKeyNum);
+            if (mAggregator != null) {
+                updateAggregate(rootNode);
             }
+            return true;
         }
 
-        if (btNode.mCurrentKeyNum == BTNode.UPPER_BOUND_KEYNUM) {
+        // This is an internal node (i.e: not a leaf node)
+        // So the key belongs to the child between the two keys around position i
+        BTNode<K, V> btNode = getWritableChild(rootNode, i);
+
+        if (btNode.mCurrentKeyNum == mUpperBoundKeyNum) {
             // If the child node is a full node then handle it by splitting out
-            // then insert key starting at the root node after splitting node
+            // then go down on the side of the middle key that went up at position i
             splitNode(rootNode, i, btNode);
-            insertKeyAtNode(rootNode, key, value);
-            return;
+            int cmp = key.compareTo(rootNode.mKeys[i]);
+            if (cmp == 0) {
+                replaceValueAt(rootNode, i, value);
+                return false;
+            }
+            if (cmp > 0) {
+                btNode = rootNode.mChildren[i + 1];
+            }
         }
 
-        insertKeyAtNode(btNode, key, value);
+        boolean isAdded = insertKeyAtNode(btNode, key, value);
+        if (isAdded) {
+            ++(rootNode.mSubtreeKeyNum);
+        }
+        if (mAggregator != null) {
+            updateAggregate(rootNode);
+        }
+        return isAdded;
+    }
+
+    //
+    // Replace the value at keyIdx of the node
+    //
+    private void replaceValueAt(BTNode<K, V> btNode, int keyIdx, V value) {
+        btNode.mValues[keyIdx] = value;
+        if (mAggregator != null) {
+            updateAggregate(btNode);
+        }
     }
 
     //
@@ -207,27 +681,29 @@ public class BTree<K extends Comparable, V>
         newNode.mIsLeaf = btNode.mIsLeaf;
 
         // Puisque le noeud est complt,
-        // nouveau noeud doit tre partag LOWER_BOUND_KEYNUM cls
-        newNode.mCurrentKeyNum = BTNode.LOWER_BOUND_KEYNUM;
+        // nouveau noeud doit tre partag mLowerBoundKeyNum cls
+        newNode.mCurrentKeyNum = mLowerBoundKeyNum;
 
         // Copier la moiti droite des cls du noeud courant vers le nouveau noeud
-        for (i = 0; i < BTNode.LOWER_BOUND_KEYNUM; ++i) {
-            newNode.mKeys[i] = btNode.mKeys[i + BTNode.MIN_DEGREE];
-            btNode.mKeys[i + BTNode.MIN_DEGREE] = null;
+        for (i = 0; i < mLowerBoundKeyNum; ++i) {
+            newNode.mKeys[i] = (K) btNode.mKeys[i + mMinDegree];
+            newNode.mValues[i] = (V) btNode.mValues[i + mMinDegree];
+            btNode.mKeys[i + mMinDegree] = null;
+            btNode.mValues[i + mMinDegree] = null;
         }
 
         // Si le noeud est interne (n'est pas une feuille),
         // copier les pointeurs du fils dans la moiti du droite aussi
         if (!btNode.mIsLeaf) {
-            for (i = 0; i < BTNode.MIN_DEGREE; ++i) {
-                newNode.mChildren[i] = btNode.mChildren[i + BTNode.MIN_DEGREE];
-                btNode.mChildren[i + BTNode.MIN_DEGREE] = null;
+            for (i = 0; i < mMinDegree; ++i) {
+                newNode.mChildren[i] = btNode.mChildren[i + mMinDegree];
+                btNode.mChildren[i + mMinDegree] = null;
             }
         }
 
-        // Le noeud dans cette position doit avoir LOWER_BOUND_KEYNUM cls
+        // Le noeud dans cette position doit avoir mLowerBoundKeyNum cls
         // On va dplacer sa cl droite la plus  droite vers le noeud parent aprs
-        btNode.mCurrentKeyNum = BTNode.LOWER_BOUND_KEYNUM;
+        btNode.mCurrentKeyNum = mLowerBoundKeyNum;
 
         // Faire le dcalage  droite pour les pointeurs du fils du noeud parent
         // donc, a va permette de mettre le nouveau noeud et son nouveau pointeur du fils
@@ -241,247 +717,523 @@ public class BTree<K extends Comparable, V>
         // On va avoir un slot pour dplacer la cl du milieu rcuprer du noeud clat
         for (i = parentNode.mCurrentKeyNum - 1; i >= nodeIdx; --i) {
             parentNode.mKeys[i + 1] = parentNode.mKeys[i];
+            parentNode.mValues[i + 1] = parentNode.mValues[i];
             parentNode.mKeys[i] = null;
+            parentNode.mValues[i] = null;
         }
-        parentNode.mKeys[nodeIdx] = btNode.mKeys[BTNode.LOWER_BOUND_KEYNUM];
-        btNode.mKeys[BTNode.LOWER_BOUND_KEYNUM] = null;
+        parentNode.mKeys[nodeIdx] = btNode.mKeys[mLowerBoundKeyNum];
+        parentNode.mValues[nodeIdx] = btNode.mValues[mLowerBoundKeyNum];
+        btNode.mKeys[mLowerBoundKeyNum] = null;
+        btNode.mValues[mLowerBoundKeyNum] = null;
         ++(parentNode.mCurrentKeyNum);
+
+        // Le parent garde son nombre de cls, le noeud clat cde celles du nouveau noeud et la cl du milieu
+        BTNode.updateSubtreeKeyNum(newNode);
+        btNode.mSubtreeKeyNum -= newNode.mSubtreeKeyNum + 1;
+        if (mAggregator != null) {
+            updateAggregate(btNode);
+            updateAggregate(newNode);
+        }
     }
 
 
     //
-    // Find the predecessor node for a specified node
+    // Insert a batch of entries, replacing the values of the keys that already exist
+    // The batch is sorted once and then sent down the tree in a single walk: each node
+    // receives the run of keys that belongs to its subtree, and a node that overflows
+    // is split once into as many nodes as it needs, from the leaves up
+    // If a key appears several times in the batch, its last value is kept
     //
-    private BTNode<K, V> findPredecessor(BTNode<K, V> btNode, int nodeIdx) {
-        if (btNode.mIsLeaf) {
-            return btNode;
+    public BTree<K, V> insertAll(Collection<? extends Map.Entry<K, V>> entries) {
+        checkNotSnapshot();
+        Map.Entry<K, V> sortedEntries[] = entries.toArray(new Map.Entry[entries.size()]);
+        if (sortedEntries.length == 0) {
+            return this;
         }
+        Arrays.sort(sortedEntries, createEntryComparator());
 
-        BTNode<K, V> predecessorNode;
-        if (nodeIdx > -1) {
-            predecessorNode = BTNode.getLeftChildAtIndex(btNode, nodeIdx);
-            if (predecessorNode != null) {
-                mIntermediateInternalNode = btNode;
-                mNodeIdx = nodeIdx;
-                btNode = findPredecessor(predecessorNode, -1);
-            }
+        K keys[] = (K[]) new Comparable[sortedEntries.length];
+        V values[] = (V[]) new Object[sortedEntries.length];
+        int keyNum = mergeSortedEntries(sortedEntries, keys, values);
 
-            return btNode;
+        ++mModCount;
+        if (mRoot == null) {
+            mRoot = createNode();
         }
 
-        predecessorNode = BTNode.getRightChildAtIndex(btNode, btNode.mCurrentKeyNum - 1);
-        if (predecessorNode != null) {
-            mIntermediateInternalNode = btNode;
-            mNodeIdx = btNode.mCurrentKeyNum;
-            btNode = findPredecessorForNode(predecessorNode, -1);
+        mRoot = getWritableNode(mRoot);
+        BatchSplit<K, V> split = insertRunAtNode(mRoot, keys, values, 0, keyNum);
+        while (split != null) {
+            // The root was split, the pieces go under a new root which may have to be split as well
+            int sepNum = split.mNodes.length - 1;
+            if (sepNum <= mUpperBoundKeyNum) {
+                BTNode<K, V> btNode = createNode();
+                btNode.mIsLeaf = false;
+                System.arraycopy(split.mKeys, 0, btNode.mKeys, 0, sepNum);
+                System.arraycopy(split.mValues, 0, btNode.mValues, 0, sepNum);
+                System.arraycopy(split.mNodes, 0, btNode.mChildren, 0, sepNum + 1);
+                btNode.mCurrentKeyNum = sepNum;
+                updateNode(btNode);
+                mRoot = btNode;
+                break;
+            }
+            split = splitBatchNode(null, split.mKeys, split.mValues, split.mNodes, sepNum);
         }
-
-        return btNode;
+        return this;
     }
 
 
     //
-    // Find predecessor node of a specified node
+    // Order the entries by key
     //
-    private BTNode<K, V> findPredecessorForNode(BTNode<K, V> btNode, int keyIdx) {
-        BTNode<K, V> predecessorNode;
-        BTNode<K, V> originalNode = btNode;
-        if (keyIdx > -1) {
-            predecessorNode = BTNode.getLeftChildAtIndex(btNode, keyIdx);
-            if (predecessorNode != null) {
-                btNode = findPredecessorForNode(predecessorNode, -1);
-                rebalanceTreeAtNode(originalNode, predecessorNode, keyIdx, REBALANCE_FOR_LEAF_NODE);
+    private Comparator<Map.Entry<K, V>> createEntryComparator() {
+        return new Comparator<Map.Entry<K, V>>() {
+            @Override
+            public int compare(Map.Entry<K, V> entry1, Map.Entry<K, V> entry2) {
+                return entry1.getKey().compareTo(entry2.getKey());
             }
+        };
+    }
 
-            return btNode;
-        }
 
-        predecessorNode = BTNode.getRightChildAtIndex(btNode, btNode.mCurrentKeyNum - 1);
-        if (predecessorNode != null) {
-            btNode = findPredecessorForNode(predecessorNode, -1);
-            rebalanceTreeAtNode(originalNode, predecessorNode, keyIdx, REBALANCE_FOR_LEAF_NODE);
+    //
+    // Copy the entries sorted by a stable sort into the key and value arrays, keeping the last value of each key
+    // Return the number of keys
+    //
+    private int mergeSortedEntries(Map.Entry<K, V> sortedEntries[], K keys[], V values[]) {
+        int keyNum = 0;
+        for (Map.Entry<K, V> entry : sortedEntries) {
+            if ((keyNum > 0) && (keys[keyNum - 1].compareTo(entry.getKey()) == 0)) {
+                values[keyNum - 1] = entry.getValue();
+                continue;
+            }
+            keys[keyNum] = entry.getKey();
+            values[keyNum] = entry.getValue();
+            ++keyNum;
         }
-
-        return btNode;
+        return keyNum;
     }
 
 
     //
-    // Do the left rotation
+    // Insert the sorted keys [from, to) into the subtree of the node
+    // Return the pieces the node was split into, or null if it still fits
     //
-    private void performLeftRotation(BTNode<K, V> btNode, int nodeIdx, BTNode<K, V> parentNode, BTNode<K, V> rightSiblingNode) {
-        int parentKeyIdx = nodeIdx;
+    private BatchSplit<K, V> insertRunAtNode(BTNode<K, V> btNode, K keys[], V values[], int from, int to) {
+        int keyNum = btNode.mCurrentKeyNum;
+        if (btNode.mIsLeaf) {
+            if (keyNum + to - from <= mUpperBoundKeyNum) {
+                // The run fits, insert its keys in place
+                for (int j = from; j < to; ++j) {
+                    int i = mSearch.search(btNode.mKeys, btNode.mCurrentKeyNum, keys[j]);
+                    if (i >= 0) {
+                        btNode.mValues[i] = values[j];
+                        continue;
+                    }
+                    i = -(i + 1);
+                    System.arraycopy(btNode.mKeys, i, btNode.mKeys, i + 1, btNode.mCurrentKeyNum - i);
+                    System.arraycopy(btNode.mValues, i, btNode.mValues, i + 1, btNode.mCurrentKeyNum - i);
+                    btNode.mKeys[i] = keys[j];
+                    btNode.mValues[i] = values[j];
+                    ++(btNode.mCurrentKeyNum);
+                }
+                updateNode(btNode);
+                return null;
+            }
 
-        /*
-        if (nodeIdx >= parentNode.mCurrentKeyNum) {
-            // This shouldn't happen
-            parentKeyIdx = nodeIdx - 1;
+            // Merge the run with the keys of the leaf
+            K mergedKeys[] = (K[]) new Comparable[keyNum + to - from];
+            V mergedValues[] = (V[]) new Object[keyNum + to - from];
+            int mergedNum = 0;
+            int i = 0;
+            int j = from;
+            while ((i < keyNum) || (j < to)) {
+                int cmp = (j == to) ? -1 : ((i == keyNum) ? 1 : btNode.mKeys[i].compareTo(keys[j]));
+                if (cmp < 0) {
+                    mergedKeys[mergedNum] = btNode.mKeys[i];
+                    mergedValues[mergedNum++] = btNode.mValues[i++];
+                    continue;
+                }
+                if (cmp == 0) {
+                    ++i;
+                }
+                mergedKeys[mergedNum] = keys[j];
+                mergedValues[mergedNum++] = values[j++];
+            }
+            if (mergedNum <= mUpperBoundKeyNum) {
+                // Keys of the run were already there, so it fits after all
+                System.arraycopy(mergedKeys, 0, btNode.mKeys, 0, mergedNum);
+                System.arraycopy(mergedValues, 0, btNode.mValues, 0, mergedNum);
+                btNode.mCurrentKeyNum = mergedNum;
+                updateNode(btNode);
+                return null;
+            }
+            return splitBatchNode(btNode, mergedKeys, mergedValues, null, mergedNum);
         }
-        */
 
-        // Move the parent key and relevant child to the deficient node
-        btNode.mKeys[btNode.mCurrentKeyNum] = parentNode.mKeys[parentKeyIdx];
-        btNode.mChildren[btNode.mCurrentKeyNum + 1] = rightSiblingNode.mChildren[0];
-        ++(btNode.mCurrentKeyNum);
+        // Hand each child the part of the run that falls between its two parent keys
+        BatchSplit<K, V> childSplits[] = null;
+        int extraNum = 0;
+        int j = from;
+        while (j < to) {
+            int i = mSearch.search(btNode.mKeys, keyNum, keys[j]);
+            if (i >= 0) {
+                // The key is in this node, only its value changes
+                btNode.mValues[i] = values[j++];
+                continue;
+            }
 
-        // Move the leftmost key of the right sibling and relevant child pointer to the parent node
-        parentNode.mKeys[parentKeyIdx] = rightSiblingNode.mKeys[0];
-        --(rightSiblingNode.mCurrentKeyNum);
-        // Shift all keys and children of the right sibling to its left
-        for (int i = 0; i < rightSiblingNode.mCurrentKeyNum; ++i) {
-            rightSiblingNode.mKeys[i] = rightSiblingNode.mKeys[i + 1];
-            rightSiblingNode.mChildren[i] = rightSiblingNode.mChildren[i + 1];
-        }
-        rightSiblingNode.mChildren[rightSiblingNode.mCurrentKeyNum] = rightSiblingNode.mChildren[rightSiblingNode.mCurrentKeyNum + 1];
-        rightSiblingNode.mChildren[rightSiblingNode.mCurrentKeyNum + 1] = null;
-    }
+            i = -(i + 1);
+            int runStart = j++;
+            if (i < keyNum) {
+                while ((j < to) && (keys[j].compareTo(btNode.mKeys[i]) < 0)) {
+                    ++j;
+                }
+            }
+            else {
+                j = to;
+            }
 
+            BatchSplit<K, V> split = insertRunAtNode(getWritableChild(btNode, i), keys, values, runStart, j);
+            if (split != null) {
+                if (childSplits == null) {
+                    childSplits = new BatchSplit[keyNum + 1];
+                }
+                childSplits[i] = split;
+                extraNum += split.mNodes.length - 1;
+            }
+        }
 
-    //
-    // Do the right rotation
-    //
-    private void performRightRotation(BTNode<K, V> btNode, int nodeIdx, BTNode<K, V> parentNode, BTNode<K, V> leftSiblingNode) {
-        int parentKeyIdx = nodeIdx;
-        if (nodeIdx >= parentNode.mCurrentKeyNum) {
-            // This shouldn't happen
-            parentKeyIdx = nodeIdx - 1;
+        if (childSplits == null) {
+            // The children took the whole run, only the count and summary of the subtree change
+            updateNode(btNode);
+            return null;
         }
 
-        // Shift all keys and children of the deficient node to the right
-        // So that there will be available left slot for insertion
-        btNode.mChildren[btNode.mCurrentKeyNum + 1] = btNode.mChildren[btNode.mCurrentKeyNum];
-        for (int i = btNode.mCurrentKeyNum - 1; i >= 0; --i) {
-            btNode.mKeys[i + 1] = btNode.mKeys[i];
-            btNode.mChildren[i + 1] = btNode.mChildren[i];
+        int mergedNum = keyNum + extraNum;
+        if (mergedNum <= mUpperBoundKeyNum) {
+            // Put the pieces of the split children and the keys between them in place
+            // of the children, moving from right to left so that nothing is overwritten early
+            int keyIdx = mergedNum;
+            int childIdx = mergedNum + 1;
+            for (int i = keyNum; i >= 0; --i) {
+                if (i < keyNum) {
+                    --keyIdx;
+                    btNode.mKeys[keyIdx] = btNode.mKeys[i];
+                    btNode.mValues[keyIdx] = btNode.mValues[i];
+                }
+
+                BatchSplit<K, V> split = childSplits[i];
+                if (split == null) {
+                    btNode.mChildren[--childIdx] = btNode.mChildren[i];
+                    continue;
+                }
+                for (int n = split.mNodes.length - 1; n >= 0; --n) {
+                    btNode.mChildren[--childIdx] = split.mNodes[n];
+                    if (n > 0) {
+                        --keyIdx;
+                        btNode.mKeys[keyIdx] = split.mKeys[n - 1];
+                        btNode.mValues[keyIdx] = split.mValues[n - 1];
+                    }
+                }
+            }
+            btNode.mCurrentKeyNum = mergedNum;
+            updateNode(btNode);
+            return null;
         }
 
-        // Move the parent key and relevant child to the deficient node
-        btNode.mKeys[0] = parentNode.mKeys[parentKeyIdx];
-        btNode.mChildren[0] = leftSiblingNode.mChildren[leftSiblingNode.mCurrentKeyNum];
-        ++(btNode.mCurrentKeyNum);
+        // The node overflows, lay out its new content and split it
+        K mergedKeys[] = (K[]) new Comparable[mergedNum];
+        V mergedValues[] = (V[]) new Object[mergedNum];
+        BTNode<K, V> mergedChildren[] = new BTNode[mergedNum + 1];
+        int keyIdx = 0;
+        int childIdx = 0;
+        for (int i = 0; i <= keyNum; ++i) {
+            BatchSplit<K, V> split = childSplits[i];
+            if (split == null) {
+                mergedChildren[childIdx++] = btNode.mChildren[i];
+            }
+            else {
+                int sepNum = split.mNodes.length - 1;
+                System.arraycopy(split.mNodes, 0, mergedChildren, childIdx, sepNum + 1);
+                System.arraycopy(split.mKeys, 0, mergedKeys, keyIdx, sepNum);
+                System.arraycopy(split.mValues, 0, mergedValues, keyIdx, sepNum);
+                childIdx += sepNum + 1;
+                keyIdx += sepNum;
+            }
 
-        // Move the leftmost key of the right sibling and relevant child pointer to the parent node
-        parentNode.mKeys[parentKeyIdx] = leftSiblingNode.mKeys[leftSiblingNode.mCurrentKeyNum - 1];
-        leftSiblingNode.mChildren[leftSiblingNode.mCurrentKeyNum] = null;
-        --(leftSiblingNode.mCurrentKeyNum);
+            if (i < keyNum) {
+                mergedKeys[keyIdx] = btNode.mKeys[i];
+                mergedValues[keyIdx++] = btNode.mValues[i];
+            }
+        }
+        return splitBatchNode(btNode, mergedKeys, mergedValues, mergedChildren, mergedNum);
     }
 
 
     //
-    // Do a left sibling merge
-    // Return true if it should continue further
-    // Return false if it is done
+    // Split an overflowing sequence of keys (and children) into the fewest nodes that can hold it,
+    // sharing the keys evenly so that each node holds between the lower and upper bounds
+    // The first piece reuses the given node when there is one
     //
-    private boolean performMergeWithLeftSibling(BTNode<K, V> btNode, int nodeIdx, BTNode<K, V> parentNode, BTNode<K, V> leftSiblingNode) {
-        if (nodeIdx == parentNode.mCurrentKeyNum) {
-            // For the case that the node index can be the right most
-            nodeIdx = nodeIdx - 1;
-        }
+    private BatchSplit<K, V> splitBatchNode(BTNode<K, V> firstNode, K keys[], V values[], BTNode<K, V> children[], int keyNum) {
+        boolean isLeaf = (children == null);
+        int nodeNum = (keyNum + 2 * mMinDegree) / (2 * mMinDegree);
+        int nodeKeyNum = keyNum - (nodeNum - 1);
+        BatchSplit<K, V> split = new BatchSplit<K, V>(nodeNum);
+
+        int pos = 0;
+        for (int n = 0; n < nodeNum; ++n) {
+            int pieceKeyNum = nodeKeyNum / nodeNum + ((n < nodeKeyNum % nodeNum) ? 1 : 0);
+            BTNode<K, V> btNode;
+            if ((n == 0) && (firstNode != null)) {
+                btNode = firstNode;
+                int oldKeyNum = Math.max(btNode.mCurrentKeyNum, pieceKeyNum);
+                Arrays.fill(btNode.mKeys, pieceKeyNum, oldKeyNum, null);
+                Arrays.fill(btNode.mValues, pieceKeyNum, oldKeyNum, null);
+                if (!isLeaf) {
+                    Arrays.fill(btNode.mChildren, pieceKeyNum + 1, oldKeyNum + 1, null);
+                }
+            }
+            else {
+                btNode = createNode();
+                btNode.mIsLeaf = isLeaf;
+            }
 
-        // Here we need to determine the parent node's index based on child node's index (nodeIdx)
-        if (nodeIdx > 0) {
-            if (leftSiblingNode.mKeys[leftSiblingNode.mCurrentKeyNum - 1].mKey.compareTo(parentNode.mKeys[nodeIdx - 1].mKey) < 0) {
-                nodeIdx = nodeIdx - 1;
+            System.arraycopy(keys, pos, btNode.mKeys, 0, pieceKeyNum);
+            System.arraycopy(values, pos, btNode.mValues, 0, pieceKeyNum);
+            if (!isLeaf) {
+                System.arraycopy(children, pos, btNode.mChildren, 0, pieceKeyNum + 1);
+            }
+            btNode.mCurrentKeyNum = pieceKeyNum;
+            updateNode(btNode);
+            split.mNodes[n] = btNode;
+            pos += pieceKeyNum;
+
+            if (n < nodeNum - 1) {
+                split.mKeys[n] = keys[pos];
+                split.mValues[n] = values[pos];
+                ++pos;
             }
         }
+        return split;
+    }
 
-        // Copy the parent key to the node (on the left)
-        leftSiblingNode.mKeys[leftSiblingNode.mCurrentKeyNum] = parentNode.mKeys[nodeIdx];
-        ++(leftSiblingNode.mCurrentKeyNum);
 
-        // Copy keys and children of the node to the left sibling node
-        for (int i = 0; i < btNode.mCurrentKeyNum; ++i) {
-            leftSiblingNode.mKeys[leftSiblingNode.mCurrentKeyNum + i] = btNode.mKeys[i];
-            leftSiblingNode.mChildren[leftSiblingNode.mCurrentKeyNum + i] = btNode.mChildren[i];
-            btNode.mKeys[i] = null;
-        }
-        leftSiblingNode.mCurrentKeyNum += btNode.mCurrentKeyNum;
-        leftSiblingNode.mChildren[leftSiblingNode.mCurrentKeyNum] = btNode.mChildren[btNode.mCurrentKeyNum];
-        btNode.mCurrentKeyNum = 0;  // Abandon the node
+    //
+    // Load the entries of an empty tree from an iterator sorted in ascending key order,
+    // with full nodes (use stream.iterator() to load from a stream)
+    //
+    public BTree<K, V> bulkLoad(Iterator<? extends Map.Entry<K, V>> entries) {
+        return bulkLoad(entries, DEFAULT_FILL_FACTOR);
+    }
 
-        // Shift all relevant keys and children of the parent node to the left
-        // since it lost one of its keys and children (by moving it to the child node)
-        int i;
-        for (i = nodeIdx; i < parentNode.mCurrentKeyNum - 1; ++i) {
-            parentNode.mKeys[i] = parentNode.mKeys[i + 1];
-            parentNode.mChildren[i + 1] = parentNode.mChildren[i + 2];
+    //
+    // Load the entries of an empty tree from an iterator sorted in ascending key order
+    // Each node is filled with fillFactor * (2 * minDegree - 1) keys, but never less than
+    // the minimum, so that later inserts can be taken without splitting at once
+    // The nodes are built bottom-up from left to right in linear time: each level keeps its
+    // rightmost node open, and when it is filled the next key goes up to the level above
+    //
+    public BTree<K, V> bulkLoad(Iterator<? extends Map.Entry<K, V>> entries, float fillFactor) {
+        checkNotSnapshot();
+        if (size() > 0) {
+            throw new IllegalStateException("The tree must be empty before a bulk load");
+        }
+        if (!((fillFactor > 0.0f) && (fillFactor <= 1.0f))) {
+            throw new IllegalArgumentException("The fill factor must be in (0, 1]: " + fillFactor);
         }
-        parentNode.mKeys[i] = null;
-        parentNode.mChildren[parentNode.mCurrentKeyNum] = null;
-        --(parentNode.mCurrentKeyNum);
 
-        // Make sure the parent point to the correct child after the merge
-        parentNode.mChildren[nodeIdx] = leftSiblingNode;
+        int fillKeyNum = Math.max(mLowerBoundKeyNum, Math.min(mUpperBoundKeyNum, Math.round(fillFactor * mUpperBoundKeyNum)));
+        BTNode<K, V> rightNodes[] = new BTNode[8]; // rightNodes[0] is the open leaf, the last one is the root
+        int height = 0;
+        K lastKey = null;
 
-        if ((parentNode == mRoot) && (parentNode.mCurrentKeyNum == 0)) {
-            // Root node is updated.  It should be done
-            mRoot = leftSiblingNode;
-            return false;
+        ++mModCount;
+        mRoot = null;
+        while (entries.hasNext()) {
+            Map.Entry<K, V> entry = entries.next();
+            K key = entry.getKey();
+            if ((lastKey != null) && (lastKey.compareTo(key) >= 0)) {
+                throw new IllegalArgumentException("The keys must be in strictly ascending order: " + key + " after " + lastKey);
+            }
+            lastKey = key;
+
+            if (height == 0) {
+                rightNodes[height++] = createNode();
+            }
+
+            BTNode<K, V> leafNode = rightNodes[0];
+            if (leafNode.mCurrentKeyNum < fillKeyNum) {
+                leafNode.mKeys[leafNode.mCurrentKeyNum] = key;
+                leafNode.mValues[leafNode.mCurrentKeyNum] = entry.getValue();
+                ++(leafNode.mCurrentKeyNum);
+                continue;
+            }
+
+            // The leaf is filled, the key goes up as separator in front of a new leaf
+            // and goes on up for as long as the levels above are filled too
+            BTNode<K, V> rightNode = createNode();
+            for (int level = 0; ; ++level) {
+                if (level + 1 == height) {
+                    if (height == rightNodes.length) {
+                        rightNodes = Arrays.copyOf(rightNodes, height * 2);
+                    }
+                    BTNode<K, V> btNode = createNode();
+                    btNode.mIsLeaf = false;
+                    btNode.mChildren[0] = rightNodes[level];
+                    rightNodes[height++] = btNode;
+                }
+                rightNodes[level] = rightNode;
+
+                BTNode<K, V> parentNode = rightNodes[level + 1];
+                int keyNum = parentNode.mCurrentKeyNum;
+                if (keyNum < fillKeyNum) {
+                    parentNode.mKeys[keyNum] = key;
+                    parentNode.mValues[keyNum] = entry.getValue();
+                    parentNode.mChildren[keyNum + 1] = rightNode;
+                    ++(parentNode.mCurrentKeyNum);
+                    break;
+                }
+
+                rightNode = createNode();
+                rightNode.mIsLeaf = false;
+                rightNode.mChildren[0] = rightNodes[level];
+            }
         }
 
-        return true;
+        if (height > 0) {
+            mRoot = rightNodes[height - 1];
+            fixRightEdge();
+            mRoot = updateAllNodes(mRoot);
+        }
+        return this;
     }
 
-
     //
-    // Do the right sibling merge
-    // Return true if it should continue further
-    // Return false if it is done
+    // Load the entries of an empty tree from unsorted input on the common fork-join pool
     //
-    private boolean performMergeWithRightSibling(BTNode<K, V> btNode, int nodeIdx, BTNode<K, V> parentNode, BTNode<K, V> rightSiblingNode) {
-        // Copy the parent key to right-most slot of the node
-        btNode.mKeys[btNode.mCurrentKeyNum] = parentNode.mKeys[nodeIdx];
-        ++(btNode.mCurrentKeyNum);
+    public BTree<K, V> parallelBulkLoad(Collection<? extends Map.Entry<K, V>> entries) {
+        return parallelBulkLoad(entries, ForkJoinPool.commonPool());
+    }
 
-        // Copy keys and children of the right sibling to the node
-        for (int i = 0; i < rightSiblingNode.mCurrentKeyNum; ++i) {
-            btNode.mKeys[btNode.mCurrentKeyNum + i] = rightSiblingNode.mKeys[i];
-            btNode.mChildren[btNode.mCurrentKeyNum + i] = rightSiblingNode.mChildren[i];
+    //
+    // Load the entries of an empty tree from unsorted input with the threads of the pool
+    // If a key appears several times, its last value is kept
+    // The entries are sorted by a parallel sort, then every subtree is built by its own fork-join task:
+    // a node shares the keys of its subtree evenly between the fewest children that can hold them,
+    // so the shape of the tree is known before any node is made and the subtrees are built independently
+    // An aggregator set on the tree is called from the threads of the pool
+    //
+    public BTree<K, V> parallelBulkLoad(Collection<? extends Map.Entry<K, V>> entries, ForkJoinPool pool) {
+        checkNotSnapshot();
+        if (size() > 0) {
+            throw new IllegalStateException("The tree must be empty before a bulk load");
         }
-        btNode.mCurrentKeyNum += rightSiblingNode.mCurrentKeyNum;
-        btNode.mChildren[btNode.mCurrentKeyNum] = rightSiblingNode.mChildren[rightSiblingNode.mCurrentKeyNum];
-        rightSiblingNode.mCurrentKeyNum = 0;  // Abandon the sibling node
 
-        // Shift all relevant keys and children of the parent node to the left
-        // since it lost one of its keys and children (by moving it to the child node)
-        int i;
-        for (i = nodeIdx; i < parentNode.mCurrentKeyNum - 1; ++i) {
-            parentNode.mKeys[i] = parentNode.mKeys[i + 1];
-            parentNode.mChildren[i + 1] = parentNode.mChildren[i + 2];
-        }
-        parentNode.mKeys[i] = null;
-        parentNode.mChildren[parentNode.mCurrentKeyNum] = null;
-        --(parentNode.mCurrentKeyNum);
+        final Map.Entry<K, V> sortedEntries[] = entries.toArray(new Map.Entry[entries.size()]);
+        BTNode<K, V> rootNode = pool.invoke(new RecursiveTask<BTNode<K, V>>() {
+            @Override
+            protected BTNode<K, V> compute() {
+                // Sorted from a thread of the pool, the sort forks its tasks into it
+                Arrays.parallelSort(sortedEntries, createEntryComparator());
+                K keys[] = (K[]) new Comparable[sortedEntries.length];
+                V values[] = (V[]) new Object[sortedEntries.length];
+                int keyNum = mergeSortedEntries(sortedEntries, keys, values);
+                if (keyNum == 0) {
+                    return null;
+                }
 
-        // Make sure the parent point to the correct child after the merge
-        parentNode.mChildren[nodeIdx] = btNode;
+                int height = 1;
+                while (getMaxSubtreeKeyNum(height) < keyNum) {
+                    ++height;
+                }
+                return new SubtreeBuilder(keys, values, 0, keyNum, height, true).compute();
+            }
+        });
 
-        if ((parentNode == mRoot) && (parentNode.mCurrentKeyNum == 0)) {
-            // Root node is updated.  It should be done
-            mRoot = btNode;
-            return false;
-        }
+        ++mModCount;
+        mRoot = rootNode;
+        return this;
+    }
 
-        return true;
+    //
+    // Maximum number of keys of a subtree of the given height, 1 for a leaf
+    //
+    private long getMaxSubtreeKeyNum(int height) {
+        long keyNum = mUpperBoundKeyNum;
+        for (int h = 1; h < height; ++h) {
+            keyNum = (keyNum + 1) * (2 * mMinDegree) - 1;
+        }
+        return keyNum;
     }
 
+    //
+    // After a bulk load only the rightmost node of each level can hold too few keys
+    // Take the topmost of them and balance it with its left sibling, until there is none left
+    //
+    private void fixRightEdge() {
+        while (true) {
+            while (!mRoot.mIsLeaf && (mRoot.mCurrentKeyNum == 0)) {
+                mRoot = mRoot.mChildren[0];
+            }
+
+            BTNode<K, V> parentNode = mRoot;
+            BTNode<K, V> btNode = null;
+            while (!parentNode.mIsLeaf) {
+                btNode = parentNode.mChildren[parentNode.mCurrentKeyNum];
+                if (btNode.mCurrentKeyNum < mLowerBoundKeyNum) {
+                    break;
+                }
+                parentNode = btNode;
+            }
+            if (parentNode.mIsLeaf) {
+                return;
+            }
 
-    //
-    // Search the specified key within a node
-    // Return index of the keys if it finds
-    // Return -1 otherwise
-    //
-    private int searchKey(BTNode<K, V> btNode, K key) {
-        for (int i = 0; i < btNode.mCurrentKeyNum; ++i) {
-            if (key.compareTo(btNode.mKeys[i].mKey) == 0) {
-                return i;
+            int keyIdx = parentNode.mCurrentKeyNum - 1;
+            BTNode<K, V> leftSiblingNode = parentNode.mChildren[keyIdx];
+            int leftKeyNum = leftSiblingNode.mCurrentKeyNum;
+            int keyNum = btNode.mCurrentKeyNum;
+
+            if (leftKeyNum + keyNum + 1 > mUpperBoundKeyNum) {
+                // Enough keys for two nodes: share them out, passing through the separator
+                int moveNum = (leftKeyNum + keyNum) / 2 - keyNum;
+                int fromIdx = leftKeyNum - moveNum + 1;
+                System.arraycopy(btNode.mKeys, 0, btNode.mKeys, moveNum, keyNum);
+                System.arraycopy(btNode.mValues, 0, btNode.mValues, moveNum, keyNum);
+                btNode.mKeys[moveNum - 1] = parentNode.mKeys[keyIdx];
+                btNode.mValues[moveNum - 1] = parentNode.mValues[keyIdx];
+                System.arraycopy(leftSiblingNode.mKeys, fromIdx, btNode.mKeys, 0, moveNum - 1);
+                System.arraycopy(leftSiblingNode.mValues, fromIdx, btNode.mValues, 0, moveNum - 1);
+                if (!btNode.mIsLeaf) {
+                    System.arraycopy(btNode.mChildren, 0, btNode.mChildren, moveNum, keyNum + 1);
+                    System.arraycopy(leftSiblingNode.mChildren, fromIdx, btNode.mChildren, 0, moveNum);
+                    Arrays.fill(leftSiblingNode.mChildren, fromIdx, leftKeyNum + 1, null);
+                }
+                parentNode.mKeys[keyIdx] = leftSiblingNode.mKeys[fromIdx - 1];
+                parentNode.mValues[keyIdx] = leftSiblingNode.mValues[fromIdx - 1];
+                Arrays.fill(leftSiblingNode.mKeys, fromIdx - 1, leftKeyNum, null);
+                Arrays.fill(leftSiblingNode.mValues, fromIdx - 1, leftKeyNum, null);
+                leftSiblingNode.mCurrentKeyNum = leftKeyNum - moveNum;
+                btNode.mCurrentKeyNum = keyNum + moveNum;
             }
-            else if (key.compareTo(btNode.mKeys[i].mKey) < 0) {
-                return -1;
+            else {
+                // Merge the node into its left sibling, the parent may then need balancing in turn
+                leftSiblingNode.mKeys[leftKeyNum] = parentNode.mKeys[keyIdx];
+                leftSiblingNode.mValues[leftKeyNum] = parentNode.mValues[keyIdx];
+                System.arraycopy(btNode.mKeys, 0, leftSiblingNode.mKeys, leftKeyNum + 1, keyNum);
+                System.arraycopy(btNode.mValues, 0, leftSiblingNode.mValues, leftKeyNum + 1, keyNum);
+                if (!btNode.mIsLeaf) {
+                    System.arraycopy(btNode.mChildren, 0, leftSiblingNode.mChildren, leftKeyNum + 1, keyNum + 1);
+                }
+                leftSiblingNode.mCurrentKeyNum = leftKeyNum + keyNum + 1;
+                parentNode.mKeys[keyIdx] = null;
+                parentNode.mValues[keyIdx] = null;
+                parentNode.mChildren[keyIdx + 1] = null;
+                --(parentNode.mCurrentKeyNum);
             }
         }
-
-        return -1;
     }
 
 
@@ -489,7 +1241,7 @@ public class BTree<K extends Comparable, V>
     // List all the items in the tree
     //
     public void list(BTIteratorIF<K, V> iterImpl) {
-        if (mSize < 1) {
+        if (size() < 1) {
             return;
         }
 
@@ -509,23 +1261,27 @@ public class BTree<K extends Comparable, V>
     private boolean listEntriesInOrder(BTNode<K, V> treeNode, BTIteratorIF<K, V> iterImpl) {
         if ((treeNode == null) ||
             (treeNode.mCurrentKeyNum == 0)) {
-            return false;
+            return true;
         }
 
         boolean bStatus;
-        BTKeyValue<K, V> keyVal;
         int currentKeyNum = treeNode.mCurrentKeyNum;
         for (int i = 0; i < currentKeyNum; ++i) {
-            listEntriesInOrder(BTNode.getLeftChildAtIndex(treeNode, i), iterImpl);
+            bStatus = listEntriesInOrder(BTNode.getLeftChildAtIndex(treeNode, i), iterImpl);
+            if (!bStatus) {
+                return false;
+            }
 
-            keyVal = treeNode.mKeys[i];
-            bStatus = iterImpl.item(keyVal.mKey, keyVal.mValue);
+            bStatus = iterImpl.item(treeNode.mKeys[i], treeNode.mValues[i]);
             if (!bStatus) {
                 return false;
             }
 
             if (i == currentKeyNum - 1) {
-                listEntriesInOrder(BTNode.getRightChildAtIndex(treeNode, i), iterImpl);
+                bStatus = listEntriesInOrder(BTNode.getRightChildAtIndex(treeNode, i), iterImpl);
+                if (!bStatus) {
+                    return false;
+                }
             }
         }
 
@@ -534,437 +1290,697 @@ public class BTree<K extends Comparable, V>
 
 
     //
-    // Supprimer une cl dans l'arbre
-    // Retourner la valeur si il existe et le supprimer
-    // Retourner null si la cl n'existe pas
+    // List the items whose keys lie between fromKey and toKey, in ascending order
+    // A null bound leaves that side of the range open
+    // Only the subtrees that overlap the range are visited
     //
-    public V delete(K key) {
-        mIntermediateInternalNode = null;
-        BTKeyValue<K, V> keyVal = deleteKey(null, mRoot, key, 0);
-        if (keyVal == null) {
-            return null;
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        if ((size() < 1) || (iterImpl == null)) {
+            return;
         }
-        --mSize;
-        return keyVal.mValue;
+
+        listRangeInOrder(mRoot, fromKey, fromInclusive, toKey, toInclusive, iterImpl);
     }
 
 
     //
-    // Supprimer une cl dans l'arbre d'un noeud
+    // Recursively list out the keys of the range found in the subtree
+    // Return true if it should continue listing out further
+    // Return false if the upper bound is passed or the iterator asked to stop
     //
-    private BTKeyValue<K, V> deleteKey(BTNode<K, V> parentNode, BTNode<K, V> btNode, K key, int nodeIdx) {
-        int i;
-        int nIdx;
-        BTKeyValue<K, V> retVal;
-
-        if (btNode == null) {
-            // L'arbre est vide
-            return null;
+    private boolean listRangeInOrder(BTNode<K, V> treeNode, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        int currentKeyNum = treeNode.mCurrentKeyNum;
+        int i = 0;
+        boolean bVisitChild = !treeNode.mIsLeaf;
+        if (fromKey != null) {
+            // Skip the keys and the subtrees below the lower bound
+            i = mSearch.search(treeNode.mKeys, currentKeyNum, fromKey);
+            if (i < 0) {
+                i = -(i + 1);
+            }
+            else if (fromInclusive) {
+                // The subtree left of the bound holds lower keys only
+                bVisitChild = false;
+            }
+            else {
+                ++i;
+            }
         }
 
-        if (btNode.mIsLeaf) {
-            nIdx = searchKey(btNode, key);
-            if (nIdx < 0) {
-                // Impossible de trouver la cl spcifie
-                return null;
+        for (; ; ++i) {
+            if (bVisitChild) {
+                if (!listRangeInOrder(treeNode.mChildren[i], fromKey, fromInclusive, toKey, toInclusive, iterImpl)) {
+                    return false;
+                }
             }
+            // Only the first subtree visited can hold keys below the lower bound
+            fromKey = null;
+            bVisitChild = !treeNode.mIsLeaf;
 
-            retVal = btNode.mKeys[nIdx];
+            if (i == currentKeyNum) {
+                return true;
+            }
 
-            if ((btNode.mCurrentKeyNum > BTNode.LOWER_BOUND_KEYNUM) || (parentNode == null)) {
-                // Retirer la cl  partir du noeud courant
-                for (i = nIdx; i < btNode.mCurrentKeyNum - 1; ++i) {
-                    btNode.mKeys[i] = btNode.mKeys[i + 1];
+            if (toKey != null) {
+                int cmp = treeNode.mKeys[i].compareTo(toKey);
+                if ((cmp > 0) || ((cmp == 0) && !toInclusive)) {
+                    return false;
                 }
-                btNode.mKeys[i] = null;
-                --(btNode.mCurrentKeyNum);
+            }
 
-                if (btNode.mCurrentKeyNum == 0) {
-                    // btNode est maintenant le noeud racine
-                    mRoot = null;
-                }
+            if (!iterImpl.item(treeNode.mKeys[i], treeNode.mValues[i])) {
+                return false;
+            }
+        }
+    }
+
+
+    //
+    // Get the number of keys lower than the key, which is the position of the key
+    // in ascending order, or the position it would be inserted at
+    //
+    public long rank(K key) {
+        return countLowerKeys(key, false);
+    }
+
+
+    //
+    // Get the entry at the given position in ascending key order, starting from 0
+    // The subtree counts tell which child holds the position, so a single descent is made
+    //
+    public BTKeyValue<K, V> select(long index) {
+        if ((index < 0) || (index >= size())) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+        }
 
-                return retVal;
+        BTNode<K, V> currentNode = mRoot;
+        while (!currentNode.mIsLeaf) {
+            // Skip the children, and the keys after them, that come before the position
+            int i = 0;
+            long childKeyNum = currentNode.mChildren[0].mSubtreeKeyNum;
+            while (index >= childKeyNum) {
+                index -= childKeyNum;
+                if (index == 0) {
+                    return new BTKeyValue<K, V>(currentNode.mKeys[i], currentNode.mValues[i]);
+                }
+                --index;
+                childKeyNum = currentNode.mChildren[++i].mSubtreeKeyNum;
             }
+            currentNode = currentNode.mChildren[i];
+        }
+        return new BTKeyValue<K, V>(currentNode.mKeys[(int) index], currentNode.mValues[(int) index]);
+    }
+
+
+    //
+    // Get the number of keys between fromKey and toKey, with the bounds of range()
+    // A null bound leaves that side of the range open
+    //
+    public long countBetween(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        long highKeyNum = (toKey == null) ? size() : countLowerKeys(toKey, toInclusive);
+        long lowKeyNum = (fromKey == null) ? 0L : countLowerKeys(fromKey, !fromInclusive);
+        return Math.max(0L, highKeyNum - lowKeyNum);
+    }
+
 
-            // Trouver le frre gauche
-            BTNode<K, V> rightSibling;
-            BTNode<K, V> leftSibling = BTNode.getLeftSiblingAtIndex(parentNode, nodeIdx);
-            if ((leftSibling != null) && (leftSibling.mCurrentKeyNum > BTNode.LOWER_BOUND_KEYNUM)) {
-                // Retirer la cl et emprunter une cl  partir du frre gauche
-                moveLeftLeafSiblingKeyWithKeyRemoval(btNode, nodeIdx, nIdx, parentNode, leftSibling);
+    //
+    // Count the keys lower than the key, or equal to it if inclusive
+    // On the way down, the keys left of the search position and their subtrees are all lower
+    //
+    private long countLowerKeys(K key, boolean inclusive) {
+        long keyNum = 0L;
+        BTNode<K, V> currentNode = mRoot;
+        while (currentNode != null) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            boolean isFound = (i >= 0);
+            if (!isFound) {
+                i = -(i + 1);
             }
-            else {
-                rightSibling = BTNode.getRightSiblingAtIndex(parentNode, nodeIdx);
-                if ((rightSibling != null) && (rightSibling.mCurrentKeyNum > BTNode.LOWER_BOUND_KEYNUM)) {
-                //Retirer la cl et emprunter une cl  partir du frre droit
-                moveRightLeafSiblingKeyWithKeyRemoval(btNode, nodeIdx, nIdx, parentNode, rightSibling);
-                }
-                else {
-                    // Fusionner
-                    boolean isRebalanceNeeded = false;
-                    boolean bStatus;
-                    if (leftSibling != null) {
-                        // Fusionner avec le frre gauche
-                        bStatus = doLeafSiblingMergeWithKeyRemoval(btNode, nodeIdx, nIdx, parentNode, leftSibling, false);
-                        if (!bStatus) {
-                            isRebalanceNeeded = false;
-                        }
-                        else if (parentNode.mCurrentKeyNum < BTNode.LOWER_BOUND_KEYNUM) {
-                            // On doit Rquilibrer l'arbre
-                            isRebalanceNeeded = true;
-                        }
-                    }
-                    else {
-                        // Fusionner avec le frre droit
-                        bStatus = doLeafSiblingMergeWithKeyRemoval(btNode, nodeIdx, nIdx, parentNode, rightSibling, true);
-                        if (!bStatus) {
-                            isRebalanceNeeded = false;
-                        }
-                        else if (parentNode.mCurrentKeyNum < BTNode.LOWER_BOUND_KEYNUM) {
-                            // On doit Rquilibrer l'arbre
-                            isRebalanceNeeded = true;
-                        }
-                    }
 
-                    if (isRebalanceNeeded && (mRoot != null)) {
-                        rebalanceTree(mRoot, parentNode, parentNode.mKeys[0].mKey);
-                    }
+            keyNum += i;
+            if (!currentNode.mIsLeaf) {
+                // The subtree left of a key found holds lower keys too
+                int childNum = isFound ? i + 1 : i;
+                for (int j = 0; j < childNum; ++j) {
+                    keyNum += currentNode.mChildren[j].mSubtreeKeyNum;
                 }
             }
 
-            return retVal;
+            if (isFound) {
+                return inclusive ? keyNum + 1 : keyNum;
+            }
+            currentNode = currentNode.mIsLeaf ? null : currentNode.mChildren[i];
         }
-        
-        // A cette position le noeud est interne
-        nIdx = searchKey(btNode, key);
-        if (nIdx >= 0) {
-            // On a trouv la cl du noeud interne
+        return keyNum;
+    }
 
-            // Triuver son prdcesseur
-            mIntermediateInternalNode = btNode;
-            mNodeIdx = nIdx;
-            BTNode<K, V> predecessorNode =  findPredecessor(btNode, nIdx);
-            BTKeyValue<K, V> predecessorKey = predecessorNode.mKeys[predecessorNode.mCurrentKeyNum - 1];
 
-            // Echanger les donnes du cl supprime avec son prdcesseur
-            BTKeyValue<K, V> deletedKey = btNode.mKeys[nIdx];
-            btNode.mKeys[nIdx] = predecessorKey;
-            predecessorNode.mKeys[predecessorNode.mCurrentKeyNum - 1] = deletedKey;
+    //
+    // Summarize the entries whose keys lie between fromKey and toKey with the aggregator of the tree,
+    // with the bounds of range(). Return null if there is no entry in the range
+    // Only the nodes along the paths to the two bounds are visited, the subtrees between them
+    // give their kept summaries
+    //
+    public <A> A aggregate(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if (mAggregator == null) {
+            throw new IllegalStateException("The tree has no aggregator");
+        }
+        if ((mRoot == null) || ((fromKey != null) && (toKey != null) && (fromKey.compareTo(toKey) > 0))) {
+            return null;
+        }
+        return (A) aggregateRange(mRoot, fromKey, fromInclusive, toKey, toInclusive);
+    }
+
 
-            return deleteKey(mIntermediateInternalNode, predecessorNode, deletedKey.mKey, mNodeIdx);
+    //
+    // Recursively summarize the entries of the range found in the subtree
+    // The bounds go down into the children that hold them, the children between them are taken whole
+    //
+    private Object aggregateRange(BTNode<K, V> treeNode, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        if ((fromKey == null) && (toKey == null)) {
+            return treeNode.mAggregate;
         }
 
-        // Trouver sous-arbre du fils qui contient la cl
-        i = 0;
-        BTKeyValue<K, V> currentKey = btNode.mKeys[0];
-        while ((i < btNode.mCurrentKeyNum) && (key.compareTo(currentKey.mKey) > 0)) {
-            ++i;
-            if (i < btNode.mCurrentKeyNum) {
-                currentKey = btNode.mKeys[i];
+        // Keys [firstKeyIdx, endKeyIdx) and children [firstChildIdx, lastChildIdx] are in the range,
+        // the children at the ends may only be partly in it
+        int keyNum = treeNode.mCurrentKeyNum;
+        int firstKeyIdx = 0, firstChildIdx = 0;
+        boolean isFirstChildPartial = false;
+        if (fromKey != null) {
+            int i = mSearch.search(treeNode.mKeys, keyNum, fromKey);
+            if (i >= 0) {
+                firstKeyIdx = fromInclusive ? i : i + 1;
+                firstChildIdx = i + 1;
             }
             else {
-                --i;
-                break;
+                firstKeyIdx = firstChildIdx = -(i + 1);
+                isFirstChildPartial = true;
             }
         }
 
-        BTNode<K, V> childNode;
-        if (key.compareTo(currentKey.mKey) > 0) {
-            childNode = BTNode.getRightChildAtIndex(btNode, i);
-            if (childNode.mKeys[0].mKey.compareTo(btNode.mKeys[btNode.mCurrentKeyNum - 1].mKey) > 0) {
-                // Le cot le plus  droit du noeud
-                i = i + 1;
+        int endKeyIdx = keyNum, lastChildIdx = keyNum;
+        boolean isLastChildPartial = false;
+        if (toKey != null) {
+            int i = mSearch.search(treeNode.mKeys, keyNum, toKey);
+            if (i >= 0) {
+                endKeyIdx = toInclusive ? i + 1 : i;
+                lastChildIdx = i;
+            }
+            else {
+                endKeyIdx = lastChildIdx = -(i + 1);
+                isLastChildPartial = true;
             }
         }
-        else {
-            childNode = BTNode.getLeftChildAtIndex(btNode, i);
+
+        if (treeNode.mIsLeaf) {
+            firstChildIdx = keyNum + 1;
+        }
+        else if (isFirstChildPartial && isLastChildPartial && (firstChildIdx == lastChildIdx)) {
+            // Both bounds are in the same child, nothing of this node is in the range
+            return aggregateRange(treeNode.mChildren[firstChildIdx], fromKey, fromInclusive, toKey, toInclusive);
         }
 
-        return deleteKey(btNode, childNode, key, i);
+        Object aggregate = null;
+        for (int i = Math.min(firstKeyIdx, firstChildIdx); i <= keyNum; ++i) {
+            if ((i >= firstChildIdx) && (i <= lastChildIdx)) {
+                Object childAggregate;
+                if ((i == firstChildIdx) && isFirstChildPartial) {
+                    childAggregate = aggregateRange(treeNode.mChildren[i], fromKey, fromInclusive, null, false);
+                }
+                else if ((i == lastChildIdx) && isLastChildPartial) {
+                    childAggregate = aggregateRange(treeNode.mChildren[i], null, false, toKey, toInclusive);
+                }
+                else {
+                    childAggregate = treeNode.mChildren[i].mAggregate;
+                }
+                aggregate = combineSummaries(aggregate, childAggregate);
+            }
+            if ((i >= firstKeyIdx) && (i < endKeyIdx)) {
+                aggregate = combineSummaries(aggregate, mAggregator.summarize(treeNode.mKeys[i], treeNode.mValues[i]));
+            }
+            else if ((i >= endKeyIdx) && (i >= lastChildIdx)) {
+                break;
+            }
+        }
+        return aggregate;
     }
 
 
     //
-    // Remove the specified key and move a key from the right leaf sibling to the node
-    // Note: The node and its sibling must be leaves
+    // Supprimer une cl dans l'arbre
+    // Retourner la valeur si il existe et le supprimer
+    // Retourner null si la cl n'existe pas
     //
-    private void moveRightLeafSiblingKeyWithKeyRemoval(BTNode<K, V> btNode,
-                                                       int nodeIdx,
-                                                       int keyIdx,
-                                                       BTNode<K, V> parentNode,
-                                                       BTNode<K, V> rightSiblingNode) {
-        // Shift to the right where the key is deleted
-        for (int i = keyIdx; i < btNode.mCurrentKeyNum - 1; ++i) {
-            btNode.mKeys[i] = btNode.mKeys[i + 1];
+    public V delete(K key) {
+        checkNotSnapshot();
+        if (mRoot == null) {
+            return null;
         }
 
-        btNode.mKeys[btNode.mCurrentKeyNum - 1] = parentNode.mKeys[nodeIdx];
-        parentNode.mKeys[nodeIdx] = rightSiblingNode.mKeys[0];
+        ++mModCount;
+        mRoot = getWritableNode(mRoot);
+        BTNode<K, V> pathNodes[] = new BTNode[getHeight()];
+        return deleteAtNode(mRoot, key, pathNodes, 0);
+    }
+
+
+    //
+    // Delete the key from the subtree of the node, which must be writable and able to spare a key
+    // The first pathNodeNum nodes of the path are the writable nodes above it, the path holds one node
+    // per level and is updated from the leaf up once the delete is done
+    // Return the value if the key existed
+    //
+    private V deleteAtNode(BTNode<K, V> btNode, K key, BTNode<K, V> pathNodes[], int pathNodeNum) {
+        // Single pass from the node: each node entered on the way down is first given
+        // a spare key, so that removing a key never leaves a node below the minimum
+        V retVal = null;
+        boolean isFound = false;
+        BTNode<K, V> currentNode = btNode;
+        while (true) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            pathNodes[pathNodeNum++] = currentNode;
+            if (currentNode.mIsLeaf) {
+                if (i >= 0) {
+                    retVal = currentNode.mValues[i];
+                    removeKeyAt(currentNode, i);
+                    isFound = true;
+                }
+                break;
+            }
+
+            if (i >= 0) {
+                // The key is in an internal node, replace it with its predecessor or successor
+                // taken out of a child that can spare a key, or merge the two children around it
+                BTNode<K, V> leftChildNode = currentNode.mChildren[i];
+                BTNode<K, V> rightChildNode = currentNode.mChildren[i + 1];
+                if (leftChildNode.mCurrentKeyNum > mLowerBoundKeyNum) {
+                    retVal = currentNode.mValues[i];
+                    pathNodeNum = deleteLastKey(getWritableChild(currentNode, i), currentNode, i, pathNodes, pathNodeNum);
+                    isFound = true;
+                    break;
+                }
+                if (rightChildNode.mCurrentKeyNum > mLowerBoundKeyNum) {
+                    retVal = currentNode.mValues[i];
+                    pathNodeNum = deleteFirstKey(getWritableChild(currentNode, i + 1), currentNode, i, pathNodes, pathNodeNum);
+                    isFound = true;
+                    break;
+                }
+                mergeChildren(currentNode, i);
+                currentNode = currentNode.mChildren[i];
+                continue;
+            }
 
-        for (int i = 0; i < rightSiblingNode.mCurrentKeyNum - 1; ++i) {
-            rightSiblingNode.mKeys[i] = rightSiblingNode.mKeys[i + 1];
+            currentNode = ensureChildCanSpareKey(currentNode, -(i + 1));
         }
 
-        --(rightSiblingNode.mCurrentKeyNum);
+        // The rotations and merges on the way down keep the count of each node passed,
+        // they only lose the key if it was found, while their summaries are redone from the leaf up
+        while (pathNodeNum > 0) {
+            BTNode<K, V> pathNode = pathNodes[--pathNodeNum];
+            if (isFound) {
+                --(pathNode.mSubtreeKeyNum);
+            }
+            if (mAggregator != null) {
+                updateAggregate(pathNode);
+            }
+        }
+
+        if (mRoot.mCurrentKeyNum == 0) {
+            mRoot = mRoot.mIsLeaf ? null : mRoot.mChildren[0];
+        }
+        return retVal;
     }
 
 
     //
-    // Remove the specified key and move a key from the left leaf sibling to the node
-    // Note: The node and its sibling must be leaves
+    // Number of levels of the tree, 0 if it is empty
     //
-    private void moveLeftLeafSiblingKeyWithKeyRemoval(BTNode<K, V> btNode,
-                                                      int nodeIdx,
-                                                      int keyIdx,
-                                                      BTNode<K, V> parentNode,
-                                                      BTNode<K, V> leftSiblingNode) {
-        // Use the parent key on the left side of the node
-        nodeIdx = nodeIdx - 1;
-
-        // Shift to the right to where the key will be deleted 
-        for (int i = keyIdx; i > 0; --i) {
-            btNode.mKeys[i] = btNode.mKeys[i - 1];
+    private int getHeight() {
+        int height = 0;
+        for (BTNode<K, V> btNode = mRoot; btNode != null; btNode = btNode.mIsLeaf ? null : btNode.mChildren[0]) {
+            ++height;
         }
-
-        btNode.mKeys[0] = parentNode.mKeys[nodeIdx];
-        parentNode.mKeys[nodeIdx] = leftSiblingNode.mKeys[leftSiblingNode.mCurrentKeyNum - 1];
-        --(leftSiblingNode.mCurrentKeyNum);
+        return height;
     }
 
 
     //
-    // Do the leaf sibling merge
-    // Return true if we need to perform futher re-balancing action
-    // Return false if we reach and update the root hence we don't need to go futher for re-balancing the tree
+    // Remove the largest key of the subtree and store it at keyIdx of the target node
+    // The nodes passed are added to the path of the delete, return its new number of nodes
     //
-    private boolean doLeafSiblingMergeWithKeyRemoval(BTNode<K, V> btNode,
-                                                     int nodeIdx,
-                                                     int keyIdx,
-                                                     BTNode<K, V> parentNode,
-                                                     BTNode<K, V> siblingNode,
-                                                     boolean isRightSibling) {
-        int i;
+    private int deleteLastKey(BTNode<K, V> btNode, BTNode<K, V> targetNode, int keyIdx, BTNode<K, V> pathNodes[], int pathNodeNum) {
+        pathNodes[pathNodeNum++] = btNode;
+        while (!btNode.mIsLeaf) {
+            btNode = ensureChildCanSpareKey(btNode, btNode.mCurrentKeyNum);
+            pathNodes[pathNodeNum++] = btNode;
+        }
+        int lastIdx = btNode.mCurrentKeyNum - 1;
+        targetNode.mKeys[keyIdx] = btNode.mKeys[lastIdx];
+        targetNode.mValues[keyIdx] = btNode.mValues[lastIdx];
+        removeKeyAt(btNode, lastIdx);
+        return pathNodeNum;
+    }
+
 
-        if (nodeIdx == parentNode.mCurrentKeyNum) {
-            // Case node index can be the right most
-            nodeIdx = nodeIdx - 1;
+    //
+    // Remove the smallest key of the subtree and store it at keyIdx of the target node
+    // The nodes passed are added to the path of the delete, return its new number of nodes
+    //
+    private int deleteFirstKey(BTNode<K, V> btNode, BTNode<K, V> targetNode, int keyIdx, BTNode<K, V> pathNodes[], int pathNodeNum) {
+        pathNodes[pathNodeNum++] = btNode;
+        while (!btNode.mIsLeaf) {
+            btNode = ensureChildCanSpareKey(btNode, 0);
+            pathNodes[pathNodeNum++] = btNode;
         }
+        targetNode.mKeys[keyIdx] = btNode.mKeys[0];
+        targetNode.mValues[keyIdx] = btNode.mValues[0];
+        removeKeyAt(btNode, 0);
+        return pathNodeNum;
+    }
 
-        if (isRightSibling) {
-            // Shift the remained keys of the node to the left to remove the key
-            for (i = keyIdx; i < btNode.mCurrentKeyNum - 1; ++i) {
-                btNode.mKeys[i] = btNode.mKeys[i + 1];
-            }
-            btNode.mKeys[i] = parentNode.mKeys[nodeIdx];
+
+    //
+    // Make sure the child at nodeIdx holds more than the minimum number of keys
+    // before going down into it, by borrowing from a sibling or merging with it
+    // Return the node to go down into, writable like the siblings it changed
+    //
+    private BTNode<K, V> ensureChildCanSpareKey(BTNode<K, V> parentNode, int nodeIdx) {
+        BTNode<K, V> btNode = parentNode.mChildren[nodeIdx];
+        if (btNode.mCurrentKeyNum > mLowerBoundKeyNum) {
+            return getWritableChild(parentNode, nodeIdx);
         }
-        else {
-            // Here we need to determine the parent node id based on child node id (nodeIdx)
-            if (nodeIdx > 0) {
-                if (siblingNode.mKeys[siblingNode.mCurrentKeyNum - 1].mKey.compareTo(parentNode.mKeys[nodeIdx - 1].mKey) < 0) {
-                    nodeIdx = nodeIdx - 1;
-                }
-            }
 
-            siblingNode.mKeys[siblingNode.mCurrentKeyNum] = parentNode.mKeys[nodeIdx];
-            // siblingNode.mKeys[siblingNode.mCurrentKeyNum] = parentNode.mKeys[0];
-            ++(siblingNode.mCurrentKeyNum);
+        BTNode<K, V> leftSiblingNode = BTNode.getLeftSiblingAtIndex(parentNode, nodeIdx);
+        if ((leftSiblingNode != null) && (leftSiblingNode.mCurrentKeyNum > mLowerBoundKeyNum)) {
+            btNode = getWritableChild(parentNode, nodeIdx);
+            performRightRotation(parentNode, nodeIdx, btNode, getWritableChild(parentNode, nodeIdx - 1));
+            return btNode;
+        }
 
-            // Shift the remained keys of the node to the left to remove the key
-            for (i = keyIdx; i < btNode.mCurrentKeyNum - 1; ++i) {
-                btNode.mKeys[i] = btNode.mKeys[i + 1];
-            }
-            btNode.mKeys[i] = null;
-            --(btNode.mCurrentKeyNum);
+        BTNode<K, V> rightSiblingNode = BTNode.getRightSiblingAtIndex(parentNode, nodeIdx);
+        if ((rightSiblingNode != null) && (rightSiblingNode.mCurrentKeyNum > mLowerBoundKeyNum)) {
+            btNode = getWritableChild(parentNode, nodeIdx);
+            performLeftRotation(parentNode, nodeIdx, btNode, getWritableChild(parentNode, nodeIdx + 1));
+            return btNode;
         }
 
-        if (isRightSibling) {
-            for (i = 0; i < siblingNode.mCurrentKeyNum; ++i) {
-                btNode.mKeys[btNode.mCurrentKeyNum + i] = siblingNode.mKeys[i];
-                siblingNode.mKeys[i] = null;
-            }
-            btNode.mCurrentKeyNum += siblingNode.mCurrentKeyNum;
+        if (rightSiblingNode != null) {
+            mergeChildren(parentNode, nodeIdx);
+            return parentNode.mChildren[nodeIdx];
         }
-        else {
-            for (i = 0; i < btNode.mCurrentKeyNum; ++i) {
-                siblingNode.mKeys[siblingNode.mCurrentKeyNum + i] = btNode.mKeys[i];
-                btNode.mKeys[i] = null;
-            }
-            siblingNode.mCurrentKeyNum += btNode.mCurrentKeyNum;
-            btNode.mKeys[btNode.mCurrentKeyNum] = null;
+        mergeChildren(parentNode, nodeIdx - 1);
+        return parentNode.mChildren[nodeIdx - 1];
+    }
+
+
+    //
+    // Do the right rotation
+    // Move the parent key down to the front of the node and the last key of the left sibling up
+    //
+    private void performRightRotation(BTNode<K, V> parentNode, int nodeIdx, BTNode<K, V> btNode, BTNode<K, V> leftSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = leftSiblingNode.mCurrentKeyNum;
+        long movedKeyNum = 1L;
+        System.arraycopy(btNode.mKeys, 0, btNode.mKeys, 1, keyNum);
+        System.arraycopy(btNode.mValues, 0, btNode.mValues, 1, keyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(btNode.mChildren, 0, btNode.mChildren, 1, keyNum + 1);
+            btNode.mChildren[0] = leftSiblingNode.mChildren[siblingKeyNum];
+            leftSiblingNode.mChildren[siblingKeyNum] = null;
+            movedKeyNum += btNode.mChildren[0].mSubtreeKeyNum;
         }
+        btNode.mSubtreeKeyNum += movedKeyNum;
+        leftSiblingNode.mSubtreeKeyNum -= movedKeyNum;
+        btNode.mKeys[0] = parentNode.mKeys[nodeIdx - 1];
+        btNode.mValues[0] = parentNode.mValues[nodeIdx - 1];
+        ++(btNode.mCurrentKeyNum);
 
-        // Shift the parent keys accordingly after the merge of child nodes
-        for (i = nodeIdx; i < parentNode.mCurrentKeyNum - 1; ++i) {
-            parentNode.mKeys[i] = parentNode.mKeys[i + 1];
-            parentNode.mChildren[i + 1] = parentNode.mChildren[i + 2];
+        parentNode.mKeys[nodeIdx - 1] = leftSiblingNode.mKeys[siblingKeyNum - 1];
+        parentNode.mValues[nodeIdx - 1] = leftSiblingNode.mValues[siblingKeyNum - 1];
+        leftSiblingNode.mKeys[siblingKeyNum - 1] = null;
+        leftSiblingNode.mValues[siblingKeyNum - 1] = null;
+        --(leftSiblingNode.mCurrentKeyNum);
+        if (mAggregator != null) {
+            updateAggregate(leftSiblingNode);
         }
-        parentNode.mKeys[i] = null;
-        parentNode.mChildren[parentNode.mCurrentKeyNum] = null;
-        --(parentNode.mCurrentKeyNum);
+    }
 
-        if (isRightSibling) {
-            parentNode.mChildren[nodeIdx] = btNode;
+
+    //
+    // Do the left rotation
+    // Move the parent key down to the end of the node and the first key of the right sibling up
+    //
+    private void performLeftRotation(BTNode<K, V> parentNode, int nodeIdx, BTNode<K, V> btNode, BTNode<K, V> rightSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+        long movedKeyNum = 1L;
+        btNode.mKeys[keyNum] = parentNode.mKeys[nodeIdx];
+        btNode.mValues[keyNum] = parentNode.mValues[nodeIdx];
+        if (!btNode.mIsLeaf) {
+            btNode.mChildren[keyNum + 1] = rightSiblingNode.mChildren[0];
+            System.arraycopy(rightSiblingNode.mChildren, 1, rightSiblingNode.mChildren, 0, siblingKeyNum);
+            rightSiblingNode.mChildren[siblingKeyNum] = null;
+            movedKeyNum += btNode.mChildren[keyNum + 1].mSubtreeKeyNum;
         }
-        else {
-            parentNode.mChildren[nodeIdx] = siblingNode;
+        btNode.mSubtreeKeyNum += movedKeyNum;
+        rightSiblingNode.mSubtreeKeyNum -= movedKeyNum;
+        ++(btNode.mCurrentKeyNum);
+
+        parentNode.mKeys[nodeIdx] = rightSiblingNode.mKeys[0];
+        parentNode.mValues[nodeIdx] = rightSiblingNode.mValues[0];
+        System.arraycopy(rightSiblingNode.mKeys, 1, rightSiblingNode.mKeys, 0, siblingKeyNum - 1);
+        System.arraycopy(rightSiblingNode.mValues, 1, rightSiblingNode.mValues, 0, siblingKeyNum - 1);
+        rightSiblingNode.mKeys[siblingKeyNum - 1] = null;
+        rightSiblingNode.mValues[siblingKeyNum - 1] = null;
+        --(rightSiblingNode.mCurrentKeyNum);
+        if (mAggregator != null) {
+            updateAggregate(rightSiblingNode);
         }
+    }
+
 
-        if ((mRoot == parentNode) && (mRoot.mCurrentKeyNum == 0)) {
-            // Only root left
-            mRoot = parentNode.mChildren[nodeIdx];
-            mRoot.mIsLeaf = true;
-            return false;  // Root has been changed, we don't need to go futher
+    //
+    // Merge the child at keyIdx + 1 and the parent key at keyIdx into the child at keyIdx
+    //
+    private void mergeChildren(BTNode<K, V> parentNode, int keyIdx) {
+        BTNode<K, V> btNode = getWritableChild(parentNode, keyIdx);
+        BTNode<K, V> rightSiblingNode = parentNode.mChildren[keyIdx + 1];
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+
+        btNode.mKeys[keyNum] = parentNode.mKeys[keyIdx];
+        btNode.mValues[keyNum] = parentNode.mValues[keyIdx];
+        System.arraycopy(rightSiblingNode.mKeys, 0, btNode.mKeys, keyNum + 1, siblingKeyNum);
+        System.arraycopy(rightSiblingNode.mValues, 0, btNode.mValues, keyNum + 1, siblingKeyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(rightSiblingNode.mChildren, 0, btNode.mChildren, keyNum + 1, siblingKeyNum + 1);
         }
+        btNode.mCurrentKeyNum = keyNum + 1 + siblingKeyNum;
+        btNode.mSubtreeKeyNum += 1 + rightSiblingNode.mSubtreeKeyNum;
+
+        // Remove the parent key and the pointer to the abandoned sibling
+        int parentKeyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, keyIdx + 1, parentNode.mKeys, keyIdx, parentKeyNum - keyIdx - 1);
+        System.arraycopy(parentNode.mValues, keyIdx + 1, parentNode.mValues, keyIdx, parentKeyNum - keyIdx - 1);
+        System.arraycopy(parentNode.mChildren, keyIdx + 2, parentNode.mChildren, keyIdx + 1, parentKeyNum - keyIdx - 1);
+        parentNode.mKeys[parentKeyNum - 1] = null;
+        parentNode.mValues[parentKeyNum - 1] = null;
+        parentNode.mChildren[parentKeyNum] = null;
+        --(parentNode.mCurrentKeyNum);
+    }
 
-        return true;
+
+    //
+    // Remove the key at keyIdx of a leaf node
+    //
+    private void removeKeyAt(BTNode<K, V> btNode, int keyIdx) {
+        int keyNum = btNode.mCurrentKeyNum;
+        System.arraycopy(btNode.mKeys, keyIdx + 1, btNode.mKeys, keyIdx, keyNum - keyIdx - 1);
+        System.arraycopy(btNode.mValues, keyIdx + 1, btNode.mValues, keyIdx, keyNum - keyIdx - 1);
+        btNode.mKeys[keyNum - 1] = null;
+        btNode.mValues[keyNum - 1] = null;
+        --(btNode.mCurrentKeyNum);
     }
 
 
     //
-    // Re-balance the tree at a specified node
-    // Params:
-    // parentNode = the parent node of the node needs to be re-balanced
-    // btNode = the node needs to be re-balanced
-    // nodeIdx = the index of the parent node's child array where the node belongs
-    // balanceType = either REBALANCE_FOR_LEAF_NODE or REBALANCE_FOR_INTERNAL_NODE
-    //   REBALANCE_FOR_LEAF_NODE: the node is a leaf
-    //   REBALANCE_FOR_INTERNAL_NODE: the node is an internal node
-    // Return:
-    // true if it needs to continue rebalancing further
-    // false if further rebalancing is no longer needed
+    // Redo the count and the summary of a node whose children are up to date
     //
-    private boolean rebalanceTreeAtNode(BTNode<K, V> parentNode, BTNode<K, V> btNode, int nodeIdx, int balanceType) {
-        if (balanceType == REBALANCE_FOR_LEAF_NODE) {
-            if ((btNode == null) || (btNode == mRoot)) {
-                return false;
-            }
+    private void updateNode(BTNode<K, V> btNode) {
+        BTNode.updateSubtreeKeyNum(btNode);
+        if (mAggregator != null) {
+            updateAggregate(btNode);
         }
-        else if (balanceType == REBALANCE_FOR_INTERNAL_NODE) {
-            if (parentNode == null) {
-                // Root node
-                return false;
+    }
+
+
+    //
+    // Redo the counts and the summaries of every node of the subtree, from the leaves up
+    // Return the node, or its copy if it is shared with a snapshot
+    //
+    private BTNode<K, V> updateAllNodes(BTNode<K, V> btNode) {
+        btNode = getWritableNode(btNode);
+        if (!btNode.mIsLeaf) {
+            for (int i = 0; i <= btNode.mCurrentKeyNum; ++i) {
+                btNode.mChildren[i] = updateAllNodes(btNode.mChildren[i]);
             }
         }
-
-        if (btNode.mCurrentKeyNum >= BTNode.LOWER_BOUND_KEYNUM) {
-            // The node doesn't need to rebalance
-            return false;
+        BTNode.updateSubtreeKeyNum(btNode);
+        btNode.mAggregate = null;
+        if (mAggregator != null) {
+            updateAggregate(btNode);
         }
+        return btNode;
+    }
 
-        BTNode<K, V> rightSiblingNode;
-        BTNode<K, V> leftSiblingNode = BTNode.getLeftSiblingAtIndex(parentNode, nodeIdx);
-        if ((leftSiblingNode != null) && (leftSiblingNode.mCurrentKeyNum > BTNode.LOWER_BOUND_KEYNUM)) {
-            // Do right rotate
-            performRightRotation(btNode, nodeIdx, parentNode, leftSiblingNode);
-        }
-        else {
-            rightSiblingNode = BTNode.getRightSiblingAtIndex(parentNode, nodeIdx);
-            if ((rightSiblingNode != null) && (rightSiblingNode.mCurrentKeyNum > BTNode.LOWER_BOUND_KEYNUM)) {
-                // Do left rotate
-                performLeftRotation(btNode, nodeIdx, parentNode, rightSiblingNode);
-            }
-            else {
-                // Merge the node with one of the siblings
-                boolean bStatus;
-                if (leftSiblingNode != null) {
-                    bStatus = performMergeWithLeftSibling(btNode, nodeIdx, parentNode, leftSiblingNode);
-                }
-                else {
-                    bStatus = performMergeWithRightSibling(btNode, nodeIdx, parentNode, rightSiblingNode);
-                }
 
-                if (!bStatus) {
-                    return false;
-                }
+    //
+    // Redo the summary of a node from its entries and the summaries of its children
+    //
+    private void updateAggregate(BTNode<K, V> btNode) {
+        Object aggregate = null;
+        int keyNum = btNode.mCurrentKeyNum;
+        for (int i = 0; i <= keyNum; ++i) {
+            if (!btNode.mIsLeaf) {
+                aggregate = combineSummaries(aggregate, btNode.mChildren[i].mAggregate);
+            }
+            if (i < keyNum) {
+                aggregate = combineSummaries(aggregate, mAggregator.summarize(btNode.mKeys[i], btNode.mValues[i]));
             }
         }
+        btNode.mAggregate = aggregate;
+    }
 
-        return true;
+
+    //
+    // Combine two summaries, where null is the summary of an empty range
+    //
+    private Object combineSummaries(Object lowerSummary, Object upperSummary) {
+        if (lowerSummary == null) {
+            return upperSummary;
+        }
+        if (upperSummary == null) {
+            return lowerSummary;
+        }
+        return mAggregator.combine(lowerSummary, upperSummary);
     }
 
 
     //
-    // Re-balance the tree upward from the lower node to the upper node
+    // Task building the subtree of the given height that holds the sorted keys [from, to)
+    // Subtrees with more than PARALLEL_BUILD_MIN_KEYNUM keys build their children as parallel tasks
     //
-    private void rebalanceTree(BTNode<K, V> upperNode, BTNode<K, V> lowerNode, K key) {
-        mStackTracer.clear();
-        mStackTracer.add(new StackInfo(null, upperNode, 0));
+    private class SubtreeBuilder extends RecursiveTask<BTNode<K, V>> {
+        private static final long serialVersionUID = 1L;
+
+        private final K mKeys[];
+        private final V mValues[];
+        private final int mFrom;
+        private final int mTo;
+        private final int mHeight;
+        private final boolean mIsRoot;
+
+        private SubtreeBuilder(K keys[], V values[], int from, int to, int height, boolean isRoot) {
+            mKeys = keys;
+            mValues = values;
+            mFrom = from;
+            mTo = to;
+            mHeight = height;
+            mIsRoot = isRoot;
+        }
 
-        //
-        // Find the child subtree (node) that contains the key
-        //
-        BTNode<K, V> parentNode, childNode;
-        BTKeyValue<K, V> currentKey;
-        int i;
-        parentNode = upperNode;
-        while ((parentNode != lowerNode) && !parentNode.mIsLeaf) {
-            currentKey = parentNode.mKeys[0];
-            i = 0;
-            while ((i < parentNode.mCurrentKeyNum) && (key.compareTo(currentKey.mKey) > 0)) {
-                ++i;
-                if (i < parentNode.mCurrentKeyNum) {
-                    currentKey = parentNode.mKeys[i];
-                }
-                else {
-                    --i;
-                    break;
+        @Override
+        protected BTNode<K, V> compute() {
+            BTNode<K, V> btNode = createNode();
+            int keyNum = mTo - mFrom;
+            if (mHeight == 1) {
+                System.arraycopy(mKeys, mFrom, btNode.mKeys, 0, keyNum);
+                System.arraycopy(mValues, mFrom, btNode.mValues, 0, keyNum);
+                btNode.mCurrentKeyNum = keyNum;
+                updateNode(btNode);
+                return btNode;
+            }
+
+            // The fewest children that can hold the keys, but no less than the minimum number of children,
+            // which leaves each child at least half of the keys a subtree one level lower can hold
+            long childKeyCapacity = getMaxSubtreeKeyNum(mHeight - 1);
+            int childNum = (int) ((keyNum + 1 + childKeyCapacity) / (childKeyCapacity + 1));
+            childNum = Math.max(childNum, mIsRoot ? 2 : mMinDegree);
+
+            int childKeyNum = keyNum - (childNum - 1);
+            List<SubtreeBuilder> builders = new ArrayList<SubtreeBuilder>(childNum);
+            int pos = mFrom;
+            for (int n = 0; n < childNum; ++n) {
+                int pieceKeyNum = childKeyNum / childNum + ((n < childKeyNum % childNum) ? 1 : 0);
+                builders.add(new SubtreeBuilder(mKeys, mValues, pos, pos + pieceKeyNum, mHeight - 1, false));
+                pos += pieceKeyNum;
+                if (n < childNum - 1) {
+                    btNode.mKeys[n] = mKeys[pos];
+                    btNode.mValues[n] = mValues[pos];
+                    ++pos;
                 }
             }
+            btNode.mIsLeaf = false;
+            btNode.mCurrentKeyNum = childNum - 1;
 
-            if (key.compareTo(currentKey.mKey) > 0) {
-                childNode = BTNode.getRightChildAtIndex(parentNode, i);
-                if (childNode.mKeys[0].mKey.compareTo(parentNode.mKeys[parentNode.mCurrentKeyNum - 1].mKey) > 0) {
-                    // The right-most side of the node
-                    i = i + 1;
+            if (keyNum > PARALLEL_BUILD_MIN_KEYNUM) {
+                invokeAll(builders);
+                for (int n = 0; n < childNum; ++n) {
+                    btNode.mChildren[n] = builders.get(n).join();
                 }
             }
             else {
-                childNode = BTNode.getLeftChildAtIndex(parentNode, i);
+                for (int n = 0; n < childNum; ++n) {
+                    btNode.mChildren[n] = builders.get(n).compute();
+                }
             }
+            updateNode(btNode);
+            return btNode;
+        }
+    }
 
-            if (childNode == null) {
-                break;
-            }
 
-            if (key.compareTo(currentKey.mKey) == 0) {
-                break;
-            }
+    //
+    // Change of the value of a key decided where the key is found, or where it would be added
+    //
+    private static abstract class ValueUpdate<K extends Comparable, V> {
+        private boolean mIsPresent = false; // true if the key was found
+        private V mOldValue = null; // value of the key before the update, null if it was absent
+        private boolean mHasNewValue = false; // false if the key is left without a value: not added, or removed
+        private V mNewValue = null;
 
-            mStackTracer.add(new StackInfo(parentNode, childNode, i));
-            parentNode = childNode;
-        }
+        //
+        // Return the new value of the key, or NO_VALUE to leave it without one
+        //
+        protected abstract Object apply(K key, V oldValue, boolean isPresent);
 
-        boolean bStatus;
-        StackInfo stackInfo;
-        while (!mStackTracer.isEmpty()) {
-            stackInfo = mStackTracer.pop();
-            if ((stackInfo != null) && !stackInfo.mNode.mIsLeaf) {
-                bStatus = rebalanceTreeAtNode(stackInfo.mParent,
-                                              stackInfo.mNode,
-                                              stackInfo.mNodeIdx,
-                                              REBALANCE_FOR_INTERNAL_NODE);
-                if (!bStatus) {
-                    break;
-                }
-            }
+        //
+        // Apply the update to the key and keep the outcome
+        // Return true if the key gets a value
+        //
+        private boolean update(K key, V oldValue, boolean isPresent) {
+            mIsPresent = isPresent;
+            mOldValue = oldValue;
+            Object newValue = apply(key, oldValue, isPresent);
+            mHasNewValue = (newValue != NO_VALUE);
+            mNewValue = mHasNewValue ? (V) newValue : null;
+            return mHasNewValue;
         }
     }
 
 
-    /**
-     * Inner class StackInfo for tracing-back purpose
-     * Structure contains parent node and node index
-     */
-    public class StackInfo {
-        public BTNode<K, V> mParent = null;
-        public BTNode<K, V> mNode = null;
-        public int mNodeIdx = -1;
-
-        public StackInfo(BTNode<K, V> parent, BTNode<K, V> node, int nodeIdx) {
-            mParent = parent;
-            mNode = node;
-            mNodeIdx = nodeIdx;
+    //
+    // Nodes that a node was split into during a batch insert, with the keys between them
+    //
+    private static class BatchSplit<K extends Comparable, V> {
+        private final BTNode<K, V> mNodes[];
+        private final K mKeys[];
+        private final V mValues[];
+
+        private BatchSplit(int nodeNum) {
+            mNodes = new BTNode[nodeNum];
+            mKeys = (K[]) new Comparable[nodeNum - 1];
+            mValues = (V[]) new Object[nodeNum - 1];
         }
     }
 }
@@ -0,0 +1,1565 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+
+//
+// Micro benchmark of the tree operations
+// Usage: java app.BTreeBenchmark [scenario] [number of keys]
+//
+public class BTreeBenchmark
+{
+    public final static int DEFAULT_KEY_NUM     =   1000000;
+    public final static int WARMUP_ROUNDS       =   2;
+    public final static int[] DEGREES           =   { 4, 8, 16, 32, 64, 128, 256, 512 };
+
+    private final int mKeyNum;
+    private final Integer mKeys[];
+
+    public BTreeBenchmark(int keyNum) {
+        mKeyNum = keyNum;
+        mKeys = new Integer[keyNum];
+        Random rand = new Random(42L);
+        for (int i = 0; i < keyNum; ++i) {
+            mKeys[i] = rand.nextInt();
+        }
+    }
+
+    //
+    // Measure the insert and lookup throughput for each node degree
+    //
+    public void runDegrees() {
+        System.out.println("Insert and lookup throughput by minimum degree, " + mKeyNum + " random keys");
+        System.out.println(String.format("%8s %16s %16s", "degree", "insert (ops/s)", "search (ops/s)"));
+        for (int degree : DEGREES) {
+            for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+                measureDegree(degree);
+            }
+            double[] result = measureDegree(degree);
+            System.out.println(String.format("%8d %16.0f %16.0f", degree, result[0], result[1]));
+        }
+    }
+
+    private double[] measureDegree(int degree) {
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>(degree);
+        long start = System.nanoTime();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+        long insertTime = System.nanoTime() - start;
+
+        long found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < mKeyNum; ++i) {
+            if (btree.search(mKeys[i]) != null) {
+                ++found;
+            }
+        }
+        long searchTime = System.nanoTime() - start;
+        if (found != mKeyNum) {
+            throw new IllegalStateException("Lookup failed: " + found + " keys found out of " + mKeyNum);
+        }
+
+        return new double[] { throughput(mKeyNum, insertTime), throughput(mKeyNum, searchTime) };
+    }
+
+    //
+    // Compare the heap use and the lookup throughput of the boxed and primitive trees
+    //
+    public void runPrimitive() {
+        System.out.println("Boxed BTree<Long, Object> against LongBTree<Object>, " + mKeyNum + " random keys");
+        System.out.println(String.format("%-12s %16s %16s", "tree", "bytes/entry", "search (ops/s)"));
+        Object value = new Object();
+        long[] keys = new long[mKeyNum];
+        for (int i = 0; i < mKeyNum; ++i) {
+            keys[i] = mKeys[i];
+        }
+
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            long before = usedMemory();
+            BTree<Long, Object> btree = new BTree<Long, Object>();
+            for (int i = 0; i < mKeyNum; ++i) {
+                btree.insert(keys[i], value);
+            }
+            long boxedBytes = usedMemory() - before;
+            long start = System.nanoTime();
+            for (int i = 0; i < mKeyNum; ++i) {
+                btree.search(keys[i]);
+            }
+            long boxedTime = System.nanoTime() - start;
+            long boxedSize = btree.size();
+            btree = null;
+
+            before = usedMemory();
+            LongBTree<Object> longTree = new LongBTree<Object>();
+            for (int i = 0; i < mKeyNum; ++i) {
+                longTree.insert(keys[i], value);
+            }
+            long primitiveBytes = usedMemory() - before;
+            start = System.nanoTime();
+            for (int i = 0; i < mKeyNum; ++i) {
+                longTree.search(keys[i]);
+            }
+            long primitiveTime = System.nanoTime() - start;
+
+            if (round == WARMUP_ROUNDS) {
+                System.out.println(String.format("%-12s %16.1f %16.0f", "BTree", (double) boxedBytes / boxedSize, throughput(mKeyNum, boxedTime)));
+                System.out.println(String.format("%-12s %16.1f %16.0f", "LongBTree", (double) primitiveBytes / longTree.size(), throughput(mKeyNum, primitiveTime)));
+            }
+        }
+    }
+
+    //
+    // Measure the lookup throughput of each in-node search strategy for each node degree
+    //
+    public void runSearchStrategies() {
+        BTSearchIF[] searches = { new BTLinearSearch(), new BTBinarySearch(), new BTCountingSearch() };
+        String[] names = { "linear", "binary", "counting" };
+        long[] keys = new long[mKeyNum];
+        for (int i = 0; i < mKeyNum; ++i) {
+            keys[i] = mKeys[i];
+        }
+
+        System.out.println("Lookup throughput (ops/s) by in-node search strategy, " + mKeyNum + " random keys");
+        System.out.println(String.format("%8s %10s %16s %16s", "degree", "strategy", "BTree", "LongBTree"));
+        for (int degree : DEGREES) {
+            for (int s = 0; s < searches.length; ++s) {
+                BTree<Integer, Integer> btree = new BTree<Integer, Integer>(degree, searches[s]);
+                LongBTree<Integer> longTree = new LongBTree<Integer>(degree, searches[s]);
+                for (int i = 0; i < mKeyNum; ++i) {
+                    btree.insert(mKeys[i], mKeys[i]);
+                    longTree.insert(keys[i], mKeys[i]);
+                }
+
+                long boxedTime = 0L, primitiveTime = 0L;
+                for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < mKeyNum; ++i) {
+                        btree.search(mKeys[i]);
+                    }
+                    boxedTime = System.nanoTime() - start;
+
+                    start = System.nanoTime();
+                    for (int i = 0; i < mKeyNum; ++i) {
+                        longTree.search(keys[i]);
+                    }
+                    primitiveTime = System.nanoTime() - start;
+                }
+                System.out.println(String.format("%8d %10s %16.0f %16.0f", degree, names[s],
+                                                 throughput(mKeyNum, boxedTime), throughput(mKeyNum, primitiveTime)));
+            }
+        }
+    }
+
+    //
+    // Compare the ordered listing throughput of the B-tree and of the B+ tree
+    //
+    public void runScan() {
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        BPlusTree<Integer, Integer> bplusTree = new BPlusTree<Integer, Integer>();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(mKeys[i], mKeys[i]);
+            bplusTree.insert(mKeys[i], mKeys[i]);
+        }
+
+        System.out.println("Full ordered scan throughput, " + btree.size() + " keys");
+        System.out.println(String.format("%-12s %16s %16s", "tree", "scan (keys/s)", "search (ops/s)"));
+        BTreeIF[] trees = { btree, bplusTree };
+        String[] names = { "BTree", "BPlusTree" };
+        for (int t = 0; t < trees.length; ++t) {
+            final long[] count = new long[1];
+            BTIteratorIF<Integer, Integer> counter = new BTIteratorIF<Integer, Integer>() {
+                @Override
+                public boolean item(Integer key, Integer value) {
+                    ++count[0];
+                    return true;
+                }
+            };
+
+            long scanTime = 0L, searchTime = 0L;
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                long start = System.nanoTime();
+                for (int i = 0; i < 10; ++i) {
+                    trees[t].list(counter);
+                }
+                scanTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < mKeyNum; ++i) {
+                    trees[t].search(mKeys[i]);
+                }
+                searchTime = System.nanoTime() - start;
+            }
+            System.out.println(String.format("%-12s %16.0f %16.0f", names[t],
+                                             throughput(10 * trees[t].size(), scanTime), throughput(mKeyNum, searchTime)));
+        }
+    }
+
+    //
+    // Compare reading small key windows with range() against filtering a full listing
+    //
+    public void runRange() {
+        final int queryNum = 1000;
+        final int windowKeyNum = 100;
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        BPlusTree<Integer, Integer> bplusTree = new BPlusTree<Integer, Integer>();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(i, i);
+            bplusTree.insert(i, i);
+        }
+
+        final Random rand = new Random(7L);
+        final int[] froms = new int[queryNum];
+        for (int i = 0; i < queryNum; ++i) {
+            froms[i] = rand.nextInt(Math.max(mKeyNum - windowKeyNum, 1));
+        }
+
+        System.out.println("Window queries of " + windowKeyNum + " keys, " + mKeyNum + " sequential keys");
+        System.out.println(String.format("%-20s %16s", "method", "queries/s"));
+        BTreeIF[] trees = { btree, bplusTree };
+        String[] names = { "BTree", "BPlusTree" };
+        for (int t = 0; t < trees.length; ++t) {
+            final long[] count = new long[1];
+            final int[] bounds = new int[2];
+            BTIteratorIF<Integer, Integer> counter = new BTIteratorIF<Integer, Integer>() {
+                @Override
+                public boolean item(Integer key, Integer value) {
+                    ++count[0];
+                    return true;
+                }
+            };
+            BTIteratorIF<Integer, Integer> filter = new BTIteratorIF<Integer, Integer>() {
+                @Override
+                public boolean item(Integer key, Integer value) {
+                    if (key >= bounds[1]) {
+                        return false;
+                    }
+                    if (key >= bounds[0]) {
+                        ++count[0];
+                    }
+                    return true;
+                }
+            };
+
+            long rangeTime = 0L, listTime = 0L;
+            int listQueryNum = Math.min(queryNum, 20);
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                long start = System.nanoTime();
+                for (int i = 0; i < queryNum; ++i) {
+                    trees[t].range(froms[i], true, froms[i] + windowKeyNum, false, counter);
+                }
+                rangeTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < listQueryNum; ++i) {
+                    bounds[0] = froms[i];
+                    bounds[1] = froms[i] + windowKeyNum;
+                    trees[t].list(filter);
+                }
+                listTime = System.nanoTime() - start;
+            }
+            System.out.println(String.format("%-20s %16.0f", names[t] + " range", throughput(queryNum, rangeTime)));
+            System.out.println(String.format("%-20s %16.0f", names[t] + " list", throughput(listQueryNum, listTime)));
+        }
+    }
+
+    //
+    // Compare loading sorted keys one insert at a time against a bulk load
+    //
+    public void runBulkLoad() {
+        final int keyNum = mKeyNum;
+        Iterable<Map.Entry<Integer, Integer>> sortedEntries = new Iterable<Map.Entry<Integer, Integer>>() {
+            @Override
+            public Iterator<Map.Entry<Integer, Integer>> iterator() {
+                return new Iterator<Map.Entry<Integer, Integer>>() {
+                    private int mNext = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return mNext < keyNum;
+                    }
+
+                    @Override
+                    public Map.Entry<Integer, Integer> next() {
+                        Integer key = mNext++;
+                        return new BTKeyValue<Integer, Integer>(key, key);
+                    }
+                };
+            }
+        };
+
+        System.out.println("Loading " + keyNum + " sorted keys");
+        System.out.println(String.format("%-20s %12s %16s", "method", "time (ms)", "keys/node"));
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+            long start = System.nanoTime();
+            for (Map.Entry<Integer, Integer> entry : sortedEntries) {
+                btree.insert(entry.getKey(), entry.getValue());
+            }
+            long insertTime = System.nanoTime() - start;
+            double insertFill = (double) btree.size() / countNodes(btree.getRootNode());
+            btree = null;
+
+            BTree<Integer, Integer> loadedTree = new BTree<Integer, Integer>();
+            start = System.nanoTime();
+            loadedTree.bulkLoad(sortedEntries.iterator());
+            long loadTime = System.nanoTime() - start;
+            double loadFill = (double) loadedTree.size() / countNodes(loadedTree.getRootNode());
+
+            if (round == WARMUP_ROUNDS) {
+                System.out.println(String.format("%-20s %12d %16.1f", "insert", insertTime / 1000000L, insertFill));
+                System.out.println(String.format("%-20s %12d %16.1f", "bulkLoad", loadTime / 1000000L, loadFill));
+            }
+        }
+    }
+
+    //
+    // Measure the throughput and the latency percentiles of deleting every key in random order
+    //
+    public void runDelete() {
+        System.out.println("Deleting " + mKeyNum + " random keys in random order");
+        System.out.println(String.format("%8s %16s %10s %10s %10s", "degree", "delete (ops/s)", "p50 (ns)", "p99 (ns)", "max (ns)"));
+        Integer[] deleteOrder = mKeys.clone();
+        Collections.shuffle(Arrays.asList(deleteOrder), new Random(43L));
+        long[] latencies = new long[mKeyNum];
+        for (int degree : DEGREES) {
+            long totalTime = 0L;
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                BTree<Integer, Integer> btree = new BTree<Integer, Integer>(degree);
+                for (int i = 0; i < mKeyNum; ++i) {
+                    btree.insert(mKeys[i], mKeys[i]);
+                }
+
+                totalTime = 0L;
+                for (int i = 0; i < mKeyNum; ++i) {
+                    long start = System.nanoTime();
+                    btree.delete(deleteOrder[i]);
+                    latencies[i] = System.nanoTime() - start;
+                    totalTime += latencies[i];
+                }
+                if (btree.size() != 0) {
+                    throw new IllegalStateException("Delete failed: " + btree.size() + " keys left");
+                }
+            }
+            Arrays.sort(latencies);
+            System.out.println(String.format("%8d %16.0f %10d %10d %10d", degree, throughput(mKeyNum, totalTime),
+                                             latencies[mKeyNum / 2], latencies[(int) (mKeyNum * 0.99)], latencies[mKeyNum - 1]));
+        }
+    }
+
+    //
+    // Compare inserting keys one at a time against inserting them in batches, for random keys
+    // and for clustered keys where each batch covers a narrow key range (time ordered ingest)
+    //
+    public void runBatchInsert() {
+        int[] batchSizes = { 100, 1000, 10000, 100000 };
+        Integer[] clusteredKeys = new Integer[mKeyNum];
+        Random rand = new Random(44L);
+        for (int i = 0; i < mKeyNum; ) {
+            int key = rand.nextInt();
+            for (int j = 0; (j < 1000) && (i < mKeyNum); ++j) {
+                key += 1 + rand.nextInt(16);
+                clusteredKeys[i++] = key;
+            }
+        }
+
+        System.out.println("Inserting " + mKeyNum + " keys");
+        System.out.println(String.format("%-20s %16s %16s", "method", "random (ops/s)", "clustered (ops/s)"));
+        System.out.println(String.format("%-20s %16.0f %16.0f", "insert",
+                                         measureBatchInsert(mKeys, 1), measureBatchInsert(clusteredKeys, 1)));
+        for (int batchSize : batchSizes) {
+            System.out.println(String.format("%-20s %16.0f %16.0f", "insertAll " + batchSize,
+                                             measureBatchInsert(mKeys, batchSize), measureBatchInsert(clusteredKeys, batchSize)));
+        }
+    }
+
+    private double measureBatchInsert(Integer[] keys, int batchSize) {
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<Map.Entry<Integer, Integer>>(keys.length);
+        for (int i = 0; i < keys.length; ++i) {
+            entries.add(new BTKeyValue<Integer, Integer>(keys[i], keys[i]));
+        }
+
+        // The best round is kept, a single round is easily distorted by the collector
+        long time = Long.MAX_VALUE;
+        for (int round = 0; round <= 2 * WARMUP_ROUNDS; ++round) {
+            BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+            long start = System.nanoTime();
+            if (batchSize == 1) {
+                for (int i = 0; i < keys.length; ++i) {
+                    btree.insert(keys[i], keys[i]);
+                }
+            }
+            else {
+                for (int i = 0; i < keys.length; i += batchSize) {
+                    btree.insertAll(entries.subList(i, Math.min(i + batchSize, keys.length)));
+                }
+            }
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        return throughput(keys.length, time);
+    }
+
+    //
+    // Compare the order statistic queries against the walks they replace: a listing that
+    // stops at the wanted position, and a range listing that counts its keys
+    //
+    public void runRank() {
+        final int queryNum = 100000;
+        final int walkQueryNum = 20;
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+
+        Random rand = new Random(9L);
+        final long[] indexes = new long[queryNum];
+        final Integer[] froms = new Integer[queryNum];
+        final Integer[] tos = new Integer[queryNum];
+        for (int i = 0; i < queryNum; ++i) {
+            indexes[i] = (long) (rand.nextDouble() * btree.size());
+            int from = rand.nextInt();
+            froms[i] = from;
+            tos[i] = (int) Math.min((long) from + (Integer.MAX_VALUE / 10), Integer.MAX_VALUE);
+        }
+
+        final long[] count = new long[1];
+        final long[] target = new long[1];
+        BTIteratorIF<Integer, Integer> positionWalker = new BTIteratorIF<Integer, Integer>() {
+            @Override
+            public boolean item(Integer key, Integer value) {
+                return count[0]++ < target[0];
+            }
+        };
+        BTIteratorIF<Integer, Integer> counter = new BTIteratorIF<Integer, Integer>() {
+            @Override
+            public boolean item(Integer key, Integer value) {
+                ++count[0];
+                return true;
+            }
+        };
+
+        long selectTime = 0L, rankTime = 0L, countTime = 0L;
+        long selectWalkTime = 0L, rankWalkTime = 0L, countWalkTime = 0L;
+        long checksum = 0L;
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queryNum; ++i) {
+                checksum += btree.select(indexes[i]).mKey;
+            }
+            selectTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < queryNum; ++i) {
+                checksum += btree.rank(froms[i]);
+            }
+            rankTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < queryNum; ++i) {
+                checksum += btree.countBetween(froms[i], true, tos[i], false);
+            }
+            countTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < walkQueryNum; ++i) {
+                count[0] = 0L;
+                target[0] = indexes[i];
+                btree.list(positionWalker);
+            }
+            selectWalkTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < walkQueryNum; ++i) {
+                count[0] = 0L;
+                btree.range(null, true, froms[i], false, counter);
+            }
+            rankWalkTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < walkQueryNum; ++i) {
+                count[0] = 0L;
+                btree.range(froms[i], true, tos[i], false, counter);
+            }
+            countWalkTime = System.nanoTime() - start;
+        }
+
+        System.out.println("Order statistic queries, " + mKeyNum + " random keys (checksum " + checksum + ")");
+        System.out.println(String.format("%-20s %16s %16s", "query", "tree (q/s)", "walk (q/s)"));
+        System.out.println(String.format("%-20s %16.0f %16.1f", "select", throughput(queryNum, selectTime), throughput(walkQueryNum, selectWalkTime)));
+        System.out.println(String.format("%-20s %16.0f %16.1f", "rank", throughput(queryNum, rankTime), throughput(walkQueryNum, rankWalkTime)));
+        System.out.println(String.format("%-20s %16.0f %16.1f", "countBetween 5%", throughput(queryNum, countTime), throughput(walkQueryNum, countWalkTime)));
+    }
+
+    //
+    // Compare the sum of the values of a key range made from the node summaries against
+    // a range listing that adds the values up, and measure what keeping the summaries costs
+    //
+    public void runAggregate() {
+        final int queryNum = 100000;
+        final int walkQueryNum = 20;
+        BTAggregatorIF<Integer, Integer, Long> sum = new BTAggregatorIF<Integer, Integer, Long>() {
+            @Override
+            public Long summarize(Integer key, Integer value) {
+                return (long) value;
+            }
+
+            @Override
+            public Long combine(Long lowerSummary, Long upperSummary) {
+                return lowerSummary + upperSummary;
+            }
+        };
+
+        long plainTime = 0L, aggregatedTime = 0L;
+        BTree<Integer, Integer> btree = null;
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            BTree<Integer, Integer> plainTree = new BTree<Integer, Integer>();
+            long start = System.nanoTime();
+            for (int i = 0; i < mKeyNum; ++i) {
+                plainTree.insert(mKeys[i], mKeys[i]);
+            }
+            plainTime = System.nanoTime() - start;
+
+            btree = new BTree<Integer, Integer>();
+            btree.setAggregator(sum);
+            start = System.nanoTime();
+            for (int i = 0; i < mKeyNum; ++i) {
+                btree.insert(mKeys[i], mKeys[i]);
+            }
+            aggregatedTime = System.nanoTime() - start;
+        }
+
+        Random rand = new Random(10L);
+        final Integer[] froms = new Integer[queryNum];
+        final Integer[] tos = new Integer[queryNum];
+        for (int i = 0; i < queryNum; ++i) {
+            int from = rand.nextInt();
+            froms[i] = from;
+            tos[i] = (int) Math.min((long) from + (Integer.MAX_VALUE / 10), Integer.MAX_VALUE);
+        }
+
+        final long[] total = new long[1];
+        BTIteratorIF<Integer, Integer> adder = new BTIteratorIF<Integer, Integer>() {
+            @Override
+            public boolean item(Integer key, Integer value) {
+                total[0] += value;
+                return true;
+            }
+        };
+
+        long aggregateTime = 0L, walkTime = 0L;
+        long checksum = 0L;
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queryNum; ++i) {
+                Long rangeSum = btree.aggregate(froms[i], true, tos[i], false);
+                checksum += (rangeSum == null) ? 0L : rangeSum;
+            }
+            aggregateTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < walkQueryNum; ++i) {
+                total[0] = 0L;
+                btree.range(froms[i], true, tos[i], false, adder);
+                checksum += total[0];
+            }
+            walkTime = System.nanoTime() - start;
+        }
+
+        System.out.println("Sum of the values of 5% key ranges, " + mKeyNum + " random keys (checksum " + checksum + ")");
+        System.out.println(String.format("%-20s %16s", "method", "ops/s"));
+        System.out.println(String.format("%-20s %16.0f", "aggregate", throughput(queryNum, aggregateTime)));
+        System.out.println(String.format("%-20s %16.1f", "range walk", throughput(walkQueryNum, walkTime)));
+        System.out.println(String.format("%-20s %16.0f", "insert", throughput(mKeyNum, plainTime)));
+        System.out.println(String.format("%-20s %16.0f", "insert, summarized", throughput(mKeyNum, aggregatedTime)));
+    }
+
+    //
+    // Cost of the copy-on-write snapshots: inserts taking a snapshot every so many keys,
+    // each snapshot being dropped when the next one is taken, and the time of snapshot() itself
+    //
+    public void runSnapshot() {
+        int[] intervals = { 0, 10000, 100, 10, 1 };
+        System.out.println("Inserts of " + mKeyNum + " random keys with snapshots");
+        System.out.println(String.format("%-20s %16s", "snapshot every", "inserts/s"));
+        for (int interval : intervals) {
+            long bestTime = Long.MAX_VALUE;
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+                BTree<Integer, Integer> snapshot = null;
+                long start = System.nanoTime();
+                for (int i = 0; i < mKeyNum; ++i) {
+                    if ((interval > 0) && (i % interval == 0)) {
+                        snapshot = btree.snapshot();
+                    }
+                    btree.insert(mKeys[i], mKeys[i]);
+                }
+                bestTime = Math.min(bestTime, System.nanoTime() - start);
+                if ((snapshot != null) && (snapshot.size() > btree.size())) {
+                    throw new IllegalStateException("A snapshot cannot hold more keys than the tree");
+                }
+            }
+            System.out.println(String.format("%-20s %16.0f", (interval == 0) ? "never" : interval + " keys", throughput(mKeyNum, bestTime)));
+        }
+
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+        final int snapshotNum = 1000000;
+        long checksum = 0L;
+        long start = System.nanoTime();
+        for (int i = 0; i < snapshotNum; ++i) {
+            checksum += btree.snapshot().size();
+        }
+        long snapshotTime = System.nanoTime() - start;
+        System.out.println(String.format("snapshot() of %d keys: %.1f ns (checksum %d)", mKeyNum, (double) snapshotTime / snapshotNum, checksum));
+    }
+
+    //
+    // Build a tree from unsorted keys: one insert per key, a sort followed by bulkLoad,
+    // and parallelBulkLoad on fork-join pools of growing size
+    //
+    public void runParallelBuild() {
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<Map.Entry<Integer, Integer>>(mKeyNum);
+        for (int i = 0; i < mKeyNum; ++i) {
+            entries.add(new BTKeyValue<Integer, Integer>(mKeys[i], mKeys[i]));
+        }
+        int processorNum = Runtime.getRuntime().availableProcessors();
+        int maxThreadNum = Math.max(4, processorNum);
+
+        long insertTime = Long.MAX_VALUE, sortLoadTime = Long.MAX_VALUE;
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+            long start = System.nanoTime();
+            for (Map.Entry<Integer, Integer> entry : entries) {
+                btree.insert(entry.getKey(), entry.getValue());
+            }
+            insertTime = Math.min(insertTime, System.nanoTime() - start);
+            btree = null;
+
+            start = System.nanoTime();
+            Map.Entry<Integer, Integer> sortedEntries[] = entries.toArray(new Map.Entry[mKeyNum]);
+            Arrays.sort(sortedEntries, new Comparator<Map.Entry<Integer, Integer>>() {
+                @Override
+                public int compare(Map.Entry<Integer, Integer> entry1, Map.Entry<Integer, Integer> entry2) {
+                    return entry1.getKey().compareTo(entry2.getKey());
+                }
+            });
+            List<Map.Entry<Integer, Integer>> distinctEntries = new ArrayList<Map.Entry<Integer, Integer>>(mKeyNum);
+            for (Map.Entry<Integer, Integer> entry : sortedEntries) {
+                if (!distinctEntries.isEmpty() && distinctEntries.get(distinctEntries.size() - 1).getKey().equals(entry.getKey())) {
+                    distinctEntries.set(distinctEntries.size() - 1, entry);
+                    continue;
+                }
+                distinctEntries.add(entry);
+            }
+            new BTree<Integer, Integer>().bulkLoad(distinctEntries.iterator());
+            sortLoadTime = Math.min(sortLoadTime, System.nanoTime() - start);
+        }
+
+        System.out.println("Building a tree from " + mKeyNum + " unsorted keys, " + processorNum + " processors");
+        System.out.println(String.format("%-24s %8s %12s", "method", "threads", "time (ms)"));
+        System.out.println(String.format("%-24s %8d %12d", "insert", 1, insertTime / 1000000L));
+        System.out.println(String.format("%-24s %8d %12d", "sort + bulkLoad", 1, sortLoadTime / 1000000L));
+        for (int threadNum = 1; threadNum <= maxThreadNum; threadNum *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threadNum);
+            long buildTime = Long.MAX_VALUE;
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                long start = System.nanoTime();
+                new BTree<Integer, Integer>().parallelBulkLoad(entries, pool);
+                buildTime = Math.min(buildTime, System.nanoTime() - start);
+            }
+            pool.shutdown();
+            System.out.println(String.format("%-24s %8d %12d", "parallelBulkLoad", threadNum, buildTime / 1000000L));
+        }
+    }
+
+    //
+    // Count the occurrences of the keys with search() followed by insert(), and with the single descents
+    // of merge() and compute(), on a tree holding a tenth of the keys
+    //
+    public void runCompute() {
+        final int counterNum = Math.max(1, mKeyNum / 10);
+        Integer[] counterKeys = new Integer[mKeyNum];
+        for (int i = 0; i < mKeyNum; ++i) {
+            counterKeys[i] = mKeys[i % counterNum];
+        }
+        final Integer one = 1;
+        BiFunction<Integer, Integer, Integer> sum = new BiFunction<Integer, Integer, Integer>() {
+            @Override
+            public Integer apply(Integer count, Integer increment) {
+                return count + increment;
+            }
+        };
+        BiFunction<Integer, Integer, Integer> increment = new BiFunction<Integer, Integer, Integer>() {
+            @Override
+            public Integer apply(Integer key, Integer count) {
+                return (count == null) ? one : count + 1;
+            }
+        };
+
+        long searchInsertTime = Long.MAX_VALUE, mergeTime = Long.MAX_VALUE, computeTime = Long.MAX_VALUE;
+        long checksum = 0L;
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+            long start = System.nanoTime();
+            for (Integer key : counterKeys) {
+                Integer count = btree.search(key);
+                btree.insert(key, (count == null) ? one : count + 1);
+            }
+            searchInsertTime = Math.min(searchInsertTime, System.nanoTime() - start);
+            checksum += btree.search(counterKeys[0]);
+
+            btree = new BTree<Integer, Integer>();
+            start = System.nanoTime();
+            for (Integer key : counterKeys) {
+                btree.merge(key, one, sum);
+            }
+            mergeTime = Math.min(mergeTime, System.nanoTime() - start);
+            checksum += btree.search(counterKeys[0]);
+
+            btree = new BTree<Integer, Integer>();
+            start = System.nanoTime();
+            for (Integer key : counterKeys) {
+                btree.compute(key, increment);
+            }
+            computeTime = Math.min(computeTime, System.nanoTime() - start);
+            checksum += btree.search(counterKeys[0]);
+        }
+
+        System.out.println("Counting " + mKeyNum + " occurrences of " + counterNum + " keys (checksum " + checksum + ")");
+        System.out.println(String.format("%-20s %16s", "method", "updates/s"));
+        System.out.println(String.format("%-20s %16.0f", "search + insert", throughput(mKeyNum, searchInsertTime)));
+        System.out.println(String.format("%-20s %16.0f", "merge", throughput(mKeyNum, mergeTime)));
+        System.out.println(String.format("%-20s %16.0f", "compute", throughput(mKeyNum, computeTime)));
+    }
+
+    //
+    // Sum the values of the tree with list(), a sequential stream and a parallel stream
+    //
+    public void runStream() {
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+
+        final long[] sum = new long[1];
+        BTIteratorIF<Integer, Integer> summer = new BTIteratorIF<Integer, Integer>() {
+            @Override
+            public boolean item(Integer key, Integer value) {
+                sum[0] += value;
+                return true;
+            }
+        };
+        ToLongFunction<Map.Entry<Integer, Integer>> valueOf = new ToLongFunction<Map.Entry<Integer, Integer>>() {
+            @Override
+            public long applyAsLong(Map.Entry<Integer, Integer> entry) {
+                return entry.getValue();
+            }
+        };
+
+        long listTime = Long.MAX_VALUE, streamTime = Long.MAX_VALUE, parallelTime = Long.MAX_VALUE;
+        long checksum = 0L;
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            long start = System.nanoTime();
+            sum[0] = 0L;
+            btree.list(summer);
+            checksum += sum[0];
+            listTime = Math.min(listTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            checksum += btree.stream().mapToLong(valueOf).sum();
+            streamTime = Math.min(streamTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            checksum += btree.parallelStream().mapToLong(valueOf).sum();
+            parallelTime = Math.min(parallelTime, System.nanoTime() - start);
+        }
+
+        System.out.println("Sum of the values of " + mKeyNum + " random keys, " + Runtime.getRuntime().availableProcessors() +
+                           " processors (checksum " + checksum + ")");
+        System.out.println(String.format("%-20s %16s", "method", "entries/s"));
+        System.out.println(String.format("%-20s %16.0f", "list", throughput(mKeyNum, listTime)));
+        System.out.println(String.format("%-20s %16.0f", "stream", throughput(mKeyNum, streamTime)));
+        System.out.println(String.format("%-20s %16.0f", "parallelStream", throughput(mKeyNum, parallelTime)));
+    }
+
+    //
+    // Measure a DiskBTree for several page sizes against a BTree: inserts and searches of random keys,
+    // and the time to restart, which for the DiskBTree opens the file and for the BTree loads the entries
+    // back from the file into the heap
+    //
+    public void runDisk() {
+        int[] pageSizes = { 1024, 4096, 16384 };
+        int searchNum = Math.min(mKeyNum, 200000);
+        File file;
+        try {
+            file = File.createTempFile("BTreeBenchmark-", ".bt");
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        file.deleteOnExit();
+
+        System.out.println("Inserts of " + mKeyNum + " random keys and " + searchNum + " searches, file " + file);
+        System.out.println(String.format("%-16s %8s %12s %16s %16s %14s", "tree", "degree", "file (MB)", "inserts/s", "searches/s", "restart (ms)"));
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        long start = System.nanoTime();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+        long insertTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        long checksum = 0L;
+        for (int i = 0; i < searchNum; ++i) {
+            checksum += btree.search(mKeys[i]);
+        }
+        long searchTime = System.nanoTime() - start;
+        long restartTime = 0L;
+        btree = null;
+
+        for (int pageSize : pageSizes) {
+            file.delete();
+            try {
+                DiskBTree<Integer, Integer> diskTree = new DiskBTree<Integer, Integer>(file, pageSize, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER);
+                start = System.nanoTime();
+                for (int i = 0; i < mKeyNum; ++i) {
+                    diskTree.insert(mKeys[i], mKeys[i]);
+                }
+                diskTree.close();
+                long diskInsertTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                diskTree = new DiskBTree<Integer, Integer>(file, pageSize, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER);
+                checksum += diskTree.search(mKeys[0]);
+                long diskRestartTime = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < searchNum; ++i) {
+                    checksum += diskTree.search(mKeys[i]);
+                }
+                long diskSearchTime = System.nanoTime() - start;
+
+                if (pageSize == BTPageFile.DEFAULT_PAGE_SIZE) {
+                    // A heap tree has to read all the entries back when it restarts
+                    final List<Map.Entry<Integer, Integer>> entries = new ArrayList<Map.Entry<Integer, Integer>>();
+                    start = System.nanoTime();
+                    diskTree.list(new BTIteratorIF<Integer, Integer>() {
+                        @Override
+                        public boolean item(Integer key, Integer value) {
+                            entries.add(new BTKeyValue<Integer, Integer>(key, value));
+                            return true;
+                        }
+                    });
+                    btree = new BTree<Integer, Integer>().bulkLoad(entries.iterator());
+                    restartTime = System.nanoTime() - start;
+                }
+
+                System.out.println(String.format("%-16s %8d %12.1f %16.0f %16.0f %14.1f", "DiskBTree " + pageSize, diskTree.getMinDegree(),
+                                                 file.length() / 1e6, throughput(mKeyNum, diskInsertTime), throughput(searchNum, diskSearchTime),
+                                                 diskRestartTime / 1e6));
+                diskTree.close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        file.delete();
+        System.out.println(String.format("%-16s %8d %12s %16.0f %16.0f %14.1f", "BTree (heap)", btree.getMinDegree(), "-",
+                                         throughput(mKeyNum, insertTime), throughput(searchNum, searchTime), restartTime / 1e6));
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    //
+    // Measure the buffer pool of a DiskBTree of 4 KB pages for several memory budgets and both eviction policies,
+    // with uniform searches and with skewed ones where a tenth of the keys gets most of the searches
+    //
+    public void runBufferPool() {
+        long[] memoryBudgets = { 1L << 20, 4L << 20, 16L << 20, 64L << 20 };
+        int searchNum = Math.min(mKeyNum, 500000);
+        File file;
+        try {
+            file = File.createTempFile("BTreeBenchmark-", ".bt");
+            file.delete();
+            DiskBTree<Integer, Integer> diskTree = new DiskBTree<Integer, Integer>(file, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER);
+            for (int i = 0; i < mKeyNum; ++i) {
+                diskTree.insert(mKeys[i], mKeys[i]);
+            }
+            diskTree.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        file.deleteOnExit();
+
+        System.out.println(searchNum + " searches among " + mKeyNum + " keys, file of " + file.length() / 1000000L + " MB");
+        System.out.println(String.format("%-8s %10s %8s %12s %12s %14s %14s", "budget", "policy", "keys", "searches/s", "hit ratio", "reads/search", "hot frames"));
+        long checksum = 0L;
+        for (long memoryBudget : memoryBudgets) {
+            for (int policyIdx = 0; policyIdx < 2; ++policyIdx) {
+                for (int skew = 1; skew <= 3; skew += 2) {
+                    BTEvictionPolicyIF policy = (policyIdx == 0) ? new BTClockEviction() : new BTLruKEviction();
+                    try {
+                        DiskBTree<Integer, Integer> diskTree = new DiskBTree<Integer, Integer>(file, BTPageFile.DEFAULT_PAGE_SIZE,
+                                                                                               BTPageCodecs.INTEGER, BTPageCodecs.INTEGER,
+                                                                                               memoryBudget, policy);
+                        // Warm the pool up, then count the searches that follow
+                        Random rand = new Random(7L);
+                        for (int i = 0; i < searchNum; ++i) {
+                            checksum += diskTree.search(mKeys[(int) (mKeyNum * Math.pow(rand.nextDouble(), skew))]);
+                        }
+                        BTBufferPool<Integer, Integer> pool = diskTree.getBufferPool();
+                        pool.resetCounters();
+                        long start = System.nanoTime();
+                        for (int i = 0; i < searchNum; ++i) {
+                            checksum += diskTree.search(mKeys[(int) (mKeyNum * Math.pow(rand.nextDouble(), skew))]);
+                        }
+                        long searchTime = System.nanoTime() - start;
+                        System.out.println(String.format("%-8s %10s %8s %12.0f %12.3f %14.3f %14d", (memoryBudget >> 20) + " MB",
+                                                         (policyIdx == 0) ? "CLOCK" : "LRU-2", (skew == 1) ? "uniform" : "skewed",
+                                                         throughput(searchNum, searchTime),
+                                                         (double) pool.getHitNum() / (pool.getHitNum() + pool.getMissNum()),
+                                                         (double) pool.getMissNum() / searchNum, pool.getHotFrameNum()));
+                        diskTree.close();
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+        file.delete();
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    //
+    // Measure a BTMappedSnapshot exported from a BTree: the time to write and to open it, and its searches and
+    // scans against the BTree and a DiskBTree holding the same keys
+    //
+    public void runMappedSnapshot() {
+        int searchNum = Math.min(mKeyNum, 500000);
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        for (int i = 0; i < mKeyNum; ++i) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+
+        long checksum = 0L;
+        try {
+            File snapshotFile = File.createTempFile("BTreeBenchmark-", ".bts");
+            File diskFile = File.createTempFile("BTreeBenchmark-", ".bt");
+            snapshotFile.deleteOnExit();
+            diskFile.deleteOnExit();
+            diskFile.delete();
+
+            long start = System.nanoTime();
+            BTMappedSnapshot.write(snapshotFile, btree, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER);
+            long writeTime = System.nanoTime() - start;
+            DiskBTree<Integer, Integer> diskTree = new DiskBTree<Integer, Integer>(diskFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER);
+            for (int i = 0; i < mKeyNum; ++i) {
+                diskTree.insert(mKeys[i], mKeys[i]);
+            }
+            diskTree.close();
+
+            start = System.nanoTime();
+            BTMappedSnapshot<Integer, Integer> snapshot = new BTMappedSnapshot<Integer, Integer>(snapshotFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER);
+            checksum += snapshot.search(mKeys[0]);
+            long openTime = System.nanoTime() - start;
+            diskTree = new DiskBTree<Integer, Integer>(diskFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER);
+
+            System.out.println(mKeyNum + " random keys, snapshot of " + snapshotFile.length() / 1000000.0 + " MB in " + snapshot.getLevelNum() +
+                               " levels written in " + writeTime / 1000000L + " ms and opened in " + openTime / 1e6 + " ms, DiskBTree file of " +
+                               diskFile.length() / 1000000.0 + " MB");
+            System.out.println(String.format("%-20s %16s %16s", "tree", "searches/s", "scanned/s"));
+            BTreeIF<Integer, Integer>[] trees = new BTreeIF[] { btree, diskTree, snapshot };
+            String[] names = { "BTree (heap)", "DiskBTree", "BTMappedSnapshot" };
+            for (int t = 0; t < trees.length; ++t) {
+                long searchTime = Long.MAX_VALUE, scanTime = Long.MAX_VALUE;
+                for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                    start = System.nanoTime();
+                    for (int i = 0; i < searchNum; ++i) {
+                        checksum += trees[t].search(mKeys[i]);
+                    }
+                    searchTime = Math.min(searchTime, System.nanoTime() - start);
+
+                    final long[] sum = { 0L };
+                    start = System.nanoTime();
+                    trees[t].list(new BTIteratorIF<Integer, Integer>() {
+                        @Override
+                        public boolean item(Integer key, Integer value) {
+                            sum[0] += value;
+                            return true;
+                        }
+                    });
+                    scanTime = Math.min(scanTime, System.nanoTime() - start);
+                    checksum += sum[0];
+                }
+                System.out.println(String.format("%-20s %16.0f %16.0f", names[t], throughput(searchNum, searchTime), throughput(mKeyNum, scanTime)));
+            }
+            diskTree.close();
+            snapshot.close();
+            snapshotFile.delete();
+            diskFile.delete();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    //
+    // Compare the ingest of a DurableBTree under each sync policy against a BTree behind a single lock, with
+    // several threads inserting distinct keys, and count the fsyncs of each. PER_OPERATION inserts fewer keys
+    // since each waits for an fsync
+    //
+    public void runWriteAheadLog() {
+        int[] threadNums = { 1, 4, 16, 64 };
+        BTWriteAheadLog.SyncPolicy[] policies = BTWriteAheadLog.SyncPolicy.values();
+
+        System.out.println("Inserts of distinct keys, sync interval " + BTWriteAheadLog.DEFAULT_SYNC_INTERVAL_MILLIS + " ms");
+        System.out.println(String.format("%8s %17s %25s %25s %25s", "threads", "in memory (ops/s)",
+                                         "PER_OPERATION (ops/s)", "GROUP_COMMIT (ops/s)", "ASYNC (ops/s)"));
+        try {
+            File logFile = File.createTempFile("BTreeBenchmark-", ".wal");
+            logFile.deleteOnExit();
+            for (int threadNum : threadNums) {
+                double memoryThroughput = 0.0;
+                for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                    memoryThroughput = Math.max(memoryThroughput,
+                                                measureIngest(new SynchronizedBTree<Integer, Integer>(new BTree<Integer, Integer>()), threadNum, mKeyNum));
+                }
+                StringBuilder line = new StringBuilder(String.format("%8d %17.0f", threadNum, memoryThroughput));
+                for (BTWriteAheadLog.SyncPolicy policy : policies) {
+                    int opNum = (policy == BTWriteAheadLog.SyncPolicy.PER_OPERATION) ? Math.min(mKeyNum, 2000 * threadNum) : mKeyNum;
+                    double throughput = 0.0;
+                    long syncNum = 0L;
+                    for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                        DurableBTree.delete(logFile);
+                        DurableBTree<Integer, Integer> btree = new DurableBTree<Integer, Integer>(logFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER, policy);
+                        double roundThroughput = measureIngest(btree, threadNum, opNum);
+                        if (roundThroughput > throughput) {
+                            throughput = roundThroughput;
+                            syncNum = btree.getLog().getSyncNum();
+                        }
+                        btree.close();
+                    }
+                    line.append(String.format(" %9.0f (%6d fsyncs)", throughput, syncNum));
+                }
+                System.out.println(line);
+            }
+            DurableBTree.delete(logFile);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //
+    // Run the threads inserting opNum distinct keys in all, each its own share of them
+    //
+    private double measureIngest(final BTreeIF<Integer, Integer> btree, int threadNum, int opNum) {
+        final int threadOpNum = opNum / threadNum;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadNum];
+        for (int t = 0; t < threadNum; ++t) {
+            final int keyOffset = t * threadOpNum;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = keyOffset; i < keyOffset + threadOpNum; ++i) {
+                        btree.insert(mKeys[i], mKeys[i]);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        long start = System.nanoTime();
+        startSignal.countDown();
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the benchmark threads", e);
+        }
+        return throughput((long) threadOpNum * threadNum, System.nanoTime() - start);
+    }
+
+    //
+    // Measure the time to the first query after a restart, recovering the tree by replaying its whole log, or by
+    // loading its checkpoint and replaying the log tail that follows it, against loading the checkpoint alone
+    // Also measure the checkpoint, written while a writer goes on updating the tree
+    //
+    public void runCheckpoint() {
+        long writerNanos = 500000000L; // time the writer runs alone
+        int tailNum = mKeyNum / 100;
+        try {
+            File logFile = File.createTempFile("BTreeBenchmark-", ".wal");
+            logFile.deleteOnExit();
+            DurableBTree.delete(logFile);
+            DurableBTree<Integer, Integer> btree = new DurableBTree<Integer, Integer>(logFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER,
+                                                                                       BTWriteAheadLog.SyncPolicy.GROUP_COMMIT);
+            for (int i = 0; i < mKeyNum; ++i) {
+                btree.insert(mKeys[i], mKeys[i]);
+            }
+            btree.close();
+            long replayTime = measureRecovery(logFile);
+
+            // Update the tree with a writer thread, alone and then during a checkpoint
+            DurableBTree<Integer, Integer> durableTree = new DurableBTree<Integer, Integer>(logFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER,
+                                                                                           BTWriteAheadLog.SyncPolicy.GROUP_COMMIT);
+            double[] writerThroughput = null;
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                writerThroughput = measureWriterDuring(durableTree, writerNanos, false);
+            }
+            double[] checkpointWriterThroughput = measureWriterDuring(durableTree, 0L, true);
+            for (int i = 0; i < tailNum; ++i) {
+                durableTree.insert(mKeys[i], -mKeys[i]);
+            }
+            long tailRecordNum = durableTree.getLog().getLastLsn() - durableTree.getCheckpointLsn();
+            durableTree.close();
+            long checkpointRecoveryTime = measureRecovery(logFile);
+
+            long loadTime = Long.MAX_VALUE;
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                BTree<Integer, Integer> loadedTree = new BTree<Integer, Integer>();
+                long start = System.nanoTime();
+                BTCheckpoint.load(new File(logFile.getPath() + DurableBTree.CHECKPOINT_SUFFIX), BTPageCodecs.INTEGER, BTPageCodecs.INTEGER, loadedTree);
+                loadedTree.search(mKeys[0]);
+                loadTime = Math.min(loadTime, System.nanoTime() - start);
+            }
+
+            System.out.println(mKeyNum + " random keys, checkpoint of " +
+                               new File(logFile.getPath() + DurableBTree.CHECKPOINT_SUFFIX).length() / 1000000.0 + " MB");
+            System.out.println(String.format("%-28s %24s %18s", "recovery", "time to first query (ms)", "records replayed"));
+            System.out.println(String.format("%-28s %24.1f %18d", "whole log replayed", replayTime / 1e6, mKeyNum));
+            System.out.println(String.format("%-28s %24.1f %18d", "checkpoint and log tail", checkpointRecoveryTime / 1e6, tailRecordNum));
+            System.out.println(String.format("%-28s %24.1f %18d", "checkpoint alone", loadTime / 1e6, 0));
+            System.out.println(String.format("Checkpoint written in %.1f ms, a writer meanwhile at %.0f updates/s (%.0f without a checkpoint)",
+                                             checkpointWriterThroughput[1] / 1e6, checkpointWriterThroughput[0], writerThroughput[0]));
+            DurableBTree.delete(logFile);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //
+    // Best time to reopen the tree of the log file and search it once
+    //
+    private long measureRecovery(File logFile) throws IOException {
+        long recoveryTime = Long.MAX_VALUE;
+        for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+            long start = System.nanoTime();
+            DurableBTree<Integer, Integer> btree = new DurableBTree<Integer, Integer>(logFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER,
+                                                                                     BTWriteAheadLog.SyncPolicy.GROUP_COMMIT);
+            btree.search(mKeys[0]);
+            recoveryTime = Math.min(recoveryTime, System.nanoTime() - start);
+            btree.close();
+        }
+        return recoveryTime;
+    }
+
+    //
+    // Run a writer thread updating the keys of the tree for the given time, or while a checkpoint is written
+    // Return the throughput of the writer and the time it ran
+    //
+    private double[] measureWriterDuring(final DurableBTree<Integer, Integer> btree, long nanos, boolean isCheckpointing) throws IOException {
+        final boolean[] isStopped = { false };
+        final long[] updateNum = { 0L };
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; ; i = (i + 1) % mKeyNum) {
+                    synchronized (isStopped) {
+                        if (isStopped[0]) {
+                            return;
+                        }
+                    }
+                    btree.insert(mKeys[i], mKeys[i] + 1);
+                    ++updateNum[0];
+                }
+            }
+        });
+        long start = System.nanoTime();
+        writer.start();
+        try {
+            if (isCheckpointing) {
+                btree.checkpoint();
+            }
+            else {
+                Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+            }
+            long time = System.nanoTime() - start;
+            synchronized (isStopped) {
+                isStopped[0] = true;
+            }
+            writer.join();
+            return new double[] { throughput(updateNum[0], time), time };
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the benchmark writer", e);
+        }
+    }
+
+    //
+    // Compare a ConcurrentBTree and a ShardedBTree against a BTree behind a single lock, with several threads running
+    // a read-mostly and an update-heavy mix of searches, inserts and deletes on a preloaded tree
+    //
+    public void runConcurrent() {
+        int processorNum = Runtime.getRuntime().availableProcessors();
+        int maxThreadNum = Math.max(4, processorNum);
+        int[] searchPercents = { 90, 50 };
+
+        System.out.println("Mixed operations on " + mKeyNum / 2 + " preloaded keys, " + processorNum + " processors");
+        System.out.println(String.format("%-10s %8s %20s %20s %20s", "searches", "threads", "synchronized (ops/s)", "concurrent (ops/s)", "sharded (ops/s)"));
+        for (int searchPercent : searchPercents) {
+            for (int threadNum = 1; threadNum <= maxThreadNum; threadNum *= 2) {
+                double lockedThroughput = 0.0, concurrentThroughput = 0.0, shardedThroughput = 0.0;
+                for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                    lockedThroughput = Math.max(lockedThroughput,
+                                                measureConcurrent(new SynchronizedBTree<Integer, Integer>(new BTree<Integer, Integer>()), threadNum, searchPercent));
+                    concurrentThroughput = Math.max(concurrentThroughput,
+                                                    measureConcurrent(new ConcurrentBTree<Integer, Integer>(), threadNum, searchPercent));
+                    shardedThroughput = Math.max(shardedThroughput,
+                                                 measureConcurrent(new ShardedBTree<Integer, Integer>(), threadNum, searchPercent));
+                }
+                System.out.println(String.format("%-10s %8d %20.0f %20.0f %20.0f", searchPercent + "%", threadNum,
+                                                 lockedThroughput, concurrentThroughput, shardedThroughput));
+            }
+        }
+    }
+
+    private double measureConcurrent(final BTreeIF<Integer, Integer> btree, int threadNum, final int searchPercent) {
+        for (int i = 0; i < mKeyNum; i += 2) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+
+        final int threadOpNum = mKeyNum / threadNum;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadNum];
+        for (int t = 0; t < threadNum; ++t) {
+            final long seed = 100L + t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    try {
+                        startSignal.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < threadOpNum; ++i) {
+                        Integer key = mKeys[rand.nextInt(mKeyNum)];
+                        int op = rand.nextInt(100);
+                        if (op < searchPercent) {
+                            btree.search(key);
+                        }
+                        else if ((op & 1) == 0) {
+                            btree.insert(key, key);
+                        }
+                        else {
+                            btree.delete(key);
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        long start = System.nanoTime();
+        startSignal.countDown();
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the benchmark threads", e);
+        }
+        return throughput((long) threadOpNum * threadNum, System.nanoTime() - start);
+    }
+
+    //
+    // Compare a CombiningBTree against a BTree behind a single lock, with many producer threads inserting and
+    // deleting random keys of a preloaded tree. The latency of every blocking call is recorded, and the
+    // combining tree is also measured with producers that queue their requests and only wait at the end
+    //
+    public void runCombining() {
+        int processorNum = Runtime.getRuntime().availableProcessors();
+        int maxThreadNum = Math.max(32, processorNum);
+
+        System.out.println("Inserts and deletes on " + mKeyNum / 2 + " preloaded keys, " + processorNum + " processors");
+        System.out.println(String.format("%8s %16s %10s %10s %16s %10s %10s %16s", "threads",
+                                         "locked (ops/s)", "p50 (us)", "p99 (us)",
+                                         "combining (ops/s)", "p50 (us)", "p99 (us)", "async (ops/s)"));
+        for (int threadNum = 1; threadNum <= maxThreadNum; threadNum *= 2) {
+            double lockedThroughput = 0.0, combiningThroughput = 0.0, asyncThroughput = 0.0;
+            long[] lockedLatencies = null, combiningLatencies = null;
+            for (int round = 0; round <= WARMUP_ROUNDS; ++round) {
+                long[] latencies = new long[mKeyNum / threadNum * threadNum];
+                double throughput = measureWriters(new SynchronizedBTree<Integer, Integer>(new BTree<Integer, Integer>()), threadNum, latencies);
+                if (throughput > lockedThroughput) {
+                    lockedThroughput = throughput;
+                    lockedLatencies = latencies;
+                }
+
+                latencies = new long[mKeyNum / threadNum * threadNum];
+                throughput = measureWriters(new CombiningBTree<Integer, Integer>(), threadNum, latencies);
+                if (throughput > combiningThroughput) {
+                    combiningThroughput = throughput;
+                    combiningLatencies = latencies;
+                }
+
+                asyncThroughput = Math.max(asyncThroughput, measureWriters(new CombiningBTree<Integer, Integer>(), threadNum, null));
+            }
+            Arrays.sort(lockedLatencies);
+            Arrays.sort(combiningLatencies);
+            System.out.println(String.format("%8d %16.0f %10.2f %10.2f %16.0f %10.2f %10.2f %16.0f", threadNum,
+                                             lockedThroughput, percentile(lockedLatencies, 50), percentile(lockedLatencies, 99),
+                                             combiningThroughput, percentile(combiningLatencies, 50), percentile(combiningLatencies, 99),
+                                             asyncThroughput));
+        }
+    }
+
+    //
+    // Run the producers, recording the latency of each blocking call in latencies
+    // With no latencies, the producers queue their requests on the CombiningBTree and wait for all of them at the end
+    //
+    private double measureWriters(final BTreeIF<Integer, Integer> btree, int threadNum, final long[] latencies) {
+        for (int i = 0; i < mKeyNum; i += 2) {
+            btree.insert(mKeys[i], mKeys[i]);
+        }
+
+        final int threadOpNum = mKeyNum / threadNum;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadNum];
+        for (int t = 0; t < threadNum; ++t) {
+            final long seed = 100L + t;
+            final int latencyOffset = t * threadOpNum;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+                    try {
+                        startSignal.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < threadOpNum; ++i) {
+                        Integer key = mKeys[rand.nextInt(mKeyNum)];
+                        boolean isInsert = rand.nextBoolean();
+                        if (latencies == null) {
+                            CombiningBTree<Integer, Integer> combiningBTree = (CombiningBTree<Integer, Integer>) btree;
+                            futures.add(isInsert ? combiningBTree.insertAsync(key, key) : combiningBTree.deleteAsync(key));
+                            continue;
+                        }
+                        long start = System.nanoTime();
+                        if (isInsert) {
+                            btree.insert(key, key);
+                        }
+                        else {
+                            btree.delete(key);
+                        }
+                        latencies[latencyOffset + i] = System.nanoTime() - start;
+                    }
+                    for (CompletableFuture<Integer> future : futures) {
+                        future.join();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        long start = System.nanoTime();
+        startSignal.countDown();
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the benchmark threads", e);
+        }
+        return throughput((long) threadOpNum * threadNum, System.nanoTime() - start);
+    }
+
+    //
+    // Percentile of sorted latencies in nanoseconds, in microseconds
+    //
+    private static double percentile(long[] sortedLatencies, int percent) {
+        int idx = (int) Math.min(sortedLatencies.length - 1L, (long) sortedLatencies.length * percent / 100);
+        return sortedLatencies[idx] / 1e3;
+    }
+
+    private static long countNodes(BTNode btNode) {
+        long nodeNum = 1;
+        if (!btNode.mIsLeaf) {
+            for (int i = 0; i <= btNode.mCurrentKeyNum; ++i) {
+                nodeNum += countNodes(btNode.mChildren[i]);
+            }
+        }
+        return nodeNum;
+    }
+
+    protected static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    protected static double throughput(long opNum, long nanos) {
+        return opNum * 1e9 / Math.max(nanos, 1L);
+    }
+
+    public static void main(String[] args) {
+        String scenario = (args.length > 0) ? args[0] : "degree";
+        int keyNum = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_KEY_NUM;
+        BTreeBenchmark benchmark = new BTreeBenchmark(keyNum);
+
+        if ("degree".equals(scenario)) {
+            benchmark.runDegrees();
+        }
+        else if ("primitive".equals(scenario)) {
+            benchmark.runPrimitive();
+        }
+        else if ("search".equals(scenario)) {
+            benchmark.runSearchStrategies();
+        }
+        else if ("scan".equals(scenario)) {
+            benchmark.runScan();
+        }
+        else if ("range".equals(scenario)) {
+            benchmark.runRange();
+        }
+        else if ("bulk".equals(scenario)) {
+            benchmark.runBulkLoad();
+        }
+        else if ("delete".equals(scenario)) {
+            benchmark.runDelete();
+        }
+        else if ("batch".equals(scenario)) {
+            benchmark.runBatchInsert();
+        }
+        else if ("rank".equals(scenario)) {
+            benchmark.runRank();
+        }
+        else if ("aggregate".equals(scenario)) {
+            benchmark.runAggregate();
+        }
+        else if ("snapshot".equals(scenario)) {
+            benchmark.runSnapshot();
+        }
+        else if ("build".equals(scenario)) {
+            benchmark.runParallelBuild();
+        }
+        else if ("compute".equals(scenario)) {
+            benchmark.runCompute();
+        }
+        else if ("stream".equals(scenario)) {
+            benchmark.runStream();
+        }
+        else if ("disk".equals(scenario)) {
+            benchmark.runDisk();
+        }
+        else if ("bufferpool".equals(scenario)) {
+            benchmark.runBufferPool();
+        }
+        else if ("mapped".equals(scenario)) {
+            benchmark.runMappedSnapshot();
+        }
+        else if ("wal".equals(scenario)) {
+            benchmark.runWriteAheadLog();
+        }
+        else if ("checkpoint".equals(scenario)) {
+            benchmark.runCheckpoint();
+        }
+        else if ("concurrent".equals(scenario)) {
+            benchmark.runConcurrent();
+        }
+        else if ("combining".equals(scenario)) {
+            benchmark.runCombining();
+        }
+        else {
+            System.out.println("Unknown scenario: " + scenario);
+        }
+    }
+
+
+    //
+    // BTree behind a single lock, the usual way to share a tree that is not thread safe
+    //
+    private static class SynchronizedBTree<K extends Comparable, V> implements BTreeIF<K, V> {
+        private final BTree<K, V> mTree;
+
+        private SynchronizedBTree(BTree<K, V> btree) {
+            mTree = btree;
+        }
+
+        @Override
+        public synchronized V search(K key) {
+            return mTree.search(key);
+        }
+
+        @Override
+        public synchronized BTreeIF<K, V> insert(K key, V value) {
+            mTree.insert(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized V delete(K key) {
+            return mTree.delete(key);
+        }
+
+        @Override
+        public synchronized void list(BTIteratorIF<K, V> iterImpl) {
+            mTree.list(iterImpl);
+        }
+
+        @Override
+        public synchronized void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+            mTree.range(fromKey, fromInclusive, toKey, toInclusive, iterImpl);
+        }
+
+        @Override
+        public synchronized long size() {
+            return mTree.size();
+        }
+
+        @Override
+        public synchronized void clear() {
+            mTree.clear();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package app;
+
+//
+// Operations shared by the tree variants, so that callers can switch between them
+//
+public interface BTreeIF <K extends Comparable, V> {
+    public V search(K key);
+    public BTreeIF<K, V> insert(K key, V value);
+    public V delete(K key);
+    public void list(BTIteratorIF<K, V> iterImpl);
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl);
+    public long size();
+    public void clear();
+}
@@ -0,0 +1,695 @@
+package app;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+//
+// java.util.NavigableMap backed by a BTree, in the natural order of the keys
+// The views returned by headMap, tailMap, subMap and descendingMap share the tree and only
+// carry their bounds and direction, so they are created without copying anything
+// The lookups of floor, ceiling, higher and lower keys are single descents of the tree
+//
+public class BTreeMap<K extends Comparable, V> extends AbstractMap<K, V> implements NavigableMap<K, V>
+{
+    private final BTree<K, V> mTree;
+    private final K mLowKey; // lowest key of the view in ascending order, null if unbounded
+    private final boolean mLowInclusive;
+    private final K mHighKey; // highest key of the view in ascending order, null if unbounded
+    private final boolean mHighInclusive;
+    private final boolean mDescending;
+
+
+    //
+    // Create a map over a new tree with the default node degree
+    //
+    public BTreeMap() {
+        this(new BTree<K, V>());
+    }
+
+    //
+    // Create a map over a new tree with the given node degree
+    //
+    public BTreeMap(int minDegree) {
+        this(new BTree<K, V>(minDegree));
+    }
+
+    //
+    // Create a map over an existing tree, the changes of the map are made in the tree
+    //
+    public BTreeMap(BTree<K, V> btree) {
+        this(btree, null, false, null, false, false);
+    }
+
+    private BTreeMap(BTree<K, V> btree, K lowKey, boolean lowInclusive, K highKey, boolean highInclusive, boolean descending) {
+        mTree = btree;
+        mLowKey = lowKey;
+        mLowInclusive = lowInclusive;
+        mHighKey = highKey;
+        mHighInclusive = highInclusive;
+        mDescending = descending;
+    }
+
+    //
+    // Get the tree behind the map
+    //
+    public BTree<K, V> getTree() {
+        return mTree;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(mTree.countBetween(mLowKey, mLowInclusive, mHighKey, mHighInclusive), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return absLowest() == null;
+    }
+
+    @Override
+    public V get(Object key) {
+        checkKey(key);
+        return inRange(key) ? mTree.search((K) key) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        checkKey(key);
+        if (!inRange(key)) {
+            return false;
+        }
+        if (mTree.search((K) key) != null) {
+            return true;
+        }
+
+        // The key may be there with a null value
+        BTKeyValue<K, V> entry = mTree.ceilingEntry((K) key, true);
+        return (entry != null) && (compare(entry.mKey, key) == 0);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        checkKeyInRange(key);
+        return mTree.put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        checkKey(key);
+        return inRange(key) ? mTree.delete((K) key) : null;
+    }
+
+    //
+    // The read-modify-write operations below are single descents of the tree
+    //
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        checkKeyInRange(key);
+        return mTree.compute(key, remappingFunction);
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        checkKeyInRange(key);
+        return mTree.computeIfAbsent(key, mappingFunction);
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        checkKey(key);
+        return inRange(key) ? mTree.computeIfPresent(key, remappingFunction) : null;
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        checkKeyInRange(key);
+        return mTree.merge(key, value, remappingFunction);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        checkKeyInRange(key);
+        return mTree.putIfAbsent(key, value);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        checkKey(key);
+        return inRange(key) ? mTree.replace(key, value) : null;
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        checkKey(key);
+        return inRange(key) && mTree.replace(key, oldValue, newValue);
+    }
+
+    //
+    // Replace the value of each key of the view in place, in the order of the view
+    //
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        for (Map.Entry<K, V> entry : entrySet()) {
+            entry.setValue(function.apply(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    @Override
+    public void clear() {
+        if ((mLowKey == null) && (mHighKey == null)) {
+            mTree.clear();
+        }
+        else {
+            super.clear();
+        }
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return mDescending ? (Comparator<? super K>) Collections.reverseOrder() : null;
+    }
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key) {
+        return mDescending ? absCeiling(key, false) : absFloor(key, false);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(K key) {
+        return mDescending ? absCeiling(key, true) : absFloor(key, true);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key) {
+        return mDescending ? absFloor(key, true) : absCeiling(key, true);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(K key) {
+        return mDescending ? absFloor(key, false) : absCeiling(key, false);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+        return mDescending ? absHighest() : absLowest();
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+        return mDescending ? absLowest() : absHighest();
+    }
+
+    @Override
+    public K firstKey() {
+        return keyOrThrow(firstEntry());
+    }
+
+    @Override
+    public K lastKey() {
+        return keyOrThrow(lastEntry());
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+        Map.Entry<K, V> entry = firstEntry();
+        if (entry != null) {
+            mTree.delete(entry.getKey());
+        }
+        return entry;
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+        Map.Entry<K, V> entry = lastEntry();
+        if (entry != null) {
+            mTree.delete(entry.getKey());
+        }
+        return entry;
+    }
+
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+        return new BTreeMap<K, V>(mTree, mLowKey, mLowInclusive, mHighKey, mHighInclusive, !mDescending);
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        checkKey(fromKey);
+        checkKey(toKey);
+        if ((mDescending ? compare(toKey, fromKey) : compare(fromKey, toKey)) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return mDescending ? createView(toKey, toInclusive, fromKey, fromInclusive)
+                           : createView(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+        checkKey(toKey);
+        return mDescending ? createView(toKey, inclusive, null, false) : createView(null, false, toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+        checkKey(fromKey);
+        return mDescending ? createView(null, false, fromKey, inclusive) : createView(fromKey, inclusive, null, false);
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> keySet() {
+        return navigableKeySet();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    //
+    // Create a view narrowed to the given bounds in ascending order
+    // A null bound keeps the bound of this map
+    //
+    private BTreeMap<K, V> createView(K lowKey, boolean lowInclusive, K highKey, boolean highInclusive) {
+        if (lowKey == null) {
+            lowKey = mLowKey;
+            lowInclusive = mLowInclusive;
+        }
+        else if (!inRange(lowKey, lowInclusive)) {
+            throw new IllegalArgumentException("key out of range");
+        }
+
+        if (highKey == null) {
+            highKey = mHighKey;
+            highInclusive = mHighInclusive;
+        }
+        else if (!inRange(highKey, highInclusive)) {
+            throw new IllegalArgumentException("key out of range");
+        }
+
+        return new BTreeMap<K, V>(mTree, lowKey, lowInclusive, highKey, highInclusive, mDescending);
+    }
+
+    //
+    // Entry of the lowest key of the view in ascending order
+    //
+    private BTKeyValue<K, V> absLowest() {
+        BTKeyValue<K, V> entry = (mLowKey == null) ? mTree.firstEntry() : mTree.ceilingEntry(mLowKey, mLowInclusive);
+        return ((entry == null) || tooHigh(entry.mKey)) ? null : entry;
+    }
+
+    //
+    // Entry of the highest key of the view in ascending order
+    //
+    private BTKeyValue<K, V> absHighest() {
+        BTKeyValue<K, V> entry = (mHighKey == null) ? mTree.lastEntry() : mTree.floorEntry(mHighKey, mHighInclusive);
+        return ((entry == null) || tooLow(entry.mKey)) ? null : entry;
+    }
+
+    //
+    // Entry of the lowest key of the view greater than the key, or equal to it if inclusive
+    //
+    private BTKeyValue<K, V> absCeiling(K key, boolean inclusive) {
+        checkKey(key);
+        if (tooLow(key)) {
+            return absLowest();
+        }
+        BTKeyValue<K, V> entry = mTree.ceilingEntry(key, inclusive);
+        return ((entry == null) || tooHigh(entry.mKey)) ? null : entry;
+    }
+
+    //
+    // Entry of the highest key of the view lower than the key, or equal to it if inclusive
+    //
+    private BTKeyValue<K, V> absFloor(K key, boolean inclusive) {
+        checkKey(key);
+        if (tooHigh(key)) {
+            return absHighest();
+        }
+        BTKeyValue<K, V> entry = mTree.floorEntry(key, inclusive);
+        return ((entry == null) || tooLow(entry.mKey)) ? null : entry;
+    }
+
+    private boolean tooLow(Object key) {
+        if (mLowKey == null) {
+            return false;
+        }
+        int cmp = compare(key, mLowKey);
+        return (cmp < 0) || ((cmp == 0) && !mLowInclusive);
+    }
+
+    private boolean tooHigh(Object key) {
+        if (mHighKey == null) {
+            return false;
+        }
+        int cmp = compare(key, mHighKey);
+        return (cmp > 0) || ((cmp == 0) && !mHighInclusive);
+    }
+
+    private boolean inRange(Object key) {
+        return !tooLow(key) && !tooHigh(key);
+    }
+
+    //
+    // A bound of a view may reach an excluded bound of this map, but not pass it
+    //
+    private boolean inRange(Object key, boolean inclusive) {
+        if (inclusive) {
+            return inRange(key);
+        }
+        return ((mLowKey == null) || (compare(key, mLowKey) >= 0)) &&
+               ((mHighKey == null) || (compare(key, mHighKey) <= 0));
+    }
+
+    private static int compare(Object key1, Object key2) {
+        return ((Comparable) key1).compareTo(key2);
+    }
+
+    private static void checkKey(Object key) {
+        if (key == null) {
+            throw new NullPointerException("null keys are not supported");
+        }
+    }
+
+    //
+    // Check a key that may be added to the map
+    //
+    private void checkKeyInRange(Object key) {
+        checkKey(key);
+        if (!inRange(key)) {
+            throw new IllegalArgumentException("key out of range");
+        }
+    }
+
+    private static <K> K keyOrNull(Map.Entry<K, ?> entry) {
+        return (entry == null) ? null : entry.getKey();
+    }
+
+    private static <K> K keyOrThrow(Map.Entry<K, ?> entry) {
+        if (entry == null) {
+            throw new NoSuchElementException();
+        }
+        return entry.getKey();
+    }
+
+    //
+    // Walk over the entries of the view
+    // The ascending walks follow a cursor, the descending ones go down the tree at each step
+    //
+    private abstract class EntryWalker<T> implements Iterator<T>
+    {
+        private final BTCursor<K, V> mCursor;
+        private BTKeyValue<K, V> mNextEntry;
+        private BTKeyValue<K, V> mLastEntry = null;
+
+        EntryWalker() {
+            if (mDescending) {
+                mCursor = null;
+                mNextEntry = absHighest();
+            }
+            else {
+                mCursor = mTree.cursor().seek(mLowKey, mLowInclusive);
+                mNextEntry = readCursor();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNextEntry != null;
+        }
+
+        protected BTKeyValue<K, V> nextEntry() {
+            if (mNextEntry == null) {
+                throw new NoSuchElementException();
+            }
+            mLastEntry = mNextEntry;
+            mNextEntry = mDescending ? absFloor(mLastEntry.mKey, false) : readCursor();
+            return mLastEntry;
+        }
+
+        private BTKeyValue<K, V> readCursor() {
+            if (!mCursor.hasNext()) {
+                return null;
+            }
+            K key = mCursor.next();
+            return tooHigh(key) ? null : new BTKeyValue<K, V>(key, mCursor.getValue());
+        }
+
+        @Override
+        public void remove() {
+            if (mLastEntry == null) {
+                throw new IllegalStateException();
+            }
+            mTree.delete(mLastEntry.mKey);
+            mLastEntry = null;
+        }
+    }
+
+    //
+    // Entry of the entry set iterators, whose setValue() changes the value of its key in the tree
+    //
+    private class WriteThroughEntry extends BTKeyValue<K, V>
+    {
+        WriteThroughEntry(K key, V value) {
+            super(key, value);
+        }
+
+        @Override
+        public V setValue(V value) {
+            V oldValue = mValue;
+            mTree.put(mKey, value);
+            mValue = value;
+            return oldValue;
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>>
+    {
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryWalker<Map.Entry<K, V>>() {
+                @Override
+                public Map.Entry<K, V> next() {
+                    BTKeyValue<K, V> entry = nextEntry();
+                    return new WriteThroughEntry(entry.mKey, entry.mValue);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return BTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return BTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object obj) {
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry entry = (Map.Entry) obj;
+            Object key = entry.getKey();
+            if ((key == null) || !containsKey(key)) {
+                return false;
+            }
+            V value = get(key);
+            return (value == null) ? (entry.getValue() == null) : value.equals(entry.getValue());
+        }
+
+        @Override
+        public boolean remove(Object obj) {
+            if (!contains(obj)) {
+                return false;
+            }
+            BTreeMap.this.remove(((Map.Entry) obj).getKey());
+            return true;
+        }
+    }
+
+    private class KeySet extends AbstractSet<K> implements NavigableSet<K>
+    {
+        @Override
+        public Iterator<K> iterator() {
+            return new EntryWalker<K>() {
+                @Override
+                public K next() {
+                    return nextEntry().mKey;
+                }
+            };
+        }
+
+        @Override
+        public Iterator<K> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        @Override
+        public int size() {
+            return BTreeMap.this.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return BTreeMap.this.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object obj) {
+            return containsKey(obj);
+        }
+
+        @Override
+        public boolean remove(Object obj) {
+            if (!containsKey(obj)) {
+                return false;
+            }
+            BTreeMap.this.remove(obj);
+            return true;
+        }
+
+        @Override
+        public void clear() {
+            BTreeMap.this.clear();
+        }
+
+        @Override
+        public Comparator<? super K> comparator() {
+            return BTreeMap.this.comparator();
+        }
+
+        @Override
+        public K lower(K key) {
+            return lowerKey(key);
+        }
+
+        @Override
+        public K floor(K key) {
+            return floorKey(key);
+        }
+
+        @Override
+        public K ceiling(K key) {
+            return ceilingKey(key);
+        }
+
+        @Override
+        public K higher(K key) {
+            return higherKey(key);
+        }
+
+        @Override
+        public K first() {
+            return firstKey();
+        }
+
+        @Override
+        public K last() {
+            return lastKey();
+        }
+
+        @Override
+        public K pollFirst() {
+            return keyOrNull(pollFirstEntry());
+        }
+
+        @Override
+        public K pollLast() {
+            return keyOrNull(pollLastEntry());
+        }
+
+        @Override
+        public NavigableSet<K> descendingSet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> subSet(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            return subMap(fromKey, fromInclusive, toKey, toInclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> headSet(K toKey, boolean inclusive) {
+            return headMap(toKey, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public NavigableSet<K> tailSet(K fromKey, boolean inclusive) {
+            return tailMap(fromKey, inclusive).navigableKeySet();
+        }
+
+        @Override
+        public SortedSet<K> subSet(K fromKey, K toKey) {
+            return subSet(fromKey, true, toKey, false);
+        }
+
+        @Override
+        public SortedSet<K> headSet(K toKey) {
+            return headSet(toKey, false);
+        }
+
+        @Override
+        public SortedSet<K> tailSet(K fromKey) {
+            return tailSet(fromKey, true);
+        }
+    }
+}
@@ -347,7 +347,6 @@ public class BTreeRenderer extends JFrame
         }
 
         int currentKeyNum = treeNode.mCurrentKeyNum;
-        BTKeyValue<Integer, String> keyVal;
 
         List<KeyData> keyList = (List<KeyData>)mObjLists[nLevel];
         if (keyList == null) {
@@ -362,8 +361,7 @@ public class BTreeRenderer extends JFrame
                 mBuf.append(" | ");
             }
 
-            keyVal = treeNode.mKeys[i];
-            mBuf.append(keyVal.mKey);
+            mBuf.append(treeNode.mKeys[i]);
         }
 
         keyList.add(new KeyData(mBuf.toString(), currentKeyNum));
@@ -6,12 +6,18 @@ import java.util.TreeMap;
 
 public class BTreeTest
 {
+    public final static int MIN_DEGREE = 5; // petit degr pour garder l'arbre lisible  l'cran
+
     private final BTree<Integer, String> mBTree;
     private final Map<Integer, String> mMap;
     private BTTestIteratorImpl<Integer, String> mIter;
 
     public BTreeTest() {
-        mBTree = new BTree<Integer, String>();
+        this(MIN_DEGREE);
+    }
+
+    public BTreeTest(int minDegree) {
+        mBTree = new BTree<Integer, String>(minDegree);
         mMap = new TreeMap<Integer, String>();
         mIter = new BTTestIteratorImpl<Integer, String>();
     }
@@ -117,6 +123,144 @@ public class BTreeTest
         validateOrder();
     }
 
+    //
+    // Validation de la structure de l'arbre: nombre de cls de chaque noeud entre (minDegree - 1) et
+    // (2 * minDegree - 1), racine excepte, feuilles  la mme profondeur, cls tries entre celles du
+    // parent et nombre de cls de chaque sous-arbre
+    //
+    public void validateStructure() throws BTException {
+        BTNode<Integer, String> rootNode = mBTree.getRootNode();
+        if (rootNode == null) {
+            if (mBTree.size() != 0) {
+                throw new BTException("Erreur dans validateStructure(): arbre sans racine de taille " + mBTree.size());
+            }
+            return;
+        }
+        int[] leafDepth = { -1 };
+        long keyNum = validateNode(rootNode, null, null, 0, leafDepth);
+        if (keyNum != mBTree.size()) {
+            throw new BTException("Erreur dans validateStructure(): " + keyNum + " cls dans les noeuds, taille = " + mBTree.size());
+        }
+    }
+
+    //
+    // Validation d'un sous-arbre dont les cls sont entre lowerKey et upperKey exclus, null pour une borne ouverte
+    // Le noeud est brut: ses tableaux de cls sont des Comparable[], pas des Integer[]
+    // Retourner le nombre de cls du sous-arbre
+    //
+    private long validateNode(BTNode btNode, Integer lowerKey, Integer upperKey, int depth, int[] leafDepth) throws BTException {
+        int minDegree = mBTree.getMinDegree();
+        int keyNum = btNode.mCurrentKeyNum;
+        int lowerBoundKeyNum = (depth == 0) ? 1 : minDegree - 1;
+        if ((keyNum < lowerBoundKeyNum) || (keyNum > 2 * minDegree - 1)) {
+            throw new BTException("Erreur dans validateStructure(): noeud de " + keyNum + " cls  la profondeur " + depth);
+        }
+
+        Integer previousKey = lowerKey;
+        for (int i = 0; i < keyNum; ++i) {
+            Integer key = (Integer) btNode.mKeys[i];
+            if (((previousKey != null) && (previousKey.compareTo(key) >= 0)) || ((upperKey != null) && (key.compareTo(upperKey) >= 0))) {
+                throw new BTException("Erreur dans validateStructure(): cl = " + key + " hors de l'ordre  la profondeur " + depth);
+            }
+            previousKey = key;
+        }
+
+        long subtreeKeyNum = keyNum;
+        if (btNode.mIsLeaf) {
+            if (leafDepth[0] < 0) {
+                leafDepth[0] = depth;
+            }
+            else if (leafDepth[0] != depth) {
+                throw new BTException("Erreur dans validateStructure(): feuilles aux profondeurs " + leafDepth[0] + " et " + depth);
+            }
+        }
+        else {
+            for (int i = 0; i <= keyNum; ++i) {
+                BTNode childNode = btNode.mChildren[i];
+                if (childNode == null) {
+                    throw new BTException("Erreur dans validateStructure(): fils " + i + " absent  la profondeur " + depth);
+                }
+                Integer childLowerKey = (i == 0) ? lowerKey : (Integer) btNode.mKeys[i - 1];
+                Integer childUpperKey = (i == keyNum) ? upperKey : (Integer) btNode.mKeys[i];
+                subtreeKeyNum += validateNode(childNode, childLowerKey, childUpperKey, depth + 1, leafDepth);
+            }
+        }
+        if (btNode.mSubtreeKeyNum != subtreeKeyNum) {
+            throw new BTException("Erreur dans validateStructure(): sous-arbre de " + subtreeKeyNum + " cls, compt " +
+                                  btNode.mSubtreeKeyNum + "  la profondeur " + depth);
+        }
+        return subtreeKeyNum;
+    }
+
+    //
+    // Insertions et suppressions alatoires compares  une TreeMap, pour chaque degr de 2  maxMinDegree
+    // Les phases alternent entre une majorit d'insertions et une majorit de suppressions, pour que l'arbre
+    // gagne et perde des niveaux, puis toutes les cls sont supprimes
+    //
+    public static void validateRandomOperations(int maxMinDegree, int operationNum, long seed) throws BTException {
+        Random rand = new Random(seed);
+        for (int minDegree = BTNode.MIN_DEGREE_LOWER_LIMIT; minDegree <= maxMinDegree; ++minDegree) {
+            System.out.println("Insertions et suppressions alatoires, degr = " + minDegree + " ...");
+            BTreeTest test = new BTreeTest(minDegree);
+            int keyRange = Math.max(100, operationNum / 4);
+            int phaseOperationNum = Math.max(1, operationNum / 6);
+            for (int i = 0; i < operationNum; ++i) {
+                Integer key = rand.nextInt(keyRange);
+                int insertPercent = ((i / phaseOperationNum) % 2 == 0) ? 70 : 30;
+                int op = rand.nextInt(100);
+                if (op < insertPercent) {
+                    test.add(key, "random-" + i);
+                }
+                else if (op < 95) {
+                    test.compareDelete(key);
+                }
+                else if (!test.isEqual(test.mMap.get(key), test.mBTree.search(key))) {
+                    throw new BTException("Erreur dans validateRandomOperations(): Echec de comparaison de la valeur du cl = " + key);
+                }
+                if (i % 251 == 0) {
+                    test.validateStructure();
+                }
+            }
+            test.validateStructure();
+            test.validateAll();
+
+            Integer[] keys = test.mMap.keySet().toArray(new Integer[0]);
+            for (int i = keys.length - 1; i > 0; --i) {
+                int j = rand.nextInt(i + 1);
+                Integer key = keys[i];
+                keys[i] = keys[j];
+                keys[j] = key;
+            }
+            for (int i = 0; i < keys.length; ++i) {
+                test.compareDelete(keys[i]);
+                if (i % 97 == 0) {
+                    test.validateStructure();
+                }
+            }
+            test.validateStructure();
+            if ((test.mBTree.size() != 0) || (test.mBTree.getRootNode() != null)) {
+                throw new BTException("Erreur dans validateRandomOperations(): l'arbre n'est pas vide aprs les suppressions");
+            }
+        }
+    }
+
+    //
+    // Supprimer la cl de la TreeMap et de l'arbre, sans affichage, et comparer les valeurs supprimes
+    //
+    private void compareDelete(Integer key) throws BTException {
+        String strVal1 = mMap.remove(key);
+        String strVal2 = mBTree.delete(key);
+        if (!isEqual(strVal1, strVal2)) {
+            throw new BTException("La cl supprime = " + key + " a plusieurs valeurs: " + strVal1 + " | " + strVal2);
+        }
+    }
+
+    public static void main(String[] args) throws BTException {
+        int maxMinDegree = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        validateRandomOperations(maxMinDegree, 50000, 1L);
+        System.out.println("Validation termine");
+    }
+
     public void addKey(int i) {
         add(i, "Valeur = " + i);
     }
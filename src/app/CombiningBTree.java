@@ -0,0 +1,305 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+//
+// BTree shared by many writer threads through flat combining
+// The writers queue their inserts and deletes in a lock-free queue and get a future of the
+// previous value of the key. Whichever thread gets the lock of the tree becomes the combiner:
+// it takes the queued requests in batches, sorts each batch by key and applies it to the tree,
+// so the lock changes hands once per batch instead of once per request
+// Requests on the same key are applied in the order they were queued. The lock is held for one
+// batch at a time and the futures of a batch are completed once it is released, so their callbacks
+// never run under the lock and are not held back by the batches that follow
+// A combiner goes on, a batch per lock hold, only until the requests queued when it got the lock
+// are applied, so that its own call returns however fast the other writers queue. It leaves
+// the requests queued after them to a task of the common pool, so that no request waits for a writer
+// that has not come yet
+//
+public class CombiningBTree<K extends Comparable, V> implements BTreeIF<K, V>
+{
+    public final static int MAX_BATCH_SIZE              =   4096; // requests taken from the queue at a time
+
+    private final BTree<K, V> mTree;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Request<K, V>> mQueue = new ConcurrentLinkedQueue<Request<K, V>>();
+    private final List<Request<K, V>> mBatch = new ArrayList<Request<K, V>>(); // applied under the lock, completed after it
+    private final AtomicLong mRequestNum = new AtomicLong(); // requests submitted so far
+    private final AtomicBoolean mIsHelperQueued = new AtomicBoolean(false);
+    private final Comparator<Request<K, V>> mKeyOrder = new Comparator<Request<K, V>>() {
+        @Override
+        public int compare(Request<K, V> request1, Request<K, V> request2) {
+            return request1.mKey.compareTo(request2.mKey);
+        }
+    };
+
+
+    //
+    // Create a combining front end over a new tree with the default node degree
+    //
+    public CombiningBTree() {
+        this(new BTree<K, V>());
+    }
+
+    //
+    // Create a combining front end over a tree, which must not be used directly afterwards
+    //
+    public CombiningBTree(BTree<K, V> btree) {
+        mTree = btree;
+    }
+
+    //
+    // Queue the insert of the key and its value
+    // Return a future of the previous value of the key
+    //
+    public CompletableFuture<V> insertAsync(K key, V value) {
+        return submit(new Request<K, V>(key, value, false));
+    }
+
+    //
+    // Queue the delete of the key
+    // Return a future of the value of the deleted key, null if it was absent
+    //
+    public CompletableFuture<V> deleteAsync(K key) {
+        return submit(new Request<K, V>(key, null, true));
+    }
+
+    //
+    // Insert the key and its value, waiting for the combiner
+    //
+    @Override
+    public CombiningBTree<K, V> insert(K key, V value) {
+        insertAsync(key, value).join();
+        return this;
+    }
+
+    //
+    // Delete the key, waiting for the combiner
+    // Return the value if the key existed
+    // Return null otherwise
+    //
+    @Override
+    public V delete(K key) {
+        return deleteAsync(key).join();
+    }
+
+    //
+    // Search value for a specified key of the tree, once the queued requests are applied
+    //
+    @Override
+    public V search(K key) {
+        lockAndCombine();
+        try {
+            return mTree.search(key);
+        }
+        finally {
+            combineAndUnlock(mRequestNum.get());
+        }
+    }
+
+    //
+    // List all the items in the tree under its lock
+    // The iterator must not change the tree
+    //
+    @Override
+    public void list(BTIteratorIF<K, V> iterImpl) {
+        lockAndCombine();
+        try {
+            mTree.list(iterImpl);
+        }
+        finally {
+            combineAndUnlock(mRequestNum.get());
+        }
+    }
+
+    //
+    // List the items whose keys lie between fromKey and toKey under the lock of the tree
+    // The iterator must not change the tree
+    //
+    @Override
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        lockAndCombine();
+        try {
+            mTree.range(fromKey, fromInclusive, toKey, toInclusive, iterImpl);
+        }
+        finally {
+            combineAndUnlock(mRequestNum.get());
+        }
+    }
+
+    //
+    // The total number of keys in the tree, once the queued requests are applied
+    //
+    @Override
+    public long size() {
+        lockAndCombine();
+        try {
+            return mTree.size();
+        }
+        finally {
+            combineAndUnlock(mRequestNum.get());
+        }
+    }
+
+    //
+    // Clear all the entries in the tree, after the requests queued before
+    //
+    @Override
+    public void clear() {
+        lockAndCombine();
+        try {
+            mTree.clear();
+        }
+        finally {
+            combineAndUnlock(mRequestNum.get());
+        }
+    }
+
+    //
+    // Queue a request and try to become the combiner
+    //
+    private CompletableFuture<V> submit(Request<K, V> request) {
+        if (request.mKey == null) {
+            throw new NullPointerException("null keys are not supported");
+        }
+        request.mNumber = mRequestNum.incrementAndGet();
+        mQueue.add(request);
+        if (mLock.tryLock()) {
+            combineAndUnlock(mRequestNum.get());
+        }
+        return request.mFuture;
+    }
+
+    //
+    // Get the lock once the requests queued so far are applied
+    // The lock is released after each batch, so that their futures are completed as the batches go
+    //
+    private void lockAndCombine() {
+        mLock.lock();
+        long lastNumber = mRequestNum.get();
+        while (isQueued(lastNumber)) {
+            combine();
+            unlockAndComplete();
+            mLock.lock();
+        }
+    }
+
+    //
+    // Apply a batch of the queued requests to the tree, sorted by key, with the lock held
+    //
+    private void combine() {
+        Request<K, V> request;
+        while ((mBatch.size() < MAX_BATCH_SIZE) && ((request = mQueue.poll()) != null)) {
+            mBatch.add(request);
+        }
+
+        // The sort is stable, requests on the same key stay in the order they were queued
+        Collections.sort(mBatch, mKeyOrder);
+        for (Request<K, V> batchRequest : mBatch) {
+            try {
+                batchRequest.mResult = batchRequest.mIsDelete ? mTree.delete(batchRequest.mKey) :
+                                                                mTree.put(batchRequest.mKey, batchRequest.mValue);
+            }
+            catch (RuntimeException e) {
+                batchRequest.mError = e;
+            }
+        }
+    }
+
+    //
+    // Apply a batch and release the lock, then complete the batch
+    // Combine again, a batch per lock hold, while the requests queued up to lastNumber are not all applied
+    // and no other thread holds the lock. The requests queued after them are handed over to a helper task
+    //
+    private void combineAndUnlock(long lastNumber) {
+        while (true) {
+            combine();
+            unlockAndComplete();
+            if (!isQueued(lastNumber)) {
+                break;
+            }
+            if (!mLock.tryLock()) {
+                // The thread holding the lock checks the queue when it releases it
+                return;
+            }
+        }
+        handOff();
+    }
+
+    //
+    // Release the lock, then complete the requests of the batch
+    //
+    private void unlockAndComplete() {
+        Request<K, V> appliedRequests[] = mBatch.toArray(new Request[mBatch.size()]);
+        mBatch.clear();
+        mLock.unlock();
+
+        for (Request<K, V> request : appliedRequests) {
+            if (request.mError != null) {
+                request.mFuture.completeExceptionally(request.mError);
+            }
+            else {
+                request.mFuture.complete(request.mResult);
+            }
+        }
+    }
+
+    //
+    // Whether a request numbered up to lastNumber waits at the head of the queue
+    // A request is numbered before it is queued, so the requests queued before a number was read are
+    // all numbered up to it, and so are the requests ahead of them
+    //
+    private boolean isQueued(long lastNumber) {
+        Request<K, V> request = mQueue.peek();
+        return (request != null) && (request.mNumber <= lastNumber);
+    }
+
+    //
+    // Let a task of the common pool combine the requests left in the queue, unless one is already on its way
+    // so that a thread leaving the lock never waits for the requests queued after its own
+    //
+    private void handOff() {
+        if (mQueue.isEmpty() || !mIsHelperQueued.compareAndSet(false, true)) {
+            return;
+        }
+        ForkJoinPool.commonPool().execute(new Runnable() {
+            @Override
+            public void run() {
+                // Cleared before the queue is checked, so requests queued from now on get a new task
+                mIsHelperQueued.set(false);
+                if (!mQueue.isEmpty() && mLock.tryLock()) {
+                    combineAndUnlock(mRequestNum.get());
+                }
+            }
+        });
+    }
+
+
+    //
+    // Insert or delete waiting in the queue
+    //
+    private static class Request<K extends Comparable, V> {
+        private final K mKey;
+        private final V mValue;
+        private final boolean mIsDelete;
+        private final CompletableFuture<V> mFuture = new CompletableFuture<V>();
+        private long mNumber; // order in which the request was submitted
+        private V mResult = null; // previous value of the key, set by the combiner
+        private RuntimeException mError = null; // set by the combiner if the request failed
+
+        private Request(K key, V value, boolean isDelete) {
+            mKey = key;
+            mValue = value;
+            mIsDelete = isDelete;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package app;
+
+import java.util.concurrent.locks.StampedLock;
+
+
+//
+// Node of a ConcurrentBTree, laid out like a BPlusNode with a version lock
+// Readers take an optimistic stamp of the lock and validate it once they have read the node,
+// so they never write to it; writers hold the write lock of the node while they change it
+//
+public class ConcurrentBTNode<K extends Comparable, V>
+{
+    protected final StampedLock mLock = new StampedLock(); // its stamp is the version of the node
+    protected final boolean mIsLeaf; // true if the node is a leaf
+    protected int mCurrentKeyNum; // number of keys stored in the node
+    protected final K mKeys[]; // leaf: the keys, internal node: the separator keys
+    protected final V mValues[]; // leaf only, mValues[i] belongs to mKeys[i]
+    protected final ConcurrentBTNode mChildren[]; // internal node only, mChildren[i] holds the keys lower than mKeys[i]
+
+
+    public ConcurrentBTNode(int minDegree, boolean isLeaf) {
+        mIsLeaf = isLeaf;
+        mCurrentKeyNum = 0;
+        mKeys = (K[]) new Comparable[BTNode.getUpperBoundKeyNum(minDegree)];
+        if (isLeaf) {
+            mValues = (V[]) new Object[BTNode.getUpperBoundKeyNum(minDegree)];
+            mChildren = null;
+        }
+        else {
+            mValues = null;
+            mChildren = new ConcurrentBTNode[BTNode.getUpperBoundKeyNum(minDegree) + 1];
+        }
+    }
+}
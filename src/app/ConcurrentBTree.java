@@ -0,0 +1,522 @@
+package app;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+//
+// B+ tree that can be used by several threads at once, with optimistic lock coupling
+// Each node has a version lock (see ConcurrentBTNode). A reader goes down taking the version
+// of each node and validating the parent once it holds the child, and restarts from the root
+// when a version has changed, so searches and listings never write to shared memory
+// A writer goes down the same way, then turns the versions of the nodes it changes, and only
+// those, into write locks. Full nodes are split on the way down, so a split never climbs back up
+// Deleted keys are removed from their leaf but the leaves are not merged: a leaf emptied by
+// deletes stays in place and takes the later inserts of its key range. As a leaf only loses
+// part of its key range by being split, a writer holding the lock of a leaf needs no other lock
+//
+public class ConcurrentBTree<K extends Comparable, V> implements BTreeIF<K, V>
+{
+    public final static int SPIN_RESTART_NUM   =   8; // restarts in a row before giving way to the writer in the way
+
+    private final static Object RESTART = new Object(); // result of an attempt that saw a version change
+
+    private final int mMinDegree;
+    private final int mLowerBoundKeyNum;
+    private final int mUpperBoundKeyNum;
+    private final BTSearchIF mSearch;
+    private volatile ConcurrentBTNode<K, V> mRoot;
+    private volatile LongAdder mSize = new LongAdder(); // number of keys of the current tree, replaced with it by clear()
+
+    //
+    // Create a tree with the default node degree
+    //
+    public ConcurrentBTree() {
+        this(BTNode.DEFAULT_MIN_DEGREE);
+    }
+
+    //
+    // Create a tree whose nodes hold at most (2 * minDegree - 1) keys
+    //
+    public ConcurrentBTree(int minDegree) {
+        this(minDegree, BTNode.selectSearch(minDegree));
+    }
+
+    //
+    // Create a tree with the given degree that searches within its nodes with the given strategy
+    //
+    public ConcurrentBTree(int minDegree, BTSearchIF search) {
+        mMinDegree = BTNode.checkMinDegree(minDegree);
+        mLowerBoundKeyNum = BTNode.getLowerBoundKeyNum(minDegree);
+        mUpperBoundKeyNum = BTNode.getUpperBoundKeyNum(minDegree);
+        mSearch = search;
+        mRoot = new ConcurrentBTNode<K, V>(mMinDegree, true);
+    }
+
+    //
+    // Get the minimum degree of the nodes of the tree
+    //
+    public int getMinDegree() {
+        return mMinDegree;
+    }
+
+    //
+    // The total number of keys in the tree
+    //
+    @Override
+    public long size() {
+        return mSize.sum();
+    }
+
+    //
+    // Clear all the entries in the tree
+    // The old root is locked while the new tree is put in place, so that no update can start from it
+    // An update that already went past the root may still end up in the old tree. It then counts its key
+    // in the size of the old tree too: each update takes the size counter once it read the root, and the
+    // counter is replaced before the root, so an update that took the new counter with the old root fails
+    // to validate the root it went through and starts again
+    //
+    @Override
+    public void clear() {
+        while (true) {
+            ConcurrentBTNode<K, V> rootNode = mRoot;
+            long stamp = rootNode.mLock.writeLock();
+            try {
+                if (rootNode == mRoot) {
+                    mSize = new LongAdder();
+                    mRoot = new ConcurrentBTNode<K, V>(mMinDegree, true);
+                    return;
+                }
+            }
+            finally {
+                rootNode.mLock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    //
+    // Find the index of the child of an internal node that may hold the key
+    // A key equal to a separator belongs to the subtree on its right
+    //
+    private int findChildIndex(ConcurrentBTNode<K, V> btNode, int keyNum, K key) {
+        int i = mSearch.search(btNode.mKeys, keyNum, key);
+        return (i >= 0) ? i + 1 : -(i + 1);
+    }
+
+    //
+    // Search value for a specified key of the tree
+    //
+    @Override
+    public V search(K key) {
+        Object result;
+        for (int restartNum = 0; (result = trySearch(key)) == RESTART; ++restartNum) {
+            backOff(restartNum);
+        }
+        return (V) result;
+    }
+
+    private Object trySearch(K key) {
+        ConcurrentBTNode<K, V> currentNode = mRoot;
+        long version = readVersion(currentNode);
+        if ((version == 0L) || (currentNode != mRoot)) {
+            return RESTART;
+        }
+
+        try {
+            while (!currentNode.mIsLeaf) {
+                ConcurrentBTNode<K, V> childNode = currentNode.mChildren[findChildIndex(currentNode, currentNode.mCurrentKeyNum, key)];
+                long childVersion = readVersion(childNode);
+                if ((childVersion == 0L) || !currentNode.mLock.validate(version)) {
+                    return RESTART;
+                }
+                currentNode = childNode;
+                version = childVersion;
+            }
+
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            V value = (i >= 0) ? currentNode.mValues[i] : null;
+            return currentNode.mLock.validate(version) ? value : RESTART;
+        }
+        catch (RuntimeException e) {
+            rethrowIfValid(currentNode, version, e);
+            return RESTART;
+        }
+    }
+
+    //
+    // Insert the key and its value into the tree
+    // The value of an existing key is replaced
+    //
+    @Override
+    public ConcurrentBTree<K, V> insert(K key, V value) {
+        for (int restartNum = 0; !tryInsert(key, value); ++restartNum) {
+            backOff(restartNum);
+        }
+        return this;
+    }
+
+    //
+    // Return false if the insert has to start again from the root
+    //
+    private boolean tryInsert(K key, V value) {
+        ConcurrentBTNode<K, V> currentNode = mRoot;
+        long version = readVersion(currentNode);
+        if ((version == 0L) || (currentNode != mRoot)) {
+            return false;
+        }
+        LongAdder size = mSize; // counter of the tree of the root, as long as the root validates (see clear())
+
+        ConcurrentBTNode<K, V> parentNode = null;
+        long parentVersion = 0L;
+        int nodeIdx = 0;
+        boolean isFull;
+        try {
+            while (true) {
+                isFull = (currentNode.mCurrentKeyNum == mUpperBoundKeyNum);
+                if (isFull || currentNode.mIsLeaf) {
+                    break;
+                }
+
+                int i = findChildIndex(currentNode, currentNode.mCurrentKeyNum, key);
+                ConcurrentBTNode<K, V> childNode = currentNode.mChildren[i];
+                long childVersion = readVersion(childNode);
+                if ((childVersion == 0L) || !currentNode.mLock.validate(version)) {
+                    return false;
+                }
+                parentNode = currentNode;
+                parentVersion = version;
+                nodeIdx = i;
+                currentNode = childNode;
+                version = childVersion;
+            }
+        }
+        catch (RuntimeException e) {
+            rethrowIfValid(currentNode, version, e);
+            return false;
+        }
+
+        if (isFull) {
+            // Split the full node before going through it, then start again from the root
+            splitFullNode(parentNode, parentVersion, nodeIdx, currentNode, version);
+            return false;
+        }
+
+        long stamp = currentNode.mLock.tryConvertToWriteLock(version);
+        if (stamp == 0L) {
+            return false;
+        }
+        try {
+            int keyNum = currentNode.mCurrentKeyNum;
+            int i = mSearch.search(currentNode.mKeys, keyNum, key);
+            if (i >= 0) {
+                // The key already existed so replace its value
+                currentNode.mValues[i] = value;
+                return true;
+            }
+
+            i = -(i + 1);
+            System.arraycopy(currentNode.mKeys, i, currentNode.mKeys, i + 1, keyNum - i);
+            System.arraycopy(currentNode.mValues, i, currentNode.mValues, i + 1, keyNum - i);
+            currentNode.mKeys[i] = key;
+            currentNode.mValues[i] = value;
+            ++(currentNode.mCurrentKeyNum);
+        }
+        finally {
+            currentNode.mLock.unlockWrite(stamp);
+        }
+        size.increment();
+        return true;
+    }
+
+    //
+    // Split a full node with its parent locked, the parent was not full when it was passed
+    // Nothing is done if either of them changed since its version was read
+    //
+    private void splitFullNode(ConcurrentBTNode<K, V> parentNode, long parentVersion, int nodeIdx, ConcurrentBTNode<K, V> btNode, long version) {
+        if (parentNode == null) {
+            // The root is full, the tree grows by one level
+            long stamp = btNode.mLock.tryConvertToWriteLock(version);
+            if (stamp == 0L) {
+                return;
+            }
+            try {
+                ConcurrentBTNode<K, V> rootNode = new ConcurrentBTNode<K, V>(mMinDegree, false);
+                rootNode.mChildren[0] = btNode;
+                splitNode(rootNode, 0, btNode);
+                mRoot = rootNode;
+            }
+            finally {
+                btNode.mLock.unlockWrite(stamp);
+            }
+            return;
+        }
+
+        long parentStamp = parentNode.mLock.tryConvertToWriteLock(parentVersion);
+        if (parentStamp == 0L) {
+            return;
+        }
+        try {
+            long stamp = btNode.mLock.tryConvertToWriteLock(version);
+            if (stamp == 0L) {
+                return;
+            }
+            try {
+                splitNode(parentNode, nodeIdx, btNode);
+            }
+            finally {
+                btNode.mLock.unlockWrite(stamp);
+            }
+        }
+        finally {
+            parentNode.mLock.unlockWrite(parentStamp);
+        }
+    }
+
+    //
+    // Split the full child node at nodeIdx of the parent node, both being write locked
+    // A leaf keeps its lower keys and copies the first key of the new leaf up as separator,
+    // an internal node moves its middle key up
+    //
+    private void splitNode(ConcurrentBTNode<K, V> parentNode, int nodeIdx, ConcurrentBTNode<K, V> btNode) {
+        ConcurrentBTNode<K, V> newNode = new ConcurrentBTNode<K, V>(mMinDegree, btNode.mIsLeaf);
+        K separatorKey;
+
+        if (btNode.mIsLeaf) {
+            System.arraycopy(btNode.mKeys, mLowerBoundKeyNum, newNode.mKeys, 0, mMinDegree);
+            System.arraycopy(btNode.mValues, mLowerBoundKeyNum, newNode.mValues, 0, mMinDegree);
+            Arrays.fill(btNode.mKeys, mLowerBoundKeyNum, mUpperBoundKeyNum, null);
+            Arrays.fill(btNode.mValues, mLowerBoundKeyNum, mUpperBoundKeyNum, null);
+            newNode.mCurrentKeyNum = mMinDegree;
+            separatorKey = newNode.mKeys[0];
+        }
+        else {
+            System.arraycopy(btNode.mKeys, mMinDegree, newNode.mKeys, 0, mLowerBoundKeyNum);
+            System.arraycopy(btNode.mChildren, mMinDegree, newNode.mChildren, 0, mMinDegree);
+            separatorKey = btNode.mKeys[mLowerBoundKeyNum];
+            Arrays.fill(btNode.mKeys, mLowerBoundKeyNum, mUpperBoundKeyNum, null);
+            Arrays.fill(btNode.mChildren, mMinDegree, mUpperBoundKeyNum + 1, null);
+            newNode.mCurrentKeyNum = mLowerBoundKeyNum;
+        }
+        btNode.mCurrentKeyNum = mLowerBoundKeyNum;
+
+        // Make room in the parent node for the separator and the new child
+        int keyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, nodeIdx, parentNode.mKeys, nodeIdx + 1, keyNum - nodeIdx);
+        System.arraycopy(parentNode.mChildren, nodeIdx + 1, parentNode.mChildren, nodeIdx + 2, keyNum - nodeIdx);
+        parentNode.mKeys[nodeIdx] = separatorKey;
+        parentNode.mChildren[nodeIdx + 1] = newNode;
+        ++(parentNode.mCurrentKeyNum);
+    }
+
+    //
+    // Delete a key from the tree
+    // Return the value if the key existed
+    // Return null otherwise
+    //
+    @Override
+    public V delete(K key) {
+        Object result;
+        for (int restartNum = 0; (result = tryDelete(key)) == RESTART; ++restartNum) {
+            backOff(restartNum);
+        }
+        return (V) result;
+    }
+
+    private Object tryDelete(K key) {
+        ConcurrentBTNode<K, V> currentNode = mRoot;
+        long version = readVersion(currentNode);
+        if ((version == 0L) || (currentNode != mRoot)) {
+            return RESTART;
+        }
+        LongAdder size = mSize; // counter of the tree of the root, as long as the root validates (see clear())
+
+        try {
+            while (!currentNode.mIsLeaf) {
+                ConcurrentBTNode<K, V> childNode = currentNode.mChildren[findChildIndex(currentNode, currentNode.mCurrentKeyNum, key)];
+                long childVersion = readVersion(childNode);
+                if ((childVersion == 0L) || !currentNode.mLock.validate(version)) {
+                    return RESTART;
+                }
+                currentNode = childNode;
+                version = childVersion;
+            }
+
+            // A missing key is answered without taking the lock
+            if (mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key) < 0) {
+                return currentNode.mLock.validate(version) ? null : RESTART;
+            }
+        }
+        catch (RuntimeException e) {
+            rethrowIfValid(currentNode, version, e);
+            return RESTART;
+        }
+
+        long stamp = currentNode.mLock.tryConvertToWriteLock(version);
+        if (stamp == 0L) {
+            return RESTART;
+        }
+        V retVal;
+        try {
+            int keyNum = currentNode.mCurrentKeyNum;
+            int i = mSearch.search(currentNode.mKeys, keyNum, key);
+            retVal = currentNode.mValues[i];
+            System.arraycopy(currentNode.mKeys, i + 1, currentNode.mKeys, i, keyNum - i - 1);
+            System.arraycopy(currentNode.mValues, i + 1, currentNode.mValues, i, keyNum - i - 1);
+            currentNode.mKeys[keyNum - 1] = null;
+            currentNode.mValues[keyNum - 1] = null;
+            --(currentNode.mCurrentKeyNum);
+        }
+        finally {
+            currentNode.mLock.unlockWrite(stamp);
+        }
+        size.decrement();
+        return retVal;
+    }
+
+    //
+    // List all the items in the tree
+    //
+    @Override
+    public void list(BTIteratorIF<K, V> iterImpl) {
+        range(null, true, null, true, iterImpl);
+    }
+
+    //
+    // List the items whose keys lie between fromKey and toKey, in ascending order
+    // A null bound leaves that side of the range open
+    // The entries of each leaf are copied out under a validated version and given to the
+    // iterator without any lock held; the next leaf is then found from the separator on the
+    // right of the leaf, so each leaf is seen in a consistent state but the listing as a whole
+    // is not a snapshot of the tree
+    //
+    @Override
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        if (iterImpl == null) {
+            return;
+        }
+
+        LeafCopy<K, V> leafCopy = new LeafCopy<K, V>(mUpperBoundKeyNum);
+        K nextKey = fromKey;
+        boolean nextInclusive = fromInclusive;
+        while (true) {
+            for (int restartNum = 0; !tryCopyLeaf(nextKey, nextInclusive, leafCopy); ++restartNum) {
+                backOff(restartNum);
+            }
+
+            for (int i = 0; i < leafCopy.mKeyNum; ++i) {
+                if (toKey != null) {
+                    int cmp = leafCopy.mKeys[i].compareTo(toKey);
+                    if ((cmp > 0) || ((cmp == 0) && !toInclusive)) {
+                        return;
+                    }
+                }
+                if (!iterImpl.item(leafCopy.mKeys[i], leafCopy.mValues[i])) {
+                    return;
+                }
+            }
+
+            // The next leaf starts at the separator, stop if that is past the upper bound
+            if (leafCopy.mUpperKey == null) {
+                return;
+            }
+            if (toKey != null) {
+                int cmp = leafCopy.mUpperKey.compareTo(toKey);
+                if ((cmp > 0) || ((cmp == 0) && !toInclusive)) {
+                    return;
+                }
+            }
+            nextKey = leafCopy.mUpperKey;
+            nextInclusive = true;
+        }
+    }
+
+    //
+    // Copy the entries of the leaf that may hold the key, from the key on
+    // Return false if the copy has to start again from the root
+    //
+    private boolean tryCopyLeaf(K key, boolean inclusive, LeafCopy<K, V> leafCopy) {
+        ConcurrentBTNode<K, V> currentNode = mRoot;
+        long version = readVersion(currentNode);
+        if ((version == 0L) || (currentNode != mRoot)) {
+            return false;
+        }
+
+        try {
+            K upperKey = null;
+            while (!currentNode.mIsLeaf) {
+                int keyNum = currentNode.mCurrentKeyNum;
+                int i = (key == null) ? 0 : findChildIndex(currentNode, keyNum, key);
+                if (i < keyNum) {
+                    // The lowest separator on the right of the path bounds the leaf
+                    upperKey = currentNode.mKeys[i];
+                }
+                ConcurrentBTNode<K, V> childNode = currentNode.mChildren[i];
+                long childVersion = readVersion(childNode);
+                if ((childVersion == 0L) || !currentNode.mLock.validate(version)) {
+                    return false;
+                }
+                currentNode = childNode;
+                version = childVersion;
+            }
+
+            int keyNum = currentNode.mCurrentKeyNum;
+            int firstIdx = 0;
+            if (key != null) {
+                int i = mSearch.search(currentNode.mKeys, keyNum, key);
+                firstIdx = (i < 0) ? -(i + 1) : (inclusive ? i : i + 1);
+            }
+            int copyNum = Math.max(keyNum - firstIdx, 0);
+            System.arraycopy(currentNode.mKeys, firstIdx, leafCopy.mKeys, 0, copyNum);
+            System.arraycopy(currentNode.mValues, firstIdx, leafCopy.mValues, 0, copyNum);
+            leafCopy.mKeyNum = copyNum;
+            leafCopy.mUpperKey = upperKey;
+            return currentNode.mLock.validate(version);
+        }
+        catch (RuntimeException e) {
+            rethrowIfValid(currentNode, version, e);
+            return false;
+        }
+    }
+
+    //
+    // Get the version of a node, 0 if it is missing or write locked
+    //
+    private static long readVersion(ConcurrentBTNode btNode) {
+        return (btNode == null) ? 0L : btNode.mLock.tryOptimisticRead();
+    }
+
+    //
+    // A node read without a lock may be changed half way, which can throw anything from
+    // a NullPointerException to an IndexOutOfBoundsException: the attempt is then restarted,
+    // unless the version shows that the node did not change, in which case the error is real
+    //
+    private static void rethrowIfValid(ConcurrentBTNode btNode, long version, RuntimeException e) {
+        if (btNode.mLock.validate(version)) {
+            throw e;
+        }
+    }
+
+    //
+    // Spin for a few restarts, then let the writer in the way run before trying again
+    //
+    private static void backOff(int restartNum) {
+        if (restartNum >= SPIN_RESTART_NUM) {
+            Thread.yield();
+        }
+    }
+
+
+    //
+    // Entries of a leaf copied out by a listing, with the separator that bounds the leaf
+    //
+    private static class LeafCopy<K extends Comparable, V> {
+        private final K mKeys[];
+        private final V mValues[];
+        private int mKeyNum;
+        private K mUpperKey; // null for the last leaf
+
+        private LeafCopy(int capacity) {
+            mKeys = (K[]) new Comparable[capacity];
+            mValues = (V[]) new Object[capacity];
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package app;
+
+import java.nio.ByteBuffer;
+
+//
+// Node of a DiskBTree, decoded from its page
+// A page holds a small header, then the keys, the values and the page ids of the children, each
+// in an array of fixed-size slots sized for a full node, so the degree follows from the page size
+//
+public class DiskBTNode<K extends Comparable, V>
+{
+    public final static int PAGE_HEADER_SIZE        =   8; // leaf flag, padding and number of keys
+
+    private final static byte LEAF_PAGE             =   1;
+    private final static byte INTERNAL_PAGE         =   2;
+
+    protected long mPageId; // page holding the node
+    protected int mFrameIdx = -1; // frame of the buffer pool holding the node, -1 if it holds none
+    protected boolean mIsLeaf; // true if the node has no children
+    protected int mCurrentKeyNum; // number of keys stored in the node
+    protected K mKeys[]; // keys, sorted in ascending order
+    protected V mValues[]; // values, mValues[i] belongs to mKeys[i]
+    protected long mChildren[]; // page ids of the children, mChildren[i] holds the keys lower than mKeys[i]
+
+
+    public DiskBTNode(long pageId, int minDegree) {
+        mPageId = pageId;
+        mIsLeaf = true;
+        mCurrentKeyNum = 0;
+        mKeys = (K[]) new Comparable[BTNode.getUpperBoundKeyNum(minDegree)];
+        mValues = (V[]) new Object[BTNode.getUpperBoundKeyNum(minDegree)];
+        mChildren = new long[BTNode.getUpperBoundKeyNum(minDegree) + 1];
+    }
+
+
+    //
+    // Largest degree whose full nodes fit in a page with keys and values of the given sizes
+    // Return 0 if not even a node of the smallest degree fits
+    //
+    public static int getMinDegree(int pageSize, int keySize, int valueSize) {
+        // A full node of degree t has 2t - 1 keys and values and 2t children
+        long maxKeyNum = (pageSize - PAGE_HEADER_SIZE - 8L) / (keySize + valueSize + 8L);
+        long minDegree = Math.min((maxKeyNum + 1) / 2, BTNode.MIN_DEGREE_UPPER_LIMIT);
+        return (minDegree < BTNode.MIN_DEGREE_LOWER_LIMIT) ? 0 : (int) minDegree;
+    }
+
+
+    //
+    // Decode the node from its page, starting at the position of buf
+    //
+    public void readFrom(ByteBuffer buf, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec) {
+        int start = buf.position();
+        mIsLeaf = (buf.get(start) != INTERNAL_PAGE);
+        mCurrentKeyNum = buf.getInt(start + 4);
+        int keyCapacity = mKeys.length;
+
+        buf.position(start + PAGE_HEADER_SIZE);
+        for (int i = 0; i < mCurrentKeyNum; ++i) {
+            mKeys[i] = keyCodec.read(buf);
+        }
+        buf.position(start + PAGE_HEADER_SIZE + (keyCapacity * keyCodec.getSize()));
+        for (int i = 0; i < mCurrentKeyNum; ++i) {
+            mValues[i] = valueCodec.read(buf);
+        }
+        if (!mIsLeaf) {
+            buf.position(start + PAGE_HEADER_SIZE + (keyCapacity * (keyCodec.getSize() + valueCodec.getSize())));
+            for (int i = 0; i <= mCurrentKeyNum; ++i) {
+                mChildren[i] = buf.getLong();
+            }
+        }
+    }
+
+    //
+    // Encode the node into its page, starting at the position of buf
+    // The slots past the last key are left as they were
+    //
+    public void writeTo(ByteBuffer buf, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec) {
+        int start = buf.position();
+        buf.put(start, mIsLeaf ? LEAF_PAGE : INTERNAL_PAGE);
+        buf.putInt(start + 4, mCurrentKeyNum);
+        int keyCapacity = mKeys.length;
+
+        buf.position(start + PAGE_HEADER_SIZE);
+        for (int i = 0; i < mCurrentKeyNum; ++i) {
+            keyCodec.write(buf, mKeys[i]);
+        }
+        buf.position(start + PAGE_HEADER_SIZE + (keyCapacity * keyCodec.getSize()));
+        for (int i = 0; i < mCurrentKeyNum; ++i) {
+            valueCodec.write(buf, mValues[i]);
+        }
+        if (!mIsLeaf) {
+            buf.position(start + PAGE_HEADER_SIZE + (keyCapacity * (keyCodec.getSize() + valueCodec.getSize())));
+            for (int i = 0; i <= mCurrentKeyNum; ++i) {
+                buf.putLong(mChildren[i]);
+            }
+        }
+    }
+}
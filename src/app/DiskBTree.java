@@ -0,0 +1,766 @@
+package app;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+//
+// B-tree kept in a page file instead of the heap
+// Every node is a fixed-size page of a BTPageFile and the children are page ids. The node degree is the
+// largest one whose full nodes fit in a page. The nodes are used through a BTBufferPool of a given memory
+// budget: an operation pins the nodes it works on and unpins them as soon as it is done with them
+// The root page and the number of keys are kept in the header of the file: reopening the tree reads the
+// header only, whatever its size. Changed nodes reach the file when the pool evicts them, and all of them
+// with the header at flush() or close()
+// The file only holds a valid tree after flush() or close(): evictions overwrite pages in place and freed
+// pages are chained at once, while the header keeps the root, the number of keys and the free pages of the
+// last flush. The tree is not crash-safe on its own. The page file marks itself as changed before the first
+// write that follows a flush, so a file left by a crash is refused when it is opened instead of read as a
+// tree. Use a write-ahead log to recover the changes made since the last flush
+// Failures of the file in the operations of BTreeIF are thrown as UncheckedIOException
+//
+public class DiskBTree<K extends Comparable, V> implements BTreeIF<K, V>, Closeable
+{
+    private final static int ROOT_PAGE_SLOT     =   0; // metadata slots of the header of the page file
+    private final static int KEY_NUM_SLOT       =   1;
+    private final static int KEY_SIZE_SLOT      =   2;
+    private final static int VALUE_SIZE_SLOT    =   3;
+
+    public final static long DEFAULT_MEMORY_BUDGET  =   16L << 20; // bytes of pages kept by the buffer pool
+
+    private final BTPageFile mPageFile;
+    private final BTPageCodecIF<K> mKeyCodec;
+    private final BTPageCodecIF<V> mValueCodec;
+    private final int mMinDegree;
+    private final int mLowerBoundKeyNum;
+    private final int mUpperBoundKeyNum;
+    private final BTSearchIF mSearch;
+    private final BTBufferPool<K, V> mPool;
+    private final ArrayList<DiskBTNode<K, V>> mPinnedNodes = new ArrayList<DiskBTNode<K, V>>(); // pinned by the running operation
+    private final ByteBuffer mCheckBuf; // scratch space to check that a key and a value can be encoded
+    private long mRootPageId;
+    private long mSize;
+
+
+    //
+    // Open the tree stored in the file with pages of the default size, creating it if the file does not exist
+    //
+    public DiskBTree(File file, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec) throws IOException {
+        this(file, BTPageFile.DEFAULT_PAGE_SIZE, keyCodec, valueCodec);
+    }
+
+    //
+    // Open the tree stored in the file, creating it with the given page size if the file does not exist
+    // An existing file must have been created with the same page size and codec sizes
+    //
+    public DiskBTree(File file, int pageSize, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec) throws IOException {
+        this(file, pageSize, keyCodec, valueCodec, DEFAULT_MEMORY_BUDGET, new BTClockEviction());
+    }
+
+    //
+    // Open the tree stored in the file with a buffer pool of the given memory budget and eviction policy
+    //
+    public DiskBTree(File file, int pageSize, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec,
+                     long memoryBudget, BTEvictionPolicyIF policy) throws IOException {
+        int minDegree = DiskBTNode.getMinDegree(pageSize, keyCodec.getSize(), valueCodec.getSize());
+        if (minDegree == 0) {
+            throw new IllegalArgumentException("Pages of " + pageSize + " bytes cannot hold nodes with keys of " +
+                                               keyCodec.getSize() + " bytes and values of " + valueCodec.getSize() + " bytes");
+        }
+        mPageFile = new BTPageFile(file, pageSize);
+        try {
+            if (mPageFile.getPageNum() == 1L) {
+                mPageFile.setMetadata(KEY_SIZE_SLOT, keyCodec.getSize());
+                mPageFile.setMetadata(VALUE_SIZE_SLOT, valueCodec.getSize());
+            }
+            else if ((mPageFile.getMetadata(KEY_SIZE_SLOT) != keyCodec.getSize()) ||
+                     (mPageFile.getMetadata(VALUE_SIZE_SLOT) != valueCodec.getSize())) {
+                throw new IOException(file + " holds keys of " + mPageFile.getMetadata(KEY_SIZE_SLOT) + " bytes and values of " +
+                                      mPageFile.getMetadata(VALUE_SIZE_SLOT) + " bytes, not " + keyCodec.getSize() +
+                                      " and " + valueCodec.getSize());
+            }
+        }
+        catch (IOException e) {
+            mPageFile.close();
+            throw e;
+        }
+        mKeyCodec = keyCodec;
+        mValueCodec = valueCodec;
+        mMinDegree = minDegree;
+        mLowerBoundKeyNum = BTNode.getLowerBoundKeyNum(minDegree);
+        mUpperBoundKeyNum = BTNode.getUpperBoundKeyNum(minDegree);
+        mSearch = BTNode.selectSearch(minDegree);
+        mPool = new BTBufferPool<K, V>(mPageFile, keyCodec, valueCodec, minDegree, memoryBudget, policy);
+        mCheckBuf = ByteBuffer.allocate(Math.max(keyCodec.getSize(), valueCodec.getSize()));
+        mRootPageId = mPageFile.getMetadata(ROOT_PAGE_SLOT);
+        mSize = mPageFile.getMetadata(KEY_NUM_SLOT);
+    }
+
+    //
+    // Get the minimum degree of the nodes of the tree, derived from the page size
+    //
+    public int getMinDegree() {
+        return mMinDegree;
+    }
+
+    //
+    // Get the page file holding the nodes
+    //
+    public BTPageFile getPageFile() {
+        return mPageFile;
+    }
+
+    //
+    // Get the buffer pool caching the nodes
+    //
+    public BTBufferPool<K, V> getBufferPool() {
+        return mPool;
+    }
+
+    //
+    // Get the page id of the root node, BTPageFile.NO_PAGE if the tree is empty
+    //
+    public long getRootPageId() {
+        return mRootPageId;
+    }
+
+    //
+    // The total number of keys in the tree
+    //
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    //
+    // Clear all the entries in the tree and give the pages of the file back
+    //
+    @Override
+    public void clear() {
+        try {
+            mPool.clear();
+            mPageFile.clear();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mRootPageId = BTPageFile.NO_PAGE;
+        mSize = 0L;
+    }
+
+    //
+    // Write the changed nodes back, the root and the number of keys to the header, and force the file
+    // to the storage device. The file holds the tree as it is now until the next change
+    //
+    public void flush() throws IOException {
+        mPool.flush();
+        mPageFile.setMetadata(ROOT_PAGE_SLOT, mRootPageId);
+        mPageFile.setMetadata(KEY_NUM_SLOT, mSize);
+        mPageFile.flush();
+    }
+
+    //
+    // Flush the tree and close its file
+    // If the changed nodes cannot all be written, the file is closed as it is and stays marked as changed
+    //
+    @Override
+    public void close() throws IOException {
+        try {
+            mPool.flush();
+        }
+        catch (IOException | RuntimeException e) {
+            try {
+                mPageFile.closeWithoutFlush();
+            }
+            catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+        mPageFile.setMetadata(ROOT_PAGE_SLOT, mRootPageId);
+        mPageFile.setMetadata(KEY_NUM_SLOT, mSize);
+        mPageFile.close();
+    }
+
+    //
+    // Search value for a specified key of the tree
+    //
+    @Override
+    public V search(K key) {
+        try {
+            long pageId = mRootPageId;
+            while (pageId != BTPageFile.NO_PAGE) {
+                DiskBTNode<K, V> currentNode = readNode(pageId);
+                int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+                if (i >= 0) {
+                    return currentNode.mValues[i];
+                }
+                if (currentNode.mIsLeaf) {
+                    return null;
+                }
+                pageId = currentNode.mChildren[-(i + 1)];
+                releaseNode(currentNode);
+            }
+            return null;
+        }
+        finally {
+            releaseNodes();
+        }
+    }
+
+    //
+    // Insert the key and its value into the tree
+    // The value of an existing key is replaced
+    //
+    @Override
+    public DiskBTree<K, V> insert(K key, V value) {
+        checkEncodable(key, value);
+        try {
+            insertKey(key, value);
+        }
+        finally {
+            releaseNodes();
+        }
+        return this;
+    }
+
+    private void insertKey(K key, V value) {
+        DiskBTNode<K, V> currentNode;
+        if (mRootPageId == BTPageFile.NO_PAGE) {
+            currentNode = allocateNode(true);
+            mRootPageId = currentNode.mPageId;
+        }
+        else {
+            currentNode = readNode(mRootPageId);
+        }
+
+        if (currentNode.mCurrentKeyNum == mUpperBoundKeyNum) {
+            // The root is full, split it so that the tree grows by one level
+            DiskBTNode<K, V> btNode = allocateNode(false);
+            btNode.mChildren[0] = currentNode.mPageId;
+            mRootPageId = btNode.mPageId;
+            splitNode(btNode, 0, currentNode);
+            releaseNode(currentNode);
+            currentNode = btNode;
+        }
+
+        while (true) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (i >= 0) {
+                // The key already existed so replace its value
+                currentNode.mValues[i] = value;
+                markDirty(currentNode);
+                return;
+            }
+
+            i = -(i + 1);
+            if (currentNode.mIsLeaf) {
+                System.arraycopy(currentNode.mKeys, i, currentNode.mKeys, i + 1, currentNode.mCurrentKeyNum - i);
+                System.arraycopy(currentNode.mValues, i, currentNode.mValues, i + 1, currentNode.mCurrentKeyNum - i);
+                currentNode.mKeys[i] = key;
+                currentNode.mValues[i] = value;
+                ++(currentNode.mCurrentKeyNum);
+                markDirty(currentNode);
+                ++mSize;
+                return;
+            }
+
+            DiskBTNode<K, V> childNode = readNode(currentNode.mChildren[i]);
+            if (childNode.mCurrentKeyNum == mUpperBoundKeyNum) {
+                // Split the full child before going down so that it can take the key
+                DiskBTNode<K, V> newNode = splitNode(currentNode, i, childNode);
+                int cmp = key.compareTo(currentNode.mKeys[i]);
+                if (cmp == 0) {
+                    currentNode.mValues[i] = value;
+                    markDirty(currentNode);
+                    return;
+                }
+                if (cmp > 0) {
+                    releaseNode(childNode);
+                    childNode = newNode;
+                }
+                else {
+                    releaseNode(newNode);
+                }
+            }
+            releaseNode(currentNode);
+            currentNode = childNode;
+        }
+    }
+
+    //
+    // Split the full child node at nodeIdx of the parent node
+    // The middle key moves up to the parent node
+    // Return the new node holding the right half of the keys, pinned
+    //
+    private DiskBTNode<K, V> splitNode(DiskBTNode<K, V> parentNode, int nodeIdx, DiskBTNode<K, V> btNode) {
+        DiskBTNode<K, V> newNode = allocateNode(btNode.mIsLeaf);
+        newNode.mCurrentKeyNum = mLowerBoundKeyNum;
+
+        // Move the right half of the keys (and children) to the new node
+        System.arraycopy(btNode.mKeys, mMinDegree, newNode.mKeys, 0, mLowerBoundKeyNum);
+        System.arraycopy(btNode.mValues, mMinDegree, newNode.mValues, 0, mLowerBoundKeyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(btNode.mChildren, mMinDegree, newNode.mChildren, 0, mMinDegree);
+        }
+        btNode.mCurrentKeyNum = mLowerBoundKeyNum;
+
+        // Make room in the parent node for the middle key and the new child
+        int keyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, nodeIdx, parentNode.mKeys, nodeIdx + 1, keyNum - nodeIdx);
+        System.arraycopy(parentNode.mValues, nodeIdx, parentNode.mValues, nodeIdx + 1, keyNum - nodeIdx);
+        System.arraycopy(parentNode.mChildren, nodeIdx + 1, parentNode.mChildren, nodeIdx + 2, keyNum - nodeIdx);
+        parentNode.mKeys[nodeIdx] = btNode.mKeys[mLowerBoundKeyNum];
+        parentNode.mValues[nodeIdx] = btNode.mValues[mLowerBoundKeyNum];
+        parentNode.mChildren[nodeIdx + 1] = newNode.mPageId;
+        ++(parentNode.mCurrentKeyNum);
+
+        markDirty(btNode);
+        markDirty(newNode);
+        markDirty(parentNode);
+        return newNode;
+    }
+
+    //
+    // Delete a key from the tree
+    // Return the value if the key existed
+    // Return null otherwise
+    //
+    @Override
+    public V delete(K key) {
+        if (mRootPageId == BTPageFile.NO_PAGE) {
+            return null;
+        }
+        try {
+            return deleteKey(key);
+        }
+        finally {
+            releaseNodes();
+        }
+    }
+
+    private V deleteKey(K key) {
+        V retVal = null;
+        boolean isFound = false;
+        DiskBTNode<K, V> rootNode = readNode(mRootPageId);
+        DiskBTNode<K, V> currentNode = rootNode;
+        while (true) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (currentNode.mIsLeaf) {
+                if (i >= 0) {
+                    retVal = currentNode.mValues[i];
+                    removeKeyAt(currentNode, i);
+                    markDirty(currentNode);
+                    isFound = true;
+                }
+                break;
+            }
+
+            if (i >= 0) {
+                // The key is in an internal node, replace it with its predecessor or successor
+                // taken out of a child that can spare a key, or merge the two children around it
+                DiskBTNode<K, V> leftChild = readNode(currentNode.mChildren[i]);
+                if (leftChild.mCurrentKeyNum > mLowerBoundKeyNum) {
+                    retVal = currentNode.mValues[i];
+                    deleteLastKey(leftChild, currentNode, i);
+                    isFound = true;
+                    break;
+                }
+                DiskBTNode<K, V> rightChild = readNode(currentNode.mChildren[i + 1]);
+                if (rightChild.mCurrentKeyNum > mLowerBoundKeyNum) {
+                    releaseNode(leftChild);
+                    retVal = currentNode.mValues[i];
+                    deleteFirstKey(rightChild, currentNode, i);
+                    isFound = true;
+                    break;
+                }
+                mergeChildren(currentNode, i, leftChild, rightChild);
+                if (currentNode != rootNode) {
+                    releaseNode(currentNode);
+                }
+                currentNode = leftChild;
+                continue;
+            }
+
+            DiskBTNode<K, V> childNode = ensureChildCanSpareKey(currentNode, -(i + 1));
+            if (currentNode != rootNode) {
+                releaseNode(currentNode);
+            }
+            currentNode = childNode;
+        }
+
+        if (rootNode.mCurrentKeyNum == 0) {
+            mRootPageId = rootNode.mIsLeaf ? BTPageFile.NO_PAGE : rootNode.mChildren[0];
+            freeNode(rootNode);
+        }
+        if (isFound) {
+            --mSize;
+        }
+        return retVal;
+    }
+
+    //
+    // Remove the largest key of the subtree and store it at keyIdx of the target node
+    //
+    private void deleteLastKey(DiskBTNode<K, V> btNode, DiskBTNode<K, V> targetNode, int keyIdx) {
+        while (!btNode.mIsLeaf) {
+            DiskBTNode<K, V> childNode = ensureChildCanSpareKey(btNode, btNode.mCurrentKeyNum);
+            releaseNode(btNode);
+            btNode = childNode;
+        }
+        int lastIdx = btNode.mCurrentKeyNum - 1;
+        targetNode.mKeys[keyIdx] = btNode.mKeys[lastIdx];
+        targetNode.mValues[keyIdx] = btNode.mValues[lastIdx];
+        removeKeyAt(btNode, lastIdx);
+        markDirty(btNode);
+        markDirty(targetNode);
+    }
+
+    //
+    // Remove the smallest key of the subtree and store it at keyIdx of the target node
+    //
+    private void deleteFirstKey(DiskBTNode<K, V> btNode, DiskBTNode<K, V> targetNode, int keyIdx) {
+        while (!btNode.mIsLeaf) {
+            DiskBTNode<K, V> childNode = ensureChildCanSpareKey(btNode, 0);
+            releaseNode(btNode);
+            btNode = childNode;
+        }
+        targetNode.mKeys[keyIdx] = btNode.mKeys[0];
+        targetNode.mValues[keyIdx] = btNode.mValues[0];
+        removeKeyAt(btNode, 0);
+        markDirty(btNode);
+        markDirty(targetNode);
+    }
+
+    //
+    // Make sure the child at nodeIdx holds more than the minimum number of keys
+    // before going down into it, by borrowing from a sibling or merging with it
+    // Return the node to go down into, the only node it leaves pinned
+    //
+    private DiskBTNode<K, V> ensureChildCanSpareKey(DiskBTNode<K, V> parentNode, int nodeIdx) {
+        DiskBTNode<K, V> btNode = readNode(parentNode.mChildren[nodeIdx]);
+        if (btNode.mCurrentKeyNum > mLowerBoundKeyNum) {
+            return btNode;
+        }
+
+        DiskBTNode<K, V> leftSiblingNode = (nodeIdx > 0) ? readNode(parentNode.mChildren[nodeIdx - 1]) : null;
+        if ((leftSiblingNode != null) && (leftSiblingNode.mCurrentKeyNum > mLowerBoundKeyNum)) {
+            performRightRotation(parentNode, nodeIdx, btNode, leftSiblingNode);
+            releaseNode(leftSiblingNode);
+            return btNode;
+        }
+
+        DiskBTNode<K, V> rightSiblingNode = (nodeIdx < parentNode.mCurrentKeyNum) ? readNode(parentNode.mChildren[nodeIdx + 1]) : null;
+        if ((rightSiblingNode != null) && (rightSiblingNode.mCurrentKeyNum > mLowerBoundKeyNum)) {
+            performLeftRotation(parentNode, nodeIdx, btNode, rightSiblingNode);
+            if (leftSiblingNode != null) {
+                releaseNode(leftSiblingNode);
+            }
+            releaseNode(rightSiblingNode);
+            return btNode;
+        }
+
+        if (rightSiblingNode != null) {
+            if (leftSiblingNode != null) {
+                releaseNode(leftSiblingNode);
+            }
+            mergeChildren(parentNode, nodeIdx, btNode, rightSiblingNode);
+            return btNode;
+        }
+        mergeChildren(parentNode, nodeIdx - 1, leftSiblingNode, btNode);
+        return leftSiblingNode;
+    }
+
+    //
+    // Move the parent key down to the front of the node and the last key of the left sibling up
+    //
+    private void performRightRotation(DiskBTNode<K, V> parentNode, int nodeIdx, DiskBTNode<K, V> btNode, DiskBTNode<K, V> leftSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = leftSiblingNode.mCurrentKeyNum;
+        System.arraycopy(btNode.mKeys, 0, btNode.mKeys, 1, keyNum);
+        System.arraycopy(btNode.mValues, 0, btNode.mValues, 1, keyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(btNode.mChildren, 0, btNode.mChildren, 1, keyNum + 1);
+            btNode.mChildren[0] = leftSiblingNode.mChildren[siblingKeyNum];
+        }
+        btNode.mKeys[0] = parentNode.mKeys[nodeIdx - 1];
+        btNode.mValues[0] = parentNode.mValues[nodeIdx - 1];
+        ++(btNode.mCurrentKeyNum);
+
+        parentNode.mKeys[nodeIdx - 1] = leftSiblingNode.mKeys[siblingKeyNum - 1];
+        parentNode.mValues[nodeIdx - 1] = leftSiblingNode.mValues[siblingKeyNum - 1];
+        leftSiblingNode.mKeys[siblingKeyNum - 1] = null;
+        leftSiblingNode.mValues[siblingKeyNum - 1] = null;
+        --(leftSiblingNode.mCurrentKeyNum);
+
+        markDirty(btNode);
+        markDirty(leftSiblingNode);
+        markDirty(parentNode);
+    }
+
+    //
+    // Move the parent key down to the end of the node and the first key of the right sibling up
+    //
+    private void performLeftRotation(DiskBTNode<K, V> parentNode, int nodeIdx, DiskBTNode<K, V> btNode, DiskBTNode<K, V> rightSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+        btNode.mKeys[keyNum] = parentNode.mKeys[nodeIdx];
+        btNode.mValues[keyNum] = parentNode.mValues[nodeIdx];
+        if (!btNode.mIsLeaf) {
+            btNode.mChildren[keyNum + 1] = rightSiblingNode.mChildren[0];
+            System.arraycopy(rightSiblingNode.mChildren, 1, rightSiblingNode.mChildren, 0, siblingKeyNum);
+        }
+        ++(btNode.mCurrentKeyNum);
+
+        parentNode.mKeys[nodeIdx] = rightSiblingNode.mKeys[0];
+        parentNode.mValues[nodeIdx] = rightSiblingNode.mValues[0];
+        System.arraycopy(rightSiblingNode.mKeys, 1, rightSiblingNode.mKeys, 0, siblingKeyNum - 1);
+        System.arraycopy(rightSiblingNode.mValues, 1, rightSiblingNode.mValues, 0, siblingKeyNum - 1);
+        rightSiblingNode.mKeys[siblingKeyNum - 1] = null;
+        rightSiblingNode.mValues[siblingKeyNum - 1] = null;
+        --(rightSiblingNode.mCurrentKeyNum);
+
+        markDirty(btNode);
+        markDirty(rightSiblingNode);
+        markDirty(parentNode);
+    }
+
+    //
+    // Merge the right sibling and the parent key at keyIdx into the child at keyIdx, and free the page of the sibling
+    //
+    private void mergeChildren(DiskBTNode<K, V> parentNode, int keyIdx, DiskBTNode<K, V> btNode, DiskBTNode<K, V> rightSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+
+        btNode.mKeys[keyNum] = parentNode.mKeys[keyIdx];
+        btNode.mValues[keyNum] = parentNode.mValues[keyIdx];
+        System.arraycopy(rightSiblingNode.mKeys, 0, btNode.mKeys, keyNum + 1, siblingKeyNum);
+        System.arraycopy(rightSiblingNode.mValues, 0, btNode.mValues, keyNum + 1, siblingKeyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(rightSiblingNode.mChildren, 0, btNode.mChildren, keyNum + 1, siblingKeyNum + 1);
+        }
+        btNode.mCurrentKeyNum = keyNum + 1 + siblingKeyNum;
+
+        // Remove the parent key and the pointer to the abandoned sibling
+        int parentKeyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, keyIdx + 1, parentNode.mKeys, keyIdx, parentKeyNum - keyIdx - 1);
+        System.arraycopy(parentNode.mValues, keyIdx + 1, parentNode.mValues, keyIdx, parentKeyNum - keyIdx - 1);
+        System.arraycopy(parentNode.mChildren, keyIdx + 2, parentNode.mChildren, keyIdx + 1, parentKeyNum - keyIdx - 1);
+        parentNode.mKeys[parentKeyNum - 1] = null;
+        parentNode.mValues[parentKeyNum - 1] = null;
+        --(parentNode.mCurrentKeyNum);
+
+        markDirty(btNode);
+        markDirty(parentNode);
+        freeNode(rightSiblingNode);
+    }
+
+    //
+    // Remove the key at keyIdx of a leaf node
+    //
+    private void removeKeyAt(DiskBTNode<K, V> btNode, int keyIdx) {
+        int keyNum = btNode.mCurrentKeyNum;
+        System.arraycopy(btNode.mKeys, keyIdx + 1, btNode.mKeys, keyIdx, keyNum - keyIdx - 1);
+        System.arraycopy(btNode.mValues, keyIdx + 1, btNode.mValues, keyIdx, keyNum - keyIdx - 1);
+        btNode.mKeys[keyNum - 1] = null;
+        btNode.mValues[keyNum - 1] = null;
+        --(btNode.mCurrentKeyNum);
+    }
+
+    //
+    // List all the items in the tree
+    //
+    @Override
+    public void list(BTIteratorIF<K, V> iterImpl) {
+        if ((mSize < 1) || (iterImpl == null)) {
+            return;
+        }
+
+        try {
+            listEntriesInOrder(mRootPageId, iterImpl);
+        }
+        finally {
+            releaseNodes();
+        }
+    }
+
+    //
+    // Recursively loop to the tree and list out the keys and their values
+    // Each node is unpinned once listed, the nodes left pinned when the listing stops are unpinned by list()
+    // Return true if it should continues listing out futher
+    // Return false if it is done
+    //
+    private boolean listEntriesInOrder(long pageId, BTIteratorIF<K, V> iterImpl) {
+        DiskBTNode<K, V> treeNode = readNode(pageId);
+        int currentKeyNum = treeNode.mCurrentKeyNum;
+        for (int i = 0; i < currentKeyNum; ++i) {
+            if (!treeNode.mIsLeaf && !listEntriesInOrder(treeNode.mChildren[i], iterImpl)) {
+                return false;
+            }
+            if (!iterImpl.item(treeNode.mKeys[i], treeNode.mValues[i])) {
+                return false;
+            }
+        }
+
+        boolean bStatus = treeNode.mIsLeaf || listEntriesInOrder(treeNode.mChildren[currentKeyNum], iterImpl);
+        releaseNode(treeNode);
+        return bStatus;
+    }
+
+    //
+    // List the items whose keys lie between fromKey and toKey, in ascending order
+    // A null bound leaves that side of the range open
+    // Only the pages of the subtrees that overlap the range are read
+    //
+    @Override
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        if ((mSize < 1) || (iterImpl == null)) {
+            return;
+        }
+
+        try {
+            listRangeInOrder(mRootPageId, fromKey, fromInclusive, toKey, toInclusive, iterImpl);
+        }
+        finally {
+            releaseNodes();
+        }
+    }
+
+    //
+    // Recursively list out the keys of the range found in the subtree
+    // Return true if it should continue listing out further
+    // Return false if the upper bound is passed or the iterator asked to stop
+    //
+    private boolean listRangeInOrder(long pageId, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        DiskBTNode<K, V> treeNode = readNode(pageId);
+        int currentKeyNum = treeNode.mCurrentKeyNum;
+        int i = 0;
+        boolean bVisitChild = !treeNode.mIsLeaf;
+        if (fromKey != null) {
+            // Skip the keys and the subtrees below the lower bound
+            i = mSearch.search(treeNode.mKeys, currentKeyNum, fromKey);
+            if (i < 0) {
+                i = -(i + 1);
+            }
+            else if (fromInclusive) {
+                // The subtree left of the bound holds lower keys only
+                bVisitChild = false;
+            }
+            else {
+                ++i;
+            }
+        }
+
+        for (; ; ++i) {
+            if (bVisitChild) {
+                if (!listRangeInOrder(treeNode.mChildren[i], fromKey, fromInclusive, toKey, toInclusive, iterImpl)) {
+                    return false;
+                }
+            }
+            // Only the first subtree visited can hold keys below the lower bound
+            fromKey = null;
+            bVisitChild = !treeNode.mIsLeaf;
+
+            if (i == currentKeyNum) {
+                releaseNode(treeNode);
+                return true;
+            }
+
+            if (toKey != null) {
+                int cmp = treeNode.mKeys[i].compareTo(toKey);
+                if ((cmp > 0) || ((cmp == 0) && !toInclusive)) {
+                    return false;
+                }
+            }
+
+            if (!iterImpl.item(treeNode.mKeys[i], treeNode.mValues[i])) {
+                return false;
+            }
+        }
+    }
+
+    //
+    // Check that the key and the value can be encoded, before the tree is changed
+    // The nodes are only encoded when they are written back, too late to turn the insert down
+    //
+    private void checkEncodable(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("null keys are not supported");
+        }
+        mCheckBuf.clear();
+        mKeyCodec.write(mCheckBuf, key);
+        mCheckBuf.clear();
+        mValueCodec.write(mCheckBuf, value);
+    }
+
+    //
+    // Pin the node of a page for the running operation
+    //
+    private DiskBTNode<K, V> readNode(long pageId) {
+        DiskBTNode<K, V> btNode;
+        try {
+            btNode = mPool.pin(pageId);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mPinnedNodes.add(btNode);
+        return btNode;
+    }
+
+    //
+    // Pin the empty node of a new page for the running operation
+    //
+    private DiskBTNode<K, V> allocateNode(boolean isLeaf) {
+        DiskBTNode<K, V> btNode;
+        try {
+            btNode = mPool.pinNew(isLeaf);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        mPinnedNodes.add(btNode);
+        return btNode;
+    }
+
+    private void markDirty(DiskBTNode<K, V> btNode) {
+        mPool.markDirty(btNode);
+    }
+
+    //
+    // Unpin a node the running operation is done with
+    //
+    private void releaseNode(DiskBTNode<K, V> btNode) {
+        mPinnedNodes.remove(mPinnedNodes.lastIndexOf(btNode));
+        mPool.unpin(btNode);
+    }
+
+    //
+    // Unpin all the nodes left pinned by the operation, at its end
+    //
+    private void releaseNodes() {
+        for (DiskBTNode<K, V> btNode : mPinnedNodes) {
+            mPool.unpin(btNode);
+        }
+        mPinnedNodes.clear();
+    }
+
+    //
+    // Drop a pinned node and give its page back to the file
+    //
+    private void freeNode(DiskBTNode<K, V> btNode) {
+        while (mPinnedNodes.remove(btNode)) {
+        }
+        long pageId = btNode.mPageId;
+        mPool.discard(btNode);
+        try {
+            mPageFile.freePage(pageId);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package app;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//
+// BTree whose inserts, deletes and clears are recorded in a write-ahead log, so that they survive a crash
+// Opening the tree replays its log. Each change is appended to the log and then applied to the tree, both
+// under the write lock so that the log holds the changes in the order they were applied
+// With the PER_OPERATION policy a change returns once its record is forced to the storage device; the
+// writers wait for it after releasing the lock, so that those waiting at the same time share one fsync
+// With the other policies a change returns at once, and may be lost in a crash until the background
+// thread of the log makes it durable. Readers may see a change before it is durable
+// checkpoint() writes the tree to a checkpoint file next to the log, at the LSN of the last change it holds.
+// It only holds the write lock to take a snapshot of the tree, which it writes while the writers go on, then
+// deletes the log segments the checkpoint holds. Opening the tree bulk loads its newest checkpoint and
+// replays only the log records that follow it. Checkpoints can also be written periodically by a thread
+// The tree can be used by several threads
+//
+public class DurableBTree<K extends Comparable, V> implements BTreeIF<K, V>, Closeable
+{
+    public final static String CHECKPOINT_SUFFIX    =   ".checkpoint";
+
+    private final BTree<K, V> mTree;
+    private final BTWriteAheadLog<K, V> mLog;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private final BTPageCodecIF<K> mKeyCodec;
+    private final BTPageCodecIF<V> mValueCodec;
+    private final File mCheckpointFile;
+    private final ReentrantLock mCheckpointLock = new ReentrantLock(); // one checkpoint at a time
+    private volatile long mCheckpointLsn; // LSN of the newest checkpoint, 0 if there is none
+
+    private final Thread mCheckpointThread;
+    private final Object mCheckpointThreadMonitor = new Object(); // wakes the checkpoint thread up when the tree is closed
+    private volatile boolean mIsClosed = false;
+    private volatile IOException mCheckpointError = null; // failure of the checkpoint thread, thrown by close()
+
+
+    //
+    // Open the tree of the log file with the default node degree, recovering it from its checkpoint and its log
+    //
+    public DurableBTree(File logFile, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec,
+                        BTWriteAheadLog.SyncPolicy syncPolicy) throws IOException {
+        this(logFile, keyCodec, valueCodec, syncPolicy, BTWriteAheadLog.DEFAULT_SYNC_INTERVAL_MILLIS, new BTree<K, V>());
+    }
+
+    //
+    // Open the tree of the log file into an empty tree, recovering it from its checkpoint and its log
+    // The tree must not be used directly afterwards
+    //
+    public DurableBTree(File logFile, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec,
+                        BTWriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMillis, BTree<K, V> btree) throws IOException {
+        this(logFile, keyCodec, valueCodec, syncPolicy, syncIntervalMillis, btree, 0L);
+    }
+
+    //
+    // Open the tree of the log file into an empty tree, recovering it from its checkpoint and its log,
+    // and write a checkpoint every checkpoint interval if it is positive
+    // The tree must not be used directly afterwards
+    //
+    public DurableBTree(File logFile, BTPageCodecIF<K> keyCodec, BTPageCodecIF<V> valueCodec,
+                        BTWriteAheadLog.SyncPolicy syncPolicy, long syncIntervalMillis, BTree<K, V> btree,
+                        final long checkpointIntervalMillis) throws IOException {
+        if (btree.size() != 0L) {
+            throw new IllegalArgumentException("The tree must be empty, it holds " + btree.size() + " keys");
+        }
+        mTree = btree;
+        mKeyCodec = keyCodec;
+        mValueCodec = valueCodec;
+        mCheckpointFile = new File(logFile.getPath() + CHECKPOINT_SUFFIX);
+        long checkpointLsn = 0L;
+        if (mCheckpointFile.exists()) {
+            checkpointLsn = BTCheckpoint.load(mCheckpointFile, keyCodec, valueCodec, mTree);
+        }
+        mCheckpointLsn = checkpointLsn;
+        mLog = new BTWriteAheadLog<K, V>(logFile, keyCodec, valueCodec, syncPolicy, syncIntervalMillis);
+        try {
+            mLog.replay(mTree, checkpointLsn);
+        }
+        catch (IOException | RuntimeException e) {
+            mLog.close();
+            throw e;
+        }
+
+        if (checkpointIntervalMillis <= 0L) {
+            mCheckpointThread = null;
+        }
+        else {
+            mCheckpointThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runCheckpointThread(checkpointIntervalMillis);
+                }
+            }, "DurableBTree-checkpoint");
+            mCheckpointThread.setDaemon(true);
+            mCheckpointThread.start();
+        }
+    }
+
+    //
+    // Delete the checkpoint and the log segments of a tree that is not open
+    //
+    public static void delete(File logFile) throws IOException {
+        File checkpointFile = new File(logFile.getPath() + CHECKPOINT_SUFFIX);
+        if (!checkpointFile.delete() && checkpointFile.exists()) {
+            throw new IOException("Cannot delete " + checkpointFile);
+        }
+        BTWriteAheadLog.delete(logFile);
+    }
+
+    public BTWriteAheadLog<K, V> getLog() {
+        return mLog;
+    }
+
+    public File getCheckpointFile() {
+        return mCheckpointFile;
+    }
+
+    //
+    // LSN of the last change held by the newest checkpoint, 0 if there is none
+    //
+    public long getCheckpointLsn() {
+        return mCheckpointLsn;
+    }
+
+    @Override
+    public long size() {
+        mLock.readLock().lock();
+        try {
+            return mTree.size();
+        }
+        finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public V search(K key) {
+        mLock.readLock().lock();
+        try {
+            return mTree.search(key);
+        }
+        finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void list(BTIteratorIF<K, V> iterImpl) {
+        mLock.readLock().lock();
+        try {
+            mTree.list(iterImpl);
+        }
+        finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        mLock.readLock().lock();
+        try {
+            mTree.range(fromKey, fromInclusive, toKey, toInclusive, iterImpl);
+        }
+        finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    //
+    // Log the insert of the key and its value, then apply it
+    //
+    @Override
+    public DurableBTree<K, V> insert(K key, V value) {
+        if (key == null) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+        long lsn;
+        mLock.writeLock().lock();
+        try {
+            lsn = mLog.appendInsert(key, value);
+            mTree.insert(key, value);
+        }
+        finally {
+            mLock.writeLock().unlock();
+        }
+        awaitDurable(lsn);
+        return this;
+    }
+
+    //
+    // Log the delete of the key, then apply it
+    // Return the value if the key existed
+    //
+    @Override
+    public V delete(K key) {
+        if (key == null) {
+            throw new NullPointerException("Null keys are not supported");
+        }
+        long lsn;
+        V value;
+        mLock.writeLock().lock();
+        try {
+            lsn = mLog.appendDelete(key);
+            value = mTree.delete(key);
+        }
+        finally {
+            mLock.writeLock().unlock();
+        }
+        awaitDurable(lsn);
+        return value;
+    }
+
+    //
+    // Log the removal of all the keys, then apply it
+    //
+    @Override
+    public void clear() {
+        long lsn;
+        mLock.writeLock().lock();
+        try {
+            lsn = mLog.appendClear();
+            mTree.clear();
+        }
+        finally {
+            mLock.writeLock().unlock();
+        }
+        awaitDurable(lsn);
+    }
+
+    //
+    // Make all the changes so far durable, whatever the sync policy
+    //
+    public void sync() throws IOException {
+        mLog.sync();
+    }
+
+    //
+    // Write a checkpoint of the tree as it is now, while the writers go on, and delete the log segments it holds
+    // The log is rolled after the snapshot, which forces the records the checkpoint holds, so that the
+    // log never ends before the checkpoint
+    // Return the LSN of the checkpoint
+    //
+    public long checkpoint() throws IOException {
+        mCheckpointLock.lock();
+        try {
+            BTree<K, V> snapshot;
+            long lsn;
+            mLock.writeLock().lock();
+            try {
+                snapshot = mTree.snapshot();
+                lsn = mLog.getLastLsn();
+            }
+            finally {
+                mLock.writeLock().unlock();
+            }
+            if (lsn == mCheckpointLsn) {
+                return lsn;
+            }
+
+            mLog.roll();
+            // write() returns once the rename of the checkpoint is durable, so no crash can keep the deletes
+            // of the segments below without the checkpoint that holds their records
+            BTCheckpoint.write(mCheckpointFile, snapshot, mKeyCodec, mValueCodec, lsn);
+            mCheckpointLsn = lsn;
+            mLog.truncate(lsn);
+            return lsn;
+        }
+        finally {
+            mCheckpointLock.unlock();
+        }
+    }
+
+    //
+    // Stop the checkpoint thread, make all the changes durable and close the log
+    // Throw the failure of the checkpoint thread, if any, once the log is closed
+    //
+    @Override
+    public void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        if (mCheckpointThread != null) {
+            synchronized (mCheckpointThreadMonitor) {
+                mCheckpointThreadMonitor.notifyAll();
+            }
+            try {
+                mCheckpointThread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mLog.close();
+        if (mCheckpointError != null) {
+            throw new IOException("A periodic checkpoint failed", mCheckpointError);
+        }
+    }
+
+    //
+    // Write a checkpoint every interval until the tree is closed or a checkpoint fails
+    //
+    private void runCheckpointThread(long checkpointIntervalMillis) {
+        while (true) {
+            synchronized (mCheckpointThreadMonitor) {
+                if (mIsClosed) {
+                    return;
+                }
+                try {
+                    mCheckpointThreadMonitor.wait(checkpointIntervalMillis);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                if (mIsClosed) {
+                    return;
+                }
+            }
+            try {
+                checkpoint();
+            }
+            catch (IOException e) {
+                mCheckpointError = e;
+                return;
+            }
+        }
+    }
+
+    private void awaitDurable(long lsn) {
+        if (mLog.getSyncPolicy() != BTWriteAheadLog.SyncPolicy.PER_OPERATION) {
+            return;
+        }
+        try {
+            mLog.sync(lsn);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+package app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+//
+// Validation de la reprise d'un DurableBTree par son journal, compare  une TreeMap
+// Aprs des oprations alatoires l'arbre est rouvert aprs une fermeture normale, aprs un abandon sans
+// fermeture, aprs l'ajout de donnes invalides  la fin du dernier segment ou la coupure de son dernier
+// enregistrement, sur un journal de plusieurs segments et aprs des points de reprise (checkpoints); les
+// entres listes doivent tre celles de la TreeMap
+//
+public class DurableBTreeTest
+{
+    private final File mLogFile;
+    private final BTWriteAheadLog.SyncPolicy mSyncPolicy;
+    private final TreeMap<Integer, Integer> mMap;
+    private final Random mRand;
+    private DurableBTree<Integer, Integer> mBTree;
+
+    //
+    // Ouvrir un arbre vide sur le journal, dont les fichiers existants sont supprims
+    //
+    public DurableBTreeTest(File logFile, BTWriteAheadLog.SyncPolicy syncPolicy, long seed) throws IOException {
+        DurableBTree.delete(logFile);
+        mLogFile = logFile;
+        mSyncPolicy = syncPolicy;
+        mMap = new TreeMap<Integer, Integer>();
+        mRand = new Random(seed);
+        open();
+    }
+
+    public DurableBTree<Integer, Integer> getBTree() {
+        return mBTree;
+    }
+
+    private void open() throws IOException {
+        mBTree = new DurableBTree<Integer, Integer>(mLogFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER, mSyncPolicy);
+    }
+
+    public void close() throws IOException {
+        mBTree.close();
+    }
+
+    //
+    // Fermer l'arbre normalement puis le rouvrir
+    //
+    public void reopen() throws IOException {
+        mBTree.close();
+        open();
+    }
+
+    //
+    // Rouvrir l'arbre sans le fermer, comme aprs l'arrt brutal du processus: l'ancien arbre est abandonn
+    // ouvert. Seules les oprations durables sont gardes, d'o le sync() des politiques qui n'attendent pas
+    // chaque opration
+    //
+    public void reopenWithoutClose() throws IOException {
+        if (mSyncPolicy != BTWriteAheadLog.SyncPolicy.PER_OPERATION) {
+            mBTree.sync();
+        }
+        open();
+    }
+
+    //
+    // Insertions, suppressions, recherches et rares effacements alatoires, appliqus  l'arbre et  la TreeMap
+    //
+    public void applyRandomOperations(int operationNum, int keyRange) throws BTException {
+        for (int i = 0; i < operationNum; ++i) {
+            Integer key = mRand.nextInt(keyRange);
+            int op = mRand.nextInt(1000);
+            if (op < 600) {
+                Integer value = mRand.nextInt();
+                mMap.put(key, value);
+                mBTree.insert(key, value);
+            }
+            else if (op < 950) {
+                Integer value1 = mMap.remove(key);
+                Integer value2 = mBTree.delete(key);
+                if (!isEqual(value1, value2)) {
+                    throw new BTException("La cl supprime = " + key + " a plusieurs valeurs: " + value1 + " | " + value2);
+                }
+            }
+            else if (op < 999) {
+                if (!isEqual(mMap.get(key), mBTree.search(key))) {
+                    throw new BTException("Erreur dans applyRandomOperations(): Echec de comparaison de la valeur du cl = " + key);
+                }
+            }
+            else {
+                mMap.clear();
+                mBTree.clear();
+            }
+        }
+    }
+
+    //
+    // Comparer les entres listes par l'arbre  celles de la TreeMap, dans l'ordre
+    //
+    public void validateEntries() throws BTException {
+        if (mMap.size() != mBTree.size()) {
+            throw new BTException("Erreur dans validateEntries(): Echec de comparaison de la taille: " + mMap.size() + " <> " + mBTree.size());
+        }
+        final Iterator<Map.Entry<Integer, Integer>> mapIter = mMap.entrySet().iterator();
+        final String error[] = { null };
+        mBTree.list(new BTIteratorIF<Integer, Integer>() {
+            @Override
+            public boolean item(Integer key, Integer value) {
+                if (!mapIter.hasNext()) {
+                    error[0] = "cl = " + key + " absente de la TreeMap";
+                    return false;
+                }
+                Map.Entry<Integer, Integer> entry = mapIter.next();
+                if (!entry.getKey().equals(key) || !isEqual(entry.getValue(), value)) {
+                    error[0] = "entre " + key + " = " + value + " au lieu de " + entry.getKey() + " = " + entry.getValue();
+                    return false;
+                }
+                return true;
+            }
+        });
+        if ((error[0] == null) && mapIter.hasNext()) {
+            error[0] = "cl = " + mapIter.next().getKey() + " absente de l'arbre";
+        }
+        if (error[0] != null) {
+            throw new BTException("Erreur dans validateEntries(): " + error[0]);
+        }
+    }
+
+    //
+    // Rouvertures aprs une fermeture normale et sans fermeture, pour une politique de synchronisation
+    //
+    public static void validateReopen(File dir, BTWriteAheadLog.SyncPolicy syncPolicy, int operationNum, long seed) throws BTException, IOException {
+        System.out.println("Rouvertures du journal, politique = " + syncPolicy + " ...");
+        File logFile = new File(dir, "reopen-" + syncPolicy.name().toLowerCase() + ".log");
+        DurableBTreeTest test = new DurableBTreeTest(logFile, syncPolicy, seed);
+        for (int round = 0; round < 6; ++round) {
+            test.applyRandomOperations(operationNum, Math.max(100, operationNum / 2));
+            test.validateEntries();
+            if (round % 2 == 0) {
+                test.reopen();
+            }
+            else {
+                test.reopenWithoutClose();
+            }
+            test.validateEntries();
+        }
+        test.close();
+        DurableBTree.delete(logFile);
+    }
+
+    //
+    // Reprise aprs l'ajout de donnes invalides  la fin du dernier segment, puis aprs la coupure de son
+    // dernier enregistrement, qui est perdu; les enregistrements suivants doivent tre ajouts au dernier complet
+    //
+    public static void validateTornTail(File dir, int operationNum, long seed) throws BTException, IOException {
+        System.out.println("Reprise aprs une fin de journal dchire ...");
+        File logFile = new File(dir, "torn-tail.log");
+        DurableBTreeTest test = new DurableBTreeTest(logFile, BTWriteAheadLog.SyncPolicy.ASYNC, seed);
+        for (int round = 0; round < 6; ++round) {
+            test.applyRandomOperations(operationNum, Math.max(100, operationNum / 2));
+            test.close();
+            File segmentFile = getLastSegmentFile(logFile);
+            long segmentSize = segmentFile.length();
+            byte garbage[] = new byte[1 + test.mRand.nextInt(64)];
+            test.mRand.nextBytes(garbage);
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+                file.seek(segmentSize);
+                file.write(garbage);
+            }
+            test.open();
+            test.validateEntries();
+            if (segmentFile.length() != segmentSize) {
+                throw new BTException("Erreur dans validateTornTail(): " + segmentFile + " de " + segmentFile.length() +
+                                      " octets au lieu de " + segmentSize + " aprs la reprise");
+            }
+
+            TreeMap<Integer, Integer> previousMap = new TreeMap<Integer, Integer>(test.mMap);
+            test.getBTree().insert(-1 - round, round);
+            test.close();
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile, "rw")) {
+                file.setLength(file.length() - 1 - test.mRand.nextInt(8));
+            }
+            test.mMap.clear();
+            test.mMap.putAll(previousMap);
+            test.open();
+            test.validateEntries();
+        }
+        test.reopen();
+        test.validateEntries();
+        test.close();
+        DurableBTree.delete(logFile);
+    }
+
+    //
+    // Reprise d'un journal de plusieurs segments, puis refus d'un segment autre que le dernier qui est coup
+    // ou suivi de donnes invalides, l'arbre restant intact une fois le segment rtabli
+    //
+    public static void validateSegments(File dir, int operationNum, long seed) throws BTException, IOException {
+        System.out.println("Reprise d'un journal de plusieurs segments ...");
+        File logFile = new File(dir, "segments.log");
+        DurableBTreeTest test = new DurableBTreeTest(logFile, BTWriteAheadLog.SyncPolicy.GROUP_COMMIT, seed);
+        int segmentNum = 6;
+        for (int i = 1; i < segmentNum; ++i) {
+            test.applyRandomOperations(operationNum, Math.max(100, operationNum / 2));
+            test.getBTree().getLog().roll();
+        }
+        test.applyRandomOperations(operationNum, Math.max(100, operationNum / 2));
+        if (test.getBTree().getLog().getSegmentNum() != segmentNum) {
+            throw new BTException("Erreur dans validateSegments(): " + test.getBTree().getLog().getSegmentNum() +
+                                  " segments au lieu de " + segmentNum);
+        }
+        test.reopen();
+        test.validateEntries();
+        test.reopenWithoutClose();
+        test.validateEntries();
+        test.close();
+
+        File segmentFiles[] = getSegmentFiles(logFile);
+        for (int i = 0; i < segmentFiles.length - 1; ++i) {
+            byte segment[] = Files.readAllBytes(segmentFiles[i].toPath());
+            try (RandomAccessFile file = new RandomAccessFile(segmentFiles[i], "rw")) {
+                file.setLength(segment.length - 1);
+            }
+            test.validateRejected(segmentFiles[i], "coup");
+            Files.write(segmentFiles[i].toPath(), segment);
+
+            try (RandomAccessFile file = new RandomAccessFile(segmentFiles[i], "rw")) {
+                file.seek(segment.length);
+                file.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 });
+            }
+            test.validateRejected(segmentFiles[i], "allong");
+            Files.write(segmentFiles[i].toPath(), segment);
+        }
+        test.open();
+        test.validateEntries();
+        test.close();
+        DurableBTree.delete(logFile);
+    }
+
+    //
+    // Points de reprise suivis d'autres oprations puis d'une rouverture, normale ou sans fermeture: l'arbre
+    // rouvert doit charger le point de reprise, garder son LSN et rejouer les enregistrements qui le suivent
+    //
+    public static void validateCheckpoint(File dir, int operationNum, long seed) throws BTException, IOException {
+        System.out.println("Reprise aprs des points de reprise ...");
+        File logFile = new File(dir, "checkpoint.log");
+        DurableBTreeTest test = new DurableBTreeTest(logFile, BTWriteAheadLog.SyncPolicy.GROUP_COMMIT, seed);
+        for (int round = 0; round < 6; ++round) {
+            test.applyRandomOperations(operationNum, Math.max(100, operationNum / 2));
+            long checkpointLsn = test.getBTree().checkpoint();
+            if (getSegmentFirstLsn(getSegmentFiles(logFile)[0]) > checkpointLsn + 1) {
+                throw new BTException("Erreur dans validateCheckpoint(): le segment du LSN " + (checkpointLsn + 1) + " a t supprim");
+            }
+            test.applyRandomOperations(operationNum, Math.max(100, operationNum / 2));
+            if (round % 2 == 0) {
+                test.reopen();
+            }
+            else {
+                test.reopenWithoutClose();
+            }
+            test.validateEntries();
+            if (test.getBTree().getCheckpointLsn() != checkpointLsn) {
+                throw new BTException("Erreur dans validateCheckpoint(): point de reprise au LSN " +
+                                      test.getBTree().getCheckpointLsn() + " au lieu de " + checkpointLsn);
+            }
+        }
+        test.close();
+        DurableBTree.delete(logFile);
+    }
+
+    //
+    // Troncature d'un journal de segments de tailles alatoires  des LSN croissants: le segment qui contient le
+    // LSN suivant doit tre gard, ceux qui le prcdent supprims, et le journal doit rejouer tout ce qui suit
+    // Les cls insres sont les LSN de leurs enregistrements
+    //
+    public static void validateTruncate(File dir, int recordNum, long seed) throws BTException, IOException {
+        System.out.println("Troncature du journal ...");
+        Random rand = new Random(seed);
+        File logFile = new File(dir, "truncate.log");
+        BTWriteAheadLog.delete(logFile);
+        BTWriteAheadLog<Integer, Integer> log = new BTWriteAheadLog<Integer, Integer>(logFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER,
+                                                                                      BTWriteAheadLog.SyncPolicy.ASYNC,
+                                                                                      BTWriteAheadLog.DEFAULT_SYNC_INTERVAL_MILLIS);
+        try {
+            for (int lsn = 1; lsn <= recordNum; ++lsn) {
+                log.appendInsert(lsn, lsn);
+                if (rand.nextInt(20) == 0) {
+                    log.roll();
+                }
+            }
+            long lsn = 0L;
+            while (lsn < recordNum) {
+                log.truncate(lsn);
+                File segmentFiles[] = getSegmentFiles(logFile);
+                if (getSegmentFirstLsn(segmentFiles[0]) > lsn + 1) {
+                    throw new BTException("Erreur dans validateTruncate(): le segment du LSN " + (lsn + 1) + " a t supprim");
+                }
+                if ((segmentFiles.length > 1) && (getSegmentFirstLsn(segmentFiles[1]) <= lsn + 1)) {
+                    throw new BTException("Erreur dans validateTruncate(): le segment " + segmentFiles[0] + " est gard aprs le LSN " + lsn);
+                }
+                BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+                log.replay(btree, lsn);
+                if ((btree.size() != recordNum - lsn) || (btree.search((int) lsn + 1) == null) || (btree.search((int) lsn) != null)) {
+                    throw new BTException("Erreur dans validateTruncate(): " + btree.size() + " cls rejoues aprs le LSN " + lsn);
+                }
+                lsn += 1 + rand.nextInt(30);
+            }
+        }
+        finally {
+            log.close();
+        }
+        BTWriteAheadLog.delete(logFile);
+    }
+
+    //
+    // Refus d'un point de reprise abm, dans ses entres, sa somme de contrle ou sa longueur: l'ouverture doit
+    // chouer en laissant l'arbre vide plutt qu' moiti charg, puis russir une fois le fichier rtabli
+    //
+    public static void validateCorruptCheckpoint(File dir, int operationNum, long seed) throws BTException, IOException {
+        System.out.println("Refus d'un point de reprise abm ...");
+        File logFile = new File(dir, "corrupt-checkpoint.log");
+        DurableBTreeTest test = new DurableBTreeTest(logFile, BTWriteAheadLog.SyncPolicy.ASYNC, seed);
+        test.applyRandomOperations(4 * operationNum, 8 * operationNum);
+        test.getBTree().checkpoint();
+        test.applyRandomOperations(operationNum, 8 * operationNum);
+        test.close();
+
+        File checkpointFile = test.getBTree().getCheckpointFile();
+        byte checkpoint[] = Files.readAllBytes(checkpointFile.toPath());
+        int corruptIdxs[] = { checkpoint.length / 2, checkpoint.length - 5, checkpoint.length - 1 };
+        for (int corruptIdx : corruptIdxs) {
+            byte corruptCheckpoint[] = checkpoint.clone();
+            corruptCheckpoint[corruptIdx] ^= 0x5a;
+            Files.write(checkpointFile.toPath(), corruptCheckpoint);
+            test.validateCheckpointRejected("modifi  l'octet " + corruptIdx);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(checkpointFile, "rw")) {
+            file.setLength(checkpoint.length / 2);
+        }
+        test.validateCheckpointRejected("coup");
+        Files.write(checkpointFile.toPath(), checkpoint);
+
+        test.open();
+        test.validateEntries();
+        test.close();
+        DurableBTree.delete(logFile);
+    }
+
+    //
+    // Vrifier que l'ouverture de l'arbre choue sur un point de reprise abm, en laissant l'arbre vide
+    //
+    private void validateCheckpointRejected(String damage) throws BTException {
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>();
+        try {
+            new DurableBTree<Integer, Integer>(mLogFile, BTPageCodecs.INTEGER, BTPageCodecs.INTEGER, mSyncPolicy,
+                                               BTWriteAheadLog.DEFAULT_SYNC_INTERVAL_MILLIS, btree);
+        }
+        catch (IOException e) {
+            if ((btree.size() != 0L) || (btree.getRootNode() != null)) {
+                throw new BTException("Erreur dans validateCorruptCheckpoint(): " + btree.size() + " cls charges du point de reprise " + damage);
+            }
+            return;
+        }
+        throw new BTException("Erreur dans validateCorruptCheckpoint(): le point de reprise " + damage + " a t accept");
+    }
+
+    //
+    // Vrifier que l'ouverture de l'arbre choue sur un segment abm
+    //
+    private void validateRejected(File segmentFile, String damage) throws BTException {
+        try {
+            open();
+        }
+        catch (IOException e) {
+            return;
+        }
+        throw new BTException("Erreur dans validateSegments(): le segment " + damage + " " + segmentFile + " a t accept");
+    }
+
+    //
+    // Fichiers des segments du journal, dans l'ordre de leur premier LSN
+    //
+    private static File[] getSegmentFiles(File logFile) {
+        TreeMap<String, File> segmentFiles = new TreeMap<String, File>();
+        String prefix = logFile.getName() + ".";
+        for (File file : logFile.getAbsoluteFile().getParentFile().listFiles()) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]{20}")) {
+                segmentFiles.put(name, file);
+            }
+        }
+        return segmentFiles.values().toArray(new File[0]);
+    }
+
+    private static long getSegmentFirstLsn(File segmentFile) {
+        String name = segmentFile.getName();
+        return Long.parseLong(name.substring(name.length() - 20));
+    }
+
+    private static File getLastSegmentFile(File logFile) {
+        File segmentFiles[] = getSegmentFiles(logFile);
+        return segmentFiles[segmentFiles.length - 1];
+    }
+
+    private static boolean isEqual(Integer value1, Integer value2) {
+        return (value1 == null) ? (value2 == null) : value1.equals(value2);
+    }
+
+    public static void main(String[] args) throws BTException, IOException {
+        int operationNum = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        File dir = Files.createTempDirectory("DurableBTreeTest").toFile();
+        try {
+            validateReopen(dir, BTWriteAheadLog.SyncPolicy.PER_OPERATION, operationNum / 4, 1L);
+            validateReopen(dir, BTWriteAheadLog.SyncPolicy.GROUP_COMMIT, operationNum, 2L);
+            validateReopen(dir, BTWriteAheadLog.SyncPolicy.ASYNC, operationNum, 3L);
+            validateTornTail(dir, operationNum, 4L);
+            validateSegments(dir, operationNum, 5L);
+            validateCheckpoint(dir, operationNum, 6L);
+            validateTruncate(dir, operationNum, 7L);
+            validateCorruptCheckpoint(dir, operationNum, 8L);
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+        System.out.println("Validation termine");
+    }
+}
@@ -0,0 +1,5 @@
+package app;
+
+public interface IntBTIteratorIF <V> {
+    public boolean item(int key, V value);
+}
@@ -0,0 +1,20 @@
+package app;
+
+
+public class IntBTNode<V>
+{
+    protected boolean mIsLeaf; // true if the node has no children
+    protected int mCurrentKeyNum; // number of keys stored in the node
+    protected int mKeys[]; // keys, sorted in ascending order
+    protected Object mValues[]; // values, mValues[i] belongs to mKeys[i]
+    protected IntBTNode mChildren[]; // children, mChildren[i] holds the keys lower than mKeys[i]
+
+
+    public IntBTNode(int minDegree) {
+        mIsLeaf = true;
+        mCurrentKeyNum = 0;
+        mKeys = new int[BTNode.getUpperBoundKeyNum(minDegree)];
+        mValues = new Object[BTNode.getUpperBoundKeyNum(minDegree)];
+        mChildren = new IntBTNode[BTNode.getUpperBoundKeyNum(minDegree) + 1];
+    }
+}
@@ -0,0 +1,415 @@
+package app;
+
+//
+// B-tree specialized for int keys
+// Keys are kept unboxed in an int[] per node and compared with plain comparisons
+//
+public class IntBTree<V>
+{
+    private final int mMinDegree;
+    private final int mLowerBoundKeyNum;
+    private final int mUpperBoundKeyNum;
+    private final BTSearchIF mSearch;
+    private IntBTNode<V> mRoot = null;
+    private long mSize = 0L;
+
+    //
+    // Create a tree with the default node degree
+    //
+    public IntBTree() {
+        this(BTNode.DEFAULT_MIN_DEGREE);
+    }
+
+    //
+    // Create a tree whose nodes hold between (minDegree - 1) and (2 * minDegree - 1) keys
+    //
+    public IntBTree(int minDegree) {
+        this(minDegree, BTNode.selectSearch(minDegree));
+    }
+
+    //
+    // Create a tree with the given degree that searches within its nodes with the given strategy
+    //
+    public IntBTree(int minDegree, BTSearchIF search) {
+        mMinDegree = BTNode.checkMinDegree(minDegree);
+        mLowerBoundKeyNum = BTNode.getLowerBoundKeyNum(minDegree);
+        mUpperBoundKeyNum = BTNode.getUpperBoundKeyNum(minDegree);
+        mSearch = search;
+    }
+
+    //
+    // Get the minimum degree of the nodes of the tree
+    //
+    public int getMinDegree() {
+        return mMinDegree;
+    }
+
+    //
+    // Get the root node
+    //
+    public IntBTNode<V> getRootNode() {
+        return mRoot;
+    }
+
+    //
+    // The total number of keys in the tree
+    //
+    public long size() {
+        return mSize;
+    }
+
+    //
+    // Clear all the entries in the tree
+    //
+    public void clear() {
+        mSize = 0L;
+        mRoot = null;
+    }
+
+    //
+    // Search value for a specified key of the tree
+    //
+    public V search(int key) {
+        IntBTNode<V> currentNode = mRoot;
+        while (currentNode != null) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (i >= 0) {
+                return (V) currentNode.mValues[i];
+            }
+            if (currentNode.mIsLeaf) {
+                return null;
+            }
+            currentNode = currentNode.mChildren[-(i + 1)];
+        }
+        return null;
+    }
+
+    //
+    // Insert the key and its value into the tree
+    // The value of an existing key is replaced
+    //
+    public IntBTree<V> insert(int key, V value) {
+        if (mRoot == null) {
+            mRoot = new IntBTNode<V>(mMinDegree);
+        }
+
+        if (mRoot.mCurrentKeyNum == mUpperBoundKeyNum) {
+            // The root is full, split it so that the tree grows by one level
+            IntBTNode<V> btNode = new IntBTNode<V>(mMinDegree);
+            btNode.mIsLeaf = false;
+            btNode.mChildren[0] = mRoot;
+            mRoot = btNode;
+            splitNode(mRoot, 0, btNode.mChildren[0]);
+        }
+
+        IntBTNode<V> currentNode = mRoot;
+        while (true) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (i >= 0) {
+                // The key already existed so replace its value
+                currentNode.mValues[i] = value;
+                return this;
+            }
+
+            i = -(i + 1);
+            if (currentNode.mIsLeaf) {
+                System.arraycopy(currentNode.mKeys, i, currentNode.mKeys, i + 1, currentNode.mCurrentKeyNum - i);
+                System.arraycopy(currentNode.mValues, i, currentNode.mValues, i + 1, currentNode.mCurrentKeyNum - i);
+                currentNode.mKeys[i] = key;
+                currentNode.mValues[i] = value;
+                ++(currentNode.mCurrentKeyNum);
+                ++mSize;
+                return this;
+            }
+
+            IntBTNode<V> childNode = currentNode.mChildren[i];
+            if (childNode.mCurrentKeyNum == mUpperBoundKeyNum) {
+                // Split the full child before going down so that it can take the key
+                splitNode(currentNode, i, childNode);
+                if (key == currentNode.mKeys[i]) {
+                    currentNode.mValues[i] = value;
+                    return this;
+                }
+                if (key > currentNode.mKeys[i]) {
+                    childNode = currentNode.mChildren[i + 1];
+                }
+            }
+            currentNode = childNode;
+        }
+    }
+
+    //
+    // Split the full child node at nodeIdx of the parent node
+    // The middle key moves up to the parent node
+    //
+    private void splitNode(IntBTNode<V> parentNode, int nodeIdx, IntBTNode<V> btNode) {
+        IntBTNode<V> newNode = new IntBTNode<V>(mMinDegree);
+        newNode.mIsLeaf = btNode.mIsLeaf;
+        newNode.mCurrentKeyNum = mLowerBoundKeyNum;
+
+        // Move the right half of the keys (and children) to the new node
+        System.arraycopy(btNode.mKeys, mMinDegree, newNode.mKeys, 0, mLowerBoundKeyNum);
+        System.arraycopy(btNode.mValues, mMinDegree, newNode.mValues, 0, mLowerBoundKeyNum);
+        clearValues(btNode, mMinDegree, mUpperBoundKeyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(btNode.mChildren, mMinDegree, newNode.mChildren, 0, mMinDegree);
+            clearChildren(btNode, mMinDegree, mUpperBoundKeyNum + 1);
+        }
+        btNode.mCurrentKeyNum = mLowerBoundKeyNum;
+
+        // Make room in the parent node for the middle key and the new child
+        int keyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, nodeIdx, parentNode.mKeys, nodeIdx + 1, keyNum - nodeIdx);
+        System.arraycopy(parentNode.mValues, nodeIdx, parentNode.mValues, nodeIdx + 1, keyNum - nodeIdx);
+        System.arraycopy(parentNode.mChildren, nodeIdx + 1, parentNode.mChildren, nodeIdx + 2, keyNum - nodeIdx);
+        parentNode.mKeys[nodeIdx] = btNode.mKeys[mLowerBoundKeyNum];
+        parentNode.mValues[nodeIdx] = btNode.mValues[mLowerBoundKeyNum];
+        parentNode.mChildren[nodeIdx + 1] = newNode;
+        btNode.mValues[mLowerBoundKeyNum] = null;
+        ++(parentNode.mCurrentKeyNum);
+    }
+
+    //
+    // Delete a key from the tree
+    // Return the value if the key existed
+    // Return null otherwise
+    //
+    public V delete(int key) {
+        if (mRoot == null) {
+            return null;
+        }
+
+        V retVal = null;
+        boolean isFound = false;
+        IntBTNode<V> currentNode = mRoot;
+        while (true) {
+            int i = mSearch.search(currentNode.mKeys, currentNode.mCurrentKeyNum, key);
+            if (currentNode.mIsLeaf) {
+                if (i >= 0) {
+                    retVal = (V) currentNode.mValues[i];
+                    removeKeyAt(currentNode, i);
+                    isFound = true;
+                }
+                break;
+            }
+
+            if (i >= 0) {
+                // The key is in an internal node, replace it with its predecessor or successor
+                // taken out of a child that can spare a key, or merge the two children around it
+                IntBTNode<V> leftChild = currentNode.mChildren[i];
+                IntBTNode<V> rightChild = currentNode.mChildren[i + 1];
+                if (leftChild.mCurrentKeyNum > mLowerBoundKeyNum) {
+                    retVal = (V) currentNode.mValues[i];
+                    deleteLastKey(leftChild, currentNode, i);
+                    isFound = true;
+                    break;
+                }
+                if (rightChild.mCurrentKeyNum > mLowerBoundKeyNum) {
+                    retVal = (V) currentNode.mValues[i];
+                    deleteFirstKey(rightChild, currentNode, i);
+                    isFound = true;
+                    break;
+                }
+                mergeChildren(currentNode, i);
+                currentNode = leftChild;
+                continue;
+            }
+
+            currentNode = ensureChildCanSpareKey(currentNode, -(i + 1));
+        }
+
+        if (mRoot.mCurrentKeyNum == 0) {
+            mRoot = mRoot.mIsLeaf ? null : mRoot.mChildren[0];
+        }
+        if (isFound) {
+            --mSize;
+        }
+        return retVal;
+    }
+
+    //
+    // Remove the largest key of the subtree and store it at keyIdx of the target node
+    //
+    private void deleteLastKey(IntBTNode<V> btNode, IntBTNode<V> targetNode, int keyIdx) {
+        while (!btNode.mIsLeaf) {
+            btNode = ensureChildCanSpareKey(btNode, btNode.mCurrentKeyNum);
+        }
+        int lastIdx = btNode.mCurrentKeyNum - 1;
+        targetNode.mKeys[keyIdx] = btNode.mKeys[lastIdx];
+        targetNode.mValues[keyIdx] = btNode.mValues[lastIdx];
+        removeKeyAt(btNode, lastIdx);
+    }
+
+    //
+    // Remove the smallest key of the subtree and store it at keyIdx of the target node
+    //
+    private void deleteFirstKey(IntBTNode<V> btNode, IntBTNode<V> targetNode, int keyIdx) {
+        while (!btNode.mIsLeaf) {
+            btNode = ensureChildCanSpareKey(btNode, 0);
+        }
+        targetNode.mKeys[keyIdx] = btNode.mKeys[0];
+        targetNode.mValues[keyIdx] = btNode.mValues[0];
+        removeKeyAt(btNode, 0);
+    }
+
+    //
+    // Make sure the child at nodeIdx holds more than the minimum number of keys
+    // before going down into it, by borrowing from a sibling or merging with it
+    // Return the node to go down into
+    //
+    private IntBTNode<V> ensureChildCanSpareKey(IntBTNode<V> parentNode, int nodeIdx) {
+        IntBTNode<V> btNode = parentNode.mChildren[nodeIdx];
+        if (btNode.mCurrentKeyNum > mLowerBoundKeyNum) {
+            return btNode;
+        }
+
+        IntBTNode<V> leftSiblingNode = (nodeIdx > 0) ? parentNode.mChildren[nodeIdx - 1] : null;
+        if ((leftSiblingNode != null) && (leftSiblingNode.mCurrentKeyNum > mLowerBoundKeyNum)) {
+            performRightRotation(parentNode, nodeIdx, btNode, leftSiblingNode);
+            return btNode;
+        }
+
+        IntBTNode<V> rightSiblingNode = (nodeIdx < parentNode.mCurrentKeyNum) ? parentNode.mChildren[nodeIdx + 1] : null;
+        if ((rightSiblingNode != null) && (rightSiblingNode.mCurrentKeyNum > mLowerBoundKeyNum)) {
+            performLeftRotation(parentNode, nodeIdx, btNode, rightSiblingNode);
+            return btNode;
+        }
+
+        if (rightSiblingNode != null) {
+            mergeChildren(parentNode, nodeIdx);
+            return btNode;
+        }
+        mergeChildren(parentNode, nodeIdx - 1);
+        return leftSiblingNode;
+    }
+
+    //
+    // Move the parent key down to the front of the node and the last key of the left sibling up
+    //
+    private void performRightRotation(IntBTNode<V> parentNode, int nodeIdx, IntBTNode<V> btNode, IntBTNode<V> leftSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = leftSiblingNode.mCurrentKeyNum;
+        System.arraycopy(btNode.mKeys, 0, btNode.mKeys, 1, keyNum);
+        System.arraycopy(btNode.mValues, 0, btNode.mValues, 1, keyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(btNode.mChildren, 0, btNode.mChildren, 1, keyNum + 1);
+            btNode.mChildren[0] = leftSiblingNode.mChildren[siblingKeyNum];
+            leftSiblingNode.mChildren[siblingKeyNum] = null;
+        }
+        btNode.mKeys[0] = parentNode.mKeys[nodeIdx - 1];
+        btNode.mValues[0] = parentNode.mValues[nodeIdx - 1];
+        ++(btNode.mCurrentKeyNum);
+
+        parentNode.mKeys[nodeIdx - 1] = leftSiblingNode.mKeys[siblingKeyNum - 1];
+        parentNode.mValues[nodeIdx - 1] = leftSiblingNode.mValues[siblingKeyNum - 1];
+        leftSiblingNode.mValues[siblingKeyNum - 1] = null;
+        --(leftSiblingNode.mCurrentKeyNum);
+    }
+
+    //
+    // Move the parent key down to the end of the node and the first key of the right sibling up
+    //
+    private void performLeftRotation(IntBTNode<V> parentNode, int nodeIdx, IntBTNode<V> btNode, IntBTNode<V> rightSiblingNode) {
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+        btNode.mKeys[keyNum] = parentNode.mKeys[nodeIdx];
+        btNode.mValues[keyNum] = parentNode.mValues[nodeIdx];
+        if (!btNode.mIsLeaf) {
+            btNode.mChildren[keyNum + 1] = rightSiblingNode.mChildren[0];
+            System.arraycopy(rightSiblingNode.mChildren, 1, rightSiblingNode.mChildren, 0, siblingKeyNum);
+            rightSiblingNode.mChildren[siblingKeyNum] = null;
+        }
+        ++(btNode.mCurrentKeyNum);
+
+        parentNode.mKeys[nodeIdx] = rightSiblingNode.mKeys[0];
+        parentNode.mValues[nodeIdx] = rightSiblingNode.mValues[0];
+        System.arraycopy(rightSiblingNode.mKeys, 1, rightSiblingNode.mKeys, 0, siblingKeyNum - 1);
+        System.arraycopy(rightSiblingNode.mValues, 1, rightSiblingNode.mValues, 0, siblingKeyNum - 1);
+        rightSiblingNode.mValues[siblingKeyNum - 1] = null;
+        --(rightSiblingNode.mCurrentKeyNum);
+    }
+
+    //
+    // Merge the child at keyIdx + 1 and the parent key at keyIdx into the child at keyIdx
+    //
+    private void mergeChildren(IntBTNode<V> parentNode, int keyIdx) {
+        IntBTNode<V> btNode = parentNode.mChildren[keyIdx];
+        IntBTNode<V> rightSiblingNode = parentNode.mChildren[keyIdx + 1];
+        int keyNum = btNode.mCurrentKeyNum;
+        int siblingKeyNum = rightSiblingNode.mCurrentKeyNum;
+
+        btNode.mKeys[keyNum] = parentNode.mKeys[keyIdx];
+        btNode.mValues[keyNum] = parentNode.mValues[keyIdx];
+        System.arraycopy(rightSiblingNode.mKeys, 0, btNode.mKeys, keyNum + 1, siblingKeyNum);
+        System.arraycopy(rightSiblingNode.mValues, 0, btNode.mValues, keyNum + 1, siblingKeyNum);
+        if (!btNode.mIsLeaf) {
+            System.arraycopy(rightSiblingNode.mChildren, 0, btNode.mChildren, keyNum + 1, siblingKeyNum + 1);
+        }
+        btNode.mCurrentKeyNum = keyNum + 1 + siblingKeyNum;
+
+        // Remove the parent key and the pointer to the abandoned sibling
+        int parentKeyNum = parentNode.mCurrentKeyNum;
+        System.arraycopy(parentNode.mKeys, keyIdx + 1, parentNode.mKeys, keyIdx, parentKeyNum - keyIdx - 1);
+        System.arraycopy(parentNode.mValues, keyIdx + 1, parentNode.mValues, keyIdx, parentKeyNum - keyIdx - 1);
+        System.arraycopy(parentNode.mChildren, keyIdx + 2, parentNode.mChildren, keyIdx + 1, parentKeyNum - keyIdx - 1);
+        parentNode.mValues[parentKeyNum - 1] = null;
+        parentNode.mChildren[parentKeyNum] = null;
+        --(parentNode.mCurrentKeyNum);
+    }
+
+    //
+    // Remove the key at keyIdx of a leaf node
+    //
+    private void removeKeyAt(IntBTNode<V> btNode, int keyIdx) {
+        int keyNum = btNode.mCurrentKeyNum;
+        System.arraycopy(btNode.mKeys, keyIdx + 1, btNode.mKeys, keyIdx, keyNum - keyIdx - 1);
+        System.arraycopy(btNode.mValues, keyIdx + 1, btNode.mValues, keyIdx, keyNum - keyIdx - 1);
+        btNode.mValues[keyNum - 1] = null;
+        --(btNode.mCurrentKeyNum);
+    }
+
+    private static void clearValues(IntBTNode btNode, int fromIdx, int toIdx) {
+        for (int i = fromIdx; i < toIdx; ++i) {
+            btNode.mValues[i] = null;
+        }
+    }
+
+    private static void clearChildren(IntBTNode btNode, int fromIdx, int toIdx) {
+        for (int i = fromIdx; i < toIdx; ++i) {
+            btNode.mChildren[i] = null;
+        }
+    }
+
+    //
+    // List all the items in the tree
+    //
+    public void list(IntBTIteratorIF<V> iterImpl) {
+        if ((mSize < 1) || (iterImpl == null)) {
+            return;
+        }
+
+        listEntriesInOrder(mRoot, iterImpl);
+    }
+
+    //
+    // Recursively loop to the tree and list out the keys and their values
+    // Return true if it should continues listing out futher
+    // Return false if it is done
+    //
+    private boolean listEntriesInOrder(IntBTNode<V> treeNode, IntBTIteratorIF<V> iterImpl) {
+        int currentKeyNum = treeNode.mCurrentKeyNum;
+        for (int i = 0; i < currentKeyNum; ++i) {
+            if (!treeNode.mIsLeaf && !listEntriesInOrder(treeNode.mChildren[i], iterImpl)) {
+                return false;
+            }
+            if (!iterImpl.item(treeNode.mKeys[i], (V) treeNode.mValues[i])) {
+                return false;
+            }
+        }
+
+        if (!treeNode.mIsLeaf) {
+            return listEntriesInOrder(treeNode.mChildren[currentKeyNum], iterImpl);
+        }
+        return true;
+    }
+}
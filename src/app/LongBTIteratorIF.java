@@ -0,0 +1,5 @@
+package app;
+
+public interface LongBTIteratorIF <V> {
+    public boolean item(long key, V value);
+}
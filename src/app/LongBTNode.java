@@ -0,0 +1,20 @@
+package app;
+
+
+public class LongBTNode<V>
+{
+    protected boolean mIsLeaf; // true if the node has no children
+    protected int mCurrentKeyNum; // number of keys stored in the node
+    protected long mKeys[]; // keys, sorted in ascending order
+    protected Object mValues[]; // values, mValues[i] belongs to mKeys[i]
+    protected LongBTNode mChildren[]; // children, mChildren[i] holds the keys lower than mKeys[i]
+
+
+    public LongBTNode(int minDegree) {
+        mIsLeaf = true;
+        mCurrentKeyNum = 0;
+        mKeys = new long[BTNode.getUpperBoundKeyNum(minDegree)];
+        mValues = new Object[BTNode.getUpperBoundKeyNum(minDegree)];
+        mChildren = new LongBTNode[BTNode.getUpperBoundKeyNum(minDegree) + 1];
+    }
+}
@@ -0,0 +1,433 @@
+package app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//
+// Tree split into key range shards, each of them a BTree behind its own lock, so that
+// threads working on different parts of the key space do not wait for each other
+// The shards are found by bisection of their lower bounds in a table that is replaced as a
+// whole when the shards change. An operation locks its shard, and starts again from the new
+// table if the shard was replaced meanwhile
+// The tree starts with a single shard. A shard is split at its median key when it holds more
+// than maxShardKeyNum keys, or when it took more than twice its share (1 / maxShardNum) of the
+// writes made since it was created. Once there are maxShardNum shards, such a shard shares
+// its keys evenly with a neighbour holding less than half as many, which moves their boundary
+// Shards are not merged when their keys are deleted
+//
+public class ShardedBTree<K extends Comparable, V> implements BTreeIF<K, V>
+{
+    public final static int DEFAULT_MAX_SHARD_NUM       =   16;
+    public final static int DEFAULT_MAX_SHARD_KEY_NUM   =   1 << 20;
+    public final static int MIN_SPLIT_KEY_NUM           =   1024; // a shard holding fewer keys is never split because it is hot
+    public final static int REBALANCE_CHECK_INTERVAL    =   1024; // writes of a shard between two checks of its balance
+    public final static int HOT_SHARE_FACTOR            =   2; // a shard taking more than this many times its share of writes is hot
+    public final static int LIST_CHUNK_KEY_NUM          =   256; // entries copied out of a shard at a time by a listing
+
+    private final int mMaxShardNum;
+    private final int mMaxShardKeyNum;
+    private final int mMinDegree;
+    private volatile ShardTable<K, V> mTable;
+    private final ReentrantLock mRebalanceLock = new ReentrantLock(); // held while the table is replaced
+    private final LongAdder mSize = new LongAdder();
+    private final LongAdder mWriteNum = new LongAdder();
+
+    //
+    // Create a tree of at most DEFAULT_MAX_SHARD_NUM shards
+    //
+    public ShardedBTree() {
+        this(DEFAULT_MAX_SHARD_NUM);
+    }
+
+    //
+    // Create a tree of at most maxShardNum shards
+    //
+    public ShardedBTree(int maxShardNum) {
+        this(maxShardNum, DEFAULT_MAX_SHARD_KEY_NUM, BTNode.DEFAULT_MIN_DEGREE);
+    }
+
+    //
+    // Create a tree of at most maxShardNum shards, splitting the shards that hold more than
+    // maxShardKeyNum keys, with nodes of the given degree
+    //
+    public ShardedBTree(int maxShardNum, int maxShardKeyNum, int minDegree) {
+        if (maxShardNum < 1) {
+            throw new IllegalArgumentException("Invalid maximum number of shards " + maxShardNum);
+        }
+        if (maxShardKeyNum < MIN_SPLIT_KEY_NUM) {
+            throw new IllegalArgumentException("Invalid maximum number of keys per shard " + maxShardKeyNum +
+                                               ", expected at least " + MIN_SPLIT_KEY_NUM);
+        }
+        mMaxShardNum = maxShardNum;
+        mMaxShardKeyNum = maxShardKeyNum;
+        mMinDegree = BTNode.checkMinDegree(minDegree);
+        mTable = new ShardTable<K, V>(new Shard[] { createShard(null, null) });
+    }
+
+    //
+    // Get the current number of shards
+    //
+    public int getShardNum() {
+        return mTable.mShards.length;
+    }
+
+    //
+    // The total number of keys in the tree
+    //
+    @Override
+    public long size() {
+        return mSize.sum();
+    }
+
+    //
+    // Clear all the entries in the tree, with every shard locked
+    //
+    @Override
+    public void clear() {
+        mRebalanceLock.lock();
+        try {
+            Shard<K, V> shards[] = mTable.mShards;
+            for (Shard<K, V> shard : shards) {
+                shard.mLock.writeLock().lock();
+            }
+            mTable = new ShardTable<K, V>(new Shard[] { createShard(null, null) });
+            mSize.reset();
+            for (Shard<K, V> shard : shards) {
+                shard.mIsRetired = true;
+                shard.mLock.writeLock().unlock();
+            }
+        }
+        finally {
+            mRebalanceLock.unlock();
+        }
+    }
+
+    //
+    // Search value for a specified key of the tree
+    //
+    @Override
+    public V search(K key) {
+        Shard<K, V> shard = lockShard(key, false);
+        try {
+            return shard.mTree.search(key);
+        }
+        finally {
+            shard.mLock.readLock().unlock();
+        }
+    }
+
+    //
+    // Insert the key and its value into the tree
+    // The value of an existing key is replaced
+    //
+    @Override
+    public ShardedBTree<K, V> insert(K key, V value) {
+        Shard<K, V> shard = lockShard(key, true);
+        boolean isCheckDue;
+        try {
+            long keyNum = shard.mTree.size();
+            shard.mTree.insert(key, value);
+            if (shard.mTree.size() != keyNum) {
+                mSize.increment();
+            }
+            isCheckDue = (++shard.mWriteNum % REBALANCE_CHECK_INTERVAL == 0);
+        }
+        finally {
+            shard.mLock.writeLock().unlock();
+        }
+
+        mWriteNum.increment();
+        if (isCheckDue) {
+            rebalance(shard);
+        }
+        return this;
+    }
+
+    //
+    // Delete a key from the tree
+    // Return the value if the key existed
+    // Return null otherwise
+    //
+    @Override
+    public V delete(K key) {
+        Shard<K, V> shard = lockShard(key, true);
+        V retVal;
+        boolean isCheckDue;
+        try {
+            long keyNum = shard.mTree.size();
+            retVal = shard.mTree.delete(key);
+            if (shard.mTree.size() != keyNum) {
+                mSize.decrement();
+            }
+            isCheckDue = (++shard.mWriteNum % REBALANCE_CHECK_INTERVAL == 0);
+        }
+        finally {
+            shard.mLock.writeLock().unlock();
+        }
+
+        mWriteNum.increment();
+        if (isCheckDue) {
+            rebalance(shard);
+        }
+        return retVal;
+    }
+
+    //
+    // List all the items in the tree
+    //
+    @Override
+    public void list(BTIteratorIF<K, V> iterImpl) {
+        range(null, true, null, true, iterImpl);
+    }
+
+    //
+    // List the items whose keys lie between fromKey and toKey, in ascending order
+    // A null bound leaves that side of the range open
+    // The shards are listed one after the other in key order, by chunks of entries copied out
+    // under the read lock of their shard and given to the iterator with no lock held, so the
+    // iterator may update the tree. Each chunk is consistent but the listing as a whole is not
+    // a snapshot of the tree
+    //
+    @Override
+    public void range(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive, BTIteratorIF<K, V> iterImpl) {
+        if (iterImpl == null) {
+            return;
+        }
+
+        final List<BTKeyValue<K, V>> chunk = new ArrayList<BTKeyValue<K, V>>(LIST_CHUNK_KEY_NUM);
+        BTIteratorIF<K, V> collector = new BTIteratorIF<K, V>() {
+            @Override
+            public boolean item(K key, V value) {
+                chunk.add(new BTKeyValue<K, V>(key, value));
+                return chunk.size() < LIST_CHUNK_KEY_NUM;
+            }
+        };
+
+        K nextKey = fromKey;
+        boolean nextInclusive = fromInclusive;
+        while (true) {
+            chunk.clear();
+            Shard<K, V> shard = lockShard(nextKey, false);
+            try {
+                shard.mTree.range(nextKey, nextInclusive, toKey, toInclusive, collector);
+            }
+            finally {
+                shard.mLock.readLock().unlock();
+            }
+
+            for (BTKeyValue<K, V> entry : chunk) {
+                if (!iterImpl.item(entry.mKey, entry.mValue)) {
+                    return;
+                }
+            }
+
+            if (chunk.size() == LIST_CHUNK_KEY_NUM) {
+                // Go on after the last key listed, in whatever shard holds it by now
+                nextKey = chunk.get(LIST_CHUNK_KEY_NUM - 1).mKey;
+                nextInclusive = false;
+                continue;
+            }
+
+            // The shard has no more keys in the range, go on with the next one
+            if (shard.mHighKey == null) {
+                return;
+            }
+            if ((toKey != null) && (shard.mHighKey.compareTo(toKey) >= (toInclusive ? 1 : 0))) {
+                return;
+            }
+            nextKey = shard.mHighKey;
+            nextInclusive = true;
+        }
+    }
+
+    //
+    // Lock the shard that holds the key, for reading or for writing
+    // A null key stands for the lowest keys
+    //
+    private Shard<K, V> lockShard(K key, boolean isWrite) {
+        while (true) {
+            ShardTable<K, V> table = mTable;
+            Shard<K, V> shard = table.mShards[table.findShardIndex(key)];
+            Lock lock = isWrite ? shard.mLock.writeLock() : shard.mLock.readLock();
+            lock.lock();
+            if (!shard.mIsRetired) {
+                return shard;
+            }
+            // The shard was replaced while waiting for its lock
+            lock.unlock();
+        }
+    }
+
+    //
+    // Split a shard that grew large or hot, or move its boundary with a lighter neighbour
+    // Nothing is done if another thread is already changing the shards
+    //
+    private void rebalance(Shard<K, V> shard) {
+        if (!mRebalanceLock.tryLock()) {
+            return;
+        }
+        try {
+            ShardTable<K, V> table = mTable;
+            int shardIdx = table.indexOf(shard);
+            if (shardIdx < 0) {
+                return;
+            }
+
+            shard.mLock.writeLock().lock();
+            try {
+                long keyNum = shard.mTree.size();
+                long treeWriteNum = mWriteNum.sum() - shard.mFirstWriteNum;
+                boolean isLarge = (keyNum > mMaxShardKeyNum);
+                boolean isHot = (keyNum >= MIN_SPLIT_KEY_NUM) &&
+                                (shard.mWriteNum * mMaxShardNum > HOT_SHARE_FACTOR * treeWriteNum);
+                if (!isLarge && !isHot) {
+                    return;
+                }
+
+                if (table.mShards.length < mMaxShardNum) {
+                    replaceShards(table, shardIdx, 1);
+                    return;
+                }
+
+                // No room for another shard, share the keys with the neighbour holding fewer of them
+                int neighbourIdx = -1;
+                long neighbourKeyNum = keyNum / 2;
+                for (int i = shardIdx - 1; i <= shardIdx + 1; i += 2) {
+                    if ((i >= 0) && (i < table.mShards.length)) {
+                        long siblingKeyNum = table.mShards[i].mTree.size();
+                        if (siblingKeyNum < neighbourKeyNum) {
+                            neighbourIdx = i;
+                            neighbourKeyNum = siblingKeyNum;
+                        }
+                    }
+                }
+                if (neighbourIdx < 0) {
+                    return;
+                }
+
+                Shard<K, V> neighbourShard = table.mShards[neighbourIdx];
+                neighbourShard.mLock.writeLock().lock();
+                try {
+                    replaceShards(table, Math.min(shardIdx, neighbourIdx), 2);
+                }
+                finally {
+                    neighbourShard.mLock.writeLock().unlock();
+                }
+            }
+            finally {
+                shard.mLock.writeLock().unlock();
+            }
+        }
+        finally {
+            mRebalanceLock.unlock();
+        }
+    }
+
+    //
+    // Replace shardNum neighbouring shards, write locked by the caller, with two new shards
+    // sharing their keys evenly, and retire the old ones
+    //
+    private void replaceShards(ShardTable<K, V> table, int firstIdx, int shardNum) {
+        final List<BTKeyValue<K, V>> entries = new ArrayList<BTKeyValue<K, V>>();
+        BTIteratorIF<K, V> collector = new BTIteratorIF<K, V>() {
+            @Override
+            public boolean item(K key, V value) {
+                entries.add(new BTKeyValue<K, V>(key, value));
+                return true;
+            }
+        };
+        for (int i = firstIdx; i < firstIdx + shardNum; ++i) {
+            table.mShards[i].mTree.list(collector);
+        }
+
+        // The lower shard keeps the lower bound of the replaced ones, the upper shard starts at the median key
+        int medianIdx = entries.size() / 2;
+        K medianKey = entries.get(medianIdx).mKey;
+        Shard<K, V> lowerShard = createShard(table.mShards[firstIdx].mLowKey, medianKey);
+        Shard<K, V> upperShard = createShard(medianKey, table.mShards[firstIdx + shardNum - 1].mHighKey);
+        lowerShard.mTree.bulkLoad(entries.subList(0, medianIdx).iterator());
+        upperShard.mTree.bulkLoad(entries.subList(medianIdx, entries.size()).iterator());
+
+        Shard<K, V> shards[] = new Shard[table.mShards.length - shardNum + 2];
+        System.arraycopy(table.mShards, 0, shards, 0, firstIdx);
+        shards[firstIdx] = lowerShard;
+        shards[firstIdx + 1] = upperShard;
+        System.arraycopy(table.mShards, firstIdx + shardNum, shards, firstIdx + 2, table.mShards.length - firstIdx - shardNum);
+        mTable = new ShardTable<K, V>(shards);
+
+        for (int i = firstIdx; i < firstIdx + shardNum; ++i) {
+            table.mShards[i].mIsRetired = true;
+        }
+    }
+
+    private Shard<K, V> createShard(K lowKey, K highKey) {
+        return new Shard<K, V>(new BTree<K, V>(mMinDegree), lowKey, highKey, mWriteNum.sum());
+    }
+
+
+    //
+    // Part of the key space with its own tree and lock
+    //
+    private static class Shard<K extends Comparable, V> {
+        private final BTree<K, V> mTree;
+        private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+        private final K mLowKey; // lowest key the shard may hold, null for the first shard
+        private final K mHighKey; // keys of the shard are lower, null for the last shard
+        private final long mFirstWriteNum; // writes made to the whole tree before the shard was created
+        private long mWriteNum = 0L; // writes made to the shard, under its write lock
+        private boolean mIsRetired = false; // set under the write lock once the shard is replaced
+
+        private Shard(BTree<K, V> btree, K lowKey, K highKey, long firstWriteNum) {
+            mTree = btree;
+            mLowKey = lowKey;
+            mHighKey = highKey;
+            mFirstWriteNum = firstWriteNum;
+        }
+    }
+
+
+    //
+    // Shards of the tree in key order, never changed once published
+    //
+    private static class ShardTable<K extends Comparable, V> {
+        private final Shard<K, V> mShards[];
+
+        private ShardTable(Shard<K, V> shards[]) {
+            mShards = shards;
+        }
+
+        //
+        // Find by bisection the last shard whose lower bound is not above the key
+        //
+        private int findShardIndex(K key) {
+            if (key == null) {
+                return 0;
+            }
+            int low = 0;
+            int high = mShards.length - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (mShards[middle].mLowKey.compareTo(key) <= 0) {
+                    low = middle;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        private int indexOf(Shard<K, V> shard) {
+            for (int i = 0; i < mShards.length; ++i) {
+                if (mShards[i] == shard) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}